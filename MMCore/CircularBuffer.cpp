@@ -28,6 +28,9 @@
 
 #include "../MMDevice/DeviceUtils.h"
 
+#include <boost/date_time/posix_time/posix_time_types.hpp>
+#include <boost/thread/thread_time.hpp>
+
 
 const long long bytesInMB = 1 << 20;
 const long adjustThreshold = LONG_MAX / 2;
@@ -41,11 +44,25 @@ CircularBuffer::CircularBuffer(unsigned int memorySizeMB) :
    insertIndex_(0), 
    saveIndex_(0), 
    memorySizeMB_(memorySizeMB), 
-   overflow_(false)
+   overflow_(false),
+   waiters_(0),
+   closing_(false)
 {
 }
 
-CircularBuffer::~CircularBuffer() {}
+/**
+* Wakes the threads waiting in WaitForImage() or WaitForNewImage(), which then
+* return false, and waits for them to leave before the mutex and condition
+* they wait on are destroyed.
+*/
+CircularBuffer::~CircularBuffer()
+{
+   boost::unique_lock<boost::mutex> lock(imageInsertedMutex_);
+   closing_ = true;
+   imageInserted_.notify_all();
+   while (waiters_ > 0)
+      waitersGone_.wait(lock);
+}
 
 bool CircularBuffer::Initialize(unsigned channels, unsigned int w, unsigned int h, unsigned int pixDepth)
 {
@@ -62,6 +79,10 @@ bool CircularBuffer::Initialize(unsigned channels, unsigned int w, unsigned int
          if (frameArray_.size() > 0)
             return true; // nothing to change
 
+      // leased frames are still referenced by the application
+      if (!leasedPixels_.empty())
+         return false;
+
       width_ = w;
       height_ = h;
       pixDepth_ = pixDepth;
@@ -99,6 +120,7 @@ bool CircularBuffer::Initialize(unsigned channels, unsigned int w, unsigned int
          frameArray_[i].Resize(w, h, pixDepth);
          frameArray_[i].Preallocate(numChannels_);
       }
+      leaseCounts_.assign(cbSize, 0);
    }
 
    catch( ... /* std::bad_alloc& ex */)
@@ -131,6 +153,78 @@ unsigned long CircularBuffer::GetRemainingImageCount() const
    return (unsigned long)(insertIndex_ - saveIndex_);
 }
 
+/**
+* Returns the number of images inserted since the buffer was created.
+*/
+long CircularBuffer::GetImageCounter() const
+{
+   MMThreadGuard guard(g_bufferLock);
+   return imageCounter_;
+}
+
+/**
+* Blocks until at least one image can be retrieved with GetNextImage() or
+* the timeout expires. Returns true if an image is available.
+*/
+bool CircularBuffer::WaitForImage(long timeoutMs) const
+{
+   boost::system_time deadline = boost::get_system_time() +
+      boost::posix_time::milliseconds(timeoutMs);
+   boost::unique_lock<boost::mutex> lock(imageInsertedMutex_);
+   while (GetRemainingImageCount() == 0)
+   {
+      if (!WaitForInsertion(lock, deadline))
+         return !closing_ && GetRemainingImageCount() > 0;
+   }
+   return true;
+}
+
+/**
+* Blocks until the image counter differs from lastImageCounter (i.e. until a
+* new image has been inserted) or the timeout expires. Returns true if a new
+* image has been inserted.
+*/
+bool CircularBuffer::WaitForNewImage(long lastImageCounter, long timeoutMs) const
+{
+   boost::system_time deadline = boost::get_system_time() +
+      boost::posix_time::milliseconds(timeoutMs);
+   boost::unique_lock<boost::mutex> lock(imageInsertedMutex_);
+   while (GetImageCounter() == lastImageCounter)
+   {
+      if (!WaitForInsertion(lock, deadline))
+         return !closing_ && GetImageCounter() != lastImageCounter;
+   }
+   return true;
+}
+
+/**
+* Waits (holding imageInsertedMutex_ through lock) until an image is inserted
+* or the deadline passes. Returns false on timeout or if the buffer is being
+* destroyed, in which case the caller must return without waiting again.
+*/
+bool CircularBuffer::WaitForInsertion(boost::unique_lock<boost::mutex>& lock,
+      const boost::system_time& deadline) const
+{
+   if (closing_)
+      return false;
+   ++waiters_;
+   bool inserted = imageInserted_.timed_wait(lock, deadline);
+   --waiters_;
+   if (closing_)
+   {
+      if (waiters_ == 0)
+         waitersGone_.notify_all();
+      return false;
+   }
+   return inserted;
+}
+
+void CircularBuffer::NotifyImageInserted()
+{
+   boost::lock_guard<boost::mutex> lock(imageInsertedMutex_);
+   imageInserted_.notify_all();
+}
+
 /**
 * Inserts a single image in the buffer.
 */
@@ -157,6 +251,8 @@ bool CircularBuffer::InsertMultiChannel(const unsigned char* pixArray, unsigned
          throw CMMError("Incompatible image dimensions in the circular buffer", MMERR_CircularBufferIncompatibleImage);
 
       bool overflowed = (insertIndex_ - saveIndex_) >= static_cast<long>(frameArray_.size());
+      if (!overflowed && leaseCounts_[insertIndex_ % frameArray_.size()] > 0)
+         overflowed = true; // the application still holds this frame
       if (overflowed) {
          overflow_ = true;
          return false;
@@ -228,6 +324,7 @@ bool CircularBuffer::InsertMultiChannel(const unsigned char* pixArray, unsigned
       }
    }
 
+   NotifyImageInserted();
    return true;
 }
 
@@ -257,6 +354,8 @@ bool CircularBuffer::InsertMultiChannel(const unsigned char* pixArray, unsigned
           throw CMMError("Incompatible image dimensions in the circular buffer", MMERR_CircularBufferIncompatibleImage);
  
        bool overflowed = (insertIndex_ - saveIndex_) >= static_cast<long>(frameArray_.size());
+       if (!overflowed && leaseCounts_[insertIndex_ % frameArray_.size()] > 0)
+          overflowed = true; // the application still holds this frame
        if (overflowed) {
           overflow_ = true;
           return false;
@@ -333,6 +432,7 @@ bool CircularBuffer::InsertMultiChannel(const unsigned char* pixArray, unsigned
       }
    }
 
+   NotifyImageInserted();
    return true;
 }
  
@@ -392,3 +492,51 @@ const mm::ImgBuffer* CircularBuffer::GetNextImageBuffer(unsigned channel)
    ++saveIndex_;
    return frameArray_[targetIndex].FindImage(channel);
 }
+
+/**
+* Like GetNextImageBuffer(), but the returned frame is leased: its slot is not
+* reused for new images until ReleaseImageBuffer() is called with its pixels.
+*/
+const mm::ImgBuffer* CircularBuffer::LeaseNextImageBuffer(unsigned channel)
+{
+   MMThreadGuard guard(g_bufferLock);
+
+   long availableImages = insertIndex_ - saveIndex_;
+   if (availableImages < 1)
+      return 0;
+
+   long targetIndex = saveIndex_ % frameArray_.size();
+   const mm::ImgBuffer* img = frameArray_[targetIndex].FindImage(channel);
+   if (!img)
+      return 0;
+
+   ++saveIndex_;
+   ++leaseCounts_[targetIndex];
+   leasedPixels_[img->GetPixels()] = targetIndex;
+   return img;
+}
+
+/**
+* Ends the lease of a frame obtained with LeaseNextImageBuffer().
+* Returns false if the pixels do not belong to a leased frame.
+*/
+bool CircularBuffer::ReleaseImageBuffer(const unsigned char* pixels)
+{
+   MMThreadGuard guard(g_bufferLock);
+
+   std::map<const unsigned char*, long>::iterator it = leasedPixels_.find(pixels);
+   if (it == leasedPixels_.end())
+      return false;
+
+   long slot = it->second;
+   leasedPixels_.erase(it);
+   if (slot < static_cast<long>(leaseCounts_.size()) && leaseCounts_[slot] > 0)
+      --leaseCounts_[slot];
+   return true;
+}
+
+unsigned long CircularBuffer::GetLeaseCount() const
+{
+   MMThreadGuard guard(g_bufferLock);
+   return (unsigned long)leasedPixels_.size();
+}
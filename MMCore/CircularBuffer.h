@@ -31,6 +31,11 @@
 #include "../MMDevice/DeviceThreads.h"
 #include "../MMDevice/MMDevice.h"
 
+#include <boost/thread/condition_variable.hpp>
+#include <boost/thread/mutex.hpp>
+#include <boost/thread/thread_time.hpp>
+
+#include <map>
 #include <vector>
 
 #ifdef _MSC_VER
@@ -50,6 +55,10 @@ public:
    unsigned long GetSize() const;
    unsigned long GetFreeSize() const;
    unsigned long GetRemainingImageCount() const;
+   long GetImageCounter() const;
+
+   bool WaitForImage(long timeoutMs) const;
+   bool WaitForNewImage(long lastImageCounter, long timeoutMs) const;
 
    unsigned int Width() const {MMThreadGuard guard(g_bufferLock); return width_;}
    unsigned int Height() const {MMThreadGuard guard(g_bufferLock); return height_;}
@@ -65,6 +74,9 @@ public:
    const mm::ImgBuffer* GetNthFromTopImageBuffer(unsigned long n) const;
    const mm::ImgBuffer* GetNthFromTopImageBuffer(long n, unsigned channel) const;
    const mm::ImgBuffer* GetNextImageBuffer(unsigned channel);
+   const mm::ImgBuffer* LeaseNextImageBuffer(unsigned channel);
+   bool ReleaseImageBuffer(const unsigned char* pixels);
+   unsigned long GetLeaseCount() const;
    void Clear() {MMThreadGuard guard(g_bufferLock); insertIndex_=0; saveIndex_=0; overflow_ = false;}
 
    bool Overflow() {MMThreadGuard guard(g_bufferLock); return overflow_;}
@@ -73,6 +85,21 @@ public:
    mutable MMThreadLock g_insertLock;
 
 private:
+   void NotifyImageInserted();
+   bool WaitForInsertion(boost::unique_lock<boost::mutex>& lock,
+         const boost::system_time& deadline) const;
+
+   // Signalled (without holding g_bufferLock) whenever an image is inserted.
+   // Never acquire imageInsertedMutex_ while holding g_bufferLock.
+   mutable boost::mutex imageInsertedMutex_;
+   mutable boost::condition_variable imageInserted_;
+   // Threads blocked on imageInserted_, and whether the buffer is being
+   // destroyed; guarded by imageInsertedMutex_. The destructor waits on
+   // waitersGone_ until no thread is blocked.
+   mutable unsigned waiters_;
+   bool closing_;
+   mutable boost::condition_variable waitersGone_;
+
    unsigned int width_;
    unsigned int height_;
    unsigned int pixDepth_;
@@ -89,4 +116,9 @@ private:
    unsigned int numChannels_;
    bool overflow_;
    std::vector<mm::FrameBuffer> frameArray_;
+
+   // Frames handed out by LeaseNextImageBuffer() must not be overwritten
+   // until they are released, so leased slots count as occupied.
+   std::vector<unsigned> leaseCounts_; // per slot of frameArray_
+   std::map<const unsigned char*, long> leasedPixels_; // pixels -> slot
 };
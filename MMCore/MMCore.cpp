@@ -106,7 +106,7 @@ using namespace std;
  * (Keep the 3 numbers on one line to make it easier to look at diffs when
  * merging/rebasing.)
  */
-const int MMCore_versionMajor = 8, MMCore_versionMinor = 5, MMCore_versionPatch = 0;
+const int MMCore_versionMajor = 8, MMCore_versionMinor = 7, MMCore_versionPatch = 0;
 
 
 ///////////////////////////////////////////////////////////////////////////////
@@ -2989,6 +2989,50 @@ void* CMMCore::popNextImageMD(Metadata& md) throw (CMMError)
    return popNextImageMD(0, 0, md);
 }
 
+/**
+ * Gets and removes the next image from the circular buffer without copying
+ * it. The returned pixels point into the circular buffer, whose frame is
+ * leased to the caller: it will not be overwritten by new images (it counts
+ * as occupied, so a full buffer overflows as usual) until the lease is ended
+ * with releaseImageLease(). The circular buffer cannot be reinitialized while
+ * leases are outstanding.
+ */
+imgLease CMMCore::leaseNextImageMD(unsigned channel, Metadata& md) throw (CMMError)
+{
+   if (!cbuf_)
+      throw CMMError(getCoreErrorText(MMERR_CircularBufferEmpty).c_str(), MMERR_CircularBufferEmpty);
+   const mm::ImgBuffer* pBuf = cbuf_->LeaseNextImageBuffer(channel);
+   if (pBuf != 0)
+   {
+      md = pBuf->GetMetadata();
+      return const_cast<unsigned char*>(pBuf->GetPixels());
+   }
+   else
+      throw CMMError(getCoreErrorText(MMERR_CircularBufferEmpty).c_str(), MMERR_CircularBufferEmpty);
+}
+
+/**
+ * Ends the lease of a frame obtained with leaseNextImageMD(). The pixels
+ * must not be accessed afterwards.
+ */
+void CMMCore::releaseImageLease(imgLease pixels) throw (CMMError)
+{
+   if (!cbuf_ || !cbuf_->ReleaseImageBuffer(static_cast<const unsigned char*>(pixels)))
+      throw CMMError("Image buffer is not leased from the circular buffer");
+}
+
+/**
+ * Returns the number of circular buffer frames currently leased.
+ */
+long CMMCore::getNumberOfImageLeases()
+{
+   if (cbuf_)
+   {
+      return cbuf_->GetLeaseCount();
+   }
+   return 0;
+}
+
 /**
  * Removes all images from the circular buffer.
  *
@@ -3002,11 +3046,18 @@ void CMMCore::clearCircularBuffer() throw (CMMError)
 
 /**
  * Reserve memory for the circular buffer.
+ *
+ * Fails while frames are leased with leaseNextImageMD(), since their pixels
+ * would be freed. Threads waiting for images in waitForImage() or
+ * waitForNewImage() return false.
  */
 void CMMCore::setCircularBufferMemoryFootprint(unsigned sizeMB ///< n megabytes
                                                ) throw (CMMError)
 {
-   delete cbuf_; // discard old buffer
+   if (getNumberOfImageLeases() > 0)
+      throw CMMError("Cannot resize the circular buffer while images are leased from it");
+   delete cbuf_; // discard old buffer; wakes and waits out any waiters
+   cbuf_ = 0;
    LOG_DEBUG(coreLogger_) << "Will set circular buffer size to " <<
       sizeMB << " MB";
 	try
@@ -3089,6 +3140,53 @@ bool CMMCore::isBufferOverflowed() const
    return cbuf_->Overflow();
 }
 
+/**
+ * Blocks until an image can be retrieved with popNextImage() or the timeout
+ * expires. Unlike polling getRemainingImageCount(), the calling thread is
+ * woken up as soon as the camera inserts an image.
+ * @param timeoutMs  maximum time to wait, in milliseconds
+ * @return true if an image is available in the circular buffer
+ */
+bool CMMCore::waitForImage(long timeoutMs)
+{
+   if (cbuf_)
+   {
+      return cbuf_->WaitForImage(timeoutMs);
+   }
+   return false;
+}
+
+/**
+ * Returns the number of images inserted into the circular buffer since it
+ * was created. Pass the value to waitForNewImage() to wait for the next image
+ * without popping images from the buffer (e.g. in live mode).
+ */
+long CMMCore::getImageCounter()
+{
+   if (cbuf_)
+   {
+      return cbuf_->GetImageCounter();
+   }
+   return 0;
+}
+
+/**
+ * Blocks until an image has been inserted into the circular buffer after
+ * the one counted in lastImageCounter (see getImageCounter()), or the
+ * timeout expires.
+ * @param lastImageCounter  image counter of the last image seen
+ * @param timeoutMs  maximum time to wait, in milliseconds
+ * @return true if a new image has been inserted
+ */
+bool CMMCore::waitForNewImage(long lastImageCounter, long timeoutMs)
+{
+   if (cbuf_)
+   {
+      return cbuf_->WaitForNewImage(lastImageCounter, timeoutMs);
+   }
+   return false;
+}
+
 /**
  * Returns the label of the currently selected camera device.
  * @return camera name
@@ -113,6 +113,7 @@ namespace mm {
 } // namespace mm
 
 typedef unsigned int* imgRGB32;
+typedef void* imgLease; // pixels of a leased circular buffer frame
 
 
 /// The Micro-Manager Core.
@@ -414,11 +415,17 @@ public:
    void* getNBeforeLastImageMD(unsigned long n, Metadata& md)
       const throw (CMMError);
    void* popNextImageMD(Metadata& md) throw (CMMError);
+   imgLease leaseNextImageMD(unsigned channel, Metadata& md) throw (CMMError);
+   void releaseImageLease(imgLease pixels) throw (CMMError);
+   long getNumberOfImageLeases();
 
    long getRemainingImageCount();
    long getBufferTotalCapacity();
    long getBufferFreeCapacity();
    bool isBufferOverflowed() const;
+   bool waitForImage(long timeoutMs);
+   long getImageCounter();
+   bool waitForNewImage(long lastImageCounter, long timeoutMs);
    void setCircularBufferMemoryFootprint(unsigned sizeMB) throw (CMMError);
    unsigned getCircularBufferMemoryFootprint();
    void initializeCircularBuffer() throw (CMMError);
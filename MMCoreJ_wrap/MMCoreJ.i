@@ -556,6 +556,40 @@
 }
 
 
+// Java typemap
+// map leased circular buffer frames (imgLease) to direct ByteBuffers
+// that view the frame without copying it. The buffer handed to Java is
+// read-only and in native byte order; passing it back (to
+// releaseImageLease()) ends the lease.
+
+%typemap(jni) imgLease        "jobject"
+%typemap(jtype) imgLease      "java.nio.ByteBuffer"
+%typemap(jstype) imgLease     "java.nio.ByteBuffer"
+%typemap(javain) imgLease     "$javainput"
+%typemap(javaout) imgLease {
+   java.nio.ByteBuffer buffer = $jnicall;
+   if (buffer == null) {
+      return null;
+   }
+   return buffer.asReadOnlyBuffer().order(java.nio.ByteOrder.nativeOrder());
+}
+%typemap(out) imgLease
+{
+   $result = JCALL2(NewDirectByteBuffer, jenv, result, leasedFrameSize(arg1, arg3));
+}
+%typemap(in) imgLease
+{
+   $1 = JCALL1(GetDirectBufferAddress, jenv, $input);
+   if ($1 == 0)
+   {
+      jclass excep = jenv->FindClass("java/lang/Exception");
+      if (excep)
+         jenv->ThrowNew(excep, "Not a direct buffer.");
+      return;
+   }
+}
+
+
 %typemap(jni) imgRGB32 "jintArray"
 %typemap(jtype) imgRGB32      "int[]"
 %typemap(jstype) imgRGB32     "int[]"
@@ -635,19 +669,10 @@
    import java.awt.Rectangle;
    import java.util.ArrayList;
    import java.util.List;
+   import java.util.Map;
 %}
 
 %typemap(javacode) CMMCore %{
-   private JSONObject metadataToMap(Metadata md) {
-      JSONObject tags = new JSONObject();
-      for (String key:md.GetKeys()) {
-         try {
-            tags.put(key, md.GetSingleTag(key).GetValue());
-         } catch (Exception e) {} 
-      }
-      return tags;
-   }
-
    private String getROITag() throws java.lang.Exception {
       String roi = "";
       int [] x = new int[1];
@@ -679,35 +704,60 @@
      return "";
    }
 
-   private String getMultiCameraChannel(JSONObject tags, int cameraChannelIndex) {
-	  try {
-	  String camera = tags.getString("Core-Camera");
-	  String physCamKey = camera + "-Physical Camera " + (1 + cameraChannelIndex);
-	  if (tags.has(physCamKey)) {
-		 try {
-			return tags.getString(physCamKey);
-		 } catch (Exception e2) {
-			return null;
-		 }
-	  } else {
-		 return null;
-	  }
-	 } catch (Exception e) {
-	   return null;
-	 }
+   private String getMultiCameraChannel(int cameraChannelIndex) {
+      try {
+         String camera = getPropertyFromCache("Core", "Camera");
+         String physCamProp = "Physical Camera " + (1 + cameraChannelIndex);
+         if (camera.length() > 0 && hasProperty(camera, physCamProp)) {
+            return getPropertyFromCache(camera, physCamProp);
+         }
+         return null;
+      } catch (Exception e) {
+         return null;
+      }
+   }
+
+   /*
+    * The device property values (the system state cache) and the metadata
+    * tags that came with the image are only copied into the tags when
+    * somebody asks for them. Both snapshots are taken now, so the values are
+    * the same as if they had been copied eagerly.
+    */
+   private TaggedImageMetadata.PropertySource deferredProperties(
+         final Metadata md, final Configuration config) {
+      return new TaggedImageMetadata.PropertySource() {
+         public boolean mayContain(String key) {
+            // System state keys are always of the form "Device-Property"
+            return key.indexOf('-') > 0 || md.HasTag(key);
+         }
 
+         public void addTo(Map<String, Object> properties) {
+            for (String key:md.GetKeys()) {
+               try {
+                  properties.put(key, md.GetSingleTag(key).GetValue());
+               } catch (Exception e) {}
+            }
+            for (int i = 0; i < config.size(); ++i) {
+               try {
+                  PropertySetting setting = config.getSetting(i);
+                  String key = setting.getDeviceLabel() + "-" + setting.getPropertyName();
+                  properties.put(key, setting.getPropertyValue());
+               } catch (Exception e) {}
+            }
+         }
+      };
    }
 
    private TaggedImage createTaggedImage(Object pixels, Metadata md, int cameraChannelIndex) throws java.lang.Exception {
       TaggedImage image = createTaggedImage(pixels, md);
-      JSONObject tags = image.tags;
+      TaggedImageMetadata tags = image.getMetadata();
       
       if (!tags.has("CameraChannelIndex")) {
-         tags.put("CameraChannelIndex", cameraChannelIndex);
-         tags.put("ChannelIndex", cameraChannelIndex);
+         tags.setCameraChannelIndex(cameraChannelIndex);
+         tags.setChannelIndex(cameraChannelIndex);
       }
-      if (!tags.has("Camera")) {
-         String physicalCamera = getMultiCameraChannel(tags, cameraChannelIndex);
+      if (!md.HasTag("Camera")) {
+         String physicalCamera = getMultiCameraChannel(cameraChannelIndex);
          if (physicalCamera != null) {
             tags.put("Camera", physicalCamera);
             tags.put("Channel",physicalCamera);
@@ -717,33 +767,39 @@
    }
 
    private TaggedImage createTaggedImage(Object pixels, Metadata md) throws java.lang.Exception {
-      JSONObject tags = metadataToMap(md);
-      PropertySetting setting;
-      Configuration config = getSystemStateCache();
-      for (int i = 0; i < config.size(); ++i) {
-         setting = config.getSetting(i);
-         String key = setting.getDeviceLabel() + "-" + setting.getPropertyName();
-         String value = setting.getPropertyValue();
-          tags.put(key, value);
+      TaggedImageMetadata tags = new TaggedImageMetadata(
+            deferredProperties(md, getSystemStateCache()));
+      tags.setPipelineStartNs(System.nanoTime());
+
+      // Tags that the pipeline reads for every image are copied eagerly.
+      // The core's tags are strings, and they are kept that way.
+      if (md.HasTag("ElapsedTime-ms")) {
+         tags.put("ElapsedTime-ms", md.GetSingleTag("ElapsedTime-ms").GetValue());
       }
-      tags.put("BitDepth", getImageBitDepth());
-      tags.put("PixelSizeUm", getPixelSizeUm(true));
+      if (md.HasTag("CameraChannelIndex")) {
+         tags.put("CameraChannelIndex",
+               md.GetSingleTag("CameraChannelIndex").GetValue());
+      }
+      if (md.HasTag("Camera")) {
+         tags.put("Camera", md.GetSingleTag("Camera").GetValue());
+      }
+
+      tags.setBitDepth((int) getImageBitDepth());
+      tags.setPixelSizeUm(getPixelSizeUm(true));
       tags.put("ROI", getROITag());
-      tags.put("Width", getImageWidth());
-      tags.put("Height", getImageHeight());
-      tags.put("PixelType", getPixelType());
-      tags.put("Frame", 0);
-      tags.put("FrameIndex", 0);
+      tags.setWidth((int) getImageWidth());
+      tags.setHeight((int) getImageHeight());
+      tags.setPixelType(getPixelType());
+      tags.setFrameIndex(0);
       tags.put("Position", "Default");
-      tags.put("PositionIndex", 0);
-      tags.put("Slice", 0);
-      tags.put("SliceIndex", 0);
+      tags.setPositionIndex(0);
+      tags.setSliceIndex(0);
       String channel = getCurrentConfigFromCache(getPropertyFromCache("Core","ChannelGroup"));
       if ((channel == null) || (channel.length() == 0)) {
          channel = "Default";
       }
       tags.put("Channel", channel);
-      tags.put("ChannelIndex", 0);
+      tags.setChannelIndex(0);
 
 
       try {
@@ -779,16 +835,99 @@
       return createTaggedImage(pixels, md);
    }
 
+   /*
+    * Pops the next image from the circular buffer. When the PixelBufferPool
+    * is enabled the pixels are copied into an array borrowed from the pool,
+    * and the image must be released (TaggedImage.release()) once persisted.
+    */
    public TaggedImage popNextTaggedImage(int cameraChannelIndex) throws java.lang.Exception {
+      PixelBufferPool pool = PixelBufferPool.getInstance();
+      if (pool.isEnabled()) {
+         return popNextPooledTaggedImage(pool, cameraChannelIndex);
+      }
       Metadata md = new Metadata();
       Object pixels = popNextImageMD(cameraChannelIndex, 0, md);
       return createTaggedImage(pixels, md, cameraChannelIndex);
    }
 
+   private TaggedImage popNextPooledTaggedImage(PixelBufferPool pool, int cameraChannelIndex) throws java.lang.Exception {
+      Metadata md = new Metadata();
+      // Borrow only once there is a frame, sized from the frame itself
+      java.nio.ByteBuffer frame = leaseNextImageMD(cameraChannelIndex, md);
+      Object pixels;
+      try {
+         int width = getFrameTag(md, "Width", (int) getImageWidth());
+         int height = getFrameTag(md, "Height", (int) getImageHeight());
+         pixels = pool.borrow(width, height, frame.capacity() / (width * height),
+               (int) getNumberOfComponents());
+         try {
+            java.nio.ByteBuffer source = frame.duplicate().order(java.nio.ByteOrder.nativeOrder());
+            source.rewind();
+            if (pixels instanceof byte[]) {
+               source.get((byte[]) pixels);
+            } else if (pixels instanceof short[]) {
+               source.asShortBuffer().get((short[]) pixels);
+            } else {
+               source.asFloatBuffer().get((float[]) pixels);
+            }
+         } catch (RuntimeException e) {
+            pool.recycle(pixels);
+            throw e;
+         }
+      } finally {
+         releaseImageLease(frame);
+      }
+      TaggedImage image = createTaggedImage(pixels, md, cameraChannelIndex);
+      return pool.makeTaggedImage(image.pix, image.tags);
+   }
+
    public TaggedImage popNextTaggedImage() throws java.lang.Exception {
       return popNextTaggedImage(0);
    }
 
+   private static int getFrameTag(Metadata md, String key, int defaultValue) {
+      if (md.HasTag(key)) {
+         try {
+            return Integer.parseInt(md.GetSingleTag(key).GetValue());
+         } catch (Exception e) {}
+      }
+      return defaultValue;
+   }
+
+   /*
+    * Pops the next image without copying its pixels: pix of the returned
+    * TaggedImage is a read-only, native-order direct ByteBuffer viewing the
+    * circular buffer frame. The frame is not reused until the image is
+    * released with TaggedImage.release(), which must be called exactly when
+    * the last consumer of the pixels is done with them.
+    */
+   public TaggedImage leaseNextTaggedImage(int cameraChannelIndex) throws java.lang.Exception {
+      Metadata md = new Metadata();
+      java.nio.ByteBuffer pixels = leaseNextImageMD(cameraChannelIndex, md);
+      TaggedImage image = createTaggedImage(pixels, md, cameraChannelIndex);
+      return new TaggedImage(image.pix, image.tags, new TaggedImage.PixelReleaser() {
+         @Override
+         public void release(Object pix) throws java.lang.Exception {
+            releaseImageLease((java.nio.ByteBuffer) pix);
+         }
+      });
+   }
+
+   public TaggedImage leaseNextTaggedImage() throws java.lang.Exception {
+      return leaseNextTaggedImage(0);
+   }
+
+   /*
+    * Waits (without polling) up to timeoutMs for an image to arrive in the
+    * circular buffer and pops it. Returns null if no image arrived in time.
+    */
+   public TaggedImage popNextTaggedImage(int cameraChannelIndex, int timeoutMs) throws java.lang.Exception {
+      if (!waitForImage(timeoutMs)) {
+         return null;
+      }
+      return popNextTaggedImage(cameraChannelIndex);
+   }
+
    // convenience functions follow
    
    /*
@@ -887,6 +1026,37 @@
 #include "../MMDevice/ImageMetadata.h"
 #include "../MMCore/MMEventCallback.h"
 #include "../MMCore/MMCore.h"
+
+// Size in bytes of a leased circular buffer frame, from the Width, Height
+// and PixelType tags the circular buffer sets on every frame, which may
+// differ from the current camera settings
+static jlong leasedFrameSize(CMMCore* core, Metadata* md)
+{
+   jlong width = core->getImageWidth();
+   jlong height = core->getImageHeight();
+   jlong depth = core->getBytesPerPixel();
+   try
+   {
+      if (md->HasTag("Width") && md->HasTag("Height") && md->HasTag("PixelType"))
+      {
+         width = atol(md->GetSingleTag("Width").GetValue().c_str());
+         height = atol(md->GetSingleTag("Height").GetValue().c_str());
+         std::string pixelType = md->GetSingleTag("PixelType").GetValue();
+         if (pixelType == "GRAY8")
+            depth = 1;
+         else if (pixelType == "GRAY16")
+            depth = 2;
+         else if (pixelType == "RGB32")
+            depth = 4;
+         else if (pixelType == "RGB64")
+            depth = 8;
+      }
+   }
+   catch (MetadataKeyError&)
+   {
+   }
+   return width * height * depth;
+}
 %}
 
 
@@ -0,0 +1,253 @@
+package mmcorej;
+
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Map;
+
+/*
+ * Pool of pixel arrays that can be handed out again once the image that used
+ * them has been persisted, so that a long sequence acquisition reaches a
+ * steady state without allocating a new array for each frame.
+ *
+ * Arrays are keyed by their shape, i.e. width, height and bytes per pixel
+ * (and number of components), and have the types used by CMMCore.getImage():
+ * byte[] for 1 byte per pixel and RGB32, short[] for 2 bytes per pixel and
+ * RGB64, float[] for 4 byte grayscale.
+ *
+ * The pool is disabled by default. When enabled, CMMCore.popNextTaggedImage()
+ * returns images whose pixels are borrowed from the pool: whoever is the last
+ * consumer of such an image (normally the image storage, once the pixels are
+ * on disk or copied) calls TaggedImage.release() to hand them back, and must
+ * not use the pixels afterwards. Other consumers that need the pixels for
+ * longer hold on to them with TaggedImage.retain(), as MMImageCache does
+ * until its listeners have seen the image.
+ */
+public class PixelBufferPool {
+   private static final PixelBufferPool instance_ = new PixelBufferPool();
+
+   private final Map<Key, ArrayDeque<Object>> freeArrays_ =
+         new HashMap<Key, ArrayDeque<Object>>();
+   private volatile boolean enabled_ = false;
+   private long maxPooledBytes_ = 256L * 1024 * 1024;
+   private long pooledBytes_ = 0;
+
+   private long allocations_ = 0;
+   private long reuses_ = 0;
+   private long recycled_ = 0;
+   private long dropped_ = 0;
+
+   private final TaggedImage.PixelReleaser releaser_ =
+         new TaggedImage.PixelReleaser() {
+      @Override
+      public void release(Object pix) {
+         recycle(pix);
+      }
+   };
+
+   private static class Key {
+      final Class<?> type;
+      final int length;
+
+      Key(Class<?> type, int length) {
+         this.type = type;
+         this.length = length;
+      }
+
+      @Override
+      public boolean equals(Object o) {
+         if (!(o instanceof Key)) {
+            return false;
+         }
+         Key k = (Key) o;
+         return k.type == type && k.length == length;
+      }
+
+      @Override
+      public int hashCode() {
+         return 31 * type.hashCode() + length;
+      }
+   }
+
+   public static PixelBufferPool getInstance() {
+      return instance_;
+   }
+
+   public boolean isEnabled() {
+      return enabled_;
+   }
+
+   /*
+    * Turns pooling on or off. Disabling the pool drops all free arrays.
+    */
+   public void setEnabled(boolean enabled) {
+      enabled_ = enabled;
+      if (!enabled) {
+         clear();
+      }
+   }
+
+   /*
+    * Sets the maximum total size of the free arrays held by the pool. Arrays
+    * recycled beyond that are left to the garbage collector.
+    */
+   public synchronized void setMaxPooledBytes(long maxPooledBytes) {
+      maxPooledBytes_ = maxPooledBytes;
+      if (pooledBytes_ > maxPooledBytes_) {
+         clear();
+      }
+   }
+
+   public synchronized long getMaxPooledBytes() {
+      return maxPooledBytes_;
+   }
+
+   public synchronized void clear() {
+      freeArrays_.clear();
+      pooledBytes_ = 0;
+   }
+
+   /*
+    * Returns an array for an image of the given shape, reusing a free array
+    * if there is one. The contents of a reused array are undefined.
+    */
+   public Object borrow(int width, int height, int bytesPerPixel,
+         int numComponents) {
+      int pixels = width * height;
+      switch (bytesPerPixel) {
+         case 1:
+            return borrow(byte[].class, pixels);
+         case 2:
+            return borrow(short[].class, pixels);
+         case 4:
+            if (numComponents == 1) {
+               return borrow(float[].class, pixels);
+            }
+            return borrow(byte[].class, pixels * 4);
+         case 8:
+            return borrow(short[].class, pixels * 4);
+         default:
+            throw new IllegalArgumentException(
+                  "Unsupported number of bytes per pixel: " + bytesPerPixel);
+      }
+   }
+
+   /*
+    * Returns an array of the same type and length as pix.
+    */
+   public Object borrowLike(Object pix) {
+      return borrow(pix.getClass(), arrayLength(pix));
+   }
+
+   private Object borrow(Class<?> type, int length) {
+      if (enabled_) {
+         synchronized (this) {
+            ArrayDeque<Object> free = freeArrays_.get(new Key(type, length));
+            if (free != null && !free.isEmpty()) {
+               Object pix = free.pop();
+               pooledBytes_ -= byteSize(pix);
+               ++reuses_;
+               return pix;
+            }
+            ++allocations_;
+         }
+      }
+      if (type == byte[].class) {
+         return new byte[length];
+      } else if (type == short[].class) {
+         return new short[length];
+      } else if (type == float[].class) {
+         return new float[length];
+      } else if (type == int[].class) {
+         return new int[length];
+      }
+      throw new IllegalArgumentException("Not a pixel array type: " + type);
+   }
+
+   /*
+    * Hands an array back to the pool. The caller must not hold any other
+    * reference to it. Does nothing when the pool is disabled or full.
+    */
+   public void recycle(Object pix) {
+      if (!enabled_ || pix == null || !isPixelArray(pix)) {
+         return;
+      }
+      long size = byteSize(pix);
+      synchronized (this) {
+         if (pooledBytes_ + size > maxPooledBytes_) {
+            ++dropped_;
+            return;
+         }
+         Key key = new Key(pix.getClass(), arrayLength(pix));
+         ArrayDeque<Object> free = freeArrays_.get(key);
+         if (free == null) {
+            free = new ArrayDeque<Object>();
+            freeArrays_.put(key, free);
+         }
+         free.push(pix);
+         pooledBytes_ += size;
+         ++recycled_;
+      }
+   }
+
+   /*
+    * Returns a releaser that recycles the pixels of a TaggedImage.
+    */
+   public TaggedImage.PixelReleaser getReleaser() {
+      return releaser_;
+   }
+
+   /*
+    * Wraps pixels borrowed from this pool in a TaggedImage that returns them
+    * to the pool when released.
+    */
+   public TaggedImage makeTaggedImage(Object pix, org.json.JSONObject tags) {
+      return new TaggedImage(pix, tags, releaser_);
+   }
+
+   public synchronized long getAllocationCount() {
+      return allocations_;
+   }
+
+   public synchronized long getReuseCount() {
+      return reuses_;
+   }
+
+   public synchronized long getRecycledCount() {
+      return recycled_;
+   }
+
+   public synchronized long getDroppedCount() {
+      return dropped_;
+   }
+
+   public synchronized long getPooledBytes() {
+      return pooledBytes_;
+   }
+
+   private static boolean isPixelArray(Object pix) {
+      return pix instanceof byte[] || pix instanceof short[]
+            || pix instanceof float[] || pix instanceof int[];
+   }
+
+   private static int arrayLength(Object pix) {
+      if (pix instanceof byte[]) {
+         return ((byte[]) pix).length;
+      } else if (pix instanceof short[]) {
+         return ((short[]) pix).length;
+      } else if (pix instanceof float[]) {
+         return ((float[]) pix).length;
+      } else if (pix instanceof int[]) {
+         return ((int[]) pix).length;
+      }
+      throw new IllegalArgumentException("Not a pixel array: " + pix);
+   }
+
+   private static long byteSize(Object pix) {
+      if (pix instanceof byte[]) {
+         return ((byte[]) pix).length;
+      } else if (pix instanceof short[]) {
+         return 2L * ((short[]) pix).length;
+      }
+      return 4L * arrayLength(pix);
+   }
+}
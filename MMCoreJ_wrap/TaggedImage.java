@@ -1,5 +1,6 @@
 package mmcorej;
 
+import java.nio.ByteBuffer;
 import org.json.JSONObject;
 
  /*
@@ -9,9 +10,83 @@ import org.json.JSONObject;
 public class TaggedImage {
    public final Object pix;
    public JSONObject tags;
+   private PixelReleaser releaser_;
+   // Holders added with retain() that have not released the image yet
+   private int extraHolders_ = 0;
+
+   /*
+    * Hands borrowed pixels (e.g. a leased circular buffer frame, see
+    * CMMCore.leaseNextTaggedImage()) back to their owner.
+    */
+   public interface PixelReleaser {
+      public void release(Object pix) throws Exception;
+   }
 
    public TaggedImage(Object pix, JSONObject tags) {
       this.pix = pix;
       this.tags = tags;
    }
+
+   public TaggedImage(Object pix, JSONObject tags, PixelReleaser releaser) {
+      this(pix, tags);
+      releaser_ = releaser;
+   }
+
+   /*
+    * Returns the typed metadata of this image, or null if the tags are a
+    * plain JSONObject (e.g. images read back from disk or created by plugins).
+    */
+   public TaggedImageMetadata getMetadata() {
+      if (tags instanceof TaggedImageMetadata) {
+         return (TaggedImageMetadata) tags;
+      }
+      return null;
+   }
+
+   /*
+    * Returns true if pix is a native-order ByteBuffer instead of a primitive
+    * array.
+    */
+   public boolean hasBufferPixels() {
+      return pix instanceof ByteBuffer;
+   }
+
+   /*
+    * Returns true if pix is borrowed and must be released after use.
+    */
+   public synchronized boolean isLeased() {
+      return releaser_ != null;
+   }
+
+   /*
+    * Adds a holder of borrowed pixels, e.g. a cache that hands the image to
+    * listeners after the storage is done with it. The pixels are only handed
+    * back once every holder has called release(). Does nothing for images
+    * that own their pixels.
+    */
+   public synchronized void retain() {
+      if (releaser_ != null) {
+         ++extraHolders_;
+      }
+   }
+
+   /*
+    * Releases borrowed pixels, or this holder's claim on them if retain()
+    * added others. pix must not be accessed afterwards. Does nothing for
+    * images that own their pixels, or that were already released.
+    */
+   public void release() throws Exception {
+      PixelReleaser releaser;
+      synchronized (this) {
+         if (extraHolders_ > 0) {
+            --extraHolders_;
+            return;
+         }
+         releaser = releaser_;
+         releaser_ = null;
+      }
+      if (releaser != null) {
+         releaser.release(pix);
+      }
+   }
 }
@@ -0,0 +1,589 @@
+package mmcorej;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * Typed image metadata with a JSONObject view.
+ *
+ * The tags that the acquisition pipeline reads for every image (indices,
+ * dimensions, pixel type, elapsed time, stage positions) are kept in primitive
+ * fields. The remaining tags, most of which are device property values from
+ * the system state cache, are only copied out of the core when a key that
+ * might belong to them is requested, or when the whole object is enumerated
+ * or serialized. Code that only uses MDUtils accessors for the typed tags
+ * therefore never causes a full tag map to be built.
+ *
+ * Because this class is a JSONObject, it can be used wherever TaggedImage.tags
+ * is expected. Only values that already have the field's type are stored in
+ * typed fields; anything else put under a typed key (e.g. a numeric string)
+ * is kept as an ordinary entry, exactly as a plain JSONObject would keep it.
+ */
+public class TaggedImageMetadata extends JSONObject {
+
+   /**
+    * Deferred source of tags that are only materialized on demand.
+    */
+   public interface PropertySource {
+      /**
+       * Returns false if the source certainly does not contain the key.
+       */
+      boolean mayContain(String key);
+
+      /**
+       * Adds all of the deferred tags to the given map.
+       */
+      void addTo(Map<String, Object> properties);
+   }
+
+   private static final int CHANNEL_INDEX = 0;
+   private static final int SLICE_INDEX = 1;
+   private static final int SLICE = 2;
+   private static final int FRAME_INDEX = 3;
+   private static final int FRAME = 4;
+   private static final int POSITION_INDEX = 5;
+   private static final int CAMERA_CHANNEL_INDEX = 6;
+   private static final int WIDTH = 7;
+   private static final int HEIGHT = 8;
+   private static final int BIT_DEPTH = 9;
+   private static final int PIXEL_TYPE = 10;
+   private static final int ELAPSED_TIME_MS = 11;
+   private static final int X_POSITION_UM = 12;
+   private static final int Y_POSITION_UM = 13;
+   private static final int Z_POSITION_UM = 14;
+   private static final int PIXEL_SIZE_UM = 15;
+
+   private static final String[] TYPED_KEYS = {
+      "ChannelIndex", "SliceIndex", "Slice", "FrameIndex", "Frame",
+      "PositionIndex", "CameraChannelIndex", "Width", "Height", "BitDepth",
+      "PixelType", "ElapsedTime-ms", "XPositionUm", "YPositionUm",
+      "ZPositionUm", "PixelSizeUm"
+   };
+
+   private static final Map<String, Integer> TYPED_KEY_INDEX;
+   static {
+      TYPED_KEY_INDEX = new HashMap<String, Integer>();
+      for (int i = 0; i < TYPED_KEYS.length; ++i) {
+         TYPED_KEY_INDEX.put(TYPED_KEYS[i], i);
+      }
+   }
+
+   // Bit i is set when TYPED_KEYS[i] holds a value
+   private int present_ = 0;
+
+   private int channelIndex_;
+   private int sliceIndex_;
+   private int slice_;
+   private int frameIndex_;
+   private int frame_;
+   private int positionIndex_;
+   private int cameraChannelIndex_;
+   private int width_;
+   private int height_;
+   private int bitDepth_;
+   private String pixelType_;
+   private double elapsedTimeMs_;
+   private double xPositionUm_;
+   private double yPositionUm_;
+   private double zPositionUm_;
+   private double pixelSizeUm_;
+
+   private volatile PropertySource deferred_;
+
+   // System.nanoTime() when the image left the core; not a tag
+   private long pipelineStartNs_ = 0;
+
+   public TaggedImageMetadata() {
+      this(null);
+   }
+
+   public TaggedImageMetadata(PropertySource deferred) {
+      super();
+      deferred_ = deferred;
+   }
+
+   public boolean hasChannelIndex() {
+      return has("ChannelIndex");
+   }
+
+   public int getChannelIndex() throws JSONException {
+      return isPresent(CHANNEL_INDEX) ? channelIndex_ : getInt("ChannelIndex");
+   }
+
+   public void setChannelIndex(int channelIndex) {
+      channelIndex_ = channelIndex;
+      markPresent(CHANNEL_INDEX);
+   }
+
+   public boolean hasSliceIndex() {
+      return has("SliceIndex") || has("Slice");
+   }
+
+   /**
+    * Returns "SliceIndex", or "Slice" if there is none, like MDUtils does
+    * for plain JSONObjects.
+    */
+   public int getSliceIndex() throws JSONException {
+      if (isPresent(SLICE_INDEX)) {
+         return sliceIndex_;
+      }
+      if (has("SliceIndex")) {
+         return getInt("SliceIndex");
+      }
+      return isPresent(SLICE) ? slice_ : getInt("Slice");
+   }
+
+   /**
+    * Sets both "SliceIndex" and "Slice".
+    */
+   public void setSliceIndex(int sliceIndex) {
+      sliceIndex_ = sliceIndex;
+      slice_ = sliceIndex;
+      markPresent(SLICE_INDEX);
+      markPresent(SLICE);
+   }
+
+   public boolean hasFrameIndex() {
+      return has("Frame") || has("FrameIndex");
+   }
+
+   /**
+    * Returns "Frame", or "FrameIndex" if there is none, like MDUtils does
+    * for plain JSONObjects.
+    */
+   public int getFrameIndex() throws JSONException {
+      if (isPresent(FRAME)) {
+         return frame_;
+      }
+      if (has("Frame")) {
+         return getInt("Frame");
+      }
+      return isPresent(FRAME_INDEX) ? frameIndex_ : getInt("FrameIndex");
+   }
+
+   /**
+    * Sets both "Frame" and "FrameIndex".
+    */
+   public void setFrameIndex(int frameIndex) {
+      frame_ = frameIndex;
+      frameIndex_ = frameIndex;
+      markPresent(FRAME);
+      markPresent(FRAME_INDEX);
+   }
+
+   public boolean hasPositionIndex() {
+      return has("PositionIndex");
+   }
+
+   public int getPositionIndex() throws JSONException {
+      return isPresent(POSITION_INDEX) ? positionIndex_ : getInt("PositionIndex");
+   }
+
+   public void setPositionIndex(int positionIndex) {
+      positionIndex_ = positionIndex;
+      markPresent(POSITION_INDEX);
+   }
+
+   public boolean hasCameraChannelIndex() {
+      return has("CameraChannelIndex");
+   }
+
+   public int getCameraChannelIndex() throws JSONException {
+      return isPresent(CAMERA_CHANNEL_INDEX) ?
+            cameraChannelIndex_ : getInt("CameraChannelIndex");
+   }
+
+   public void setCameraChannelIndex(int cameraChannelIndex) {
+      cameraChannelIndex_ = cameraChannelIndex;
+      markPresent(CAMERA_CHANNEL_INDEX);
+   }
+
+   public int getWidth() throws JSONException {
+      return isPresent(WIDTH) ? width_ : getInt("Width");
+   }
+
+   public void setWidth(int width) {
+      width_ = width;
+      markPresent(WIDTH);
+   }
+
+   public int getHeight() throws JSONException {
+      return isPresent(HEIGHT) ? height_ : getInt("Height");
+   }
+
+   public void setHeight(int height) {
+      height_ = height;
+      markPresent(HEIGHT);
+   }
+
+   public int getBitDepth() throws JSONException {
+      return isPresent(BIT_DEPTH) ? bitDepth_ : getInt("BitDepth");
+   }
+
+   public void setBitDepth(int bitDepth) {
+      bitDepth_ = bitDepth;
+      markPresent(BIT_DEPTH);
+   }
+
+   public String getPixelType() throws JSONException {
+      return isPresent(PIXEL_TYPE) ? pixelType_ : getString("PixelType");
+   }
+
+   public void setPixelType(String pixelType) {
+      pixelType_ = pixelType;
+      if (pixelType == null) {
+         clearPresent(PIXEL_TYPE);
+      } else {
+         markPresent(PIXEL_TYPE);
+      }
+   }
+
+   public boolean hasElapsedTimeMs() {
+      return has("ElapsedTime-ms");
+   }
+
+   public double getElapsedTimeMs() throws JSONException {
+      return isPresent(ELAPSED_TIME_MS) ?
+            elapsedTimeMs_ : getDouble("ElapsedTime-ms");
+   }
+
+   public void setElapsedTimeMs(double elapsedTimeMs) {
+      elapsedTimeMs_ = elapsedTimeMs;
+      markPresent(ELAPSED_TIME_MS);
+   }
+
+   public double getXPositionUm() throws JSONException {
+      return isPresent(X_POSITION_UM) ? xPositionUm_ : getDouble("XPositionUm");
+   }
+
+   public void setXPositionUm(double xPositionUm) {
+      xPositionUm_ = xPositionUm;
+      markPresent(X_POSITION_UM);
+   }
+
+   public double getYPositionUm() throws JSONException {
+      return isPresent(Y_POSITION_UM) ? yPositionUm_ : getDouble("YPositionUm");
+   }
+
+   public void setYPositionUm(double yPositionUm) {
+      yPositionUm_ = yPositionUm;
+      markPresent(Y_POSITION_UM);
+   }
+
+   public double getZPositionUm() throws JSONException {
+      return isPresent(Z_POSITION_UM) ? zPositionUm_ : getDouble("ZPositionUm");
+   }
+
+   public void setZPositionUm(double zPositionUm) {
+      zPositionUm_ = zPositionUm;
+      markPresent(Z_POSITION_UM);
+   }
+
+   public double getPixelSizeUm() throws JSONException {
+      return isPresent(PIXEL_SIZE_UM) ? pixelSizeUm_ : getDouble("PixelSizeUm");
+   }
+
+   public void setPixelSizeUm(double pixelSizeUm) {
+      pixelSizeUm_ = pixelSizeUm;
+      markPresent(PIXEL_SIZE_UM);
+   }
+
+   /**
+    * Returns the System.nanoTime() at which the image was taken from the
+    * core, or 0 if unknown. Used to measure pipeline latency; never
+    * serialized.
+    */
+   public long getPipelineStartNs() {
+      return pipelineStartNs_;
+   }
+
+   public void setPipelineStartNs(long pipelineStartNs) {
+      pipelineStartNs_ = pipelineStartNs;
+   }
+
+   /**
+    * Returns true if the deferred tags have not been copied out yet.
+    */
+   public boolean isDeferred() {
+      return deferred_ != null;
+   }
+
+   /*
+    * JSONObject view
+    */
+
+   @Override
+   public boolean has(String key) {
+      Integer index = TYPED_KEY_INDEX.get(key);
+      if (index != null && isPresent(index)) {
+         return true;
+      }
+      if (super.has(key)) {
+         return true;
+      }
+      if (!mayBeDeferred(key)) {
+         return false;
+      }
+      materialize();
+      return index == null ? super.has(key) : isPresent(index) || super.has(key);
+   }
+
+   @Override
+   public Object opt(String key) {
+      if (key == null) {
+         return null;
+      }
+      Integer index = TYPED_KEY_INDEX.get(key);
+      if (index != null && isPresent(index)) {
+         return getTyped(index);
+      }
+      Object value = super.opt(key);
+      if (value != null || !mayBeDeferred(key)) {
+         return value;
+      }
+      materialize();
+      if (index != null && isPresent(index)) {
+         return getTyped(index);
+      }
+      return super.opt(key);
+   }
+
+   @Override
+   public JSONObject put(String key, Object value) throws JSONException {
+      Integer index = TYPED_KEY_INDEX.get(key);
+      if (index != null && value != null && setTyped(index, value)) {
+         super.remove(key);
+         return this;
+      }
+      if (index != null) {
+         clearPresent(index);
+      }
+      return super.put(key, value);
+   }
+
+   @Override
+   public Object remove(String key) {
+      materialize();
+      Integer index = TYPED_KEY_INDEX.get(key);
+      if (index != null && isPresent(index)) {
+         Object value = getTyped(index);
+         clearPresent(index);
+         return value;
+      }
+      return super.remove(key);
+   }
+
+   @Override
+   public Iterator<String> keys() {
+      materialize();
+      List<String> keys = new ArrayList<String>(super.length() + TYPED_KEYS.length);
+      for (int i = 0; i < TYPED_KEYS.length; ++i) {
+         if (isPresent(i)) {
+            keys.add(TYPED_KEYS[i]);
+         }
+      }
+      Iterator<String> it = super.keys();
+      while (it.hasNext()) {
+         keys.add(it.next());
+      }
+      return keys.iterator();
+   }
+
+   @Override
+   public int length() {
+      materialize();
+      return Integer.bitCount(present_) + super.length();
+   }
+
+   /**
+    * Copy the deferred tags into this object. Tags that were set explicitly
+    * take precedence over deferred ones, matching the order in which
+    * CMMCore used to build the tag map.
+    */
+   private void materialize() {
+      if (deferred_ == null) {
+         return;
+      }
+      synchronized (this) {
+         PropertySource deferred = deferred_;
+         if (deferred == null) {
+            return;
+         }
+         Map<String, Object> properties = new HashMap<String, Object>();
+         deferred.addTo(properties);
+         for (Map.Entry<String, Object> entry : properties.entrySet()) {
+            String key = entry.getKey();
+            Object value = entry.getValue();
+            if (key == null || value == null) {
+               continue;
+            }
+            Integer index = TYPED_KEY_INDEX.get(key);
+            if (index != null) {
+               if (isPresent(index) || super.has(key)) {
+                  continue;
+               }
+               if (setTyped(index, value)) {
+                  continue;
+               }
+            } else if (super.has(key)) {
+               continue;
+            }
+            try {
+               super.put(key, value);
+            } catch (JSONException e) {
+               // Non-finite numbers are not representable; drop them
+            }
+         }
+         deferred_ = null;
+      }
+   }
+
+   private boolean mayBeDeferred(String key) {
+      PropertySource deferred = deferred_;
+      return deferred != null && deferred.mayContain(key);
+   }
+
+   private boolean isPresent(int index) {
+      return (present_ & (1 << index)) != 0;
+   }
+
+   private void markPresent(int index) {
+      // A typed value replaces any ordinary entry under the same key
+      super.remove(TYPED_KEYS[index]);
+      present_ |= (1 << index);
+   }
+
+   private void clearPresent(int index) {
+      present_ &= ~(1 << index);
+   }
+
+   private Object getTyped(int index) {
+      switch (index) {
+         case CHANNEL_INDEX:
+            return channelIndex_;
+         case SLICE_INDEX:
+            return sliceIndex_;
+         case SLICE:
+            return slice_;
+         case FRAME_INDEX:
+            return frameIndex_;
+         case FRAME:
+            return frame_;
+         case POSITION_INDEX:
+            return positionIndex_;
+         case CAMERA_CHANNEL_INDEX:
+            return cameraChannelIndex_;
+         case WIDTH:
+            return width_;
+         case HEIGHT:
+            return height_;
+         case BIT_DEPTH:
+            return bitDepth_;
+         case PIXEL_TYPE:
+            return pixelType_;
+         case ELAPSED_TIME_MS:
+            return elapsedTimeMs_;
+         case X_POSITION_UM:
+            return xPositionUm_;
+         case Y_POSITION_UM:
+            return yPositionUm_;
+         case Z_POSITION_UM:
+            return zPositionUm_;
+         case PIXEL_SIZE_UM:
+            return pixelSizeUm_;
+         default:
+            return null;
+      }
+   }
+
+   /**
+    * Store a value in a typed field. Returns false if the value cannot be
+    * represented by the field, in which case it should be stored as an
+    * ordinary entry.
+    */
+   private boolean setTyped(int index, Object value) {
+      if (index == PIXEL_TYPE) {
+         if (!(value instanceof String)) {
+            return false;
+         }
+         pixelType_ = (String) value;
+         markPresent(PIXEL_TYPE);
+         return true;
+      }
+
+      // Strings stay strings, even if they look like numbers
+      if (!(value instanceof Number)) {
+         return false;
+      }
+      double d = ((Number) value).doubleValue();
+      if (Double.isNaN(d) || Double.isInfinite(d)) {
+         return false;
+      }
+      switch (index) {
+         case ELAPSED_TIME_MS:
+            elapsedTimeMs_ = d;
+            break;
+         case X_POSITION_UM:
+            xPositionUm_ = d;
+            break;
+         case Y_POSITION_UM:
+            yPositionUm_ = d;
+            break;
+         case Z_POSITION_UM:
+            zPositionUm_ = d;
+            break;
+         case PIXEL_SIZE_UM:
+            pixelSizeUm_ = d;
+            break;
+         default:
+            // Integer fields; refuse values that would lose information
+            if (d != Math.rint(d) || d > Integer.MAX_VALUE ||
+                  d < Integer.MIN_VALUE) {
+               return false;
+            }
+            int i = (int) d;
+            switch (index) {
+               case CHANNEL_INDEX:
+                  channelIndex_ = i;
+                  break;
+               case SLICE_INDEX:
+                  sliceIndex_ = i;
+                  break;
+               case SLICE:
+                  slice_ = i;
+                  break;
+               case FRAME_INDEX:
+                  frameIndex_ = i;
+                  break;
+               case FRAME:
+                  frame_ = i;
+                  break;
+               case POSITION_INDEX:
+                  positionIndex_ = i;
+                  break;
+               case CAMERA_CHANNEL_INDEX:
+                  cameraChannelIndex_ = i;
+                  break;
+               case WIDTH:
+                  width_ = i;
+                  break;
+               case HEIGHT:
+                  height_ = i;
+                  break;
+               case BIT_DEPTH:
+                  bitDepth_ = i;
+                  break;
+               default:
+                  return false;
+            }
+      }
+      markPresent(index);
+      return true;
+   }
+}
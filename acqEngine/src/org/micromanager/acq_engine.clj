@@ -20,7 +20,7 @@
      [ChannelSpec-to-map MultiStagePosition-to-map attempt-all core
       data-object-to-map do-when double-vector get-camera-roi
       get-current-time-str get-msp get-msp-z-position get-pixel-type
-      get-property get-property-value get-system-config-cached gui json-to-data
+      get-property get-property-value get-system-config-cached gui
       load-mm log map-config mmc rekey set-msp-z-position store-mmcore
       str-vector when-lets with-core-setting]]
     [org.micromanager.sequence-generator :only [generate-acq-sequence]])
@@ -32,12 +32,12 @@
     [java.io EOFException] ; abused to indicate canceled burst image collection
     [java.net InetAddress UnknownHostException]
     [java.util Date UUID]
-    [java.util.concurrent CountDownLatch LinkedBlockingQueue TimeUnit]
+    [java.util.concurrent BlockingQueue CountDownLatch LinkedBlockingQueue TimeUnit]
     [mmcorej Configuration Metadata TaggedImage]
     [org.json JSONArray JSONObject]
     [org.micromanager.acquisition MMAcquisition TaggedImageQueue]
     [org.micromanager.api PositionList SequenceSettings]
-    [org.micromanager.utils MDUtils ReportingUtils])
+    [org.micromanager.utils MDUtils PipelineMonitor ReportingUtils RingBufferQueue])
   (:gen-class
     :name org.micromanager.AcquisitionEngine2010
     :implements [org.micromanager.api.IAcquisitionEngine2010]
@@ -79,11 +79,14 @@
 (defn elapsed-time [state]
   (if (state :start-time) (- (jvm-time-ms) (state :start-time)) 0))
 
-(defn core-time-from-tags [tags]
-  (try (Double/parseDouble (tags "ElapsedTime-ms")) (catch Exception e nil)))
+(defn core-time-from-tags [^JSONObject tags]
+  (let [t (.opt tags "ElapsedTime-ms")]
+    (if (number? t)
+      (double t)
+      (try (Double/parseDouble (str t)) (catch Exception e nil)))))
 
-(defn burst-time [tags state]
-  (when (and (:burst-time-offset state) (get tags "ElapsedTime-ms"))
+(defn burst-time [^JSONObject tags state]
+  (when (and (:burst-time-offset state) (.has tags "ElapsedTime-ms"))
     (+ (core-time-from-tags tags)
        (:burst-time-offset state))))
 
@@ -132,7 +135,10 @@
        "Slice" (:slice-index event)
        "SliceIndex" (:slice-index event)
        "SlicePosition" (:slice event)
-       "Summary" (state :summary-metadata)
+       "Summary" (when-not (state :summary-by-reference)
+                   (state :summary-metadata))
+       "SummaryUUID" (when (state :summary-by-reference)
+                       (str (.get (state :summary-metadata) "UUID")))
        "Source" (state :source)
        "Time" (get-current-time-str)
        "UUID" (UUID/randomUUID)
@@ -145,26 +151,19 @@
     (when-let [runnables (event :runnables)]
       {"AttachedTasks" (JSONArray. (map str runnables))})))
 
-(defn annotate-image [img event state elapsed-time-ms]
-  {:pix (:pix img)
-   :tags
-   (merge-with #(or %2 %1) ; only overwrite tags if generated tag is not nil
-     (:tags img)
-     (generate-metadata event state)
-     {"ElapsedTime-ms" elapsed-time-ms}
-     )}) ;; include any existing metadata
-
-(defn unwrap-tagged-image
-  "Take a TaggedImage (as from core) and return a clojure data object,
-   with keys :pix and :tags."
-  [^TaggedImage tagged-image]
-  {:pix (.pix tagged-image)
-   :tags (json-to-data (.tags tagged-image))})
-
-(defn make-TaggedImage
-  "Take a clojure map with keys :pix and :tags and generate a TaggedImage."
-  [annotated-img]
-  (TaggedImage. (:pix annotated-img) (JSONObject. (:tags annotated-img))))
+(defn annotate-image!
+  "Writes the generated metadata into the tags of a TaggedImage (as from
+   core) in place, and returns the image. Existing tags are only
+   overwritten if the generated tag is not nil. The tags are never
+   converted to clojure data, so lazily filled tags stay lazy."
+  [^TaggedImage image event state elapsed-time-ms]
+  (let [^JSONObject tags (.tags image)]
+    (doseq [[k v] (generate-metadata event state)]
+      (when-not (nil? v)
+        (.put tags ^String k v)))
+    (when-not (nil? elapsed-time-ms)
+      (.put tags "ElapsedTime-ms" elapsed-time-ms)))
+  image)
 
 ;; hardware error handling
 
@@ -374,12 +373,15 @@
             (when (. mmc isBufferOverflowed)
               (log "halting image collection due to circular buffer overflow")
               (throw-exception "Circular buffer overflowed."))
-            (Thread/sleep 1)
+            ; wakes up as soon as an image is inserted; the bounded wait
+            ; makes sure stop requests are still noticed
+            (. mmc waitForImage
+               (int (max 1 (min 100 (- deadline (System/currentTimeMillis))))))
             (recur)))))))
 
 (defn pop-burst-image
   [timeout-ms]
-  (unwrap-tagged-image (pop-tagged-image-timeout timeout-ms)))
+  (pop-tagged-image-timeout timeout-ms))
 
 (defn queuify
   "Runs zero-arg function n times on a new thread. Returns
@@ -389,11 +391,17 @@
    the queue, the thread will stop, and the final call to .take
    on the queue will re-throw the exception (wrapped in RuntimeException)."
   [n queue-size function]
-  (let [queue (proxy [LinkedBlockingQueue] [queue-size]
-                (take [] (let [item (proxy-super take)]
-                           (if (instance? Throwable item)
-                             (throw item)
-                             item))))]
+  (let [queue (if (:ring-buffer-queues @state)
+                (proxy [RingBufferQueue] [queue-size]
+                  (take [] (let [item (proxy-super take)]
+                             (if (instance? Throwable item)
+                               (throw item)
+                               item))))
+                (proxy [LinkedBlockingQueue] [queue-size]
+                  (take [] (let [item (proxy-super take)]
+                             (if (instance? Throwable item)
+                               (throw item)
+                               item)))))]
     (future (try
               (dotimes [_ n]
                 (try (.put queue (function))
@@ -444,29 +452,30 @@
   (do (prn x)
       x))
 
-(defn tag-burst-image [image burst-events camera-channel-names camera-index-tag
-                       image-number-offset]
-  (swap! state assoc-if-nil :burst-time-offset
-         (- (elapsed-time @state)
-            (core-time-from-tags (image :tags))))
-  (let [cam-chan (if-let [cam-chan-str (get-in image [:tags camera-index-tag])]
-                   (Long/parseLong cam-chan-str)
-                   0)
-        image-number (+ image-number-offset
-                        (Long/parseLong (get-in image [:tags "ImageNumber"])))
-        burst-event (nth burst-events image-number)
-        camera-channel-name (nth camera-channel-names cam-chan)
-        num-camera-channels (count camera-channel-names)
-        event (-> burst-event
-                (update-in [:channel-index]
-                           make-multicamera-channel
-                           cam-chan num-camera-channels)
-                (update-in [:channel :name]
-                           super-channel-name
-                           camera-channel-name num-camera-channels)
-                (assoc :camera-channel-index cam-chan))
-        time-stamp (burst-time (:tags image) @state)]
-    (annotate-image image event @state time-stamp)))
+(defn tag-burst-image [^TaggedImage image burst-events camera-channel-names
+                       camera-index-tag image-number-offset]
+  (let [^JSONObject tags (.tags image)]
+    (swap! state assoc-if-nil :burst-time-offset
+           (- (elapsed-time @state)
+              (core-time-from-tags tags)))
+    (let [cam-chan (if-let [cam-chan-str (.opt tags camera-index-tag)]
+                     (Long/parseLong (str cam-chan-str))
+                     0)
+          image-number (+ image-number-offset
+                          (Long/parseLong (str (.opt tags "ImageNumber"))))
+          burst-event (nth burst-events image-number)
+          camera-channel-name (nth camera-channel-names cam-chan)
+          num-camera-channels (count camera-channel-names)
+          event (-> burst-event
+                  (update-in [:channel-index]
+                             make-multicamera-channel
+                             cam-chan num-camera-channels)
+                  (update-in [:channel :name]
+                             super-channel-name
+                             camera-channel-name num-camera-channels)
+                  (assoc :camera-channel-index cam-chan))
+          time-stamp (burst-time tags @state)]
+      (annotate-image! image event @state time-stamp))))
 
 (defn send-tagged-image
   "Send out image to output queue, but avoid hanging if we stop while blocking
@@ -477,7 +486,10 @@
       (log "canceling image output due to engine stop")
       (throw (EOFException. "(Aborted)")))
     (when (not (.offer out-queue tagged-image 1000 (TimeUnit/MILLISECONDS)))
-      (recur))))
+      (recur)))
+  (let [stage (.getStage (PipelineMonitor/getInstance) PipelineMonitor/ENGINE)]
+    (.recordSince stage (PipelineMonitor/getPipelineStartNs (.tags ^TaggedImage tagged-image)))
+    (.recordQueueDepth stage (.size ^BlockingQueue out-queue))))
 
 (defn produce-burst-images
   "Pops images from circular buffer, tags them, and sends them to output queue."
@@ -497,10 +509,8 @@
                           (if (.getCause e) ; unwrap rethrown exception
                             (throw (.getCause e))
                             (throw e))))]
-            (-> image
-              (tag-burst-image burst-events camera-channel-names camera-index-tag
-                               image-number-offset)
-              make-TaggedImage))))
+            (tag-burst-image image burst-events camera-channel-names
+                             camera-index-tag image-number-offset))))
       (finally (burst-cleanup)))))
 
 (defn collect-burst-images [event out-queue settings]
@@ -513,12 +523,12 @@
       (produce-burst-images burst-events camera-channel-names pop-timeout-ms out-queue))))
 
 (defn collect-snap-image [event out-queue]
-  (let [image (unwrap-tagged-image (core getTaggedImage (event :camera-channel-index)))]
+  (let [image (core getTaggedImage (event :camera-channel-index))]
     (select-keys event [:position-index :frame-index
                         :slice-index :channel-index])
     (when out-queue
       (send-tagged-image out-queue
-            (make-TaggedImage (annotate-image image event @state (elapsed-time @state)))))
+            (annotate-image! image event @state (elapsed-time @state))))
     image))
 
 (defn return-config []
@@ -820,6 +830,8 @@
               :usePositionList         :use-position-list
               :cameraTimeout           :camera-timeout
               :channelGroup            :channel-group
+              :summaryByReference      :summary-by-reference
+              :ringBufferQueues        :ring-buffer-queues
               )
             (assoc :frames (range (.numFrames settings))
                    :channels (vec (filter :use-channel
@@ -941,7 +953,9 @@
   (def last-acq this)
   (def last-state (.state this)) ; for debugging
     (reset! (.state this) {:stop false :pause false :finished false})
-    (let [out-queue (LinkedBlockingQueue. 10) ; Q: Why 10?
+    (let [out-queue (if (:ring-buffer-queues settings)
+                      (RingBufferQueue. 10)
+                      (LinkedBlockingQueue. 10)) ; Q: Why 10?
           acq-thread (Thread. #(binding [state (.state this)]
                                  (run-acquisition settings out-queue cleanup? position-list autofocus-device))
                               "AcquisitionEngine2010 Thread (Clojure)")]
@@ -950,7 +964,9 @@
                :pause false
                :finished false
                :acq-thread acq-thread
-               :summary-metadata (make-summary-metadata settings position-list)})
+               :summary-metadata (make-summary-metadata settings position-list)
+               :summary-by-reference (:summary-by-reference settings)
+               :ring-buffer-queues (:ring-buffer-queues settings)})
       (def outq out-queue) ; for debugging
       (when-not (:stop @(.state this))
         (.start acq-thread)
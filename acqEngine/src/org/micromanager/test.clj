@@ -1,15 +1,19 @@
 (ns org.micromanager.test
   (:import (java.util ArrayList List)
-           (java.util.concurrent Executors LinkedBlockingQueue
-                                 ConcurrentLinkedQueue TimeUnit)
+           (java.util.concurrent ArrayBlockingQueue BlockingQueue Executors
+                                 LinkedBlockingQueue ConcurrentLinkedQueue
+                                 TimeUnit)
            (mmcorej TaggedImage)
            (org.json JSONArray JSONObject)
-           (org.micromanager MMStudio)
-           (org.micromanager.api DataProcessor)
+           (org.micromanager AcquisitionEngine2010 MMStudio)
+           (org.micromanager.api DataProcessor SequenceSettings)
            (java.nio ByteBuffer ByteOrder)
            (java.io RandomAccessFile)
-           (org.micromanager.utils ShortWriter)
-           (org.micromanager.acquisition TaggedImageStorageMultipageTiff))
+           (org.micromanager.utils PixelStatistics RingBufferQueue ShortWriter)
+           (org.micromanager.acquisition MultipageTiffReader MultipageTiffWriter
+                                         TaggedImageQueue
+                                         TaggedImageStorageChunked
+                                         TaggedImageStorageMultipageTiff))
   (:require [org.micromanager.mm :as mm]
             [clojure.java.io :as io])
   (:use [org.micromanager.mm :only (edt load-mm core gui mmc)]))
@@ -398,11 +402,265 @@
     (dotimes [_ reps]
       (println i "\t" (time-per-run i f)))))
 
+;; engine throughput
 
-
-
-
-
-
-
-
+(defn burst-settings
+  "SequenceSettings for a single-channel, single-slice burst of n frames."
+  [n]
+  (let [settings (SequenceSettings.)]
+    (set! (. settings numFrames) n)
+    (set! (. settings intervalMs) 0.0)
+    (set! (. settings save) false)
+    settings))
+
+(defn engine-throughput-test
+  "Runs a burst of n frames through the acquisition engine and reports
+   images/second arriving at the engine's output queue. Meant to be run
+   with the DemoCamera adapter (e.g. MMConfig_demo.cfg) and a short
+   exposure, so that the camera is not the bottleneck."
+  [n]
+  (let [camera (core getCameraDevice)]
+    (when-not (= "DemoCamera" (core getDeviceLibrary camera))
+      (println "Warning: camera" camera "is not a DemoCamera device"))
+    (let [engine (AcquisitionEngine2010. gui)
+          t0 (System/nanoTime)
+          out-queue (.run engine (burst-settings n) false)
+          first-image-time (atom nil)
+          received (loop [i 0]
+                     (let [image (.take out-queue)]
+                       (if (TaggedImageQueue/isPoison image)
+                         i
+                         (do (when-not @first-image-time
+                               (reset! first-image-time (System/nanoTime)))
+                             (recur (inc i))))))
+          t1 (System/nanoTime)
+          ->s #(/ % 1e9)]
+      (println "Images received:" received "of" n)
+      (println "Total time (s):" (->s (- t1 t0)))
+      (println "Images/second (including startup):"
+               (/ received (->s (- t1 t0))))
+      (when (and @first-image-time (< 1 received))
+        (println "Images/second (after first image):"
+                 (/ (dec received) (->s (- t1 @first-image-time)))))
+      (when (core isBufferOverflowed)
+        (println "Circular buffer overflowed"))
+      received)))
+
+(defn tag-conversion-test
+  "Compares, for n images popped from the DemoCamera, the per-image cost
+   of the former JSONObject -> clojure map -> JSONObject round trip with
+   writing the same number of tags into the image's own JSONObject."
+  [n]
+  (fill-circular-buffer n true)
+  (let [images (doall (repeatedly n #(core popNextTaggedImage)))
+        extra (into {} (for [i (range 35)] [(str "Tag" i) i]))
+        round-trip-ms (time-ms
+                        (doseq [image images]
+                          (JSONObject. (merge (mm/json-to-data (.tags image))
+                                              extra))))
+        in-place-ms (time-ms
+                      (doseq [image images]
+                        (let [tags (.tags image)]
+                          (doseq [[k v] extra]
+                            (.put tags k v)))))]
+    (println "Round trip (ms/image):" (/ round-trip-ms (double n)))
+    (println "In place (ms/image):" (/ in-place-ms (double n)))))
+
+(defn queue-handoff-time-ms
+  "Time taken to pass n images from a producer thread to a consumer
+   thread through queue."
+  [^BlockingQueue queue n]
+  (let [image (TaggedImage. (byte-array 16) (JSONObject.))
+        producer (future (dotimes [_ n] (.put queue image)))]
+    (time-ms
+      (dotimes [_ n] (.take queue))
+      @producer)))
+
+(defn queue-handoff-benchmark
+  "Compares the images/second that a single producer can hand to a single
+   consumer through the queue types the acquisition pipeline can use, each
+   with the given capacity. Runs warmup iterations first, so that the JIT
+   has compiled the queues before anything is measured."
+  ([] (queue-handoff-benchmark 1000000 10 5 5))
+  ([n capacity warmups iterations]
+    (doseq [[label make-queue] [["LinkedBlockingQueue" #(LinkedBlockingQueue. (int capacity))]
+                                ["ArrayBlockingQueue" #(ArrayBlockingQueue. (int capacity))]
+                                ["RingBufferQueue" #(RingBufferQueue. (int capacity))]]]
+      (dotimes [_ warmups]
+        (queue-handoff-time-ms (make-queue) n))
+      (let [times (vec (repeatedly iterations
+                                   #(queue-handoff-time-ms (make-queue) n)))
+            best (apply min times)]
+        (println label "\t" "best (ms):" best "\t" "mean (ms):"
+                 (/ (apply + times) (double iterations)) "\t" "images/s:"
+                 (long (/ n (/ (max best 1) 1000.0))))))))
+
+(defn reader-random-access-benchmark
+  "Reads n randomly chosen images from the Image Stack File at path, first
+   with FileChannel reads and then with the file memory mapped, and prints
+   the read latencies of each. Run it twice to compare with a warm
+   page cache."
+  [path n]
+  (let [mapped-before (MultipageTiffReader/isMemoryMapped)]
+    (try
+      (doseq [mapped [false true]]
+        (MultipageTiffReader/setMemoryMapped mapped)
+        (let [reader (MultipageTiffReader. (io/file path))
+              labels (vec (.getIndexKeys reader))
+              times (vec (sort (doall
+                                 (repeatedly n
+                                   #(let [label (rand-nth labels)
+                                          t0 (System/nanoTime)]
+                                      (.readImage reader label)
+                                      (/ (- (System/nanoTime) t0) 1e6))))))]
+          (.close reader)
+          (println (if mapped "Memory mapped" "FileChannel") "\t"
+                   "mean (ms):" (/ (apply + times) n) "\t"
+                   "median (ms):" (nth times (quot n 2)) "\t"
+                   "99% (ms):" (nth times (min (dec n) (long (* 0.99 n)))))))
+      (finally
+        (MultipageTiffReader/setMemoryMapped mapped-before)))))
+
+(defn sustained-write-benchmark
+  "Writes images popped from the camera (repeatedly) to an Image Stack File
+   data set in dir for the given number of minutes, with the given write
+   block size in MB (0 writes each image in separate writes), and prints
+   the throughput and the longest putImage call of every minute. Writeback
+   stalls show up as minutes with low throughput and long calls. Compare
+   e.g. (sustained-write-benchmark \"D:/acquisitions/\" 30 0) with
+   (sustained-write-benchmark \"D:/acquisitions/\" 30 16)."
+  ([dir] (sustained-write-benchmark dir 30 16))
+  ([dir minutes block-size-mb]
+    (fill-circular-buffer 1 true)
+    (let [image (core popNextTaggedImage)
+          image-bytes (* (core getBytesPerPixel) (core getImageWidth)
+                         (core getImageHeight))
+          block-size-before (MultipageTiffWriter/getWriteBlockSize)
+          summary (image-test-summary (str "blocks" block-size-mb) 1000000)]
+      (MultipageTiffWriter/setWriteBlockSize (* block-size-mb 1048576))
+      (try
+        (let [storage (TaggedImageStorageMultipageTiff. dir true summary
+                                                        false true true)
+              t0 (System/nanoTime)
+              end (+ t0 (* minutes 60 1e9))]
+          (loop [frame 0 minute-start t0 minute-images 0 max-put-ms 0.0]
+            (let [now (System/nanoTime)]
+              (when (<= 60e9 (- now minute-start))
+                (println (format "Minute %d: %.1f MB/s, longest putImage %.1f ms"
+                                 (long (/ (- now t0) 60e9))
+                                 (/ (* minute-images image-bytes)
+                                    1048576.0 (/ (- now minute-start) 1e9))
+                                 max-put-ms)))
+              (if (< now end)
+                (let [tags (doto (json-clone (.tags image))
+                             (.put "FrameIndex" frame)
+                             (.put "Frame" frame)
+                             (.put "SliceIndex" 0)
+                             (.put "ChannelIndex" 0)
+                             (.put "PositionIndex" 0))
+                      put-start (System/nanoTime)
+                      _ (.putImage storage (TaggedImage. (.pix image) tags))
+                      put-ms (/ (- (System/nanoTime) put-start) 1e6)
+                      new-minute (<= 60e9 (- now minute-start))]
+                  (recur (inc frame)
+                         (if new-minute now minute-start)
+                         (if new-minute 1 (inc minute-images))
+                         (if new-minute put-ms (max max-put-ms put-ms))))
+                (let [finish-start (System/nanoTime)]
+                  (doto storage .finished .close)
+                  (println "Images:" frame "\t" "overall MB/s:"
+                           (/ (* frame image-bytes) 1048576.0
+                              (/ (- (System/nanoTime) t0) 1e9))
+                           "\t" "finishing (ms):"
+                           (/ (- (System/nanoTime) finish-start) 1e6)))))))
+        (finally
+          (MultipageTiffWriter/setWriteBlockSize block-size-before))))))
+
+(defn- tif-bytes [dir]
+  (reduce + (map #(.length %)
+                 (filter #(.endsWith (.getName %) ".tif")
+                         (file-seq (io/file dir))))))
+
+(defn compression-benchmark
+  "Writes n images popped from the camera (repeatedly) to Image Stack File
+   data sets in dir, in batches of batch-size images, first uncompressed
+   and then compressed, and prints the throughput and the size on disk of
+   each. Camera noise compresses worse than real samples, so use e.g. the
+   DemoCamera's \"Mode\" property to get representative images."
+  ([dir] (compression-benchmark dir 1000 10))
+  ([dir n batch-size]
+    (fill-circular-buffer 1 true)
+    (let [image (core popNextTaggedImage)
+          image-bytes (* (core getBytesPerPixel) (core getImageWidth)
+                         (core getImageHeight))
+          compression-before (MultipageTiffWriter/getCompression)]
+      (try
+        (doseq [compress [false true]]
+          (MultipageTiffWriter/setCompression compress)
+          (let [set-dir (str dir (if compress "compressed" "uncompressed"))
+                storage (TaggedImageStorageMultipageTiff.
+                          set-dir true
+                          (image-test-summary (str "compression" compress) n)
+                          false true true)
+                t0 (System/nanoTime)]
+            (doseq [batch (partition-all batch-size (range n))]
+              (.putImages storage
+                (ArrayList.
+                  (for [frame batch]
+                    (TaggedImage. (.pix image)
+                                  (doto (json-clone (.tags image))
+                                    (.put "FrameIndex" frame)
+                                    (.put "Frame" frame)
+                                    (.put "SliceIndex" 0)
+                                    (.put "ChannelIndex" 0)
+                                    (.put "PositionIndex" 0)))))))
+            (doto storage .finished .close)
+            (let [seconds (/ (- (System/nanoTime) t0) 1e9)
+                  on-disk (tif-bytes set-dir)]
+              (println (if compress "Compressed" "Uncompressed") "\t"
+                       "MB/s:" (/ (* n image-bytes) 1048576.0 seconds) "\t"
+                       "MB on disk:" (/ on-disk 1048576.0) "\t"
+                       "ratio:" (/ (* n image-bytes) (double on-disk))))))
+        (finally
+          (MultipageTiffWriter/setCompression compression-before))))))
+
+(defn chunked-kymograph-benchmark
+  "Reads a w x h pixel crop of every frame of channel 0, slice 0, position
+   0 of the chunked data set in dir, first through getTimeSeries (reading
+   only the chunks under the crop) and then by reading whole images, and
+   prints the time each took."
+  [dir w h]
+  (let [crop (java.awt.Rectangle. 0 0 w h)]
+    (let [storage (TaggedImageStorageChunked. dir false nil)
+          t0 (System/nanoTime)]
+      (count (.getTimeSeries storage 0 0 0 crop))
+      (println "Chunks under crop (ms):" (/ (- (System/nanoTime) t0) 1e6)))
+    (let [storage (TaggedImageStorageChunked. dir false nil)
+          t0 (System/nanoTime)]
+      (dotimes [frame (inc (.lastAcquiredFrame storage))]
+        (.getImage storage 0 0 frame 0))
+      (println "Whole images (ms):" (/ (- (System/nanoTime) t0) 1e6)))))
+
+(defn histogram-benchmark
+  "Times the display statistics of a random w x h 16 bit image, n times
+   each with ImageJ and with PixelStatistics at strides 1 and 4."
+  [w h n]
+  (let [pixels (short-array (* w h))
+        random (java.util.Random.)]
+    (dotimes [i (* w h)]
+      (aset-short pixels i (short (.nextInt random 4096))))
+    (let [ip (ij.process.ShortProcessor. w h pixels nil)
+          t0 (System/nanoTime)]
+      (dotimes [_ n]
+        (.getHistogram ip)
+        (ij.process.ImageStatistics/getStatistics ip
+          (bit-or ij.process.ImageStatistics/MEAN
+                  ij.process.ImageStatistics/MIN_MAX
+                  ij.process.ImageStatistics/STD_DEV) nil))
+      (println "ImageJ (ms per image):" (/ (- (System/nanoTime) t0) 1e6 n)))
+    (doseq [stride [1 4]]
+      (let [t0 (System/nanoTime)]
+        (dotimes [_ n]
+          (PixelStatistics/compute pixels w h nil nil stride))
+        (println "PixelStatistics, stride" stride "(ms per image):"
+                 (/ (- (System/nanoTime) t0) 1e6 n))))))
@@ -47,6 +47,21 @@ public class MMOptions {
    private static final String DELETE_OLD_CORELOGS = "DeleteOldCoreLogs";
    private static final String DELETE_CORELOG_AFTER_DAYS =
       "DeleteCoreLogAfterDays";
+   private static final String PIXEL_BUFFER_POOL = "PixelBufferPool";
+   private static final String MPTIFF_WRITING_THREADS = "WritingThreadsMPTiff";
+   private static final String MPTIFF_MEMORY_MAPPED_READING = "MemoryMappedReadingMPTiff";
+   private static final String JOURNAL_SYNC_INTERVAL_MS = "JournalSyncIntervalMs";
+   private static final String MPTIFF_WRITE_BLOCK_SIZE_MB = "WriteBlockSizeMBMPTiff";
+   private static final String MPTIFF_BIGTIFF = "BigTiffMPTiff";
+   private static final String MPTIFF_MAX_FILE_SIZE_MB = "MaxFileSizeMBMPTiff";
+   private static final String MPTIFF_COMPRESSION = "CompressionMPTiff";
+   private static final String CHUNK_SHAPE = "ChunkShape";
+   private static final String CHUNK_COMPRESSION = "ChunkCompression";
+   private static final String RAM_STORAGE_BUDGET_MB = "RamStorageBudgetMB";
+   private static final String LIVE_HISTOGRAM_STRIDE = "LiveHistogramStride";
+   private static final String MAX_DISPLAY_FPS = "MaxDisplayFPS";
+   private static final String DISPLAY_PYRAMID = "DisplayPyramid";
+   private static final String SUMMARY_BY_REFERENCE = "SummaryByReference";
 
    public boolean debugLogEnabled_;
    public boolean doNotAskForConfigFile_;
@@ -61,6 +76,21 @@ public class MMOptions {
    public boolean hideMDADisplay_;
    public boolean deleteOldCoreLogs_;
    public int deleteCoreLogAfterDays_;
+   public boolean pixelBufferPool_;
+   public int mpTiffWritingThreads_;
+   public boolean mpTiffMemoryMappedReading_;
+   public int journalSyncIntervalMs_;
+   public int mpTiffWriteBlockSizeMB_;
+   public boolean mpTiffBigTiff_;
+   public int mpTiffMaxFileSizeMB_;
+   public boolean mpTiffCompression_;
+   public String chunkShape_;
+   public boolean chunkCompression_;
+   public int ramStorageBudgetMB_;
+   public int liveHistogramStride_;
+   public int maxDisplayFPS_;
+   public boolean displayPyramid_;
+   public boolean summaryByReference_;
 
    public MMOptions() {
       setDefaultValues();
@@ -82,6 +112,21 @@ public class MMOptions {
       hideMDADisplay_ = false;
       deleteOldCoreLogs_ = false;
       deleteCoreLogAfterDays_ = 7;
+      pixelBufferPool_ = false;
+      mpTiffWritingThreads_ = 1;
+      mpTiffMemoryMappedReading_ = false;
+      journalSyncIntervalMs_ = 1000;
+      mpTiffWriteBlockSizeMB_ = 0;
+      mpTiffBigTiff_ = false;
+      mpTiffMaxFileSizeMB_ = 4096;
+      mpTiffCompression_ = false;
+      chunkShape_ = "1,1,16,1,512,512";
+      chunkCompression_ = false;
+      ramStorageBudgetMB_ = 2048;
+      liveHistogramStride_ = 1;
+      maxDisplayFPS_ = 30;
+      displayPyramid_ = true;
+      summaryByReference_ = false;
    }
 
    private Preferences getPrefNode() {
@@ -106,6 +151,21 @@ public class MMOptions {
       prefs.putBoolean(HIDE_MDA_DISPLAY, hideMDADisplay_);
       prefs.putBoolean(DELETE_OLD_CORELOGS, deleteOldCoreLogs_);
       prefs.putInt(DELETE_CORELOG_AFTER_DAYS, deleteCoreLogAfterDays_);
+      prefs.putBoolean(PIXEL_BUFFER_POOL, pixelBufferPool_);
+      prefs.putInt(MPTIFF_WRITING_THREADS, mpTiffWritingThreads_);
+      prefs.putBoolean(MPTIFF_MEMORY_MAPPED_READING, mpTiffMemoryMappedReading_);
+      prefs.putInt(JOURNAL_SYNC_INTERVAL_MS, journalSyncIntervalMs_);
+      prefs.putInt(MPTIFF_WRITE_BLOCK_SIZE_MB, mpTiffWriteBlockSizeMB_);
+      prefs.putBoolean(MPTIFF_BIGTIFF, mpTiffBigTiff_);
+      prefs.putInt(MPTIFF_MAX_FILE_SIZE_MB, mpTiffMaxFileSizeMB_);
+      prefs.putBoolean(MPTIFF_COMPRESSION, mpTiffCompression_);
+      prefs.put(CHUNK_SHAPE, chunkShape_);
+      prefs.putBoolean(CHUNK_COMPRESSION, chunkCompression_);
+      prefs.putInt(RAM_STORAGE_BUDGET_MB, ramStorageBudgetMB_);
+      prefs.putInt(LIVE_HISTOGRAM_STRIDE, liveHistogramStride_);
+      prefs.putInt(MAX_DISPLAY_FPS, maxDisplayFPS_);
+      prefs.putBoolean(DISPLAY_PYRAMID, displayPyramid_);
+      prefs.putBoolean(SUMMARY_BY_REFERENCE, summaryByReference_);
    }
 
    public void loadSettings() {
@@ -126,6 +186,26 @@ public class MMOptions {
          prefs.getBoolean(DELETE_OLD_CORELOGS, deleteOldCoreLogs_);
       deleteCoreLogAfterDays_ =
          prefs.getInt(DELETE_CORELOG_AFTER_DAYS, deleteCoreLogAfterDays_);
+      pixelBufferPool_ = prefs.getBoolean(PIXEL_BUFFER_POOL, pixelBufferPool_);
+      mpTiffWritingThreads_ =
+         prefs.getInt(MPTIFF_WRITING_THREADS, mpTiffWritingThreads_);
+      mpTiffMemoryMappedReading_ =
+         prefs.getBoolean(MPTIFF_MEMORY_MAPPED_READING, mpTiffMemoryMappedReading_);
+      journalSyncIntervalMs_ =
+         prefs.getInt(JOURNAL_SYNC_INTERVAL_MS, journalSyncIntervalMs_);
+      mpTiffWriteBlockSizeMB_ =
+         prefs.getInt(MPTIFF_WRITE_BLOCK_SIZE_MB, mpTiffWriteBlockSizeMB_);
+      mpTiffBigTiff_ = prefs.getBoolean(MPTIFF_BIGTIFF, mpTiffBigTiff_);
+      mpTiffMaxFileSizeMB_ =
+         prefs.getInt(MPTIFF_MAX_FILE_SIZE_MB, mpTiffMaxFileSizeMB_);
+      mpTiffCompression_ = prefs.getBoolean(MPTIFF_COMPRESSION, mpTiffCompression_);
+      chunkShape_ = prefs.get(CHUNK_SHAPE, chunkShape_);
+      chunkCompression_ = prefs.getBoolean(CHUNK_COMPRESSION, chunkCompression_);
+      ramStorageBudgetMB_ = prefs.getInt(RAM_STORAGE_BUDGET_MB, ramStorageBudgetMB_);
+      liveHistogramStride_ = prefs.getInt(LIVE_HISTOGRAM_STRIDE, liveHistogramStride_);
+      maxDisplayFPS_ = prefs.getInt(MAX_DISPLAY_FPS, maxDisplayFPS_);
+      displayPyramid_ = prefs.getBoolean(DISPLAY_PYRAMID, displayPyramid_);
+      summaryByReference_ = prefs.getBoolean(SUMMARY_BY_REFERENCE, summaryByReference_);
    }
 
    public void resetSettings() throws BackingStoreException {
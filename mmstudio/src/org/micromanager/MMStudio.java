@@ -62,6 +62,7 @@ import javax.swing.UnsupportedLookAndFeelException;
 import mmcorej.CMMCore;
 import mmcorej.DeviceType;
 import mmcorej.MMCoreJ;
+import mmcorej.PixelBufferPool;
 import mmcorej.StrVector;
 import mmcorej.TaggedImage;
 
@@ -90,6 +91,7 @@ import org.micromanager.events.EventManager;
 import org.micromanager.graph.GraphData;
 import org.micromanager.graph.GraphFrame;
 import org.micromanager.graph.HistogramSettings;
+import org.micromanager.imagedisplay.AcquisitionVirtualStack;
 import org.micromanager.imagedisplay.DisplayWindow;
 import org.micromanager.imagedisplay.MetadataPanel;
 import org.micromanager.imagedisplay.VirtualAcquisitionDisplay;
@@ -107,6 +109,7 @@ import org.micromanager.script.ScriptPanel;
 import org.micromanager.utils.AutofocusManager;
 import org.micromanager.utils.ContrastSettings;
 import org.micromanager.utils.FileDialogs;
+import org.micromanager.utils.FileSyncer;
 import org.micromanager.utils.FileDialogs.FileType;
 import org.micromanager.utils.GUIColors;
 import org.micromanager.utils.GUIUtils;
@@ -115,6 +118,7 @@ import org.micromanager.utils.JavaUtils;
 import org.micromanager.utils.MDUtils;
 import org.micromanager.utils.MMException;
 import org.micromanager.utils.MMScriptException;
+import org.micromanager.utils.PixelStatistics;
 import org.micromanager.utils.ReportingUtils;
 import org.micromanager.utils.TextUtils;
 import org.micromanager.utils.UIMonitor;
@@ -418,7 +422,29 @@ public class MMStudio implements ScriptInterface {
       } catch (Exception ex) {
          ReportingUtils.showError(ex);
       }
-
+      PixelBufferPool.getInstance().setEnabled(options_.pixelBufferPool_);
+      TaggedImageStorageMultipageTiff.setMaxWritingThreads(
+            options_.mpTiffWritingThreads_);
+      MultipageTiffReader.setMemoryMapped(options_.mpTiffMemoryMappedReading_);
+      FileSyncer.setSyncIntervalMs(options_.journalSyncIntervalMs_);
+      MultipageTiffWriter.setWriteBlockSize(
+            options_.mpTiffWriteBlockSizeMB_ * 1048576);
+      MultipageTiffWriter.setBigTiff(options_.mpTiffBigTiff_);
+      MultipageTiffWriter.setMaxFileSize(options_.mpTiffMaxFileSizeMB_ * 1048576L);
+      MultipageTiffWriter.setCompression(options_.mpTiffCompression_);
+      try {
+         TaggedImageStorageChunked.setChunkShape(
+               TaggedImageStorageChunked.parseChunkShape(options_.chunkShape_));
+      } catch (IllegalArgumentException ex) {
+         ReportingUtils.logError(ex, "Invalid chunk shape " + options_.chunkShape_);
+      }
+      TaggedImageStorageChunked.setCompression(options_.chunkCompression_);
+      TaggedImageStorageRamSpilling.setRamBudget(options_.ramStorageBudgetMB_ * 1048576L);
+      PixelStatistics.setLiveStride(options_.liveHistogramStride_);
+      VirtualAcquisitionDisplay.setMaxDisplayFPS(options_.maxDisplayFPS_);
+      AcquisitionVirtualStack.setPyramidEnabled(options_.displayPyramid_);
+
+      engine_.setSummaryByReference(options_.summaryByReference_);
       engine_.setParentGUI(studio_);
 
       loadMRUConfigFiles();
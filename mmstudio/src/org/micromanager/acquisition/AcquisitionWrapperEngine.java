@@ -37,6 +37,7 @@ import org.micromanager.utils.ChannelSpec;
 import org.micromanager.utils.ContrastSettings;
 import org.micromanager.utils.MMException;
 import org.micromanager.utils.NumberUtils;
+import org.micromanager.utils.PipelineMonitor;
 import org.micromanager.utils.ReportingUtils;
 
 /**
@@ -80,6 +81,8 @@ public class AcquisitionWrapperEngine implements AcquisitionEngine {
    private ArrayList<AcqSettingsListener> settingsListeners_;
    private AcquisitionManager acqManager_;
    private int cameraTimeout_ = 20000;
+   private boolean ringBufferQueues_ = false;
+   private boolean summaryByReference_ = false;
 
    public AcquisitionWrapperEngine(AcquisitionManager mgr) {
       nameToProcessorClass_ = new HashMap<String, Class<? extends DataProcessor<TaggedImage>>>();
@@ -151,6 +154,8 @@ public class AcquisitionWrapperEngine implements AcquisitionEngine {
       studio_.enableLiveMode(false);
 
       try {
+         PipelineMonitor.getInstance().reset();
+
          // Start up the acquisition engine
          BlockingQueue<TaggedImage> engineOutputQueue = getAcquisitionEngine2010().run(
                  acquisitionSettings, true,
@@ -162,7 +167,8 @@ public class AcquisitionWrapperEngine implements AcquisitionEngine {
 
          // Run the Acquisition Engine output through a pipeline of ImageProcessors
          BlockingQueue<TaggedImage> procStackOutputQueue = ProcessorStack.run(
-                 engineOutputQueue, taggedImageProcessors_);
+                 engineOutputQueue, taggedImageProcessors_,
+                 acquisitionSettings.ringBufferQueues);
 
          // Create an MMAcquisition object, which will result in an ImageCache
          // and VirtualImageDisplay if desired
@@ -175,6 +181,8 @@ public class AcquisitionWrapperEngine implements AcquisitionEngine {
          // Start pumping processed images into the ImageCache
          DefaultTaggedImageSink sink = new DefaultTaggedImageSink(
                  procStackOutputQueue, imageCache_);
+         sink.setBatched(true);
+         sink.setWritePerformanceLog(true);
          sink.start(new Runnable() {
             @Override
             public void run() {
@@ -449,6 +457,8 @@ public class AcquisitionWrapperEngine implements AcquisitionEngine {
       acquisitionSettings.comment = comment_;
       acquisitionSettings.usePositionList = this.useMultiPosition_;
       acquisitionSettings.cameraTimeout = cameraTimeout_;
+      acquisitionSettings.ringBufferQueues = ringBufferQueues_;
+      acquisitionSettings.summaryByReference = summaryByReference_;
       return acquisitionSettings;
    }
 
@@ -526,6 +536,8 @@ public class AcquisitionWrapperEngine implements AcquisitionEngine {
       
       useMultiPosition_ = ss.usePositionList;
       cameraTimeout_ = ss.cameraTimeout;
+      ringBufferQueues_ = ss.ringBufferQueues;
+      summaryByReference_ = ss.summaryByReference;
    }
 
 //////////////////// Actions ///////////////////////////////////////////
@@ -919,6 +931,18 @@ public class AcquisitionWrapperEngine implements AcquisitionEngine {
       return saveFiles_;
    }
 
+   /**
+    * Selects whether images carry only the UUID of the summary metadata
+    * instead of a full copy of it (see SequenceSettings.summaryByReference).
+    */
+   public void setSummaryByReference(boolean byReference) {
+      summaryByReference_ = byReference;
+   }
+
+   public boolean getSummaryByReference() {
+      return summaryByReference_;
+   }
+
    @Override
    public void setDisplayMode(int mode) {
       //Ignore
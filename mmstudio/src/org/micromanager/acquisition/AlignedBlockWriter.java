@@ -0,0 +1,178 @@
+///////////////////////////////////////////////////////////////////////////////
+//FILE:          AlignedBlockWriter.java
+//PROJECT:       Micro-Manager
+//SUBSYSTEM:     mmstudio
+//-----------------------------------------------------------------------------
+//
+// COPYRIGHT:    University of California, San Francisco, 2014
+//
+// LICENSE:      This file is distributed under the BSD license.
+//               License text is included with the source distribution.
+//
+//               This file is distributed in the hope that it will be useful,
+//               but WITHOUT ANY WARRANTY; without even the implied warranty
+//               of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+//
+//               IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+//               CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+//               INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES.
+//
+package org.micromanager.acquisition;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Collects the data appended to an Image Stack File (IFDs, pixels and
+ * metadata of consecutive images) in a large block, and writes the file in
+ * whole blocks at offsets that are multiples of the block size.
+ *
+ * The JVM gives no way to bypass the page cache, so instead of waiting for
+ * the operating system to write back gigabytes of dirty pages at once, the
+ * written blocks are forced to disk every DIRTY_LIMIT bytes. This keeps the
+ * amount of unwritten data small and the writing rate steady.
+ *
+ * All writes to the file must go through this class (in the order they are
+ * meant to happen): a write that overlaps data still held in the block
+ * first flushes the block. Reads see the data still held in the block.
+ */
+final class AlignedBlockWriter {
+   static final int ALIGNMENT = 4096;
+   // Force written blocks to disk whenever this many bytes are dirty
+   private static final long DIRTY_LIMIT = 64L * 1024 * 1024;
+
+   private final FileChannel channel_;
+   private final int blockSize_;
+   private final ByteBuffer block_;
+   // File offset of the first byte in block_
+   private long blockStart_;
+   private long dirtyBytes_ = 0;
+   private long blocksWritten_ = 0;
+
+   /**
+    * @param blockSize size of the blocks; rounded up to a multiple of
+    * ALIGNMENT
+    * @param start file offset at which appended data starts
+    */
+   AlignedBlockWriter(FileChannel channel, int blockSize, long start) {
+      channel_ = channel;
+      blockSize_ = Math.max(ALIGNMENT,
+            (blockSize + ALIGNMENT - 1) / ALIGNMENT * ALIGNMENT);
+      block_ = ByteBuffer.allocateDirect(blockSize_);
+      blockStart_ = start;
+      limitToNextBoundary();
+   }
+
+   /*
+    * The block ends at the next multiple of the block size, so that all but
+    * the first block are aligned.
+    */
+   private void limitToNextBoundary() {
+      long end = (blockStart_ / blockSize_ + 1) * blockSize_;
+      block_.clear();
+      block_.limit((int) (end - blockStart_));
+   }
+
+   /**
+    * Returns the file offset up to which data has been appended.
+    */
+   synchronized long getPosition() {
+      return blockStart_ + block_.position();
+   }
+
+   /**
+    * Appends the buffers' contents (from their start) to the file.
+    * @return the number of bytes appended
+    */
+   synchronized long append(ByteBuffer[] buffers) throws IOException {
+      long total = 0;
+      for (ByteBuffer buffer : buffers) {
+         ByteBuffer source = buffer.duplicate();
+         source.rewind();
+         total += source.remaining();
+         while (source.hasRemaining()) {
+            if (!block_.hasRemaining()) {
+               writeBlock();
+            }
+            int n = Math.min(source.remaining(), block_.remaining());
+            ByteBuffer chunk = source.duplicate();
+            chunk.limit(chunk.position() + n);
+            block_.put(chunk);
+            source.position(source.position() + n);
+         }
+      }
+      if (!block_.hasRemaining()) {
+         writeBlock();
+      }
+      return total;
+   }
+
+   /**
+    * Writes buffer at position, e.g. to update a tag of an image already
+    * appended.
+    * @return the number of bytes written
+    */
+   synchronized int write(ByteBuffer buffer, long position) throws IOException {
+      if (position + buffer.remaining() > blockStart_) {
+         flush();
+      }
+      return channel_.write(buffer, position);
+   }
+
+   /**
+    * Writes out the data held in the block, even if it is not full.
+    */
+   synchronized void flush() throws IOException {
+      if (block_.position() > 0) {
+         writeBlock();
+      }
+   }
+
+   private void writeBlock() throws IOException {
+      int length = block_.position();
+      block_.flip();
+      long position = blockStart_;
+      while (block_.hasRemaining()) {
+         position += channel_.write(block_, position);
+      }
+      blockStart_ += length;
+      ++blocksWritten_;
+      dirtyBytes_ += length;
+      if (dirtyBytes_ >= DIRTY_LIMIT) {
+         channel_.force(false);
+         dirtyBytes_ = 0;
+      }
+      limitToNextBoundary();
+   }
+
+   /**
+    * Reads from the file into buffer (from its position to its limit),
+    * including data not yet written out.
+    */
+   synchronized void read(ByteBuffer buffer, long position) throws IOException {
+      int start = buffer.position();
+      int length = buffer.remaining();
+      channel_.read(buffer, position);
+      long overlapStart = Math.max(position, blockStart_);
+      long overlapEnd = Math.min(position + length, blockStart_ + block_.position());
+      if (overlapStart < overlapEnd) {
+         ByteBuffer held = block_.duplicate();
+         held.limit((int) (overlapEnd - blockStart_));
+         held.position((int) (overlapStart - blockStart_));
+         ByteBuffer target = buffer.duplicate();
+         target.limit(start + length);
+         target.position(start + (int) (overlapStart - position));
+         target.put(held);
+      }
+      buffer.position(start + length);
+   }
+
+   synchronized long getBlocksWritten() {
+      return blocksWritten_;
+   }
+
+   int getBlockSize() {
+      return blockSize_;
+   }
+}
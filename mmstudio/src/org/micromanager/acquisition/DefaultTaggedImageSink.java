@@ -1,22 +1,43 @@
 package org.micromanager.acquisition;
 
+import java.util.ArrayList;
+import java.util.List;
 import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.TimeUnit;
 import javax.swing.JOptionPane;
 import javax.swing.SwingUtilities;
 import mmcorej.TaggedImage;
+import org.micromanager.api.BatchingTaggedImageStorage;
 import org.micromanager.api.ImageCache;
+import org.micromanager.utils.PipelineMonitor;
 import org.micromanager.utils.ReportingUtils;
 
 /**
  * Dequeue tagged images and append to image cache
  *
+ * In batched mode, all images waiting in the queue are taken at once and
+ * handed to the cache with one putImages() call if it takes batches (see
+ * BatchingTaggedImageStorage). At the end the sink logs how long it spent
+ * waiting for images vs. storing them, which tells whether storage or the
+ * upstream processing limits an acquisition.
+ *
  * @author arthur
  */
 public class DefaultTaggedImageSink  {
 
+   private static final int MAX_BATCH_SIZE = 256;
+
    private final BlockingQueue<TaggedImage> imageProducingQueue_;
    private ImageCache imageCache_ = null;
+   private volatile boolean batched_ = false;
+   private volatile boolean writePerformanceLog_ = false;
+
+   // Counters of the sink thread, logged when it is done
+   private long imageCount_ = 0;
+   private long batchCount_ = 0;
+   private long waitingNs_ = 0;
+   private long storingNs_ = 0;
+   private int maxQueueDepth_ = 0;
 
    public DefaultTaggedImageSink(BlockingQueue<TaggedImage> imageProducingQueue,
                   ImageCache imageCache) {
@@ -24,6 +45,26 @@ public class DefaultTaggedImageSink  {
          imageCache_ = imageCache;
    }
 
+   /**
+    * Selects batched mode: store all images available in the queue with a
+    * single putImages() call. Call before start().
+    */
+   public void setBatched(boolean batched) {
+      batched_ = batched;
+   }
+
+   public boolean isBatched() {
+      return batched_;
+   }
+
+   /**
+    * Writes the PipelineMonitor statistics to the data set directory (and
+    * the log) once all images are stored.
+    */
+   public void setWritePerformanceLog(boolean write) {
+      writePerformanceLog_ = write;
+   }
+
    public void start() {
       start(null);
    }
@@ -36,35 +77,116 @@ public class DefaultTaggedImageSink  {
          @Override
          public void run() {
             long t1 = System.currentTimeMillis();
-            int imageCount = 0;
             try {
-               while (true) {
-                  TaggedImage image = imageProducingQueue_.poll(1, TimeUnit.SECONDS);
-                  if (image != null) {
-                     if (TaggedImageQueue.isPoison(image)) {
-                        break;
-                     }
-                     ++imageCount;
-                     try {
-                        imageCache_.putImage(image);
-                     }
-                     catch (OutOfMemoryError e) {
-                        handleOutOfMemory(e, sinkFullCallback);
-                        break;
-                     }
-                  }
+               if (batched_) {
+                  drainInBatches(sinkFullCallback);
+               } else {
+                  drainOneByOne(sinkFullCallback);
                }
             } catch (Exception ex2) {
                ReportingUtils.logError(ex2);
             }
             long t2 = System.currentTimeMillis();
-            ReportingUtils.logMessage(imageCount + " images stored in " + (t2 - t1) + " ms.");
+            ReportingUtils.logMessage(imageCount_ + " images stored in " + (t2 - t1) + " ms.");
+            ReportingUtils.logMessage("Image sink: " + batchCount_
+                  + " store calls, " + storingNs_ / 1000000 + " ms storing, "
+                  + waitingNs_ / 1000000 + " ms waiting for images, max. queue depth "
+                  + maxQueueDepth_);
             imageCache_.finished();
+            if (writePerformanceLog_) {
+               PipelineMonitor.getInstance().writeAcquisitionLog(
+                     imageCache_.getDiskLocation());
+            }
          }
       };
       savingThread.start();
    }
 
+   private void drainOneByOne(Runnable sinkFullCallback)
+         throws InterruptedException {
+      while (true) {
+         long t0 = System.nanoTime();
+         TaggedImage image = imageProducingQueue_.poll(1, TimeUnit.SECONDS);
+         long t1 = System.nanoTime();
+         waitingNs_ += t1 - t0;
+         if (image != null) {
+            if (TaggedImageQueue.isPoison(image)) {
+               break;
+            }
+            updateQueueDepth(1);
+            try {
+               imageCache_.putImage(image);
+            }
+            catch (OutOfMemoryError e) {
+               handleOutOfMemory(e, sinkFullCallback);
+               break;
+            }
+            imageStored(1, t1);
+         }
+      }
+   }
+
+   private void drainInBatches(Runnable sinkFullCallback)
+         throws InterruptedException {
+      List<TaggedImage> batch = new ArrayList<TaggedImage>();
+      boolean done = false;
+      while (!done) {
+         long t0 = System.nanoTime();
+         TaggedImage image = imageProducingQueue_.poll(1, TimeUnit.SECONDS);
+         long t1 = System.nanoTime();
+         waitingNs_ += t1 - t0;
+         if (image == null) {
+            continue;
+         }
+         batch.clear();
+         batch.add(image);
+         imageProducingQueue_.drainTo(batch, MAX_BATCH_SIZE - 1);
+         updateQueueDepth(batch.size());
+         // Everything after the poison image is ignored, as in one-by-one mode
+         for (int i = 0; i < batch.size(); ++i) {
+            if (TaggedImageQueue.isPoison(batch.get(i))) {
+               batch.subList(i, batch.size()).clear();
+               done = true;
+               break;
+            }
+         }
+         if (batch.isEmpty()) {
+            continue;
+         }
+         try {
+            if (imageCache_ instanceof BatchingTaggedImageStorage) {
+               ((BatchingTaggedImageStorage) imageCache_).putImages(batch);
+            } else {
+               for (TaggedImage taggedImage : batch) {
+                  imageCache_.putImage(taggedImage);
+               }
+            }
+         }
+         catch (OutOfMemoryError e) {
+            handleOutOfMemory(e, sinkFullCallback);
+            break;
+         }
+         catch (Exception e) {
+            ReportingUtils.logError(e);
+         }
+         imageStored(batch.size(), t1);
+      }
+   }
+
+   private void updateQueueDepth(int taken) {
+      int depth = taken + imageProducingQueue_.size();
+      if (depth > maxQueueDepth_) {
+         maxQueueDepth_ = depth;
+      }
+   }
+
+   private void imageStored(int count, long storeStartNs) {
+      long now = System.nanoTime();
+      storingNs_ += now - storeStartNs;
+      imageCount_ += count;
+      ++batchCount_;
+   }
+
    // Never called from EDT
    private void handleOutOfMemory(final OutOfMemoryError e,
          Runnable sinkFullCallback)
@@ -41,8 +41,8 @@ import org.micromanager.utils.MMScriptException;
 import org.micromanager.utils.ReportingUtils;
 
 /**
- * This class extends the java swing timer.  It periodically retrieves images
- * from the core and displays them in the live window
+ * This class retrieves images from the core as the camera delivers them
+ * and displays them in the live window
  * 
  * @author Henry Pinkard
  */
@@ -69,69 +69,72 @@ public class LiveModeTimer {
    private static int mCamImageCounter_ = 0;
    private boolean multiCam_ = false;
 
-   // Helper class to start and stop timer task atomically.
-   private class TimerController {
-      private Timer timer_;
-      private final Object timerLock_ = new Object();
-      private boolean timerTaskShouldStop_ = true; // Guarded by timerLock_
-      private boolean timerTaskIsBusy_ = false; // Guarded by timerLock_
-      public void start(final Runnable task, long interval) {
-         synchronized (timerLock_) {
-            if (timer_ != null) {
+   // Helper class to start and stop the live mode task atomically. The task
+   // runs on its own thread, which sleeps in the core until the camera
+   // inserts a new image into the circular buffer instead of polling on a
+   // timer, and is run at most once every minInterval ms.
+   private class ImageWaitController {
+      // Upper bound on a single wait in the core, so that stop() is noticed
+      private static final int WAIT_SLICE_MS = 100;
+      private Thread thread_; // Guarded by lock_
+      private final Object lock_ = new Object();
+      private volatile boolean taskShouldStop_ = true;
+
+      public void start(final Runnable task, final long minInterval) {
+         synchronized (lock_) {
+            if (thread_ != null) {
                return;
             }
-            timer_ = new Timer("Live mode timer");
-            timerTaskShouldStop_ = false;
-            TimerTask timerTask = new TimerTask() {
+            taskShouldStop_ = false;
+            thread_ = new Thread("Live mode image waiter") {
                @Override
                public void run() {
-                  synchronized (timerLock_) {
-                     if (timerTaskShouldStop_) {
-                        return;
+                  int lastImageCounter = -1;
+                  while (!taskShouldStop_) {
+                     int imageCounter = core_.getImageCounter();
+                     if (imageCounter == lastImageCounter) {
+                        core_.waitForNewImage(lastImageCounter, WAIT_SLICE_MS);
+                        continue;
                      }
-                     timerTaskIsBusy_ = true;
-                  }
-                  try {
+                     lastImageCounter = imageCounter;
+                     long start = System.currentTimeMillis();
                      task.run();
-                  }
-                  finally {
-                     synchronized (timerLock_) {
-                        timerTaskIsBusy_ = false;
-                        timerLock_.notifyAll();
+                     long remaining = minInterval -
+                           (System.currentTimeMillis() - start);
+                     if (remaining > 0 && !taskShouldStop_) {
+                        try {
+                           Thread.sleep(remaining);
+                        } catch (InterruptedException e) {
+                           return;
+                        }
                      }
                   }
                }
             };
-            timer_.schedule(timerTask, 0, interval);
+            thread_.start();
          }
       }
 
       public void stop() {
-         synchronized (timerLock_) {
-            if (timer_ == null || timerTaskShouldStop_) {
-               return;
-            }
-
-            timerTaskShouldStop_ = true;
-            timer_.cancel();
-         }
+         taskShouldStop_ = true;
       }
 
       public void waitForCompletion() {
-         synchronized (timerLock_) {
-            while (timerTaskIsBusy_) {
-               try {
-                  timerLock_.wait();
-               }
-               catch (InterruptedException e) {
-                  Thread.currentThread().interrupt();
-               }
+         synchronized (lock_) {
+            if (thread_ == null) {
+               return;
             }
-            timer_ = null;
+            try {
+               thread_.join();
+            }
+            catch (InterruptedException e) {
+               Thread.currentThread().interrupt();
+            }
+            thread_ = null;
          }
       }
    }
-   private final TimerController timerController_ = new TimerController();
+   private final ImageWaitController imageWaitController_ = new ImageWaitController();
 
    /**
     * The LivemodeTimer constructor defines a DisplayImageRoutine that 
@@ -194,7 +197,7 @@ public class LiveModeTimer {
    }
 
    /**
-    * Determines the optimum interval for the live mode timer task to happen
+    * Determines the minimum interval between runs of the live mode task
     * Also sets variable fpsInterval_
     */
    private long getInterval() {
@@ -229,7 +232,6 @@ public class LiveModeTimer {
       return running_;
    }
 
-   @SuppressWarnings("SleepWhileInLoop")
    public void begin() throws Exception {
       if(running_) {
          return;
@@ -247,15 +249,9 @@ public class LiveModeTimer {
       long period = getInterval();
 
       // Wait for first image to create ImageWindow, so that we can be sure about image size
-      long start = System.currentTimeMillis();
-      long now = start;
       // Give 10s extra for the camera to transfer the image to us.
       long timeout = period + 10000;
-      while (core_.getRemainingImageCount() == 0 && (now - start < timeout) ) {
-         now = System.currentTimeMillis();
-         Thread.sleep(5);
-      }
-      if (now - start >= timeout) {
+      if (!core_.waitForImage((int) timeout)) {
          throw new Exception("Camera did not send image within " + timeout + "ms");
       }
 
@@ -283,7 +279,7 @@ public class LiveModeTimer {
          imageQueue_.put(timg);
       }
 
-      timerController_.start(task_, period);
+      imageWaitController_.start(task_, period);
 
       win_.getImagePlus().getWindow().toFront();
       running_ = true;
@@ -331,14 +327,14 @@ public class LiveModeTimer {
       // (2) Stop transfering images from Core to image queue
       // Indicate end of image stream by sending POISON. Note that POISON might
       // be enqueued before the final image (since we have not yet waited for
-      // the timer to finish), but that is not a problem because the queue
+      // the task to finish), but that is not a problem because the queue
       // simply gets discarded.
-      timerController_.stop();
+      imageWaitController_.stop();
       // Note: This will block if downstream (image processors and display
       // thread) do not consume images.
-      ReportingUtils.logMessage("Waiting for timer to stop");
-      timerController_.waitForCompletion();
-      ReportingUtils.logMessage("Finished waiting for timer to stop");
+      ReportingUtils.logMessage("Waiting for live mode task to stop");
+      imageWaitController_.waitForCompletion();
+      ReportingUtils.logMessage("Finished waiting for live mode task to stop");
 
       // Now nobody is enqueuing images to imageQueue_, so we can be sure
       // that the POISON we enqueue will not be followed by any images.
@@ -387,7 +383,8 @@ public class LiveModeTimer {
 
    /**
     * Updates the fps timer (how fast does the camera pump images into the 
-    * circular buffer) and display fps (how fast do we display the images)
+    * circular buffer), display fps (how fast do we display the images) and
+    * dropped fps (how many camera images are not displayed)
     * It is called from tasks that are doing the actual image drawing
     */
    private synchronized void updateFPS() {
@@ -405,7 +402,8 @@ public class LiveModeTimer {
             double fps = fpsCounter_ / d;
             double dfps = (imageNumber_ - oldImageNumber_) / d;
             win_.displayStatusLine("fps: " + format_.format(dfps) +
-                    ", display fps: " + format_.format(fps));
+                    ", display fps: " + format_.format(fps) +
+                    ", dropped fps: " + format_.format(Math.max(0, dfps - fps)));
             fpsCounter_ = 0;
             fpsTimer_ = now;
             oldImageNumber_ = imageNumber_;
@@ -454,7 +452,11 @@ public class LiveModeTimer {
                   // if we have already shown this image, do not do it again.
                   long imageNumber = MDUtils.getSequenceNumber(ti.tags);
                   if (setImageNumber(imageNumber)) {
-                     imageQueue_.put(ti);
+                     // The newest image wins: rather than wait for the
+                     // display to catch up, drop the oldest image waiting
+                     while (!imageQueue_.offer(ti)) {
+                        imageQueue_.poll();
+                     }
                   }
                } catch (final Exception ex) {
                   ReportingUtils.logMessage("Stopping live mode because of error...");
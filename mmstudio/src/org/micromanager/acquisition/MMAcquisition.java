@@ -140,7 +140,7 @@ public class MMAcquisition {
                imageCache_ = null;
             }
          } else {
-            imageFileManager = new TaggedImageStorageRamFast(null);
+            imageFileManager = new TaggedImageStorageRamSpilling(null);
             imageCache_ = new MMImageCache(imageFileManager);
          }
   
@@ -291,7 +291,9 @@ public class MMAcquisition {
          String dirName = rootDirectory_ + File.separator + name;
          try {
             boolean multipageTiff = MultipageTiffReader.isMMMultipageTiff(dirName);
-            if (multipageTiff) {
+            if (TaggedImageStorageChunked.isChunkedDataSet(dirName)) {
+               imageFileManager = new TaggedImageStorageChunked(dirName, false, null);
+            } else if (multipageTiff) {
                imageFileManager = new TaggedImageStorageMultipageTiff(dirName, false, null);
             } else {
                imageFileManager = new TaggedImageStorageDiskDefault(dirName, false, null);
@@ -324,7 +326,7 @@ public class MMAcquisition {
       }
 
       if (!virtual_ && !existing_) {
-         imageFileManager = new TaggedImageStorageRamFast(null);
+         imageFileManager = new TaggedImageStorageRamSpilling(null);
          imageCache_ = new MMImageCache(imageFileManager);
       }
 
@@ -334,7 +336,9 @@ public class MMAcquisition {
          boolean multipageTiff;
          try {
             multipageTiff = MultipageTiffReader.isMMMultipageTiff(dirName);
-            if (multipageTiff) {
+            if (TaggedImageStorageChunked.isChunkedDataSet(dirName)) {
+               tempImageFileManager = new TaggedImageStorageChunked(dirName, false, null);
+            } else if (multipageTiff) {
                tempImageFileManager = new TaggedImageStorageMultipageTiff(dirName, false, null);
             } else {
                tempImageFileManager = new TaggedImageStorageDiskDefault(dirName, false, null);
@@ -24,14 +24,18 @@ import ij.CompositeImage;
 
 import java.awt.Color;
 import java.io.IOException;
+import java.lang.ref.WeakReference;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashSet;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
 
 import javax.swing.SwingUtilities;
 
@@ -41,12 +45,15 @@ import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
 
+import org.micromanager.api.BatchingTaggedImageStorage;
 import org.micromanager.api.ImageCache;
 import org.micromanager.api.ImageCacheListener;
 import org.micromanager.api.TaggedImageStorage;
 import org.micromanager.utils.MDUtils;
 import org.micromanager.utils.MMException;
 import org.micromanager.utils.MMScriptException;
+import org.micromanager.utils.PipelineMonitor;
+import org.micromanager.utils.PixelStatistics;
 import org.micromanager.utils.ProgressBar;
 import org.micromanager.utils.ReportingUtils;
 
@@ -57,7 +64,7 @@ import org.micromanager.utils.ReportingUtils;
  * 
  * @author arthur
  */
-public class MMImageCache implements ImageCache {
+public class MMImageCache implements ImageCache, BatchingTaggedImageStorage {
    public final List<ImageCacheListener> imageStorageListeners_ = 
            Collections.synchronizedList(new ArrayList<ImageCacheListener>());
    private TaggedImageStorage imageStorage_;
@@ -67,6 +74,25 @@ public class MMImageCache implements ImageCache {
    private JSONObject lastTags_;
    private final ExecutorService listenerExecutor_;
 
+   // Statistics of the images shown recently, by label; each entry holds
+   // 256 or 65536 bins, so only a few are kept
+   private static final int MAX_STATISTICS = 32;
+   private final Map<String, CachedStatistics> statistics_ =
+         new LinkedHashMap<String, CachedStatistics>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, CachedStatistics> eldest) {
+               return size() > MAX_STATISTICS;
+            }
+         };
+
+   private static class CachedStatistics {
+      // The pixels the statistics were computed from; a new image with the
+      // same label comes with new pixels
+      WeakReference<Object> pixels;
+      int stride;
+      PixelStatistics statistics;
+   }
+
    @Override
    public void addImageCacheListener(ImageCacheListener l) {
       synchronized (imageStorageListeners_) {
@@ -134,6 +160,9 @@ public class MMImageCache implements ImageCache {
 
    public void close() {
       imageStorage_.close();
+      synchronized (statistics_) {
+         statistics_.clear();
+      }
       synchronized (imageStorageListeners_) {
          imageStorageListeners_.clear();
       }
@@ -192,41 +221,180 @@ public class MMImageCache implements ImageCache {
    }
 
    public void putImage(final TaggedImage taggedImg) {
+      List<TaggedImage> images = Collections.singletonList(taggedImg);
+      // The storage may hand borrowed pixels back before the listeners have
+      // seen them; hold on to them until then
+      taggedImg.retain();
       try {
          
+         long startNs = System.nanoTime();
          checkForChangingTags(taggedImg);
          imageStorage_.putImage(taggedImg);
+         invalidateStatistics(MDUtils.getLabel(taggedImg.tags));
          
-           synchronized (this) {
-            lastFrame_ = Math.max(lastFrame_, MDUtils.getFrameIndex(taggedImg.tags));
-            lastTags_ = taggedImg.tags;
+         imagesStored(images);
+         PipelineMonitor.getInstance().getStage(PipelineMonitor.IMAGE_CACHE)
+               .recordSince(startNs);
+      } catch (Exception ex) {
+         ReportingUtils.logError(ex);
+         releaseImages(images);
+         return;
+      }
+      notifyListeners(images);
+   }
+
+   /*
+    * Stores a batch of images with one call to the storage if it takes
+    * batches, and notifies each listener of the whole batch with a single
+    * task.
+    */
+   @Override
+   public void putImages(List<TaggedImage> taggedImages) {
+      if (taggedImages.isEmpty()) {
+         return;
+      }
+      final List<TaggedImage> batch = new ArrayList<TaggedImage>(taggedImages);
+      for (TaggedImage taggedImg : batch) {
+         taggedImg.retain();
+      }
+      try {
+         long startNs = System.nanoTime();
+         for (TaggedImage taggedImg : batch) {
+            checkForChangingTags(taggedImg);
          }
-         JSONObject displayAndComments = imageStorage_.getDisplayAndComments();
-         if (displayAndComments.length() > 0) {
-            JSONArray channelSettings = imageStorage_.getDisplayAndComments().getJSONArray("Channels");
-            JSONObject imageTags = taggedImg.tags;
-            int chanIndex = MDUtils.getChannelIndex(imageTags);
-            if (chanIndex >= channelSettings.length()) {
-               JSONObject newChanObject = new JSONObject();
-               MDUtils.setChannelName(newChanObject, MDUtils.getChannelName(imageTags));
-               MDUtils.setChannelColor(newChanObject, MDUtils.getChannelColor(imageTags));
-               channelSettings.put(chanIndex, newChanObject);
+         if (imageStorage_ instanceof BatchingTaggedImageStorage) {
+            ((BatchingTaggedImageStorage) imageStorage_).putImages(batch);
+         } else {
+            for (TaggedImage taggedImg : batch) {
+               imageStorage_.putImage(taggedImg);
             }
          }
+         for (TaggedImage taggedImg : batch) {
+            invalidateStatistics(MDUtils.getLabel(taggedImg.tags));
+         }
 
+         imagesStored(batch);
+         // Every image of the batch spent the whole call in the cache
+         PipelineMonitor.Stage stage = PipelineMonitor.getInstance().getStage(
+               PipelineMonitor.IMAGE_CACHE);
+         long elapsedNs = System.nanoTime() - startNs;
+         for (int i = 0; i < batch.size(); ++i) {
+            stage.recordLatency(elapsedNs);
+         }
+      } catch (Exception ex) {
+         ReportingUtils.logError(ex);
+         releaseImages(batch);
+         return;
+      }
+      notifyListeners(batch);
+   }
+
+   /*
+    * Hands stored images to each listener with a single task, and then
+    * gives up the hold on their pixels taken in putImage(s), so that
+    * borrowed pixels are only recycled once every listener has seen them.
+    */
+   private void notifyListeners(final List<TaggedImage> images) {
+      try {
          synchronized (imageStorageListeners_) {
             for (final ImageCacheListener l : imageStorageListeners_) {
                listenerExecutor_.submit(
                        new Runnable() {
                           @Override
                           public void run() {
-                             l.imageReceived(taggedImg);
+                             for (TaggedImage taggedImg : images) {
+                                l.imageReceived(taggedImg);
+                             }
                           }
                        });
             }
          }
-      } catch (Exception ex) {
+         listenerExecutor_.submit(new Runnable() {
+            @Override
+            public void run() {
+               releaseImages(images);
+            }
+         });
+      } catch (RejectedExecutionException ex) {
+         // Images put after finished()
          ReportingUtils.logError(ex);
+         releaseImages(images);
+      }
+   }
+
+   private static void releaseImages(List<TaggedImage> images) {
+      for (TaggedImage taggedImg : images) {
+         try {
+            taggedImg.release();
+         } catch (Exception ex) {
+            ReportingUtils.logError(ex);
+         }
+      }
+   }
+
+   /*
+    * Updates the last frame/tags and channel settings after images have been
+    * handed to the storage.
+    */
+   private void imagesStored(List<TaggedImage> taggedImages) throws JSONException {
+      synchronized (this) {
+         for (TaggedImage taggedImg : taggedImages) {
+            lastFrame_ = Math.max(lastFrame_, MDUtils.getFrameIndex(taggedImg.tags));
+         }
+         lastTags_ = taggedImages.get(taggedImages.size() - 1).tags;
+      }
+      JSONObject displayAndComments = imageStorage_.getDisplayAndComments();
+      if (displayAndComments.length() > 0) {
+         JSONArray channelSettings = displayAndComments.getJSONArray("Channels");
+         for (TaggedImage taggedImg : taggedImages) {
+            JSONObject imageTags = taggedImg.tags;
+            int chanIndex = MDUtils.getChannelIndex(imageTags);
+            if (chanIndex >= channelSettings.length()) {
+               JSONObject newChanObject = new JSONObject();
+               MDUtils.setChannelName(newChanObject, MDUtils.getChannelName(imageTags));
+               MDUtils.setChannelColor(newChanObject, MDUtils.getChannelColor(imageTags));
+               channelSettings.put(chanIndex, newChanObject);
+            }
+         }
+      }
+   }
+
+   /**
+    * Returns the histogram and statistics of the pixels of an image of this
+    * data set, computing them only if the image has changed since they were
+    * last requested, e.g. because only another channel or the contrast was
+    * changed.
+    * @param pixels the pixels of the image, as displayed
+    * @param stride count every stride-th pixel of every stride-th row
+    * @return the statistics, or null for pixels other than 8 or 16 bit
+    */
+   public PixelStatistics getPixelStatistics(int channel, int slice, int frame,
+           int position, Object pixels, int width, int height, int stride) {
+      String label = MDUtils.generateLabel(channel, slice, frame, position);
+      synchronized (statistics_) {
+         CachedStatistics cached = statistics_.get(label);
+         if (cached != null && cached.pixels.get() == pixels
+                 && cached.stride == stride) {
+            return cached.statistics;
+         }
+      }
+      PixelStatistics statistics = PixelStatistics.compute(pixels, width, height,
+              null, null, stride);
+      if (statistics != null) {
+         CachedStatistics cached = new CachedStatistics();
+         cached.pixels = new WeakReference<Object>(pixels);
+         cached.stride = stride;
+         cached.statistics = statistics;
+         synchronized (statistics_) {
+            statistics_.put(label, cached);
+         }
+      }
+      return statistics;
+   }
+
+   private void invalidateStatistics(String label) {
+      synchronized (statistics_) {
+         statistics_.remove(label);
       }
    }
 
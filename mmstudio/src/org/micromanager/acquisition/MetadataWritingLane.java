@@ -0,0 +1,264 @@
+///////////////////////////////////////////////////////////////////////////////
+//FILE:          MetadataWritingLane.java
+//PROJECT:       Micro-Manager
+//SUBSYSTEM:     mmstudio
+//-----------------------------------------------------------------------------
+//
+// COPYRIGHT:    University of California, San Francisco, 2014
+//
+// LICENSE:      This file is distributed under the BSD license.
+//               License text is included with the source distribution.
+//
+//               This file is distributed in the hope that it will be useful,
+//               but WITHOUT ANY WARRANTY; without even the implied warranty
+//               of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+//
+//               IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+//               CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+//               INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES.
+//
+package org.micromanager.acquisition;
+
+import java.io.BufferedWriter;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.micromanager.utils.ReportingUtils;
+
+/**
+ * Writes the image metadata of the separate metadata files of Image Stack
+ * File data sets on a thread of its own, so that serializing metadata never
+ * holds up the writing of pixels.
+ *
+ * Images are queued (blocking if the queue is full) and written in batches:
+ * each batch is streamed into the buffered files and flushed once. The
+ * metadata of an image is streamed straight to the file as compact JSON (one
+ * image per line) instead of being formatted into a string first.
+ */
+final class MetadataWritingLane {
+   private static final int QUEUE_CAPACITY = 4096;
+   private static final int MAX_BATCH_SIZE = 512;
+   private static final int FILE_BUFFER_SIZE = 256 * 1024;
+
+   private final BlockingQueue<Entry> queue_ =
+         new ArrayBlockingQueue<Entry>(QUEUE_CAPACITY);
+   private final Thread thread_;
+   private volatile long imagesWritten_ = 0;
+   private volatile long batchesWritten_ = 0;
+   private volatile long writingNs_ = 0;
+
+   /**
+    * A metadata file. Only touched by the lane's thread once opened.
+    */
+   static final class MetadataFile {
+      private final String path_;
+      private Writer writer_;
+      private boolean failed_ = false;
+
+      private MetadataFile(String path) {
+         path_ = path;
+      }
+   }
+
+   private static final class Entry {
+      final MetadataFile file;
+      final String key;
+      final JSONObject md; // null for the end of the file
+      final CountDownLatch closed;
+
+      Entry(MetadataFile file, String key, JSONObject md,
+            CountDownLatch closed) {
+         this.file = file;
+         this.key = key;
+         this.md = md;
+         this.closed = closed;
+      }
+   }
+
+   MetadataWritingLane() {
+      thread_ = new Thread("Image stack metadata writer") {
+         @Override
+         public void run() {
+            writeLoop();
+         }
+      };
+      thread_.setDaemon(true);
+      thread_.start();
+   }
+
+   /**
+    * Creates a metadata file starting with the summary metadata.
+    */
+   MetadataFile open(String path, JSONObject summary) {
+      MetadataFile file = new MetadataFile(path);
+      try {
+         file.writer_ = new BufferedWriter(new FileWriter(path),
+               FILE_BUFFER_SIZE);
+         file.writer_.write("{" + "\n");
+         file.writer_.write("\"Summary\": ");
+         file.writer_.write(summary.toString(2));
+      } catch (Exception ex) {
+         ReportingUtils.logError(ex, "Problem creating metadata.txt file");
+         file.failed_ = true;
+      }
+      return file;
+   }
+
+   /**
+    * Queues the metadata of an image. A shallow copy is queued, so that
+    * top-level changes made to md after this call (e.g. rehydrating the
+    * summary for display) are not seen by the writer.
+    */
+   void write(MetadataFile file, String key, JSONObject md) {
+      JSONObject copy = new JSONObject();
+      try {
+         Iterator<String> keys = md.keys();
+         while (keys.hasNext()) {
+            String name = keys.next();
+            copy.put(name, md.opt(name));
+         }
+      } catch (JSONException ex) {
+         ReportingUtils.logError(ex, "Problem with image metadata");
+         return;
+      }
+      enqueue(new Entry(file, key, copy, null));
+   }
+
+   /**
+    * Ends the file once all metadata queued for it is written, and waits for
+    * that to happen.
+    */
+   void close(MetadataFile file) {
+      CountDownLatch closed = new CountDownLatch(1);
+      enqueue(new Entry(file, null, null, closed));
+      try {
+         closed.await();
+      } catch (InterruptedException ex) {
+         ReportingUtils.logError("Interrupted while finishing metadata.txt");
+         Thread.currentThread().interrupt();
+      }
+   }
+
+   private void enqueue(Entry entry) {
+      try {
+         queue_.put(entry);
+      } catch (InterruptedException ex) {
+         ReportingUtils.logError("Interrupted while queueing image metadata");
+         Thread.currentThread().interrupt();
+      }
+   }
+
+   /**
+    * Stops the lane's thread once all queued metadata is written.
+    */
+   void shutdown() {
+      enqueue(new Entry(null, null, null, null));
+   }
+
+   int getQueueSize() {
+      return queue_.size();
+   }
+
+   private void writeLoop() {
+      List<Entry> batch = new ArrayList<Entry>(MAX_BATCH_SIZE);
+      Set<MetadataFile> touched = new HashSet<MetadataFile>();
+      while (true) {
+         try {
+            batch.add(queue_.take());
+         } catch (InterruptedException ex) {
+            return;
+         }
+         queue_.drainTo(batch, MAX_BATCH_SIZE - 1);
+         long startNs = System.nanoTime();
+         boolean stop = false;
+         int images = 0;
+         for (Entry entry : batch) {
+            if (entry.file == null) {
+               stop = true;
+            } else if (entry.md != null) {
+               writeEntry(entry);
+               touched.add(entry.file);
+               ++images;
+            } else {
+               finishFile(entry.file);
+               touched.remove(entry.file);
+               entry.closed.countDown();
+            }
+         }
+         for (MetadataFile file : touched) {
+            flush(file);
+         }
+         touched.clear();
+         batch.clear();
+         writingNs_ += System.nanoTime() - startNs;
+         imagesWritten_ += images;
+         ++batchesWritten_;
+         if (stop) {
+            return;
+         }
+      }
+   }
+
+   private void writeEntry(Entry entry) {
+      MetadataFile file = entry.file;
+      if (file.failed_) {
+         return;
+      }
+      try {
+         file.writer_.write(",\n\"");
+         file.writer_.write(entry.key);
+         file.writer_.write("\": ");
+         entry.md.write(file.writer_);
+      } catch (Exception ex) {
+         fail(file, ex);
+      }
+   }
+
+   private void flush(MetadataFile file) {
+      if (file.failed_) {
+         return;
+      }
+      try {
+         file.writer_.flush();
+      } catch (IOException ex) {
+         fail(file, ex);
+      }
+   }
+
+   private void finishFile(MetadataFile file) {
+      if (file.writer_ == null) {
+         return;
+      }
+      try {
+         if (!file.failed_) {
+            file.writer_.write("\n}\n");
+         }
+         file.writer_.close();
+      } catch (IOException ex) {
+         ReportingUtils.logError(ex, "Problem finishing " + file.path_);
+      }
+   }
+
+   private static void fail(MetadataFile file, Exception ex) {
+      // Report once; the pixels are still written
+      ReportingUtils.logError(ex, "Problem writing to metadata.txt file "
+            + file.path_);
+      file.failed_ = true;
+   }
+
+   @Override
+   public String toString() {
+      return String.format("Metadata writer: %d images in %d batches, %d ms writing",
+            imagesWritten_, batchesWritten_, writingNs_ / 1000000);
+   }
+}
@@ -0,0 +1,393 @@
+///////////////////////////////////////////////////////////////////////////////
+//FILE:          MultipageTiffIndex.java
+//PROJECT:       Micro-Manager
+//SUBSYSTEM:     mmstudio
+//-----------------------------------------------------------------------------
+//
+// COPYRIGHT:    University of California, San Francisco, 2014
+//
+// LICENSE:      This file is distributed under the BSD license.
+//               License text is included with the source distribution.
+//
+//               This file is distributed in the hope that it will be useful,
+//               but WITHOUT ANY WARRANTY; without even the implied warranty
+//               of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+//
+//               IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+//               CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+//               INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES.
+//
+package org.micromanager.acquisition;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.micromanager.utils.FileSyncer;
+import org.micromanager.utils.ReportingUtils;
+
+/**
+ * Sidecar index of the images of an Image Stack File data set, so that the
+ * data set can be opened without reading the index map of every file, or
+ * walking all IFDs of files whose index map was never completed.
+ *
+ * The index is appended to while images are written: a record names each
+ * file when its first image is written, and one record per image gives its
+ * label, IFD offset and metadata location. When the data set is finished,
+ * the final length of every file is recorded. On opening, the entries of a
+ * file are used if its length still matches; the files of an acquisition
+ * that never finished are checked by reading back the IFDs of their last
+ * entries.
+ *
+ * The index doubles as a write-ahead journal of what the files only receive
+ * when the data set is finished: display settings and comments are
+ * recorded whenever they are set or saved, so that a data set whose
+ * acquisition crashed can be reopened in full. The journal is forced to
+ * disk according to the FileSyncer sync interval.
+ */
+public class MultipageTiffIndex {
+   public static final String FILENAME = "MMStack.index";
+
+   private static final int MAGIC = 0x4d4d4958; // "MMIX"
+   private static final int VERSION = 1;
+   private static final byte FILE_RECORD = 'F';
+   private static final byte IMAGE_RECORD = 'I';
+   private static final byte LENGTH_RECORD = 'L';
+   private static final byte DISPLAY_AND_COMMENTS_RECORD = 'D';
+   // How many entries at the end of an unfinished file may be unwritten
+   private static final int MAX_UNWRITTEN_ENTRIES = 64;
+
+   private final File directory_;
+   private final DataOutputStream out_;
+   private final FileSyncer syncer_;
+   private final LinkedHashMap<String, Short> fileIds_ =
+         new LinkedHashMap<String, Short>();
+   private boolean finished_ = false;
+
+   /**
+    * What could be recovered from the index of a data set.
+    */
+   public static class Contents {
+      private final Map<String, HashMap<String, Long>> indexMaps_ =
+            new HashMap<String, HashMap<String, Long>>();
+      private JSONObject displayAndComments_;
+
+      /**
+       * Returns, by file name, the index map (label to IFD offset) of each
+       * file whose entries could be validated. Files missing from the result
+       * need to be opened the usual way.
+       */
+      public Map<String, HashMap<String, Long>> getIndexMaps() {
+         return indexMaps_;
+      }
+
+      /**
+       * Returns the display settings and comments last recorded, or null.
+       */
+      public JSONObject getDisplayAndComments() {
+         return displayAndComments_;
+      }
+   }
+
+   private static class Entry {
+      final String label;
+      final long ifdOffset;
+      final long metadataOffset;
+      final int metadataLength;
+
+      Entry(String label, long ifdOffset, long metadataOffset,
+            int metadataLength) {
+         this.label = label;
+         this.ifdOffset = ifdOffset;
+         this.metadataOffset = metadataOffset;
+         this.metadataLength = metadataLength;
+      }
+   }
+
+   /**
+    * Creates (or replaces) the index of the data set in directory.
+    */
+   public MultipageTiffIndex(String directory) throws IOException {
+      directory_ = new File(directory);
+      FileOutputStream stream =
+            new FileOutputStream(new File(directory_, FILENAME));
+      syncer_ = new FileSyncer(stream.getChannel());
+      out_ = new DataOutputStream(new BufferedOutputStream(stream));
+      out_.writeInt(MAGIC);
+      out_.writeInt(VERSION);
+   }
+
+   /**
+    * Records an image written to the given file (a name within the data
+    * set directory).
+    */
+   public synchronized void addImage(String fileName, String label,
+         long ifdOffset, long metadataOffset, int metadataLength)
+         throws IOException {
+      if (finished_) {
+         return;
+      }
+      Short id = fileIds_.get(fileName);
+      if (id == null) {
+         id = (short) fileIds_.size();
+         fileIds_.put(fileName, id);
+         out_.writeByte(FILE_RECORD);
+         out_.writeShort(id);
+         out_.writeUTF(fileName);
+      }
+      String[] indices = label.split("_");
+      out_.writeByte(IMAGE_RECORD);
+      out_.writeShort(id);
+      for (int i = 0; i < 4; i++) {
+         out_.writeInt(Integer.parseInt(indices[i]));
+      }
+      out_.writeLong(ifdOffset);
+      out_.writeLong(metadataOffset);
+      out_.writeInt(metadataLength);
+   }
+
+   /**
+    * Records the display settings and comments of the data set.
+    */
+   public synchronized void addDisplayAndComments(JSONObject displayAndComments)
+         throws IOException {
+      if (finished_ || displayAndComments == null) {
+         return;
+      }
+      byte[] json = displayAndComments.toString().getBytes("UTF-8");
+      out_.writeByte(DISPLAY_AND_COMMENTS_RECORD);
+      out_.writeShort(0);
+      out_.writeInt(json.length);
+      out_.write(json);
+   }
+
+   /**
+    * Hands the records written so far to the operating system, so that they
+    * survive a crash of the application, and forces them to disk if the
+    * sync interval has passed.
+    */
+   public synchronized void flush() throws IOException {
+      if (!finished_) {
+         out_.flush();
+         syncer_.sync();
+      }
+   }
+
+   /**
+    * Records the final length of each file and closes the index. Call once
+    * all files are completely written.
+    */
+   public synchronized void finish() throws IOException {
+      if (finished_) {
+         return;
+      }
+      finished_ = true;
+      try {
+         for (Map.Entry<String, Short> file : fileIds_.entrySet()) {
+            out_.writeByte(LENGTH_RECORD);
+            out_.writeShort(file.getValue());
+            out_.writeLong(new File(directory_, file.getKey()).length());
+         }
+         out_.flush();
+         syncer_.syncAlways();
+      } finally {
+         out_.close();
+      }
+   }
+
+   /**
+    * Reads the index of the data set in directory. The result is empty if
+    * there is no usable index.
+    */
+   public static Contents read(File directory) {
+      Contents result = new Contents();
+      File indexFile = new File(directory, FILENAME);
+      if (!indexFile.isFile()) {
+         return result;
+      }
+      HashMap<Short, String> names = new HashMap<Short, String>();
+      HashMap<Short, List<Entry>> entries = new HashMap<Short, List<Entry>>();
+      HashMap<Short, Long> lengths = new HashMap<Short, Long>();
+      try {
+         DataInputStream in = new DataInputStream(new BufferedInputStream(
+               new FileInputStream(indexFile)));
+         try {
+            if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+               ReportingUtils.logMessage("Ignoring unknown index file " + indexFile);
+               return result;
+            }
+            while (true) {
+               byte type = in.readByte();
+               short id = in.readShort();
+               if (type == FILE_RECORD) {
+                  names.put(id, in.readUTF());
+                  entries.put(id, new ArrayList<Entry>());
+               } else if (type == IMAGE_RECORD) {
+                  String label = in.readInt() + "_" + in.readInt() + "_"
+                        + in.readInt() + "_" + in.readInt();
+                  Entry entry = new Entry(label, in.readLong(), in.readLong(),
+                        in.readInt());
+                  List<Entry> fileEntries = entries.get(id);
+                  if (fileEntries == null) {
+                     throw new IOException("Image of unknown file in index");
+                  }
+                  fileEntries.add(entry);
+               } else if (type == LENGTH_RECORD) {
+                  lengths.put(id, in.readLong());
+               } else if (type == DISPLAY_AND_COMMENTS_RECORD) {
+                  byte[] json = new byte[in.readInt()];
+                  in.readFully(json);
+                  JSONObject displayAndComments = parseDisplayAndComments(json);
+                  if (displayAndComments != null) {
+                     result.displayAndComments_ = displayAndComments;
+                  }
+               } else {
+                  throw new IOException("Unknown record type in index");
+               }
+            }
+         } catch (EOFException e) {
+            // End of the index, or a record cut short by a crash
+         } finally {
+            in.close();
+         }
+      } catch (IOException ex) {
+         ReportingUtils.logError(ex, "Unable to read " + indexFile);
+         return result;
+      }
+
+      for (Map.Entry<Short, String> file : names.entrySet()) {
+         File tiff = new File(directory, file.getValue());
+         List<Entry> fileEntries = entries.get(file.getKey());
+         if (!tiff.isFile() || fileEntries.isEmpty()) {
+            continue;
+         }
+         int numValid;
+         Long length = lengths.get(file.getKey());
+         if (length != null) {
+            // Finished file: use the entries unless the file was changed
+            numValid = tiff.length() == length ? fileEntries.size() : 0;
+         } else {
+            numValid = countWrittenEntries(tiff, fileEntries);
+         }
+         if (numValid == 0) {
+            continue;
+         }
+         HashMap<String, Long> indexMap = new HashMap<String, Long>();
+         for (int i = 0; i < numValid; i++) {
+            Entry entry = fileEntries.get(i);
+            indexMap.put(entry.label, entry.ifdOffset);
+         }
+         result.indexMaps_.put(file.getValue(), indexMap);
+      }
+      return result;
+   }
+
+   private static JSONObject parseDisplayAndComments(byte[] json)
+         throws IOException {
+      try {
+         return new JSONObject(new String(json, "UTF-8"));
+      } catch (JSONException ex) {
+         ReportingUtils.logError(ex, "Invalid display settings in index");
+         return null;
+      }
+   }
+
+   /*
+    * Images are written to a file in the order they are indexed, but
+    * possibly later. Returns the number of leading entries of an unfinished
+    * file that are actually on disk, or 0 if this cannot be established.
+    */
+   private static int countWrittenEntries(File tiff, List<Entry> entries) {
+      try {
+         RandomAccessFile raFile = new RandomAccessFile(tiff, "r");
+         try {
+            FileChannel channel = raFile.getChannel();
+            ByteBuffer header = ByteBuffer.allocate(4);
+            channel.read(header, 0);
+            char zeroOne = header.getChar(0);
+            ByteOrder order;
+            if (zeroOne == 0x4949) {
+               order = ByteOrder.LITTLE_ENDIAN;
+            } else if (zeroOne == 0x4d4d) {
+               order = ByteOrder.BIG_ENDIAN;
+            } else {
+               return 0;
+            }
+            boolean bigTiff = header.order(order).getShort(2) == 43;
+            int last = entries.size() - 1;
+            for (int i = last; i >= 0 && i > last - MAX_UNWRITTEN_ENTRIES; i--) {
+               if (isWritten(channel, order, bigTiff, entries.get(i))) {
+                  return i + 1;
+               }
+            }
+         } finally {
+            raFile.close();
+         }
+      } catch (IOException ex) {
+         ReportingUtils.logError(ex, "Unable to check index entries of " + tiff);
+      }
+      return 0;
+   }
+
+   /*
+    * Checks that the IFD of the entry points to the recorded metadata, and
+    * that the metadata (written after the pixels) is present.
+    */
+   private static boolean isWritten(FileChannel channel, ByteOrder order,
+         boolean bigTiff, Entry entry) throws IOException {
+      // BigTIFF IFDs have 8 byte counts and offsets
+      int countSize = bigTiff ? 8 : 2;
+      int entrySize = bigTiff ? 20 : 12;
+      long size = channel.size();
+      if (entry.ifdOffset + countSize > size
+            || entry.metadataOffset + entry.metadataLength > size
+            || entry.metadataLength < 2) {
+         return false;
+      }
+      ByteBuffer count = ByteBuffer.allocate(countSize).order(order);
+      channel.read(count, entry.ifdOffset);
+      long numEntries = bigTiff ? count.getLong(0) : count.getChar(0);
+      if (numEntries == 0 || numEntries > Character.MAX_VALUE) {
+         return false;
+      }
+      ByteBuffer ifd = ByteBuffer.allocate((int) numEntries * entrySize).order(order);
+      channel.read(ifd, entry.ifdOffset + countSize);
+      boolean metadataFound = false;
+      for (int i = 0; i < numEntries; i++) {
+         if (ifd.getChar(i * entrySize) == MultipageTiffWriter.MM_METADATA) {
+            long mdCount = bigTiff ? ifd.getLong(i * entrySize + 4)
+                  : ifd.getInt(i * entrySize + 4) & 0xffffffffL;
+            long mdOffset = bigTiff ? ifd.getLong(i * entrySize + 12)
+                  : ifd.getInt(i * entrySize + 8) & 0xffffffffL;
+            metadataFound = mdCount == entry.metadataLength
+                  && mdOffset == entry.metadataOffset;
+            break;
+         }
+      }
+      if (!metadataFound) {
+         return false;
+      }
+      // Metadata is a JSON object followed by a null terminator
+      ByteBuffer first = ByteBuffer.allocate(1);
+      channel.read(first, entry.metadataOffset);
+      ByteBuffer last = ByteBuffer.allocate(1);
+      channel.read(last, entry.metadataOffset + entry.metadataLength - 1);
+      return first.get(0) == '{' && last.get(0) == 0;
+   }
+}
@@ -28,12 +28,17 @@ import java.io.RandomAccessFile;
 import java.io.UnsupportedEncodingException;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
 import java.nio.channels.FileChannel;
 import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
 import java.util.Set;
+import java.util.zip.DataFormatException;
 import javax.swing.JOptionPane;
 import javax.swing.SwingUtilities;
 import mmcorej.TaggedImage;
+import mmcorej.TaggedImageMetadata;
 import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
@@ -48,6 +53,12 @@ import org.micromanager.utils.ReportingUtils;
 public class MultipageTiffReader {
       
    private static final long BIGGEST_INT_BIT = (long) Math.pow(2, 31);
+   // Memory mapped files are mapped in segments (a single mapping is limited
+   // to 2 GB). Each segment overlaps the next one, so that any record
+   // shorter than the overlap can be read from one segment.
+   private static final long MAP_SEGMENT_SIZE = 1L << 30;
+   private static final long MAP_SEGMENT_OVERLAP = 1L << 26;
+   private static volatile boolean memoryMapped_ = false;
 
    
    public static final char BITS_PER_SAMPLE = MultipageTiffWriter.BITS_PER_SAMPLE;
@@ -57,11 +68,18 @@ public class MultipageTiffReader {
    public static final char IMAGE_DESCRIPTION = MultipageTiffWriter.IMAGE_DESCRIPTION;
    
    public static final char MM_METADATA = MultipageTiffWriter.MM_METADATA;
+   public static final char WIDTH = MultipageTiffWriter.WIDTH;
+   public static final char COMPRESSION = MultipageTiffWriter.COMPRESSION;
+   public static final char PREDICTOR = MultipageTiffWriter.PREDICTOR;
    
    private ByteOrder byteOrder_;  
+   // Whether the file has 64 bit offsets
+   private boolean bigTiff_ = false;
    private File file_;
    private RandomAccessFile raFile_;
    private FileChannel fileChannel_;
+   // Set while the file is written in blocks; holds data not yet on disk
+   private volatile AlignedBlockWriter blockWriter_;
       
    private JSONObject displayAndComments_;
    private JSONObject summaryMetadata_;
@@ -70,6 +88,8 @@ public class MultipageTiffReader {
    private boolean writingFinished_;
    
    private HashMap<String,Long> indexMap_;
+   // Mapping of the file, or null if it is read through fileChannel_
+   private volatile MappedByteBuffer[] segments_;
    
    /**
     * This constructor is used for a file that is currently being written
@@ -90,6 +110,18 @@ public class MultipageTiffReader {
    public void setFileChannel(FileChannel fc) {
       fileChannel_ = fc;
    }
+
+   void setBlockWriter(AlignedBlockWriter blockWriter) {
+      blockWriter_ = blockWriter;
+   }
+
+   void setBigTiff(boolean bigTiff) {
+      bigTiff_ = bigTiff;
+   }
+
+   public boolean isBigTiff() {
+      return bigTiff_;
+   }
   
    /**
     * This constructor is used for opening datasets that have already been saved
@@ -97,6 +129,20 @@ public class MultipageTiffReader {
     * @throws java.io.IOException
     */
    public MultipageTiffReader(File file) throws IOException, InvalidIndexMapException {
+      this(file, null);
+   }
+
+   /**
+    * Opens a saved file whose index map is already known (e.g. from the
+    * MultipageTiffIndex of its data set), instead of reading it from the file.
+    * This also opens files whose index map was never written.
+    * @param file File to be opened
+    * @param indexMap label to IFD offset of the images in the file, or null
+    * to read it from the file
+    * @throws java.io.IOException
+    */
+   public MultipageTiffReader(File file, HashMap<String, Long> indexMap)
+         throws IOException, InvalidIndexMapException {
       displayAndComments_ = new JSONObject();
       file_ = file;
       try {
@@ -106,14 +152,22 @@ public class MultipageTiffReader {
       }
       writingFinished_ = true;
       long firstIFD = readHeader();
+      if (memoryMapped_) {
+         mapFile();
+      }
       summaryMetadata_ = readSummaryMD();
-      try {
-         readIndexMap();
+      if (indexMap != null) {
+         indexMap_ = indexMap;
       }
-      catch (IOException e) {
-         // Convert IOException to InvalidIndexMapException so we can catch it
-         // separately.
-         throw new InvalidIndexMapException(e);
+      else {
+         try {
+            readIndexMap();
+         }
+         catch (IOException e) {
+            // Convert IOException to InvalidIndexMapException so we can catch
+            // it separately.
+            throw new InvalidIndexMapException(e);
+         }
       }
       try {
          displayAndComments_.put("Channels", readDisplaySettings());
@@ -182,7 +236,8 @@ public class MultipageTiffReader {
         return false;
       }
       FileChannel channel = ra.getChannel();
-      ByteBuffer tiffHeader = ByteBuffer.allocate(36);
+      ByteBuffer tiffHeader = ByteBuffer.allocate(
+            MultipageTiffWriter.summaryMDPosition(true));
       ByteOrder bo;
       channel.read(tiffHeader,0);
       char zeroOne = tiffHeader.getChar(0);
@@ -195,13 +250,69 @@ public class MultipageTiffReader {
          throw new IOException("Error reading Tiff header");
       }
       tiffHeader.order(bo);
-      int summaryMDHeader = tiffHeader.getInt(32);
+      boolean bigTiff = tiffHeader.getShort(2) == 43;
+      int summaryMDHeader = tiffHeader.getInt(MultipageTiffWriter.headerFieldPosition(
+            MultipageTiffWriter.SUMMARY_MD_FIELD, bigTiff));
       channel.close();
       ra.close();
       return summaryMDHeader == MultipageTiffWriter.SUMMARY_MD_HEADER;
    }
 
 
+   /**
+    * Selects whether files opened from now on (with the File constructor)
+    * are memory mapped. Mapped readers copy pixels straight from the
+    * mapping instead of reading them into temporary buffers, and parse
+    * image metadata only when it is first used.
+    */
+   public static void setMemoryMapped(boolean mapped) {
+      memoryMapped_ = mapped;
+   }
+
+   public static boolean isMemoryMapped() {
+      return memoryMapped_;
+   }
+
+   private void mapFile() {
+      try {
+         long size = fileChannel_.size();
+         int numSegments = (int) ((size + MAP_SEGMENT_SIZE - 1) / MAP_SEGMENT_SIZE);
+         MappedByteBuffer[] segments = new MappedByteBuffer[numSegments];
+         for (int i = 0; i < numSegments; i++) {
+            long start = i * MAP_SEGMENT_SIZE;
+            long length = Math.min(size - start, MAP_SEGMENT_SIZE + MAP_SEGMENT_OVERLAP);
+            segments[i] = fileChannel_.map(FileChannel.MapMode.READ_ONLY, start, length);
+         }
+         segments_ = segments;
+      } catch (IOException ex) {
+         ReportingUtils.logError(ex, "Couldn't memory map file: " + file_.getName());
+         segments_ = null;
+      }
+   }
+
+   /*
+    * Returns a view of the given part of the mapped file, or null if the
+    * file isn't mapped or the part doesn't lie within one segment.
+    */
+   private ByteBuffer mappedView(long position, int length) {
+      MappedByteBuffer[] segments = segments_;
+      if (segments == null) {
+         return null;
+      }
+      int index = (int) (position / MAP_SEGMENT_SIZE);
+      if (index >= segments.length) {
+         return null;
+      }
+      long offset = position - index * MAP_SEGMENT_SIZE;
+      ByteBuffer view = segments[index].duplicate();
+      if (offset + length > view.capacity()) {
+         return null;
+      }
+      view.position((int) offset);
+      view.limit((int) offset + length);
+      return view.slice().order(byteOrder_);
+   }
+
    public void finishedWriting() {
       writingFinished_ = true;
    }
@@ -261,10 +372,11 @@ public class MultipageTiffReader {
 
    private JSONObject readSummaryMD() {
       try {
-         ByteBuffer mdInfo = ByteBuffer.allocate(8).order(byteOrder_);
-         fileChannel_.read(mdInfo, 32);
+         ByteBuffer mdInfo = ByteBuffer.allocate(bigTiff_ ? 12 : 8).order(byteOrder_);
+         fileChannel_.read(mdInfo, MultipageTiffWriter.headerFieldPosition(
+               MultipageTiffWriter.SUMMARY_MD_FIELD, bigTiff_));
          int header = mdInfo.getInt(0);
-         int length = mdInfo.getInt(4);
+         int length = bigTiff_ ? (int) mdInfo.getLong(4) : mdInfo.getInt(4);
          
          if (header != MultipageTiffWriter.SUMMARY_MD_HEADER) {
             ReportingUtils.logError("Summary Metadata Header Incorrect");
@@ -272,7 +384,7 @@ public class MultipageTiffReader {
          }
 
          ByteBuffer mdBuffer = ByteBuffer.allocate(length).order(byteOrder_);
-         fileChannel_.read(mdBuffer, 40);
+         fileChannel_.read(mdBuffer, MultipageTiffWriter.summaryMDPosition(bigTiff_));
          JSONObject summaryMD = new JSONObject(getString(mdBuffer));
 
          //Summary MD written start of acquisition and never changed, this code makes sure acquisition comment
@@ -293,7 +405,8 @@ public class MultipageTiffReader {
    
    private JSONObject readComments()  {
       try {
-         long offset = readOffsetHeaderAndOffset(MultipageTiffWriter.COMMENTS_OFFSET_HEADER, 24);
+         long offset = readOffsetHeaderAndOffset(MultipageTiffWriter.COMMENTS_OFFSET_HEADER,
+               MultipageTiffWriter.COMMENTS_FIELD);
          ByteBuffer header = readIntoBuffer(offset, 8);
          if (header.getInt(0) != MultipageTiffWriter.COMMENTS_HEADER) {
             ReportingUtils.logError("Can't find image comments in file: " + file_.getName());
@@ -315,7 +428,8 @@ public class MultipageTiffReader {
          byte[] bytes = getBytesFromString(comments.toString());
          ByteBuffer byteCount = ByteBuffer.wrap(new byte[4]).order(byteOrder_).putInt(0,bytes.length);
          ByteBuffer buffer = ByteBuffer.wrap(bytes);
-         long offset = readOffsetHeaderAndOffset(MultipageTiffWriter.COMMENTS_OFFSET_HEADER, 24);
+         long offset = readOffsetHeaderAndOffset(MultipageTiffWriter.COMMENTS_OFFSET_HEADER,
+               MultipageTiffWriter.COMMENTS_FIELD);
          fileChannel_.write(byteCount,offset + 4);
          fileChannel_.write(buffer, offset +8);
       }
@@ -324,7 +438,8 @@ public class MultipageTiffReader {
 
    public void rewriteDisplaySettings(JSONArray settings) throws IOException, JSONException {
       if (writingFinished_) {
-         long offset = readOffsetHeaderAndOffset(MultipageTiffWriter.DISPLAY_SETTINGS_OFFSET_HEADER, 16);        
+         long offset = readOffsetHeaderAndOffset(MultipageTiffWriter.DISPLAY_SETTINGS_OFFSET_HEADER,
+               MultipageTiffWriter.DISPLAY_SETTINGS_FIELD);        
          int numReservedBytes = readIntoBuffer(offset + 4, 4).getInt(0);
          byte[] blank = new byte[numReservedBytes];
          for (int i = 0; i < blank.length; i++) {
@@ -340,7 +455,8 @@ public class MultipageTiffReader {
 
    private JSONArray readDisplaySettings() {
       try {
-         long offset = readOffsetHeaderAndOffset(MultipageTiffWriter.DISPLAY_SETTINGS_OFFSET_HEADER,16);
+         long offset = readOffsetHeaderAndOffset(MultipageTiffWriter.DISPLAY_SETTINGS_OFFSET_HEADER,
+               MultipageTiffWriter.DISPLAY_SETTINGS_FIELD);
           ByteBuffer header = readIntoBuffer(offset, 8);
           if (header.getInt(0) != MultipageTiffWriter.DISPLAY_SETTINGS_HEADER) {
              ReportingUtils.logError("Can't find display settings in file: " + file_.getName());
@@ -358,35 +474,48 @@ public class MultipageTiffReader {
    }
    
    private ByteBuffer readIntoBuffer(long position, int length) throws IOException {
+      ByteBuffer view = mappedView(position, length);
+      if (view != null) {
+         return view;
+      }
       ByteBuffer buffer = ByteBuffer.allocate(length).order(byteOrder_);
-      fileChannel_.read(buffer, position);
+      AlignedBlockWriter blockWriter = blockWriter_;
+      if (blockWriter != null) {
+         blockWriter.read(buffer, position);
+      } else {
+         fileChannel_.read(buffer, position);
+      }
       return buffer;
    }
    
-   private long readOffsetHeaderAndOffset(int offsetHeaderVal, int startOffset) throws IOException  {
-      ByteBuffer buffer1 = readIntoBuffer(startOffset,8);
+   private long readOffsetHeaderAndOffset(int offsetHeaderVal, int field) throws IOException  {
+      ByteBuffer buffer1 = readIntoBuffer(
+            MultipageTiffWriter.headerFieldPosition(field, bigTiff_), bigTiff_ ? 12 : 8);
       int offsetHeader = buffer1.getInt(0);
       if ( offsetHeader != offsetHeaderVal) {
          throw new IOException("Offset header incorrect, expected: " + offsetHeaderVal +"   found: " + offsetHeader);
       }
-      return unsignInt(buffer1.getInt(4));     
+      return bigTiff_ ? buffer1.getLong(4) : unsignInt(buffer1.getInt(4));     
    }
 
    private void readIndexMap() throws IOException, InvalidIndexMapException {
-      long offset = readOffsetHeaderAndOffset(MultipageTiffWriter.INDEX_MAP_OFFSET_HEADER, 8);
+      long offset = readOffsetHeaderAndOffset(MultipageTiffWriter.INDEX_MAP_OFFSET_HEADER,
+            MultipageTiffWriter.INDEX_MAP_FIELD);
       ByteBuffer header = readIntoBuffer(offset, 8);
       if (header.getInt(0) != MultipageTiffWriter.INDEX_MAP_HEADER) {
          throw new InvalidIndexMapException();
       }
       int numMappings = header.getInt(4);
       indexMap_ = new HashMap<String, Long>();
-      ByteBuffer mapBuffer = readIntoBuffer(offset+8, 20*numMappings);     
+      int entrySize = bigTiff_ ? 24 : 20;
+      ByteBuffer mapBuffer = readIntoBuffer(offset+8, entrySize*numMappings);     
       for (int i = 0; i < numMappings; i++) {
-         int channel = mapBuffer.getInt(i*20);
-         int slice = mapBuffer.getInt(i*20+4);
-         int frame = mapBuffer.getInt(i*20+8);
-         int position = mapBuffer.getInt(i*20+12);
-         long imageOffset = unsignInt(mapBuffer.getInt(i*20+16));
+         int channel = mapBuffer.getInt(i*entrySize);
+         int slice = mapBuffer.getInt(i*entrySize+4);
+         int frame = mapBuffer.getInt(i*entrySize+8);
+         int position = mapBuffer.getInt(i*entrySize+12);
+         long imageOffset = bigTiff_ ? mapBuffer.getLong(i*entrySize+16)
+               : unsignInt(mapBuffer.getInt(i*entrySize+16));
          if (imageOffset == 0) {
             break; // end of index map reached
          }
@@ -397,13 +526,17 @@ public class MultipageTiffReader {
    }
 
    private IFDData readIFD(long byteOffset) throws IOException {
-      ByteBuffer buff = readIntoBuffer(byteOffset,2);
-      int numEntries = buff.getChar(0);
+      //BigTIFF: 8 byte entry count, 20 byte entries and 8 byte next IFD offset
+      int countSize = bigTiff_ ? 8 : 2;
+      int entrySize = bigTiff_ ? 20 : 12;
+      ByteBuffer buff = readIntoBuffer(byteOffset,countSize);
+      int numEntries = bigTiff_ ? (int) buff.getLong(0) : buff.getChar(0);
      
-      ByteBuffer entries = readIntoBuffer(byteOffset + 2, numEntries*12 + 4).order(byteOrder_);
+      ByteBuffer entries = readIntoBuffer(byteOffset + countSize,
+            numEntries*entrySize + (bigTiff_ ? 8 : 4)).order(byteOrder_);
       IFDData data = new IFDData();
       for (int i = 0; i < numEntries; i++) {
-         IFDEntry entry = readDirectoryEntry(i*12, entries);
+         IFDEntry entry = readDirectoryEntry(i*entrySize, entries);
          if (entry.tag == MM_METADATA) {
             data.mdOffset = entry.value;
             data.mdLength = entry.count;
@@ -411,37 +544,101 @@ public class MultipageTiffReader {
             data.pixelOffset = entry.value;
          } else if (entry.tag == STRIP_BYTE_COUNTS) {
             data.bytesPerImage = entry.value;
-         } 
+         } else if (entry.tag == WIDTH) {
+            data.width = (int) entry.value;
+         } else if (entry.tag == COMPRESSION) {
+            data.compression = (int) entry.value;
+         } else if (entry.tag == PREDICTOR) {
+            data.predictor = (int) entry.value;
+         }
       }
-      data.nextIFD = unsignInt(entries.getInt(numEntries*12));
-      data.nextIFDOffsetLocation = byteOffset + 2 + numEntries*12;
+      data.nextIFD = bigTiff_ ? entries.getLong(numEntries*entrySize)
+            : unsignInt(entries.getInt(numEntries*entrySize));
+      data.nextIFDOffsetLocation = byteOffset + countSize + numEntries*entrySize;
       return data;
    }
 
    private String getString(ByteBuffer buffer) {
       try {
-         return new String(buffer.array(), "UTF-8");
+         return new String(getBytes(buffer), "UTF-8");
       } catch (UnsupportedEncodingException ex) {
          ReportingUtils.logError(ex);
          return "";
       }
    }
    
-   private TaggedImage readTaggedImage(IFDData data) throws IOException {
-      ByteBuffer pixelBuffer = ByteBuffer.allocate( (int) data.bytesPerImage).order(byteOrder_);
-      ByteBuffer mdBuffer = ByteBuffer.allocate((int) data.mdLength).order(byteOrder_);
-      fileChannel_.read(pixelBuffer, data.pixelOffset);
-      fileChannel_.read(mdBuffer, data.mdOffset);
+   /*
+    * Returns the content of a buffer returned by readIntoBuffer() as an
+    * array, copying it only if it is a view of the mapped file.
+    */
+   private byte[] getBytes(ByteBuffer buffer) {
+      if (buffer.hasArray()) {
+         return buffer.array();
+      }
+      byte[] bytes = new byte[buffer.capacity()];
+      ByteBuffer source = buffer.duplicate();
+      source.clear();
+      source.get(bytes);
+      return bytes;
+   }
+
+   private JSONObject readImageTags(ByteBuffer mdBuffer) {
+      if (!mdBuffer.hasArray()) {
+         // Mapped: parse when the tags are first used
+         return new TaggedImageMetadata(new MappedTags(mdBuffer));
+      }
       JSONObject md = new JSONObject();
       try {
          md = new JSONObject(getString(mdBuffer));
+         MDUtils.rehydrateSummary(md, summaryMetadata_);
       } catch (JSONException ex) {
          ReportingUtils.logError("Error reading image metadata from file");
       }
+      return md;
+   }
+
+   /*
+    * Image tags that are still in the mapped file.
+    */
+   private class MappedTags implements TaggedImageMetadata.PropertySource {
+      private final ByteBuffer mdBuffer_;
+
+      MappedTags(ByteBuffer mdBuffer) {
+         mdBuffer_ = mdBuffer;
+      }
+
+      @Override
+      public boolean mayContain(String key) {
+         return true;
+      }
+
+      @Override
+      public void addTo(Map<String, Object> properties) {
+         try {
+            JSONObject md = new JSONObject(getString(mdBuffer_));
+            MDUtils.rehydrateSummary(md, summaryMetadata_);
+            Iterator<String> keys = md.keys();
+            while (keys.hasNext()) {
+               String key = keys.next();
+               properties.put(key, md.get(key));
+            }
+         } catch (JSONException ex) {
+            ReportingUtils.logError("Error reading image metadata from file");
+         }
+      }
+   }
+
+   private TaggedImage readTaggedImage(IFDData data) throws IOException {
+      ByteBuffer pixelBuffer = readIntoBuffer(data.pixelOffset, (int) data.bytesPerImage);
+      JSONObject md = readImageTags(readIntoBuffer(data.mdOffset, (int) data.mdLength));
       
       if ( byteDepth_ == 0) {
          getRGBAndByteDepth(md);
       }
+      if (data.compression != PixelCompressor.COMPRESSION_NONE) {
+         pixelBuffer = decompressPixels(data, pixelBuffer, md);
+         data.bytesPerImage = pixelBuffer.capacity();
+      }
       
       if (rgb_) {
          if (byteDepth_ == 1) {
@@ -450,7 +647,7 @@ public class MultipageTiffReader {
             // need to transform it into RGBA format -- swapping the R and B
             // components and inserting a blank alpha component.
             byte[] pixels = new byte[(int) (4 * data.bytesPerImage / 3)];
-            byte[] source = pixelBuffer.array();
+            byte[] source = getBytes(pixelBuffer);
             int numPixels = 0;
             int numComponents = 0;
             for (int i = 0; i < source.length; ++i) {
@@ -479,20 +676,45 @@ public class MultipageTiffReader {
          }
       } else {
          if (byteDepth_ == 1) {
-            return new TaggedImage(pixelBuffer.array(), md);
+            return new TaggedImage(getBytes(pixelBuffer), md);
          } else {
             short[] pix = new short[pixelBuffer.capacity()/2];
-            for (int i = 0; i < pix.length; i++ ) {
-               pix[i] = pixelBuffer.getShort(i*2);
-            }
+            ByteBuffer source = pixelBuffer.duplicate();
+            source.clear();
+            source.order(byteOrder_).asShortBuffer().get(pix);
             return new TaggedImage(pix, md);
          }
       }
    }
 
+   private ByteBuffer decompressPixels(IFDData data, ByteBuffer compressed,
+         JSONObject md) throws IOException {
+      if (data.compression != PixelCompressor.COMPRESSION_DEFLATE) {
+         throw new IOException("Unsupported compression: " + data.compression);
+      }
+      int samplesPerPixel = rgb_ ? 3 : 1;
+      int height;
+      try {
+         height = MDUtils.getHeight(md);
+      } catch (JSONException ex) {
+         throw new IOException("Image height unknown");
+      }
+      try {
+         return PixelCompressor.decompress(getBytes(compressed), data.width,
+               byteDepth_, samplesPerPixel,
+               data.width * height * byteDepth_ * samplesPerPixel,
+               data.predictor, byteOrder_);
+      } catch (DataFormatException ex) {
+         throw new IOException("Corrupt compressed pixels: " + ex.getMessage());
+      }
+   }
+
    private IFDEntry readDirectoryEntry(int offset, ByteBuffer buffer) throws IOException {
       char tag =  buffer.getChar(offset); 
       char type = buffer.getChar(offset + 2);
+      if (bigTiff_) {
+         return readBigTiffDirectoryEntry(offset, buffer, tag, type);
+      }
       long count = unsignInt( buffer.getInt(offset + 4) );
       long value;
       if ( type == 3 && count == 1) {
@@ -503,9 +725,23 @@ public class MultipageTiffReader {
       return (new IFDEntry(tag,type,count,value));
    }
 
+   private IFDEntry readBigTiffDirectoryEntry(int offset, ByteBuffer buffer,
+         char tag, char type) {
+      long count = buffer.getLong(offset + 4);
+      long value;
+      if (type == 3 && count == 1) {
+         value = buffer.getChar(offset + 12);
+      } else if (type == 4 && count == 1) {
+         value = unsignInt(buffer.getInt(offset + 12));
+      } else {
+         value = buffer.getLong(offset + 12);
+      }
+      return new IFDEntry(tag, type, count, value);
+   }
+
    //returns byteoffset of first IFD
    private long readHeader() throws IOException {           
-      ByteBuffer tiffHeader = ByteBuffer.allocate(8);
+      ByteBuffer tiffHeader = ByteBuffer.allocate(16);
       fileChannel_.read(tiffHeader,0);
       char zeroOne = tiffHeader.getChar(0);
       if (zeroOne == 0x4949 ) {
@@ -517,6 +753,13 @@ public class MultipageTiffReader {
       }
       tiffHeader.order( byteOrder_ );  
       short twoThree = tiffHeader.getShort(2);
+      if (twoThree == 43) {
+         if (tiffHeader.getShort(4) != 8) {
+            throw new IOException("BigTIFF offset size incorrect");
+         }
+         bigTiff_ = true;
+         return tiffHeader.getLong(8);
+      }
       if (twoThree != 42) {
          throw new IOException("Tiff identifier code incorrect");
       }
@@ -538,6 +781,7 @@ public class MultipageTiffReader {
    }
    
    public void close() throws IOException {
+      segments_ = null;
       if (fileChannel_ != null) {
          fileChannel_.close();
          fileChannel_ = null;
@@ -611,8 +855,7 @@ public class MultipageTiffReader {
      
       filePosition += writeIndexMap(filePosition);
       
-      ByteBuffer buffer = ByteBuffer.allocate(4).order(byteOrder_);
-      buffer.putInt(0, 0);
+      ByteBuffer buffer = ByteBuffer.allocate(bigTiff_ ? 8 : 4).order(byteOrder_);
       fileChannel_.write(buffer, nextIFDOffsetLocation); 
       
       JSONArray settings = null;
@@ -642,35 +885,41 @@ public class MultipageTiffReader {
        fileChannel_.write(header, filePosition);
        fileChannel_.write(buffer, filePosition + 8);
 
-      ByteBuffer offsetHeader = ByteBuffer.allocate(8).order(MultipageTiffWriter.BYTE_ORDER);
-      offsetHeader.putInt(0, MultipageTiffWriter.DISPLAY_SETTINGS_OFFSET_HEADER);
-      offsetHeader.putInt(4, (int) filePosition);
-      fileChannel_.write(offsetHeader, 16);
+      ByteBuffer offsetHeader = MultipageTiffWriter.headerField(
+            MultipageTiffWriter.DISPLAY_SETTINGS_OFFSET_HEADER, filePosition,
+            bigTiff_, MultipageTiffWriter.BYTE_ORDER);
+      fileChannel_.write(offsetHeader, MultipageTiffWriter.headerFieldPosition(
+            MultipageTiffWriter.DISPLAY_SETTINGS_FIELD, bigTiff_));
       return numReservedBytes + 8;
    }
    
    private int writeIndexMap(long filePosition) throws IOException {
-      //Write 4 byte header, 4 byte number of entries, and 20 bytes for each entry
+      //Write 4 byte header, 4 byte number of entries, and 20 bytes (BigTIFF: 24) for each entry
       int numMappings = indexMap_.size();
-      ByteBuffer buffer = ByteBuffer.allocate(8 + 20 * numMappings).order(byteOrder_);
+      ByteBuffer buffer = ByteBuffer.allocate(8 + (bigTiff_ ? 24 : 20) * numMappings).order(byteOrder_);
       buffer.putInt(0, MultipageTiffWriter.INDEX_MAP_HEADER);
       buffer.putInt(4, numMappings);
-      int position = 2;
+      int position = 8;
       for (String label : indexMap_.keySet()) {
          String[] indecies = label.split("_");
          for (String index : indecies) {
-            buffer.putInt(4 * position, Integer.parseInt(index));
-            position++;
+            buffer.putInt(position, Integer.parseInt(index));
+            position += 4;
+         }
+         if (bigTiff_) {
+            buffer.putLong(position, indexMap_.get(label));
+            position += 8;
+         } else {
+            buffer.putInt(position, indexMap_.get(label).intValue());
+            position += 4;
          }
-         buffer.putInt(4 * position, indexMap_.get(label).intValue());
-         position++;
       }
       fileChannel_.write(buffer, filePosition);
 
-      ByteBuffer header = ByteBuffer.allocate(8).order(byteOrder_);
-      header.putInt(0, MultipageTiffWriter.INDEX_MAP_OFFSET_HEADER);
-      header.putInt(4, (int) filePosition);
-      fileChannel_.write(header, 8);
+      ByteBuffer header = MultipageTiffWriter.headerField(
+            MultipageTiffWriter.INDEX_MAP_OFFSET_HEADER, filePosition, bigTiff_, byteOrder_);
+      fileChannel_.write(header, MultipageTiffWriter.headerFieldPosition(
+            MultipageTiffWriter.INDEX_MAP_FIELD, bigTiff_));
       return buffer.capacity();
    }
 
@@ -681,6 +930,9 @@ public class MultipageTiffReader {
       public long mdLength;
       public long nextIFD;
       public long nextIFDOffsetLocation;
+      public int width;
+      public int compression = PixelCompressor.COMPRESSION_NONE;
+      public int predictor = PixelCompressor.PREDICTOR_NONE;
       
       public IFDData() {}
    }
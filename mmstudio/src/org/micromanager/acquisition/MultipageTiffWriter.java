@@ -37,13 +37,15 @@ import java.nio.channels.FileChannel;
 import java.util.HashMap;
 import java.util.LinkedList;
 import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
 import java.util.concurrent.LinkedBlockingQueue;
-import java.util.concurrent.ThreadPoolExecutor;
 import mmcorej.TaggedImage;
 import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
 import org.micromanager.MMStudio;
+import org.micromanager.utils.DirectBuffers;
 import org.micromanager.utils.ImageUtils;
 import org.micromanager.utils.MDUtils;
 import org.micromanager.utils.MMScriptException;
@@ -51,10 +53,14 @@ import org.micromanager.utils.ReportingUtils;
 
 public class MultipageTiffWriter {
    
-//   private static final long BYTES_PER_MEG = 1048576;
-//   private static final long MAX_FILE_SIZE = 15*BYTES_PER_MEG;
+   private static final long BYTES_PER_MEG = 1048576;
    private static final long BYTES_PER_GIG = 1073741824;
+   // Largest file with 32 bit offsets (classic TIFF)
    private static final long MAX_FILE_SIZE = 4 * BYTES_PER_GIG;
+   private static final long MIN_FILE_SIZE = 64 * BYTES_PER_MEG;
+   // Bounds the index map space reserved at the start of each file
+   private static final long MAX_INDEX_MAP_ENTRIES = 1 << 22;
+   private static final int INDEX_MAP_CHUNK_SIZE = 1 << 20;
    public static final int DISPLAY_SETTINGS_BYTES_PER_CHANNEL = 256;
    //1 MB for now...might have to increase
    public static final long SPACE_FOR_COMMENTS = 1048576;
@@ -80,11 +86,19 @@ public class MultipageTiffWriter {
    public static final char X_RESOLUTION = 282;
    public static final char Y_RESOLUTION = 283;
    public static final char RESOLUTION_UNIT = 296;
+   public static final char PREDICTOR = 317;
    public static final char IJ_METADATA_BYTE_COUNTS = TiffDecoder.META_DATA_BYTE_COUNTS;
    public static final char IJ_METADATA = TiffDecoder.META_DATA;
    public static final char MM_METADATA = 51123;
    
    public static final int SUMMARY_MD_HEADER = 2355492;
+   // Micro-Manager header fields, following the TIFF header
+   static final int INDEX_MAP_FIELD = 0;
+   static final int DISPLAY_SETTINGS_FIELD = 1;
+   static final int COMMENTS_FIELD = 2;
+   static final int SUMMARY_MD_FIELD = 3;
+   // TIFF field type of 8 byte unsigned integers, only valid in BigTIFF
+   static final char LONG8 = 16;
          
    public static final ByteOrder BYTE_ORDER = ByteOrder.nativeOrder();
    
@@ -93,7 +107,7 @@ public class MultipageTiffWriter {
    private TaggedImageStorageMultipageTiff masterMPTiffStorage_;
    private RandomAccessFile raFile_;
    private FileChannel fileChannel_; 
-   private ThreadPoolExecutor writingExecutor_;
+   private final TaggedImageStorageMultipageTiff.WritingLane writingLane_;
    private long filePosition_ = 0;
    private long indexMapPosition_; //current position of the dynamically written index map
    private long indexMapFirstEntry_; // mark position of first entry so that number of entries can be written at end
@@ -114,15 +128,39 @@ public class MultipageTiffWriter {
    //Reader associated with this file
    private MultipageTiffReader reader_;
    private long blankPixelsOffset_ = -1;
+   // Location of the last image written, for the sidecar index
+   private long lastIFDOffset_ = -1;
+   private long lastMetadataOffset_ = -1;
+   private int lastMetadataLength_ = 0;
    private boolean fastStorageMode_;
+   // Size of the blocks in which images are written, or 0 to write each
+   // part of each image separately
+   private static volatile int writeBlockSize_ = 0;
+   private AlignedBlockWriter blockWriter_;
+   // Format and size of subsequently created files
+   private static volatile boolean writeBigTiff_ = false;
+   private static volatile long rolloverSize_ = MAX_FILE_SIZE;
+   private final boolean bigTiff_;
+   private final long maxFileSize_;
+   private long maxImagesInFile_;
+   // Whether data sets created from now on are compressed
+   private static volatile boolean compressPixels_ = false;
+   // Compresses the pixels of this file, or null to write them as they are
+   private final PixelCompressor compressor_;
    
    public MultipageTiffWriter(String directory, String filename, 
            JSONObject summaryMD, TaggedImageStorageMultipageTiff mpTiffStorage,
-           boolean fastStorageMode, boolean splitByPositions) throws IOException {
+           boolean fastStorageMode, boolean splitByPositions,
+           TaggedImageStorageMultipageTiff.WritingLane writingLane) throws IOException {
       fastStorageMode_ = fastStorageMode;
+      writingLane_ = writingLane;
       masterMPTiffStorage_ = mpTiffStorage;
       omeTiff_ = mpTiffStorage.omeTiff_;        
+      compressor_ = mpTiffStorage.getPixelCompressor();
+      bigTiff_ = writeBigTiff_;
+      maxFileSize_ = bigTiff_ ? rolloverSize_ : Math.min(rolloverSize_, MAX_FILE_SIZE);
       reader_ = new MultipageTiffReader(summaryMD);
+      reader_.setBigTiff(bigTiff_);
       File f = new File(directory + "/" + filename); 
       
       try {
@@ -134,7 +172,7 @@ public class MultipageTiffWriter {
       }
       
       //This is an overestimate of file size because file gets truncated at end
-      long fileSize = Math.min(MAX_FILE_SIZE, summaryMD.toString().length() + 2000000
+      long fileSize = Math.min(maxFileSize_, summaryMD.toString().length() + 2000000
               + numFrames_ * numChannels_ * numSlices_ * ((long) bytesPerImagePixels_ + 2000));
       
       f.createNewFile();
@@ -153,13 +191,111 @@ public class MultipageTiffWriter {
              ReportingUtils.showError("Insufficent space on disk: no room to write data");
       }
       fileChannel_ = raFile_.getChannel();
-      writingExecutor_ = masterMPTiffStorage_.getWritingExecutor();
       indexMap_ = new HashMap<String, Long>();
       reader_.setFileChannel(fileChannel_);
       reader_.setIndexMap(indexMap_);
       buffers_ = new LinkedList<ByteBuffer>();
       
       writeMMHeaderAndSummaryMD(summaryMD);
+      int blockSize = writeBlockSize_;
+      if (blockSize > 0) {
+         blockWriter_ = new AlignedBlockWriter(fileChannel_, blockSize, filePosition_);
+         reader_.setBlockWriter(blockWriter_);
+      }
+   }
+
+   /**
+    * Sets the size of the blocks in which subsequently created files are
+    * written (rounded up to a multiple of 4 kB), or 0 to write each IFD,
+    * pixel buffer and metadata separately. Large blocks avoid many small
+    * writes and keep the amount of data waiting in the page cache bounded.
+    */
+   public static void setWriteBlockSize(int bytes) {
+      writeBlockSize_ = Math.max(0, bytes);
+   }
+
+   public static int getWriteBlockSize() {
+      return writeBlockSize_;
+   }
+
+   /**
+    * Selects whether subsequently created files are BigTIFF files (with
+    * 64 bit offsets) instead of classic TIFF files. BigTIFF files can grow
+    * beyond 4 GB, but can't be opened by ImageJ's TIFF reader.
+    */
+   public static void setBigTiff(boolean bigTiff) {
+      writeBigTiff_ = bigTiff;
+   }
+
+   public static boolean getBigTiff() {
+      return writeBigTiff_;
+   }
+
+   /**
+    * Sets the size at which data sets continue in a new file. Classic TIFF
+    * files are limited to 4 GB regardless.
+    */
+   public static void setMaxFileSize(long bytes) {
+      rolloverSize_ = Math.max(MIN_FILE_SIZE, bytes);
+   }
+
+   public static long getMaxFileSize() {
+      return rolloverSize_;
+   }
+
+   public boolean isBigTiff() {
+      return bigTiff_;
+   }
+
+   /**
+    * Selects whether the pixels of data sets created from now on are
+    * compressed losslessly (TIFF Deflate with horizontal differencing).
+    * Only 8 and 16 bit images are compressed.
+    */
+   public static void setCompression(boolean compress) {
+      compressPixels_ = compress;
+   }
+
+   public static boolean getCompression() {
+      return compressPixels_;
+   }
+
+   /**
+    * Returns the position of a field of the Micro-Manager header: an int
+    * header followed by an offset (or length), 4 bytes in classic TIFF
+    * files and 8 bytes in BigTIFF files.
+    */
+   static int headerFieldPosition(int field, boolean bigTiff) {
+      return bigTiff ? 16 + 12 * field : 8 + 8 * field;
+   }
+
+   static int summaryMDPosition(boolean bigTiff) {
+      return headerFieldPosition(SUMMARY_MD_FIELD + 1, bigTiff);
+   }
+
+   static ByteBuffer headerField(int header, long value, boolean bigTiff,
+           ByteOrder order) {
+      ByteBuffer buffer = ByteBuffer.allocate(bigTiff ? 12 : 8).order(order);
+      buffer.putInt(0, header);
+      if (bigTiff) {
+         buffer.putLong(4, value);
+      } else {
+         buffer.putInt(4, (int) value);
+      }
+      return buffer;
+   }
+
+   private int indexMapEntrySize() {
+      return bigTiff_ ? 24 : 20;
+   }
+
+   private int offsetSize() {
+      return bigTiff_ ? 8 : 4;
+   }
+
+   // Size of an IFD: entry count, entries and next IFD offset
+   private int ifdSize(int numEntries) {
+      return bigTiff_ ? 8 + numEntries * 20 + 8 : 2 + numEntries * 12 + 4;
    }
    
    private ByteBuffer allocateByteBuffer(int capacity) {
@@ -186,22 +322,32 @@ public class MultipageTiffWriter {
    }
    
    private void executeWritingTask(Runnable writingTask) {
-      if (fastStorageMode_) {
-         writingExecutor_.execute(writingTask);
+      if (fastStorageMode_ && writingLane_ != null) {
+         writingLane_.execute(writingTask);
       } else {
          writingTask.run();
       }
    }
+
+   private void recordWrite(long bytes, long startNs) {
+      if (writingLane_ != null) {
+         writingLane_.recordWrite(bytes, startNs);
+      }
+   }
    
    private void fileChannelWrite(final ByteBuffer buffer, final long position) {
+      final AlignedBlockWriter blockWriter = blockWriter_;
       executeWritingTask(
         new Runnable() {
            @Override
            public void run() {
              try {
                 buffer.rewind();
-                fileChannel_.write(buffer, position);
-                if (buffer.limit() == currentImageByteBufferCapacity_) {
+                long startNs = System.nanoTime();
+                recordWrite(blockWriter != null ? blockWriter.write(buffer, position)
+                        : fileChannel_.write(buffer, position), startNs);
+                if (buffer.limit() == currentImageByteBufferCapacity_
+                        && !buffer.isReadOnly()) {
                     currentImageByteBuffers_.offer(buffer);
                 }
               } catch (IOException e) {
@@ -212,14 +358,20 @@ public class MultipageTiffWriter {
    }
    
    private void fileChannelWrite(final ByteBuffer[] buffers) {
+      // Appended sequentially, through the block writer if there is one
+      final AlignedBlockWriter blockWriter = blockWriter_;
       executeWritingTask(
         new Runnable() {
            @Override
            public void run() {
              try {
-                fileChannel_.write(buffers);
+                long startNs = System.nanoTime();
+                recordWrite(blockWriter != null ? blockWriter.append(buffers)
+                        : fileChannel_.write(buffers), startNs);
                 for (ByteBuffer buffer:buffers) {
-                    if (buffer.limit() == currentImageByteBufferCapacity_) {
+                    // read-only buffers are views of borrowed pixels
+                    if (buffer.limit() == currentImageByteBufferCapacity_
+                            && !buffer.isReadOnly()) {
                         currentImageByteBuffers_.offer(buffer);
                     }
                 }
@@ -230,6 +382,21 @@ public class MultipageTiffWriter {
         });
    }
    
+   /**
+    * Returns the offset of the IFD of the last image written.
+    */
+   public long getLastIFDOffset() {
+      return lastIFDOffset_;
+   }
+
+   public long getLastMetadataOffset() {
+      return lastMetadataOffset_;
+   }
+
+   public int getLastMetadataLength() {
+      return lastMetadataLength_;
+   }
+
    public MultipageTiffReader getReader() {
       return reader_;
    }
@@ -248,45 +415,74 @@ public class MultipageTiffWriter {
       }
       byte[] summaryMDBytes = getBytesFromString(summaryMD.toString());
       int mdLength = summaryMDBytes.length;
-      //20 bytes plus 8 header for index map
-      long maxImagesInFile = MAX_FILE_SIZE / bytesPerImagePixels_;
-      long indexMapSpace = 8 + 20 * maxImagesInFile;
+      //20 (BigTIFF: 24) bytes per entry plus 8 header for index map
+      maxImagesInFile_ = Math.min(MAX_INDEX_MAP_ENTRIES,
+              Math.max(1, maxFileSize_ / bytesPerImagePixels_));
+      long indexMapEntriesSpace = indexMapEntrySize() * maxImagesInFile_;
+      int headerSize = summaryMDPosition(bigTiff_);
       
-      ByteBuffer headerBuffer = allocateByteBuffer(40);
-      //8 bytes for file header
+      ByteBuffer headerBuffer = allocateByteBuffer(headerSize);
+      //8 bytes for file header (BigTIFF: 16)
       if (BYTE_ORDER.equals(ByteOrder.BIG_ENDIAN)) {
          headerBuffer.asCharBuffer().put(0,(char) 0x4d4d);
       } else {
          headerBuffer.asCharBuffer().put(0,(char) 0x4949);
       }
-      headerBuffer.asCharBuffer().put(1,(char) 42);
-      headerBuffer.putInt(4,40 + (int) (mdLength + indexMapSpace));
+      long firstIFD = headerSize + mdLength + 8 + indexMapEntriesSpace;
+      if (bigTiff_) {
+         //version, offset size, reserved
+         headerBuffer.asCharBuffer().put(1,(char) 43);
+         headerBuffer.asCharBuffer().put(2,(char) 8);
+         headerBuffer.putLong(8, firstIFD);
+      } else {
+         headerBuffer.asCharBuffer().put(1,(char) 42);
+         headerBuffer.putInt(4, (int) firstIFD);
+      }
       
-      //8 bytes for index map offset header and offset
-      headerBuffer.putInt(8,INDEX_MAP_OFFSET_HEADER);
-      headerBuffer.putInt(12,headerBuffer.capacity() + mdLength);
+      //index map offset header and offset
+      putHeaderField(headerBuffer, INDEX_MAP_FIELD, INDEX_MAP_OFFSET_HEADER, headerSize + mdLength);
       
-      //8 bytes for display settings offset header and display settings offset--written later
-      //8 bytes for comments offset header and comments offset--written later
-      //8 bytes for summaryMD header  summary md length + 
-      headerBuffer.putInt(32,SUMMARY_MD_HEADER);
-      headerBuffer.putInt(36,mdLength);
+      //display settings offset header and display settings offset--written later
+      //comments offset header and comments offset--written later
+      //summaryMD header and summary md length
+      putHeaderField(headerBuffer, SUMMARY_MD_FIELD, SUMMARY_MD_HEADER, mdLength);
       
-      ByteBuffer indexMapBuffer = allocateByteBuffer((int) indexMapSpace);
-      indexMapBuffer.putInt(0,INDEX_MAP_HEADER);
-      indexMapBuffer.putInt(4,(int) maxImagesInFile);  
-      indexMapPosition_ = headerBuffer.capacity() + mdLength + 8;
+      ByteBuffer indexMapHeader = allocateByteBuffer(8);
+      indexMapHeader.putInt(0,INDEX_MAP_HEADER);
+      indexMapHeader.putInt(4,(int) maxImagesInFile_);  
+      indexMapPosition_ = headerSize + mdLength + 8;
       indexMapFirstEntry_ = indexMapPosition_;
 
+      //Entries are zero until written; reserve their space in chunks
+      int numChunks = (int) ((indexMapEntriesSpace + INDEX_MAP_CHUNK_SIZE - 1) / INDEX_MAP_CHUNK_SIZE);
+      ByteBuffer zeros = allocateByteBuffer((int) Math.min(INDEX_MAP_CHUNK_SIZE, indexMapEntriesSpace))
+              .asReadOnlyBuffer();
       
       //1 byte for each byte of UTF-8-encoded summary md
-      ByteBuffer[] buffers = new ByteBuffer[3];
+      ByteBuffer[] buffers = new ByteBuffer[3 + numChunks];
       buffers[0] = headerBuffer;
       buffers[1] = ByteBuffer.wrap(summaryMDBytes);
-      buffers[2] = indexMapBuffer;
+      buffers[2] = indexMapHeader;
+      long remaining = indexMapEntriesSpace;
+      for (int i = 0; i < numChunks; i++) {
+         ByteBuffer chunk = zeros.duplicate();
+         chunk.limit((int) Math.min(remaining, zeros.capacity()));
+         remaining -= chunk.limit();
+         buffers[3 + i] = chunk;
+      }
       
       fileChannelWrite(buffers);
-      filePosition_ += headerBuffer.capacity() + mdLength +indexMapSpace;
+      filePosition_ += firstIFD;
+   }
+
+   private void putHeaderField(ByteBuffer buffer, int field, int header, long value) {
+      int position = headerFieldPosition(field, bigTiff_);
+      buffer.putInt(position, header);
+      if (bigTiff_) {
+         buffer.putLong(position + 4, value);
+      } else {
+         buffer.putInt(position + 4, (int) value);
+      }
    }
    
    /**
@@ -302,10 +498,31 @@ public class MultipageTiffWriter {
       //The MultipageTiffReader no longer needs this because it interperets 0's as the 
       //the end of the index map. It is added here for backwards compatibility of reading
       //using versions of MM before 6-6-2014. Without it, old versions wouldn't correctly read image 0_0_0_0
-      int numImages = (int) ((indexMapPosition_ - indexMapFirstEntry_) / 20);
+      int numImages = (int) ((indexMapPosition_ - indexMapFirstEntry_) / indexMapEntrySize());
       ByteBuffer indexMapNumEntries = allocateByteBuffer(4);
       indexMapNumEntries.putInt(0, numImages);
       fileChannelWrite(indexMapNumEntries, indexMapFirstEntry_ - 4);
+      flushBlock();
+   }
+
+   /*
+    * Writes out the images held by the block writer, if any.
+    */
+   private void flushBlock() {
+      final AlignedBlockWriter blockWriter = blockWriter_;
+      if (blockWriter == null) {
+         return;
+      }
+      executeWritingTask(new Runnable() {
+         @Override
+         public void run() {
+            try {
+               blockWriter.flush();
+            } catch (IOException e) {
+               ReportingUtils.logError(e);
+            }
+         }
+      });
    }
 
    /**
@@ -337,6 +554,7 @@ public class MultipageTiffWriter {
       
       writeDisplaySettings();
       writeComments();
+      flushBlock();
 
       executeWritingTask(new Runnable() {
          @Override
@@ -348,6 +566,7 @@ public class MultipageTiffWriter {
                ReportingUtils.logError(ex);
             }
             reader_.finishedWriting();
+            reader_.setBlockWriter(null);
             //Dont close file channel and random access file becase Tiff reader still using them
             fileChannel_ = null;
             raFile_ = null;
@@ -359,15 +578,18 @@ public class MultipageTiffWriter {
       //5 MB extra padding..just to be safe
       int extraPadding = 5000000; 
       long size = length + SPACE_FOR_COMMENTS + numChannels_ * DISPLAY_SETTINGS_BYTES_PER_CHANNEL + extraPadding + filePosition_;
-      if (size >= MAX_FILE_SIZE) {
+      if (size >= maxFileSize_) {
          return false;
       }
       return true;
    }
    
    public boolean hasSpaceToWrite(TaggedImage img, int omeMDLength) {
+      if (indexMapPosition_ - indexMapFirstEntry_ >= maxImagesInFile_ * indexMapEntrySize()) {
+         return false; // index map full
+      }
       int mdLength = img.tags.toString().length();
-      int IFDSize = ENTRIES_PER_IFD*12 + 4 + 16;
+      int IFDSize = ifdSize(ENTRIES_PER_IFD) + 16;
       //5 MB extra padding...just to be safe...
       int extraPadding = 5000000; 
       long size = mdLength+IFDSize+bytesPerImagePixels_+SPACE_FOR_COMMENTS+
@@ -376,7 +598,7 @@ public class MultipageTiffWriter {
          size += omeMDLength;
       }
       
-      if ( size >= MAX_FILE_SIZE) {
+      if ( size >= maxFileSize_) {
          return false;
       }
       return true;
@@ -392,8 +614,18 @@ public class MultipageTiffWriter {
    }
         
    public void writeImage(TaggedImage img) throws IOException {
-      if (writingExecutor_ != null) {
-         int queueSize = writingExecutor_.getQueue().size();
+      writeImage(img, null);
+   }
+
+   /**
+    * Writes the image; if the file is compressed, its pixels may already be
+    * compressed in the background.
+    * @param compressedPixels the result of PixelCompressor.submit() for the
+    * image's pixels, or null to compress them here if needed
+    */
+   public void writeImage(TaggedImage img, Future<ByteBuffer> compressedPixels) throws IOException {
+      if (fastStorageMode_ && writingLane_ != null) {
+         int queueSize = writingLane_.getQueueSize();
          int attemptCount = 0;
          while (queueSize > 20) {
             if (attemptCount == 0) {
@@ -402,20 +634,21 @@ public class MultipageTiffWriter {
             ++attemptCount;
             try {
                Thread.sleep(5);
-               queueSize = writingExecutor_.getQueue().size();
+               queueSize = writingLane_.getQueueSize();
             } catch (InterruptedException ex) {
                ReportingUtils.logError(ex);
             }
          }
       }
       long offset = filePosition_;
-      writeIFD(img);
+      writeIFD(img, compressedPixels);
+      lastIFDOffset_ = offset;
       addToIndexMap(MDUtils.getLabel(img.tags), offset);
       writeBuffers();
       //wait until image has finished writing to return
-//      int size = writingExecutor_.getQueue().size();
+//      int size = writingLane_.getQueueSize();
 //      while (size > 0) {
-//         size = writingExecutor_.getQueue().size();
+//         size = writingLane_.getQueueSize();
 //      }
    }
    
@@ -423,14 +656,18 @@ public class MultipageTiffWriter {
       //If a duplicate label is received, forget about the previous one
       //this allows overwriting of images without loss of data
       indexMap_.put(label, offset);
-      ByteBuffer buffer = allocateByteBuffer( 20 );
+      ByteBuffer buffer = allocateByteBuffer( indexMapEntrySize() );
       String[] indices = label.split("_");
       for (int i = 0; i < 4; i++) {
          buffer.putInt( 4*i , Integer.parseInt(indices[i]));
       }
-      buffer.putInt(16, new Long(offset).intValue());
+      if (bigTiff_) {
+         buffer.putLong(16, offset);
+      } else {
+         buffer.putInt(16, new Long(offset).intValue());
+      }
       fileChannelWrite(buffer,indexMapPosition_);
-      indexMapPosition_ += 20;  
+      indexMapPosition_ += indexMapEntrySize();  
    }
    
    private void writeBuffers() throws IOException {
@@ -450,24 +687,33 @@ public class MultipageTiffWriter {
    }
    
    public void overwritePixels(Object pixels, int channel, int slice, int frame, int position) throws IOException {
+      if (compressor_ != null) {
+         //compressed pixels don't have a fixed size
+         ReportingUtils.showError("Couldn't overwrite compressed pixel data");
+         return;
+      }
       long byteOffset = indexMap_.get(MDUtils.generateLabel(channel, slice, frame, position));      
-      ByteBuffer buffer = ByteBuffer.allocate(2).order(BYTE_ORDER);
-      fileChannel_.read(buffer, byteOffset);
-      int numEntries = buffer.getChar(0);
-      ByteBuffer entries = ByteBuffer.allocate(numEntries*12 + 4).order(BYTE_ORDER);
-      fileChannel_.read(entries, byteOffset + 2);        
+      int countSize = bigTiff_ ? 8 : 2;
+      int entrySize = bigTiff_ ? 20 : 12;
+      ByteBuffer buffer = ByteBuffer.allocate(countSize).order(BYTE_ORDER);
+      readAt(buffer, byteOffset);
+      int numEntries = bigTiff_ ? (int) buffer.getLong(0) : buffer.getChar(0);
+      ByteBuffer entries = ByteBuffer.allocate(numEntries*entrySize).order(BYTE_ORDER);
+      readAt(entries, byteOffset + countSize);        
 
       long pixelOffset = -1, bytesPerImage = -1;
       //read Tiff tags to find pixel offset
       for (int i = 0; i < numEntries; i++) {
-         char tag = entries.getChar(i*12);
-         char type = entries.getChar(i*12 + 2);
-         long count = unsignInt(entries.getInt(i*12 + 4));
+         char tag = entries.getChar(i*entrySize);
+         char type = entries.getChar(i*entrySize + 2);
+         int valuePosition = i*entrySize + (bigTiff_ ? 12 : 8);
          long value;
-         if (type == 3 && count == 1) {
-            value = entries.getChar(i*12 + 8);
+         if (type == 3) {
+            value = entries.getChar(valuePosition);
+         } else if (type == LONG8) {
+            value = entries.getLong(valuePosition);
          } else {
-            value = unsignInt(entries.getInt(i * 12 + 8));
+            value = unsignInt(entries.getInt(valuePosition));
          }
          if (tag == STRIP_OFFSETS) {
             pixelOffset = value;
@@ -484,36 +730,63 @@ public class MultipageTiffWriter {
       fileChannelWrite(pixBuff, pixelOffset); 
    }
 
-   private void writeIFD(TaggedImage img) throws IOException {
-      char numEntries = ((firstIFD_  ? ENTRIES_PER_IFD + 4 : ENTRIES_PER_IFD));
-      if (img.tags.has("Summary")) {
-         img.tags.remove("Summary");
+   private void readAt(ByteBuffer buffer, long position) throws IOException {
+      if (blockWriter_ != null) {
+         blockWriter_.read(buffer, position);
+      } else {
+         fileChannel_.read(buffer, position);
       }
+   }
+
+   /*
+    * Returns the pixels as written to the file, compressed if the file is.
+    */
+   private ByteBuffer getPixelsToWrite(Object pixels, Future<ByteBuffer> compressedPixels) throws IOException {
+      if (compressor_ == null) {
+         return getPixelBuffer(pixels);
+      }
+      if (compressedPixels != null) {
+         try {
+            return compressedPixels.get();
+         } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while compressing pixels");
+         } catch (ExecutionException ex) {
+            ReportingUtils.logError(ex.getCause(), "Problem compressing pixels");
+         }
+      }
+      //RGB pixels are rearranged before they are compressed
+      return compressor_.compress(rgb_ ? getPixelBuffer(pixels) : pixels);
+   }
+
+   private void writeIFD(TaggedImage img, Future<ByteBuffer> compressedPixels) throws IOException {
+      char numEntries = (char) ((firstIFD_  ? ENTRIES_PER_IFD + 4 : ENTRIES_PER_IFD)
+              + (compressor_ != null ? 1 : 0));
+      // The summary is stored once in the file header
+      MDUtils.removeEmbeddedSummary(img.tags);
       byte[] mdBytes = getBytesFromString(img.tags.toString() + " ");
       mdBytes[mdBytes.length - 1] = 0; // null terminate TIFF ASCII string
+      ByteBuffer pixels = getPixelsToWrite(img.pix, compressedPixels);
+      int pixelBytes = pixels.remaining();
 
       //2 bytes for number of directory entries, 12 bytes per directory entry, 4 byte offset of next IFD
      //6 bytes for bits per sample if RGB, 16 bytes for x and y resolution, 1 byte per character of MD string
      //number of bytes for pixels
-     int totalBytes = 2 + numEntries*12 + 4 + (rgb_?6:0) + 16 + mdBytes.length + bytesPerImagePixels_;
-     int IFDandBitDepthBytes = 2+ numEntries*12 + 4 + (rgb_?6:0);
+     //(BigTIFF: 8 byte count, 20 byte entries and 8 byte offset; bits per sample and resolution fit in the entries)
+     int totalBytes = getIFDandBitDepthBytes(numEntries) + getResolutionBytes() + mdBytes.length + pixelBytes;
      
-     ByteBuffer ifdBuffer = allocateByteBuffer(IFDandBitDepthBytes);
+     ByteBuffer ifdBuffer = allocateByteBuffer(getIFDandBitDepthBytes(numEntries));
      CharBuffer charView = ifdBuffer.asCharBuffer();
          
-     long tagDataOffset = filePosition_ + 2 + numEntries*12 + 4;
-     nextIFDOffsetLocation_ = filePosition_ + 2 + numEntries*12;
+     long tagDataOffset = filePosition_ + ifdSize(numEntries);
+     nextIFDOffsetLocation_ = tagDataOffset - offsetSize();
      
-     bufferPosition_ = 0;
-      charView.put(bufferPosition_,numEntries);
-      bufferPosition_ += 2;
+      writeEntryCount(ifdBuffer, charView, numEntries);
       writeIFDEntry(ifdBuffer,charView, WIDTH,(char)4,1,imageWidth_);
       writeIFDEntry(ifdBuffer,charView,HEIGHT,(char)4,1,imageHeight_);
-      writeIFDEntry(ifdBuffer,charView,BITS_PER_SAMPLE,(char)3,rgb_?3:1,  rgb_? tagDataOffset:byteDepth_*8);
-      if (rgb_) {
-         tagDataOffset += 6;
-      }
-      writeIFDEntry(ifdBuffer,charView,COMPRESSION,(char)3,1,1);
+      tagDataOffset = writeBitsPerSampleEntry(ifdBuffer, charView, tagDataOffset);
+      writeIFDEntry(ifdBuffer,charView,COMPRESSION,(char)3,1,
+              compressor_ != null ? PixelCompressor.COMPRESSION_DEFLATE : PixelCompressor.COMPRESSION_NONE);
       writeIFDEntry(ifdBuffer,charView,PHOTOMETRIC_INTERPRETATION,(char)3,1,rgb_?2:1);
       
       if (firstIFD_ ) {
@@ -523,16 +796,17 @@ public class MultipageTiffWriter {
          writeIFDEntry(ifdBuffer, charView, IMAGE_DESCRIPTION, (char) 2, 0, 0);
       }
            
-      writeIFDEntry(ifdBuffer,charView,STRIP_OFFSETS,(char)4,1, tagDataOffset );
-      tagDataOffset += bytesPerImagePixels_;
+      writeIFDEntry(ifdBuffer,charView,STRIP_OFFSETS,stripOffsetsType(),1, tagDataOffset );
+      tagDataOffset += pixelBytes;
       writeIFDEntry(ifdBuffer,charView,SAMPLES_PER_PIXEL,(char)3,1,(rgb_?3:1));
       writeIFDEntry(ifdBuffer,charView,ROWS_PER_STRIP, (char) 3, 1, imageHeight_);
-      writeIFDEntry(ifdBuffer,charView,STRIP_BYTE_COUNTS, (char) 4, 1, bytesPerImagePixels_ );
-      writeIFDEntry(ifdBuffer,charView,X_RESOLUTION, (char)5, 1, tagDataOffset);
-      tagDataOffset += 8;
-      writeIFDEntry(ifdBuffer,charView,Y_RESOLUTION, (char)5, 1, tagDataOffset);
-      tagDataOffset += 8;
+      writeIFDEntry(ifdBuffer,charView,STRIP_BYTE_COUNTS, (char) 4, 1, pixelBytes );
+      tagDataOffset = writeResolutionEntry(ifdBuffer, charView, X_RESOLUTION, tagDataOffset);
+      tagDataOffset = writeResolutionEntry(ifdBuffer, charView, Y_RESOLUTION, tagDataOffset);
       writeIFDEntry(ifdBuffer,charView,RESOLUTION_UNIT, (char) 3,1,3);
+      if (compressor_ != null) {
+         writeIFDEntry(ifdBuffer,charView,PREDICTOR, (char) 3,1,PixelCompressor.PREDICTOR_HORIZONTAL);
+      }
       if (firstIFD_) {         
          ijMetadataCountsTagPosition_ = filePosition_ + bufferPosition_;
          writeIFDEntry(ifdBuffer,charView,IJ_METADATA_BYTE_COUNTS,(char)4,0,0);
@@ -540,28 +814,110 @@ public class MultipageTiffWriter {
          writeIFDEntry(ifdBuffer,charView,IJ_METADATA,(char)1,0,0);
       }
       writeIFDEntry(ifdBuffer,charView,MM_METADATA,(char)2,mdBytes.length,tagDataOffset);
+      lastMetadataOffset_ = tagDataOffset;
+      lastMetadataLength_ = mdBytes.length;
       tagDataOffset += mdBytes.length;
-      //NextIFDOffset
-      ifdBuffer.putInt(bufferPosition_, (int)tagDataOffset);
-      bufferPosition_ += 4;
-      
-      if (rgb_) {
-         charView.put(bufferPosition_/2,(char) (byteDepth_*8));
-         charView.put(bufferPosition_/2+1,(char) (byteDepth_*8));
-         charView.put(bufferPosition_/2+2,(char) (byteDepth_*8));
-      }
+      writeNextIFDOffsetAndBitDepth(ifdBuffer, charView, tagDataOffset);
       buffers_.add(ifdBuffer);
-      buffers_.add(getPixelBuffer(img.pix));
-      buffers_.add(getResolutionValuesBuffer());   
+      buffers_.add(pixels);
+      if (!bigTiff_) {
+         buffers_.add(getResolutionValuesBuffer());   
+      }
       buffers_.add(ByteBuffer.wrap(mdBytes));
       
       filePosition_ += totalBytes;
       firstIFD_ = false;
    }
 
+   private int getIFDandBitDepthBytes(int numEntries) {
+      return ifdSize(numEntries) + (rgb_ && !bigTiff_ ? 6 : 0);
+   }
+
+   private int getResolutionBytes() {
+      return bigTiff_ ? 0 : 16;
+   }
+
+   private char stripOffsetsType() {
+      return bigTiff_ ? LONG8 : (char) 4;
+   }
+
+   private void writeEntryCount(ByteBuffer buffer, CharBuffer cBuffer, char numEntries) {
+      bufferPosition_ = 0;
+      if (bigTiff_) {
+         buffer.putLong(bufferPosition_, numEntries);
+         bufferPosition_ += 8;
+      } else {
+         cBuffer.put(bufferPosition_, numEntries);
+         bufferPosition_ += 2;
+      }
+   }
+
+   /*
+    * Writes the bits per sample entry; returns the offset of the next tag
+    * data (RGB values are stored after the IFD in classic TIFF files).
+    */
+   private long writeBitsPerSampleEntry(ByteBuffer buffer, CharBuffer cBuffer, long tagDataOffset) throws IOException {
+      if (!rgb_) {
+         writeIFDEntry(buffer, cBuffer, BITS_PER_SAMPLE, (char) 3, 1, byteDepth_ * 8);
+         return tagDataOffset;
+      }
+      if (!bigTiff_) {
+         writeIFDEntry(buffer, cBuffer, BITS_PER_SAMPLE, (char) 3, 3, tagDataOffset);
+         return tagDataOffset + 6;
+      }
+      writeIFDEntry(buffer, cBuffer, BITS_PER_SAMPLE, (char) 3, 3, 0);
+      for (int i = 0; i < 3; i++) {
+         cBuffer.put((bufferPosition_ - 8) / 2 + i, (char) (byteDepth_ * 8));
+      }
+      return tagDataOffset;
+   }
+
+   /*
+    * Writes a resolution entry; returns the offset of the next tag data
+    * (rationals are stored after the IFD in classic TIFF files).
+    */
+   private long writeResolutionEntry(ByteBuffer buffer, CharBuffer cBuffer, char tag, long tagDataOffset) throws IOException {
+      if (!bigTiff_) {
+         writeIFDEntry(buffer, cBuffer, tag, (char) 5, 1, tagDataOffset);
+         return tagDataOffset + 8;
+      }
+      writeIFDEntry(buffer, cBuffer, tag, (char) 5, 1, 0);
+      buffer.putInt(bufferPosition_ - 8, (int) resNumerator_);
+      buffer.putInt(bufferPosition_ - 4, (int) resDenomenator_);
+      return tagDataOffset;
+   }
+
+   private void writeNextIFDOffsetAndBitDepth(ByteBuffer buffer, CharBuffer cBuffer, long nextIFDOffset) {
+      if (bigTiff_) {
+         buffer.putLong(bufferPosition_, nextIFDOffset);
+         bufferPosition_ += 8;
+         return;
+      }
+      buffer.putInt(bufferPosition_, (int) nextIFDOffset);
+      bufferPosition_ += 4;
+      if (rgb_) {
+         cBuffer.put(bufferPosition_/2,(char) (byteDepth_*8));
+         cBuffer.put(bufferPosition_/2+1,(char) (byteDepth_*8));
+         cBuffer.put(bufferPosition_/2+2,(char) (byteDepth_*8));
+      }
+   }
+
    private void writeIFDEntry(ByteBuffer buffer, CharBuffer cBuffer, char tag, char type, long count, long value) throws IOException {
       cBuffer.put(bufferPosition_ / 2, tag);
       cBuffer.put(bufferPosition_ / 2 + 1, type);
+      if (bigTiff_) {
+         //8 byte count and 8 byte value field
+         buffer.putLong(bufferPosition_ + 4, count);
+         if (type == 3 && count == 1) {
+            cBuffer.put(bufferPosition_ / 2 + 6, (char) value);
+         } else if (type == 4 && count == 1) {
+            buffer.putInt(bufferPosition_ + 12, (int) value);
+         } else {
+            buffer.putLong(bufferPosition_ + 12, value);
+         }
+         bufferPosition_ += 20;
+         return;
+      }
       buffer.putInt(bufferPosition_ + 4, (int) count);
       if (type ==3 && count == 1) {  //Left justify in 4 byte value field
          cBuffer.put(bufferPosition_/2 + 4, (char) value);
@@ -586,6 +942,17 @@ public class MultipageTiffWriter {
    }
 
    private ByteBuffer getPixelBuffer(Object pixels) throws IOException {
+      if (pixels instanceof ByteBuffer) {
+         ByteBuffer buffer = (ByteBuffer) pixels;
+         if (!rgb_ && buffer.order() == BYTE_ORDER) {
+            // Write the pixels as they are, without copying them
+            ByteBuffer view = buffer.duplicate();
+            view.rewind();
+            return view;
+         }
+         pixels = DirectBuffers.arrayFromPixelBuffer(buffer,
+               rgb_ ? 4 * byteDepth_ : byteDepth_);
+      }
       if (rgb_) {
          if (byteDepth_ == 1) {
             byte[] originalPix = (byte[]) pixels;
@@ -733,9 +1100,7 @@ public class MultipageTiffWriter {
 
       //Header (1) File info (1) display ranges (1) LUTS (1 per channel)
       int numMDEntries = 3 + numChannels;
-      ByteBuffer ifdCountAndValueBuffer = allocateByteBuffer(8);
-      ifdCountAndValueBuffer.putInt(0, numMDEntries);
-      ifdCountAndValueBuffer.putInt(4, (int) filePosition_);
+      ByteBuffer ifdCountAndValueBuffer = getCountAndValueBuffer(numMDEntries, filePosition_);
       fileChannelWrite(ifdCountAndValueBuffer, ijMetadataCountsTagPosition_ + 4);
 
       fileChannelWrite(mdByteCountsBuffer, filePosition_);
@@ -802,9 +1167,7 @@ public class MultipageTiffWriter {
          ReportingUtils.logError("Problem with displayAndComments: Couldn't write ImageJ display settings as a result");
       }
 
-      ifdCountAndValueBuffer = allocateByteBuffer(8);
-      ifdCountAndValueBuffer.putInt(0, mdBufferSize);
-      ifdCountAndValueBuffer.putInt(4, (int) filePosition_);
+      ifdCountAndValueBuffer = getCountAndValueBuffer(mdBufferSize, filePosition_);
       fileChannelWrite(ifdCountAndValueBuffer, ijMetadataTagPosition_ + 4);
 
 
@@ -865,9 +1228,7 @@ public class MultipageTiffWriter {
       bytes[bytes.length - 1] = 0; // null terminate TIFF ASCII string
 
       //write first image IFD
-      ByteBuffer ifdCountAndValueBuffer = allocateByteBuffer(8);
-      ifdCountAndValueBuffer.putInt(0, bytes.length);
-      ifdCountAndValueBuffer.putInt(4, (int) filePosition_);
+      ByteBuffer ifdCountAndValueBuffer = getCountAndValueBuffer(bytes.length, filePosition_);
       fileChannelWrite(ifdCountAndValueBuffer, imageDescriptionTagOffset + 4);
 
       //write String
@@ -875,6 +1236,22 @@ public class MultipageTiffWriter {
       filePosition_ += bytes.length;
    }
 
+   /*
+    * Count and value (offset) fields of an IFD entry, which follow its tag
+    * and type.
+    */
+   private ByteBuffer getCountAndValueBuffer(long count, long value) {
+      ByteBuffer buffer = allocateByteBuffer(2 * offsetSize());
+      if (bigTiff_) {
+         buffer.putLong(0, count);
+         buffer.putLong(8, value);
+      } else {
+         buffer.putInt(0, (int) count);
+         buffer.putInt(4, (int) value);
+      }
+      return buffer;
+   }
+
    private byte[] getBytesFromString(String s) {
       try {
          return s.getBytes("UTF-8");
@@ -885,8 +1262,7 @@ public class MultipageTiffWriter {
    }
 
    private void writeNullOffsetAfterLastImage() throws IOException {
-      ByteBuffer buffer = allocateByteBuffer(4);
-      buffer.putInt(0, 0);
+      ByteBuffer buffer = allocateByteBuffer(offsetSize());
       fileChannelWrite(buffer, nextIFDOffsetLocation_);
    }
 
@@ -906,10 +1282,8 @@ public class MultipageTiffWriter {
       fileChannelWrite(header, filePosition_);
       fileChannelWrite(buffer, filePosition_ + 8);
 
-      ByteBuffer offsetHeader = allocateByteBuffer(8);
-      offsetHeader.putInt(0, COMMENTS_OFFSET_HEADER);
-      offsetHeader.putInt(4, (int) filePosition_);
-      fileChannelWrite(offsetHeader, 24);
+      ByteBuffer offsetHeader = headerField(COMMENTS_OFFSET_HEADER, filePosition_, bigTiff_, BYTE_ORDER);
+      fileChannelWrite(offsetHeader, headerFieldPosition(COMMENTS_FIELD, bigTiff_));
       filePosition_ += 8 + commentsBytes.length;
    }
 
@@ -928,10 +1302,8 @@ public class MultipageTiffWriter {
       fileChannelWrite(header, filePosition_);
       fileChannelWrite(buffer, filePosition_ + 8);
 
-      ByteBuffer offsetHeader = allocateByteBuffer(8);
-      offsetHeader.putInt(0, DISPLAY_SETTINGS_OFFSET_HEADER);
-      offsetHeader.putInt(4, (int) filePosition_);
-      fileChannelWrite(offsetHeader, 16);
+      ByteBuffer offsetHeader = headerField(DISPLAY_SETTINGS_OFFSET_HEADER, filePosition_, bigTiff_, BYTE_ORDER);
+      fileChannelWrite(offsetHeader, headerFieldPosition(DISPLAY_SETTINGS_FIELD, bigTiff_));
       filePosition_ += numReservedBytes + 8;
    }
   
@@ -942,30 +1314,25 @@ public class MultipageTiffWriter {
       char numEntries = (char) (((firstIFD_ && omeTiff_) ? ENTRIES_PER_IFD + 2 : ENTRIES_PER_IFD)
               + (firstIFD_ ? 2 : 0));
      
-      byte[] mdBytes = getBytesFromString("NULL ");
+      //Padded so that it doesn't fit in a BigTIFF entry
+     byte[] mdBytes = getBytesFromString(bigTiff_ ? "NULL     " : "NULL ");
 
       //2 bytes for number of directory entries, 12 bytes per directory entry, 4 byte offset of next IFD
      //6 bytes for bits per sample if RGB, 16 bytes for x and y resolution, 1 byte per character of MD string
      //number of bytes for pixels
-     int totalBytes = 2 + numEntries*12 + 4 + (rgb_?6:0) + 16 + mdBytes.length
+     int totalBytes = getIFDandBitDepthBytes(numEntries) + getResolutionBytes() + mdBytes.length
              + (blankPixelsAlreadyWritten ? 0 : bytesPerImagePixels_);
-     int IFDandBitDepthBytes = 2+ numEntries*12 + 4 + (rgb_?6:0);
      
-     ByteBuffer ifdBuffer = allocateByteBuffer(IFDandBitDepthBytes);
+     ByteBuffer ifdBuffer = allocateByteBuffer(getIFDandBitDepthBytes(numEntries));
      CharBuffer charView = ifdBuffer.asCharBuffer();
          
-     long tagDataOffset = filePosition_ + 2 + numEntries*12 + 4;
-     nextIFDOffsetLocation_ = filePosition_ + 2 + numEntries*12;
+     long tagDataOffset = filePosition_ + ifdSize(numEntries);
+     nextIFDOffsetLocation_ = tagDataOffset - offsetSize();
      
-     bufferPosition_ = 0;
-      charView.put(bufferPosition_,numEntries);
-      bufferPosition_ += 2;
+      writeEntryCount(ifdBuffer, charView, numEntries);
       writeIFDEntry(ifdBuffer,charView, WIDTH,(char)4,1,imageWidth_);
       writeIFDEntry(ifdBuffer,charView,HEIGHT,(char)4,1,imageHeight_);
-      writeIFDEntry(ifdBuffer,charView,BITS_PER_SAMPLE,(char)3,rgb_?3:1,  rgb_? tagDataOffset:byteDepth_*8);
-      if (rgb_) {
-         tagDataOffset += 6;
-      }
+      tagDataOffset = writeBitsPerSampleEntry(ifdBuffer, charView, tagDataOffset);
       writeIFDEntry(ifdBuffer,charView,COMPRESSION,(char)3,1,1);
       writeIFDEntry(ifdBuffer,charView,PHOTOMETRIC_INTERPRETATION,(char)3,1,rgb_?2:1);
       
@@ -979,20 +1346,18 @@ public class MultipageTiffWriter {
       }
            
       if (!blankPixelsAlreadyWritten) { //Write blank pixels
-         writeIFDEntry(ifdBuffer, charView, STRIP_OFFSETS, (char) 4, 1, tagDataOffset);
+         writeIFDEntry(ifdBuffer, charView, STRIP_OFFSETS, stripOffsetsType(), 1, tagDataOffset);
          blankPixelsOffset_ = tagDataOffset;
          tagDataOffset += bytesPerImagePixels_;
       } else {
-         writeIFDEntry(ifdBuffer, charView, STRIP_OFFSETS, (char) 4, 1, blankPixelsOffset_);
+         writeIFDEntry(ifdBuffer, charView, STRIP_OFFSETS, stripOffsetsType(), 1, blankPixelsOffset_);
       }
       
       writeIFDEntry(ifdBuffer,charView,SAMPLES_PER_PIXEL,(char)3,1,(rgb_?3:1));
       writeIFDEntry(ifdBuffer,charView,ROWS_PER_STRIP, (char) 3, 1, imageHeight_);
       writeIFDEntry(ifdBuffer,charView,STRIP_BYTE_COUNTS, (char) 4, 1, bytesPerImagePixels_ );
-      writeIFDEntry(ifdBuffer,charView,X_RESOLUTION, (char)5, 1, tagDataOffset);
-      tagDataOffset += 8;
-      writeIFDEntry(ifdBuffer,charView,Y_RESOLUTION, (char)5, 1, tagDataOffset);
-      tagDataOffset += 8;
+      tagDataOffset = writeResolutionEntry(ifdBuffer, charView, X_RESOLUTION, tagDataOffset);
+      tagDataOffset = writeResolutionEntry(ifdBuffer, charView, Y_RESOLUTION, tagDataOffset);
       writeIFDEntry(ifdBuffer,charView,RESOLUTION_UNIT, (char) 3,1,3);
       if (firstIFD_) {         
          ijMetadataCountsTagPosition_ = filePosition_ + bufferPosition_;
@@ -1002,20 +1367,14 @@ public class MultipageTiffWriter {
       }
       writeIFDEntry(ifdBuffer,charView,MM_METADATA,(char)2,mdBytes.length,tagDataOffset);
       tagDataOffset += mdBytes.length;
-      //NextIFDOffset
-      ifdBuffer.putInt(bufferPosition_, (int)tagDataOffset);
-      bufferPosition_ += 4;
-      
-      if (rgb_) {
-         charView.put(bufferPosition_/2,(char) (byteDepth_*8));
-         charView.put(bufferPosition_/2+1,(char) (byteDepth_*8));
-         charView.put(bufferPosition_/2+2,(char) (byteDepth_*8));
-      }
+      writeNextIFDOffsetAndBitDepth(ifdBuffer, charView, tagDataOffset);
       buffers_.add(ifdBuffer);
       if (!blankPixelsAlreadyWritten) {
          buffers_.add(ByteBuffer.wrap(new byte[bytesPerImagePixels_]));
       }
-      buffers_.add(getResolutionValuesBuffer());   
+      if (!bigTiff_) {
+         buffers_.add(getResolutionValuesBuffer());   
+      }
       buffers_.add(ByteBuffer.wrap(mdBytes));
       
       filePosition_ += totalBytes;
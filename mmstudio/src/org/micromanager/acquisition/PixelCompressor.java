@@ -0,0 +1,259 @@
+///////////////////////////////////////////////////////////////////////////////
+//FILE:          PixelCompressor.java
+//PROJECT:       Micro-Manager
+//SUBSYSTEM:     mmstudio
+//-----------------------------------------------------------------------------
+//
+// COPYRIGHT:    University of California, San Francisco, 2014
+//
+// LICENSE:      This file is distributed under the BSD license.
+//               License text is included with the source distribution.
+//
+//               This file is distributed in the hope that it will be useful,
+//               but WITHOUT ANY WARRANTY; without even the implied warranty
+//               of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+//
+//               IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+//               CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+//               INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES.
+//
+package org.micromanager.acquisition;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Lossless compression of the pixels of Image Stack Files: TIFF Deflate
+ * compression (compression 8) with horizontal differencing (predictor 2),
+ * which readers such as libtiff, Bio-Formats and ImageJ understand.
+ *
+ * Images can be compressed on a pool of worker threads shared by all data
+ * sets (submit()), so that compressing a batch of images runs in parallel
+ * ahead of the single thread writing each file.
+ */
+final class PixelCompressor {
+   static final char COMPRESSION_NONE = 1;
+   static final char COMPRESSION_DEFLATE = 8;
+   static final char PREDICTOR_NONE = 1;
+   static final char PREDICTOR_HORIZONTAL = 2;
+
+   // Fastest level: most of the gain of 16 bit images comes from the
+   // predictor, and higher levels cost far more time than they save space
+   private static final int LEVEL = Deflater.BEST_SPEED;
+
+   private static ExecutorService pool_;
+
+   private static final ThreadLocal<Deflater> deflater_ = new ThreadLocal<Deflater>() {
+      @Override
+      protected Deflater initialValue() {
+         return new Deflater(LEVEL);
+      }
+   };
+
+   private final int width_;
+   private final int bytesPerSample_;
+   private final int samplesPerPixel_;
+   private final int bytesPerImage_;
+   private final ByteOrder order_;
+   private final AtomicLong bytesIn_ = new AtomicLong();
+   private final AtomicLong bytesOut_ = new AtomicLong();
+   private final AtomicLong compressingNs_ = new AtomicLong();
+
+   /**
+    * @param bytesPerSample 1 or 2
+    * @param samplesPerPixel 1, or 3 for RGB
+    * @param order byte order of the samples in the file
+    */
+   PixelCompressor(int width, int height, int bytesPerSample,
+         int samplesPerPixel, ByteOrder order) {
+      width_ = width;
+      bytesPerSample_ = bytesPerSample;
+      samplesPerPixel_ = samplesPerPixel;
+      bytesPerImage_ = width * height * bytesPerSample * samplesPerPixel;
+      order_ = order;
+   }
+
+   private static synchronized ExecutorService getPool() {
+      if (pool_ == null) {
+         final AtomicInteger count = new AtomicInteger();
+         pool_ = Executors.newFixedThreadPool(
+               Math.max(1, Runtime.getRuntime().availableProcessors() - 1),
+               new ThreadFactory() {
+                  @Override
+                  public Thread newThread(Runnable r) {
+                     Thread thread = new Thread(r, "Image stack compressor "
+                           + count.getAndIncrement());
+                     thread.setDaemon(true);
+                     return thread;
+                  }
+               });
+      }
+      return pool_;
+   }
+
+   /**
+    * Compresses the pixels on the worker pool. The pixels must not change
+    * until the result has been obtained.
+    * @param pixels byte[], short[] or a ByteBuffer, laid out as written to
+    * the file
+    */
+   Future<ByteBuffer> submit(final Object pixels) {
+      return getPool().submit(new Callable<ByteBuffer>() {
+         @Override
+         public ByteBuffer call() {
+            return compress(pixels);
+         }
+      });
+   }
+
+   /**
+    * Compresses the pixels on the calling thread.
+    * @return a read-only buffer of the compressed pixels
+    */
+   ByteBuffer compress(Object pixels) {
+      long startNs = System.nanoTime();
+      byte[] predicted = new byte[bytesPerImage_];
+      ByteBuffer target = ByteBuffer.wrap(predicted).order(order_);
+      if (pixels instanceof byte[]) {
+         target.put((byte[]) pixels, 0, bytesPerImage_);
+      } else if (pixels instanceof short[]) {
+         target.asShortBuffer().put((short[]) pixels, 0, bytesPerImage_ / 2);
+      } else if (pixels instanceof ByteBuffer) {
+         ByteBuffer buffer = (ByteBuffer) pixels;
+         // duplicate() doesn't keep the byte order
+         ByteBuffer source = buffer.duplicate().order(buffer.order());
+         source.rewind();
+         if (bytesPerSample_ == 2 && buffer.order() != order_) {
+            target.asShortBuffer().put(source.asShortBuffer());
+         } else {
+            target.put(source);
+         }
+      } else {
+         throw new IllegalArgumentException("Unsupported pixel type: "
+               + pixels.getClass().getName());
+      }
+      predict(target);
+
+      Deflater deflater = deflater_.get();
+      deflater.reset();
+      deflater.setInput(predicted);
+      deflater.finish();
+      // Deflate expands incompressible data by a few bytes per 16 kB
+      byte[] output = new byte[bytesPerImage_ + bytesPerImage_ / 1000 + 64];
+      int length = 0;
+      while (!deflater.finished()) {
+         if (length == output.length) {
+            byte[] larger = new byte[output.length * 2];
+            System.arraycopy(output, 0, larger, 0, length);
+            output = larger;
+         }
+         length += deflater.deflate(output, length, output.length - length);
+      }
+      bytesIn_.addAndGet(bytesPerImage_);
+      bytesOut_.addAndGet(length);
+      compressingNs_.addAndGet(System.nanoTime() - startNs);
+      return ByteBuffer.wrap(output, 0, length).slice().asReadOnlyBuffer();
+   }
+
+   /*
+    * Replaces each sample by its difference to the previous sample of the
+    * same component in the row.
+    */
+   private void predict(ByteBuffer samples) {
+      int rowSamples = width_ * samplesPerPixel_;
+      int numRows = bytesPerImage_ / bytesPerSample_ / rowSamples;
+      for (int row = 0; row < numRows; row++) {
+         int start = row * rowSamples;
+         for (int i = rowSamples - 1; i >= samplesPerPixel_; i--) {
+            if (bytesPerSample_ == 1) {
+               samples.put(start + i, (byte) (samples.get(start + i)
+                     - samples.get(start + i - samplesPerPixel_)));
+            } else {
+               int index = 2 * (start + i);
+               samples.putShort(index, (short) (samples.getShort(index)
+                     - samples.getShort(index - 2 * samplesPerPixel_)));
+            }
+         }
+      }
+   }
+
+   /**
+    * Decompresses the pixels of an image compressed with Deflate, undoing
+    * the predictor.
+    * @param compressed the compressed strip
+    * @param bytesPerImage size of the uncompressed pixels
+    * @param predictor the predictor tag of the image
+    * @param order byte order of the file
+    */
+   static ByteBuffer decompress(byte[] compressed, int width, int bytesPerSample,
+         int samplesPerPixel, int bytesPerImage, int predictor, ByteOrder order)
+         throws DataFormatException {
+      Inflater inflater = new Inflater();
+      byte[] pixels = new byte[bytesPerImage];
+      try {
+         inflater.setInput(compressed);
+         int length = 0;
+         while (length < bytesPerImage && !inflater.finished()) {
+            int n = inflater.inflate(pixels, length, bytesPerImage - length);
+            if (n == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+               throw new DataFormatException("Truncated compressed pixels");
+            }
+            length += n;
+         }
+      } finally {
+         inflater.end();
+      }
+      ByteBuffer samples = ByteBuffer.wrap(pixels).order(order);
+      if (predictor == PREDICTOR_HORIZONTAL) {
+         int rowSamples = width * samplesPerPixel;
+         int numRows = bytesPerImage / bytesPerSample / rowSamples;
+         for (int row = 0; row < numRows; row++) {
+            int start = row * rowSamples;
+            for (int i = samplesPerPixel; i < rowSamples; i++) {
+               if (bytesPerSample == 1) {
+                  pixels[start + i] += pixels[start + i - samplesPerPixel];
+               } else {
+                  int index = 2 * (start + i);
+                  samples.putShort(index, (short) (samples.getShort(index)
+                        + samples.getShort(index - 2 * samplesPerPixel)));
+               }
+            }
+         }
+      }
+      return samples;
+   }
+
+   /**
+    * Whether images with samples of this size can be compressed.
+    */
+   static boolean canCompress(int bytesPerSample) {
+      return bytesPerSample == 1 || bytesPerSample == 2;
+   }
+
+   boolean isRGB() {
+      return samplesPerPixel_ == 3;
+   }
+
+   double getRatio() {
+      long out = bytesOut_.get();
+      return out == 0 ? 0 : bytesIn_.get() / (double) out;
+   }
+
+   @Override
+   public String toString() {
+      long ns = compressingNs_.get();
+      return String.format("Compressor: %.1f MB in, ratio %.2f, %.1f MB/s per thread",
+            bytesIn_.get() / 1048576.0, getRatio(),
+            ns == 0 ? 0 : bytesIn_.get() / 1048576.0 / (ns / 1e9));
+   }
+}
@@ -26,6 +26,7 @@ import java.util.concurrent.LinkedBlockingQueue;
 import mmcorej.TaggedImage;
 import org.micromanager.api.DataProcessor;
 import org.micromanager.utils.ReportingUtils;
+import org.micromanager.utils.RingBufferQueue;
 
 /**
  * Sets up a queue of DataProcessors
@@ -33,16 +34,31 @@ import org.micromanager.utils.ReportingUtils;
  * inputqueue, and return an output queue.  The net result is that each 
  * DataProcessor will modify the image and pass it along to the next 
  * DataProcessor
+ * Stateless DataProcessors are run by several threads; images still leave
+ * each DataProcessor in the order they entered it.
+ * The queues between processors are either LinkedBlockingQueues or, if
+ * requested, preallocated RingBufferQueues.
  *
  * @author arthur
  */
 public class ProcessorStack<E> {
 
+   // Capacity of the queues between processors
+   private static int queueDepth_ = 1;
+   // Upper bound on the number of workers of a stateless processor
+   private static int maxWorkersPerStage_ =
+         Runtime.getRuntime().availableProcessors();
+
    private final List<DataProcessor<E>> processors_;
    private final BlockingQueue<E> input_;
    private final BlockingQueue<E> output_;
    public ProcessorStack(BlockingQueue<E> input,
            List<DataProcessor<E>> processors) {
+      this(input, processors, false);
+   }
+
+   public ProcessorStack(BlockingQueue<E> input,
+           List<DataProcessor<E>> processors, boolean useRingBuffers) {
       processors_ = processors;
       input_ = input;
 
@@ -51,7 +67,15 @@ public class ProcessorStack<E> {
       if (processors_ != null) {
          for (DataProcessor<E> processor : processors_) {
             if (processor.getIsEnabled()) {
-               right = new LinkedBlockingQueue<E>(1);
+               int workers = processor.isStateless() ? getMaxWorkersPerStage() : 1;
+               processor.setNumberOfWorkers(workers);
+               // Leave room for every worker to hand over an image
+               int capacity = Math.max(getQueueDepth(), workers);
+               if (useRingBuffers) {
+                  right = new RingBufferQueue<E>(capacity);
+               } else {
+                  right = new LinkedBlockingQueue<E>(capacity);
+               }
                processor.setInput(left);
                processor.setOutput(right);
                left = right;
@@ -81,6 +105,34 @@ public class ProcessorStack<E> {
 
    private static Object processorInputOutputLock_ = new Object();
 
+   /**
+    * Sets the capacity of the queues connecting DataProcessors in stacks
+    * created from now on. Deeper queues let processors with uneven
+    * processing times overlap, at the cost of memory for queued images.
+    * @param depth number of images, at least 1
+    */
+   public static synchronized void setQueueDepth(int depth) {
+      queueDepth_ = Math.max(1, depth);
+   }
+
+   public static synchronized int getQueueDepth() {
+      return queueDepth_;
+   }
+
+   /**
+    * Sets the number of threads that run each stateless DataProcessor (see
+    * DataProcessor.isStateless()). Takes effect for processors that have not
+    * been started yet.
+    * @param workers number of threads, at least 1
+    */
+   public static synchronized void setMaxWorkersPerStage(int workers) {
+      maxWorkersPerStage_ = Math.max(1, workers);
+   }
+
+   public static synchronized int getMaxWorkersPerStage() {
+      return maxWorkersPerStage_;
+   }
+
    /**
     * Sets up the DataProcessor<TaggedImage> sequence
     * @param inputTaggedImageQueue
@@ -90,9 +142,24 @@ public class ProcessorStack<E> {
    public static BlockingQueue<TaggedImage> run(
            BlockingQueue<TaggedImage> inputTaggedImageQueue, 
            List<DataProcessor<TaggedImage>> imageProcessors) {
+      return run(inputTaggedImageQueue, imageProcessors, false);
+   }
+
+   /**
+    * Sets up the DataProcessor<TaggedImage> sequence
+    * @param inputTaggedImageQueue
+    * @param imageProcessors
+    * @param useRingBuffers connect the processors with RingBufferQueues
+    * @return 
+    */
+   public static BlockingQueue<TaggedImage> run(
+           BlockingQueue<TaggedImage> inputTaggedImageQueue, 
+           List<DataProcessor<TaggedImage>> imageProcessors,
+           boolean useRingBuffers) {
       synchronized(processorInputOutputLock_) {
          ProcessorStack<TaggedImage> processorStack =
-              new ProcessorStack<TaggedImage>(inputTaggedImageQueue, imageProcessors);
+              new ProcessorStack<TaggedImage>(inputTaggedImageQueue,
+                    imageProcessors, useRingBuffers);
          return processorStack.begin();
       }
    }
@@ -0,0 +1,926 @@
+///////////////////////////////////////////////////////////////////////////////
+//FILE:          TaggedImageStorageChunked.java
+//PROJECT:       Micro-Manager
+//SUBSYSTEM:     mmstudio
+//-----------------------------------------------------------------------------
+//
+// COPYRIGHT:    University of California, San Francisco, 2014
+//
+// LICENSE:      This file is distributed under the BSD license.
+//               License text is included with the source distribution.
+//
+//               This file is distributed in the hope that it will be useful,
+//               but WITHOUT ANY WARRANTY; without even the implied warranty
+//               of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+//
+//               IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+//               CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+//               INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES.
+//
+package org.micromanager.acquisition;
+
+import java.awt.Rectangle;
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+import mmcorej.TaggedImage;
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.micromanager.api.BatchingTaggedImageStorage;
+import org.micromanager.utils.ImageLabelComparator;
+import org.micromanager.utils.JavaUtils;
+import org.micromanager.utils.MDUtils;
+import org.micromanager.utils.MMException;
+import org.micromanager.utils.PipelineMonitor;
+import org.micromanager.utils.ReportingUtils;
+
+/**
+ * Stores a data set in a directory of chunks, like N5 or Zarr, so that a
+ * crop of the images or a kymograph can be read without reading whole
+ * images.
+ *
+ * The data set is an array with the axes (channel, slice, frame, position,
+ * y, x), cut into chunks of a configurable shape. The chunks of the same
+ * channel, slice, frame and position ranges form a block, stored as the
+ * directory "c.z.t.p" (block indices) holding one file "y.x" per chunk.
+ * Each file holds the chunk's samples in little endian, in the order of the
+ * axes, padded to the full chunk shape and optionally Deflate-compressed.
+ * attributes.json describes the layout; the tags of each image are appended
+ * to tags.txt.
+ *
+ * Blocks are assembled in memory and written once they are complete (or when
+ * too much data is waiting), by several writing threads. Images arriving for
+ * a block already written are merged into the block read back from disk.
+ */
+public class TaggedImageStorageChunked implements BatchingTaggedImageStorage {
+   public static final String ATTRIBUTES_FILE = "attributes.json";
+   public static final String TAGS_FILE = "tags.txt";
+   private static final String DISPLAY_FILE = "display_and_comments.txt";
+   private static final String[] AXES = {"channel", "slice", "frame", "position", "y", "x"};
+   private static final ByteOrder ORDER = ByteOrder.LITTLE_ENDIAN;
+   // Write the oldest incomplete blocks once this much data is waiting
+   private static final long MAX_PENDING_BYTES = 256L * 1024 * 1024;
+   private static final long TILE_CACHE_BYTES = 64L * 1024 * 1024;
+
+   // Settings for data sets created from now on
+   private static int[] chunkShape_ = {1, 1, 16, 1, 512, 512};
+   private static volatile boolean compressChunks_ = false;
+   private static int writingThreads_ =
+         Math.max(1, Math.min(4, Runtime.getRuntime().availableProcessors()));
+
+   private final String dir_;
+   private boolean newDataSet_;
+   private JSONObject summaryMetadata_;
+   private JSONObject displaySettings_;
+   private int lastFrame_ = -1;
+
+   // Layout, set by the first image or read from attributes.json
+   private int[] shape_;
+   private boolean compressed_;
+   private String pixelType_;
+   private int width_, height_;
+   private int bytesPerPixel_, bytesPerSample_;
+   private int tilesX_, tilesY_;
+   private int planeTileBytes_, tileBytes_;
+   // Number of channels, slices, frames and positions (0 if unknown)
+   private final int[] extents_ = new int[4];
+   private final int[] maxIndices_ = {-1, -1, -1, -1};
+
+   // Label -> tags of each image
+   private final ConcurrentSkipListMap<String, String> tags_ =
+         new ConcurrentSkipListMap<String, String>(new ImageLabelComparator());
+   private Writer tagsWriter_;
+
+   // Blocks being assembled, oldest first, and the images they received
+   private final LinkedHashMap<String, byte[][]> pendingBlocks_ =
+         new LinkedHashMap<String, byte[][]>();
+   private final Map<String, Integer> imagesInBlock_ = new HashMap<String, Integer>();
+   // Chunks handed to the writing threads but not yet on disk
+   private final ConcurrentHashMap<String, byte[]> writingChunks_ =
+         new ConcurrentHashMap<String, byte[]>();
+   private LinkedHashMap<String, byte[]> chunkCache_;
+   private TaggedImageStorageMultipageTiff.WritingLane[] lanes_;
+
+   public TaggedImageStorageChunked(String dir, Boolean newDataSet,
+         JSONObject summaryMetadata) throws IOException {
+      dir_ = dir;
+      newDataSet_ = newDataSet;
+      displaySettings_ = new JSONObject();
+      setSummaryMetadata(summaryMetadata);
+      if (!newDataSet_) {
+         openExistingDataSet();
+      }
+   }
+
+   /**
+    * Returns true if dir holds a data set saved by this class.
+    */
+   public static boolean isChunkedDataSet(String dir) {
+      return new File(dir, ATTRIBUTES_FILE).exists();
+   }
+
+   /**
+    * Sets the chunk shape of data sets created from now on.
+    * @param shape chunk extent along channel, slice, frame, position, y and x
+    */
+   public static synchronized void setChunkShape(int[] shape) {
+      if (shape == null || shape.length != AXES.length) {
+         throw new IllegalArgumentException("Chunk shape needs " + AXES.length + " extents");
+      }
+      for (int extent : shape) {
+         if (extent < 1) {
+            throw new IllegalArgumentException("Chunk extents must be at least 1");
+         }
+      }
+      chunkShape_ = shape.clone();
+   }
+
+   public static synchronized int[] getChunkShape() {
+      return chunkShape_.clone();
+   }
+
+   /**
+    * Parses a chunk shape written as comma separated extents, e.g.
+    * "1,1,16,1,512,512".
+    */
+   public static int[] parseChunkShape(String text) {
+      String[] parts = text.split(",");
+      int[] shape = new int[parts.length];
+      for (int i = 0; i < parts.length; i++) {
+         shape[i] = Integer.parseInt(parts[i].trim());
+      }
+      return shape;
+   }
+
+   public static String formatChunkShape(int[] shape) {
+      StringBuilder text = new StringBuilder();
+      for (int i = 0; i < shape.length; i++) {
+         text.append(i == 0 ? "" : ",").append(shape[i]);
+      }
+      return text.toString();
+   }
+
+   public static void setCompression(boolean compress) {
+      compressChunks_ = compress;
+   }
+
+   public static boolean getCompression() {
+      return compressChunks_;
+   }
+
+   /**
+    * Sets the number of threads writing the chunks of each data set created
+    * from now on.
+    */
+   public static synchronized void setWritingThreads(int threads) {
+      writingThreads_ = Math.max(1, threads);
+   }
+
+   public static synchronized int getWritingThreads() {
+      return writingThreads_;
+   }
+
+   /*
+    * Sets up the layout for images like image.
+    */
+   private void initializeLayout(JSONObject tags, int[] shape, boolean compressed)
+         throws IOException {
+      try {
+         pixelType_ = MDUtils.getPixelType(tags);
+         width_ = MDUtils.getWidth(tags);
+         height_ = MDUtils.getHeight(tags);
+      } catch (Exception ex) {
+         throw new IOException("Image size and type unknown: " + ex.getMessage());
+      }
+      if (pixelType_.equals("GRAY8")) {
+         bytesPerPixel_ = bytesPerSample_ = 1;
+      } else if (pixelType_.equals("GRAY16")) {
+         bytesPerPixel_ = bytesPerSample_ = 2;
+      } else if (pixelType_.equals("GRAY32")) {
+         bytesPerPixel_ = bytesPerSample_ = 4;
+      } else if (pixelType_.equals("RGB32")) {
+         bytesPerPixel_ = 4;
+         bytesPerSample_ = 1;
+      } else if (pixelType_.equals("RGB64")) {
+         bytesPerPixel_ = 8;
+         bytesPerSample_ = 2;
+      } else {
+         throw new IOException("Unsupported pixel type: " + pixelType_);
+      }
+      shape_ = shape.clone();
+      // Chunks needn't be larger than the images
+      shape_[4] = Math.min(shape_[4], height_);
+      shape_[5] = Math.min(shape_[5], width_);
+      compressed_ = compressed;
+      tilesY_ = (height_ + shape_[4] - 1) / shape_[4];
+      tilesX_ = (width_ + shape_[5] - 1) / shape_[5];
+      planeTileBytes_ = shape_[4] * shape_[5] * bytesPerPixel_;
+      tileBytes_ = planeTileBytes_ * shape_[0] * shape_[1] * shape_[2] * shape_[3];
+      final long maxCachedChunks = Math.max(4, TILE_CACHE_BYTES / tileBytes_);
+      chunkCache_ = new LinkedHashMap<String, byte[]>(16, 0.75f, true) {
+         @Override
+         protected boolean removeEldestEntry(Map.Entry<String, byte[]> eldest) {
+            return size() > maxCachedChunks;
+         }
+      };
+   }
+
+   private void readExtents() {
+      if (summaryMetadata_ == null) {
+         return;
+      }
+      try {
+         extents_[0] = MDUtils.getNumChannels(summaryMetadata_);
+         extents_[1] = MDUtils.getNumSlices(summaryMetadata_);
+         extents_[2] = MDUtils.getNumFrames(summaryMetadata_);
+         extents_[3] = summaryMetadata_.optInt("Positions", 0);
+      } catch (JSONException ex) {
+         // Blocks are then written when full or when the data set is finished
+      }
+   }
+
+   /*
+    * Creates the directory and files of a new data set on its first image.
+    */
+   private void openNewDataSet(TaggedImage firstImage) throws IOException {
+      initializeLayout(firstImage.tags, getChunkShape(), getCompression());
+      readExtents();
+      try {
+         JavaUtils.createDirectory(dir_);
+      } catch (Exception ex) {
+         throw new IOException("Unable to create " + dir_);
+      }
+      writeAttributes();
+      tagsWriter_ = new BufferedWriter(new OutputStreamWriter(
+            new FileOutputStream(new File(dir_, TAGS_FILE)), "UTF-8"));
+      int numLanes = getWritingThreads();
+      lanes_ = new TaggedImageStorageMultipageTiff.WritingLane[numLanes];
+      for (int i = 0; i < numLanes; i++) {
+         lanes_[i] = new TaggedImageStorageMultipageTiff.WritingLane(i, "Chunk writer");
+      }
+   }
+
+   private void writeAttributes() throws IOException {
+      try {
+         JSONObject attributes = new JSONObject();
+         attributes.put("axes", new JSONArray(Arrays.asList(AXES)));
+         JSONArray shape = new JSONArray();
+         JSONArray dimensions = new JSONArray();
+         for (int i = 0; i < 4; i++) {
+            shape.put(shape_[i]);
+            dimensions.put(Math.max(extents_[i], maxIndices_[i] + 1));
+         }
+         shape.put(shape_[4]).put(shape_[5]);
+         dimensions.put(height_).put(width_);
+         attributes.put("chunkShape", shape);
+         attributes.put("dimensions", dimensions);
+         attributes.put("PixelType", pixelType_);
+         attributes.put("byteOrder", "little-endian");
+         attributes.put("compression", compressed_ ? "deflate" : "raw");
+         if (summaryMetadata_ != null) {
+            attributes.put("Summary", summaryMetadata_);
+         }
+         Writer writer = new FileWriter(new File(dir_, ATTRIBUTES_FILE));
+         try {
+            writer.write(attributes.toString(2));
+         } finally {
+            writer.close();
+         }
+      } catch (JSONException ex) {
+         throw new IOException("Unable to write " + ATTRIBUTES_FILE + ": " + ex.getMessage());
+      }
+   }
+
+   private void openExistingDataSet() throws IOException {
+      try {
+         JSONObject attributes = new JSONObject(
+               JavaUtils.readTextFile(new File(dir_, ATTRIBUTES_FILE).getPath()));
+         if (attributes.has("Summary")) {
+            setSummaryMetadata(attributes.getJSONObject("Summary"));
+         }
+         JSONArray shapeArray = attributes.getJSONArray("chunkShape");
+         JSONArray dimensions = attributes.getJSONArray("dimensions");
+         int[] shape = new int[AXES.length];
+         for (int i = 0; i < shape.length; i++) {
+            shape[i] = shapeArray.getInt(i);
+         }
+         JSONObject layout = new JSONObject();
+         layout.put("PixelType", attributes.getString("PixelType"));
+         layout.put("Height", dimensions.getInt(4));
+         layout.put("Width", dimensions.getInt(5));
+         initializeLayout(layout, shape, attributes.getString("compression").equals("deflate"));
+         for (int i = 0; i < 4; i++) {
+            extents_[i] = dimensions.getInt(i);
+         }
+      } catch (JSONException ex) {
+         throw new IOException("Unreadable " + ATTRIBUTES_FILE + ": " + ex.getMessage());
+      } catch (NullPointerException ex) {
+         throw new IOException("No " + ATTRIBUTES_FILE + " found in " + dir_);
+      }
+      File tagsFile = new File(dir_, TAGS_FILE);
+      if (tagsFile.exists()) {
+         BufferedReader reader = new BufferedReader(new FileReader(tagsFile));
+         try {
+            String line;
+            while ((line = reader.readLine()) != null) {
+               int tab = line.indexOf('\t');
+               // A line cut short by a crash has no use
+               if (tab > 0 && line.endsWith("}")) {
+                  String label = line.substring(0, tab);
+                  tags_.put(label, line.substring(tab + 1));
+                  lastFrame_ = Math.max(lastFrame_, MDUtils.getIndices(label)[2]);
+               }
+            }
+         } finally {
+            reader.close();
+         }
+      }
+      readDisplaySettings();
+   }
+
+   @Override
+   public void putImage(TaggedImage taggedImage) throws MMException, IOException {
+      addImage(taggedImage);
+      flushTags();
+   }
+
+   /*
+    * Like putImage() for each image, but the tags file is flushed once.
+    */
+   @Override
+   public void putImages(List<TaggedImage> taggedImages) throws MMException, IOException {
+      for (TaggedImage taggedImage : taggedImages) {
+         addImage(taggedImage);
+      }
+      flushTags();
+   }
+
+   private void addImage(TaggedImage taggedImage) throws MMException, IOException {
+      if (!newDataSet_) {
+         ReportingUtils.showError("Tried to write image to a finished data set");
+         throw new MMException("This ImageFileManager is read-only.");
+      }
+      JSONObject tags = taggedImage.tags;
+      int[] indices = new int[4];
+      try {
+         indices[0] = MDUtils.getChannelIndex(tags);
+         indices[1] = MDUtils.getSliceIndex(tags);
+         indices[2] = MDUtils.getFrameIndex(tags);
+         indices[3] = MDUtils.getPositionIndex(tags);
+      } catch (JSONException ex) {
+         throw new MMException("Image indices missing: " + ex.getMessage());
+      }
+      String label = MDUtils.generateLabel(indices[0], indices[1], indices[2], indices[3]);
+      synchronized (this) {
+         if (lanes_ == null) {
+            openNewDataSet(taggedImage);
+         }
+         ByteBuffer plane = getPlane(taggedImage.pix);
+         String blockKey = getBlockKey(indices);
+         byte[][] block = pendingBlocks_.get(blockKey);
+         if (block == null) {
+            block = loadBlock(blockKey);
+            pendingBlocks_.put(blockKey, block);
+         }
+         copyPlaneToBlock(plane, block, getPlaneOffset(indices));
+         String tagsText = tags.toString();
+         tagsWriter_.write(label + "\t" + tagsText + "\n");
+         boolean newImage = tags_.put(label, tagsText) == null;
+         for (int i = 0; i < 4; i++) {
+            maxIndices_[i] = Math.max(maxIndices_[i], indices[i]);
+         }
+         lastFrame_ = Math.max(lastFrame_, indices[2]);
+
+         int count = imagesInBlock_.containsKey(blockKey) ? imagesInBlock_.get(blockKey) : 0;
+         if (newImage) {
+            imagesInBlock_.put(blockKey, ++count);
+         }
+         if (count == getExpectedImages(indices)) {
+            writeBlock(blockKey);
+         }
+         while (pendingBlocks_.size() > 1
+               && (long) pendingBlocks_.size() * tileBytes_ * tilesX_ * tilesY_ > MAX_PENDING_BYTES) {
+            writeBlock(pendingBlocks_.keySet().iterator().next());
+         }
+      }
+      // The pixels have been copied, so borrowed pixels can be returned
+      try {
+         taggedImage.release();
+      } catch (Exception ex) {
+         ReportingUtils.logError(ex, "Unable to release image");
+      }
+      PipelineMonitor.getInstance().getStage(PipelineMonitor.STORED)
+            .recordSince(PipelineMonitor.getPipelineStartNs(tags));
+   }
+
+   private synchronized void flushTags() throws IOException {
+      if (tagsWriter_ != null) {
+         tagsWriter_.flush();
+      }
+   }
+
+   private String getBlockKey(int[] indices) {
+      return (indices[0] / shape_[0]) + "." + (indices[1] / shape_[1]) + "."
+            + (indices[2] / shape_[2]) + "." + (indices[3] / shape_[3]);
+   }
+
+   private static String getChunkKey(String blockKey, int tileY, int tileX) {
+      return blockKey + File.separator + tileY + "." + tileX;
+   }
+
+   /*
+    * Offset of the image's samples in each chunk of its block.
+    */
+   private int getPlaneOffset(int[] indices) {
+      int plane = 0;
+      for (int i = 0; i < 4; i++) {
+         plane = plane * shape_[i] + indices[i] % shape_[i];
+      }
+      return plane * planeTileBytes_;
+   }
+
+   /*
+    * Returns the number of images that fill the block of the image with the
+    * given indices, or -1 if the size of the data set is unknown.
+    */
+   private int getExpectedImages(int[] indices) {
+      int count = 1;
+      for (int i = 0; i < 4; i++) {
+         int start = indices[i] / shape_[i] * shape_[i];
+         int extent = Math.min(shape_[i], extents_[i] - start);
+         if (extent <= 0) {
+            return -1;
+         }
+         count *= extent;
+      }
+      return count;
+   }
+
+   /*
+    * Returns the image's pixels in the sample order of the chunks.
+    */
+   private ByteBuffer getPlane(Object pix) throws IOException {
+      int length = width_ * height_ * bytesPerPixel_;
+      ByteBuffer plane;
+      if (pix instanceof byte[]) {
+         plane = ByteBuffer.wrap((byte[]) pix);
+      } else if (pix instanceof short[]) {
+         plane = ByteBuffer.allocate(length).order(ORDER);
+         plane.asShortBuffer().put((short[]) pix);
+      } else if (pix instanceof float[]) {
+         plane = ByteBuffer.allocate(length).order(ORDER);
+         plane.asFloatBuffer().put((float[]) pix);
+      } else if (pix instanceof ByteBuffer) {
+         ByteBuffer buffer = (ByteBuffer) pix;
+         // duplicate() doesn't keep the byte order
+         plane = buffer.duplicate().order(buffer.order());
+         plane.rewind();
+         if (bytesPerSample_ > 1 && buffer.order() != ORDER) {
+            ByteBuffer swapped = ByteBuffer.allocate(length).order(ORDER);
+            if (bytesPerSample_ == 2) {
+               swapped.asShortBuffer().put(plane.asShortBuffer());
+            } else {
+               swapped.asIntBuffer().put(plane.asIntBuffer());
+            }
+            plane = swapped;
+         }
+      } else {
+         throw new IOException("Unsupported pixels: "
+               + (pix == null ? "null" : pix.getClass().getName()));
+      }
+      if (plane.remaining() < length) {
+         throw new IOException("Image smaller than " + width_ + "x" + height_);
+      }
+      return plane;
+   }
+
+   private void copyPlaneToBlock(ByteBuffer plane, byte[][] block, int planeOffset) {
+      int tileWidth = shape_[5], tileHeight = shape_[4];
+      for (int tileY = 0; tileY < tilesY_; tileY++) {
+         for (int tileX = 0; tileX < tilesX_; tileX++) {
+            byte[] chunk = block[tileY * tilesX_ + tileX];
+            int x0 = tileX * tileWidth, y0 = tileY * tileHeight;
+            int rowBytes = Math.min(tileWidth, width_ - x0) * bytesPerPixel_;
+            int rows = Math.min(tileHeight, height_ - y0);
+            for (int row = 0; row < rows; row++) {
+               plane.position(((y0 + row) * width_ + x0) * bytesPerPixel_);
+               plane.get(chunk, planeOffset + row * tileWidth * bytesPerPixel_, rowBytes);
+            }
+         }
+      }
+   }
+
+   /*
+    * Returns the chunks of the block as far as they have been written, for
+    * more images to be added.
+    */
+   private byte[][] loadBlock(String blockKey) throws IOException {
+      byte[][] block = new byte[tilesY_ * tilesX_][];
+      for (int tileY = 0; tileY < tilesY_; tileY++) {
+         for (int tileX = 0; tileX < tilesX_; tileX++) {
+            String chunkKey = getChunkKey(blockKey, tileY, tileX);
+            byte[] chunk = writingChunks_.get(chunkKey);
+            if (chunk != null) {
+               chunk = chunk.clone();
+            } else if (imagesInBlock_.containsKey(blockKey)) {
+               chunk = readChunk(chunkKey);
+            }
+            block[tileY * tilesX_ + tileX] = chunk != null ? chunk : new byte[tileBytes_];
+         }
+      }
+      return block;
+   }
+
+   /*
+    * Hands the block to its writing thread. The chunks of a block always
+    * go to the same thread, so that a block written twice ends up with
+    * the last version.
+    */
+   private void writeBlock(String blockKey) {
+      byte[][] block = pendingBlocks_.remove(blockKey);
+      if (block == null) {
+         return;
+      }
+      final TaggedImageStorageMultipageTiff.WritingLane lane =
+            lanes_[(blockKey.hashCode() & Integer.MAX_VALUE) % lanes_.length];
+      final File blockDir = new File(dir_, blockKey);
+      for (int tileY = 0; tileY < tilesY_; tileY++) {
+         for (int tileX = 0; tileX < tilesX_; tileX++) {
+            final String chunkKey = getChunkKey(blockKey, tileY, tileX);
+            final byte[] chunk = block[tileY * tilesX_ + tileX];
+            writingChunks_.put(chunkKey, chunk);
+            synchronized (chunkCache_) {
+               chunkCache_.remove(chunkKey);
+            }
+            lane.execute(new Runnable() {
+               @Override
+               public void run() {
+                  long startNs = System.nanoTime();
+                  try {
+                     blockDir.mkdirs();
+                     lane.recordWrite(writeChunk(new File(dir_, chunkKey), chunk), startNs);
+                  } catch (IOException ex) {
+                     ReportingUtils.logError(ex, "Unable to write chunk " + chunkKey);
+                  } finally {
+                     // Unless a newer version is being written already
+                     writingChunks_.remove(chunkKey, chunk);
+                  }
+               }
+            });
+         }
+      }
+   }
+
+   /*
+    * Writes the chunk under a temporary name first, so that the file is
+    * always complete.
+    * @return the number of bytes written
+    */
+   private long writeChunk(File file, byte[] chunk) throws IOException {
+      File temp = new File(file.getPath() + ".tmp");
+      Deflater deflater = compressed_ ? new Deflater(Deflater.BEST_SPEED) : null;
+      OutputStream out = new BufferedOutputStream(new FileOutputStream(temp), 1 << 16);
+      try {
+         if (deflater != null) {
+            out = new DeflaterOutputStream(out, deflater, 1 << 16);
+         }
+         out.write(chunk);
+      } finally {
+         out.close();
+         if (deflater != null) {
+            deflater.end();
+         }
+      }
+      if (!temp.renameTo(file)) {
+         // Windows doesn't replace existing files
+         file.delete();
+         if (!temp.renameTo(file)) {
+            throw new IOException("Unable to rename " + temp);
+         }
+      }
+      return file.length();
+   }
+
+   private byte[] readChunk(String chunkKey) throws IOException {
+      File file = new File(dir_, chunkKey);
+      if (!file.exists()) {
+         return null;
+      }
+      InputStream in = new FileInputStream(file);
+      if (compressed_) {
+         in = new InflaterInputStream(in, new Inflater(), 1 << 16);
+      }
+      DataInputStream data = new DataInputStream(in);
+      try {
+         byte[] chunk = new byte[tileBytes_];
+         data.readFully(chunk);
+         return chunk;
+      } finally {
+         data.close();
+      }
+   }
+
+   /*
+    * Returns the current contents of the chunk, or null if it holds no
+    * images.
+    */
+   private byte[] getChunk(String blockKey, int tileY, int tileX) throws IOException {
+      synchronized (this) {
+         byte[][] block = pendingBlocks_.get(blockKey);
+         if (block != null) {
+            // The samples of images already added no longer change
+            return block[tileY * tilesX_ + tileX];
+         }
+      }
+      String chunkKey = getChunkKey(blockKey, tileY, tileX);
+      byte[] chunk = writingChunks_.get(chunkKey);
+      if (chunk != null) {
+         return chunk;
+      }
+      synchronized (chunkCache_) {
+         chunk = chunkCache_.get(chunkKey);
+      }
+      if (chunk == null) {
+         chunk = readChunk(chunkKey);
+         if (chunk != null) {
+            synchronized (chunkCache_) {
+               chunkCache_.put(chunkKey, chunk);
+            }
+         }
+      }
+      return chunk;
+   }
+
+   /**
+    * Reads the pixels within roi of an image, reading only the chunks that
+    * overlap roi.
+    * @return the pixels, of the same type as those of getImage(), or null if
+    * there is no such image
+    */
+   public Object getRegion(int channel, int slice, int frame, int position,
+         Rectangle roi) {
+      if (shape_ == null || !tags_.containsKey(
+            MDUtils.generateLabel(channel, slice, frame, position))) {
+         return null;
+      }
+      Rectangle bounds = roi.intersection(new Rectangle(0, 0, width_, height_));
+      if (bounds.isEmpty()) {
+         return null;
+      }
+      int[] indices = {channel, slice, frame, position};
+      String blockKey = getBlockKey(indices);
+      int planeOffset = getPlaneOffset(indices);
+      int tileWidth = shape_[5], tileHeight = shape_[4];
+      byte[] samples = new byte[bounds.width * bounds.height * bytesPerPixel_];
+      try {
+         for (int tileY = bounds.y / tileHeight;
+               tileY <= (bounds.y + bounds.height - 1) / tileHeight; tileY++) {
+            for (int tileX = bounds.x / tileWidth;
+                  tileX <= (bounds.x + bounds.width - 1) / tileWidth; tileX++) {
+               byte[] chunk = getChunk(blockKey, tileY, tileX);
+               if (chunk == null) {
+                  continue;
+               }
+               int x0 = Math.max(bounds.x, tileX * tileWidth);
+               int x1 = Math.min(bounds.x + bounds.width, (tileX + 1) * tileWidth);
+               int y0 = Math.max(bounds.y, tileY * tileHeight);
+               int y1 = Math.min(bounds.y + bounds.height, (tileY + 1) * tileHeight);
+               for (int y = y0; y < y1; y++) {
+                  System.arraycopy(chunk, planeOffset
+                        + ((y - tileY * tileHeight) * tileWidth + x0 - tileX * tileWidth) * bytesPerPixel_,
+                        samples, ((y - bounds.y) * bounds.width + x0 - bounds.x) * bytesPerPixel_,
+                        (x1 - x0) * bytesPerPixel_);
+               }
+            }
+         }
+      } catch (IOException ex) {
+         ReportingUtils.logError(ex, "Unable to read chunk");
+         return null;
+      }
+      return toPixels(samples);
+   }
+
+   /**
+    * Reads the pixels within roi of all frames of a channel, slice and
+    * position, e.g. to make a kymograph. Each chunk is read once.
+    * @return the pixels of each frame (null for frames without an image)
+    */
+   public List<Object> getTimeSeries(int channel, int slice, int position,
+         Rectangle roi) {
+      List<Object> series = new ArrayList<Object>();
+      for (int frame = 0; frame <= lastFrame_; frame++) {
+         series.add(getRegion(channel, slice, frame, position, roi));
+      }
+      return series;
+   }
+
+   private Object toPixels(byte[] samples) {
+      if (bytesPerSample_ == 1) {
+         return samples;
+      }
+      ByteBuffer buffer = ByteBuffer.wrap(samples).order(ORDER);
+      if (bytesPerSample_ == 2) {
+         short[] pixels = new short[samples.length / 2];
+         buffer.asShortBuffer().get(pixels);
+         return pixels;
+      }
+      float[] pixels = new float[samples.length / 4];
+      buffer.asFloatBuffer().get(pixels);
+      return pixels;
+   }
+
+   @Override
+   public TaggedImage getImage(int channel, int slice, int frame, int position) {
+      JSONObject tags = getImageTags(channel, slice, frame, position);
+      if (tags == null) {
+         return null;
+      }
+      Object pixels = getRegion(channel, slice, frame, position,
+            new Rectangle(0, 0, width_, height_));
+      return pixels == null ? null : new TaggedImage(pixels, tags);
+   }
+
+   @Override
+   public JSONObject getImageTags(int channel, int slice, int frame, int position) {
+      String tags = tags_.get(MDUtils.generateLabel(channel, slice, frame, position));
+      if (tags == null) {
+         return null;
+      }
+      try {
+         return new JSONObject(tags);
+      } catch (JSONException ex) {
+         ReportingUtils.logError(ex);
+         return null;
+      }
+   }
+
+   @Override
+   public Set<String> imageKeys() {
+      return tags_.keySet();
+   }
+
+   /**
+    * Call this function when no more images are expected
+    * Writes the remaining blocks and the attributes.
+    * After calling this function, the imagestorage is read-only
+    */
+   @Override
+   public synchronized void finished() {
+      if (!newDataSet_) {
+         return;
+      }
+      newDataSet_ = false;
+      if (lanes_ == null) {
+         return;
+      }
+      Iterator<String> blockKeys = new ArrayList<String>(pendingBlocks_.keySet()).iterator();
+      while (blockKeys.hasNext()) {
+         writeBlock(blockKeys.next());
+      }
+      StringBuilder report = new StringBuilder("Chunk writing:\n");
+      for (TaggedImageStorageMultipageTiff.WritingLane lane : lanes_) {
+         lane.shutdownAndWait();
+         report.append(lane).append("\n");
+      }
+      ReportingUtils.logMessage(report.toString());
+      try {
+         tagsWriter_.close();
+         writeAttributes();
+      } catch (IOException ex) {
+         ReportingUtils.logError(ex);
+      }
+   }
+
+   @Override
+   public boolean isFinished() {
+      return !newDataSet_;
+   }
+
+   @Override
+   public final void setSummaryMetadata(JSONObject md) {
+      summaryMetadata_ = md;
+      if (summaryMetadata_ != null) {
+         readExtents();
+      }
+   }
+
+   @Override
+   public JSONObject getSummaryMetadata() {
+      return summaryMetadata_;
+   }
+
+   @Override
+   public void setDisplayAndComments(JSONObject settings) {
+      displaySettings_ = settings;
+   }
+
+   @Override
+   public JSONObject getDisplayAndComments() {
+      return displaySettings_;
+   }
+
+   /**
+    * Stops the writing threads, letting them write the blocks handed to
+    * them, also if finished() wasn't called.
+    */
+   @Override
+   public synchronized void close() {
+      if (lanes_ != null) {
+         for (TaggedImageStorageMultipageTiff.WritingLane lane : lanes_) {
+            lane.shutdownAndWait();
+         }
+         if (newDataSet_) {
+            try {
+               tagsWriter_.close();
+            } catch (IOException ex) {
+               ReportingUtils.logError(ex);
+            }
+         }
+      }
+      writeDisplaySettings();
+   }
+
+   @Override
+   public String getDiskLocation() {
+      return dir_;
+   }
+
+   @Override
+   public int lastAcquiredFrame() {
+      return lastFrame_;
+   }
+
+   @Override
+   public long getDataSetSize() {
+      long size = 0;
+      File[] blockDirs = new File(dir_).listFiles();
+      if (blockDirs != null) {
+         for (File blockDir : blockDirs) {
+            File[] chunks = blockDir.listFiles();
+            if (chunks != null) {
+               for (File chunk : chunks) {
+                  size += chunk.length();
+               }
+            }
+         }
+      }
+      return size;
+   }
+
+   @Override
+   public void writeDisplaySettings() {
+      if (displaySettings_ == null || !new File(dir_).exists()) {
+         return;
+      }
+      try {
+         Writer writer = new FileWriter(new File(dir_, DISPLAY_FILE));
+         try {
+            writer.write(displaySettings_.toString(2));
+         } finally {
+            writer.close();
+         }
+      } catch (Exception ex) {
+         ReportingUtils.showError(ex);
+      }
+   }
+
+   private void readDisplaySettings() {
+      String path = new File(dir_, DISPLAY_FILE).getPath();
+      if (!new File(path).exists()) {
+         return;
+      }
+      try {
+         displaySettings_ = new JSONObject(JavaUtils.readTextFile(path));
+      } catch (JSONException ex) {
+         ReportingUtils.logError(ex);
+      }
+   }
+}
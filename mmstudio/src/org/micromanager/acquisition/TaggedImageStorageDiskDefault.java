@@ -16,8 +16,10 @@ import ij.process.ShortProcessor;
 import java.io.BufferedWriter;
 import java.io.File;
 import java.io.FileFilter;
+import java.io.FileOutputStream;
 import java.io.FileWriter;
 import java.io.IOException;
+import java.io.OutputStreamWriter;
 import java.io.Writer;
 import java.util.*;
 import mmcorej.TaggedImage;
@@ -35,6 +37,8 @@ public class TaggedImageStorageDiskDefault implements TaggedImageStorage {
    private final String dir_;
    private boolean firstElement_;
    private HashMap<Integer,Writer> metadataStreams_;
+   // Force metadata.txt to disk, so that it survives a crash of the system
+   private HashMap<Integer,FileSyncer> metadataSyncers_;
    private boolean newDataSet_;
    private JSONObject summaryMetadata_;
    private TreeMap<String,String> filenameTable_;
@@ -54,6 +58,7 @@ public class TaggedImageStorageDiskDefault implements TaggedImageStorage {
       newDataSet_ = newDataSet;
       filenameTable_ = new TreeMap<String,String>(new ImageLabelComparator());
       metadataStreams_ = new HashMap<Integer,Writer>();
+      metadataSyncers_ = new HashMap<Integer,FileSyncer>();
       metadataTable_ = new HashMap<String, JSONObject>();
       displaySettings_ = new JSONObject();
       positionNames_ = new HashMap<Integer,String>();
@@ -138,6 +143,10 @@ public class TaggedImageStorageDiskDefault implements TaggedImageStorage {
          writeFrameMetadata(md);
          String label = MDUtils.getLabel(md);
          filenameTable_.put(label, fileName);
+         // Images are read back from disk, so borrowed pixels can be returned
+         taggedImg.release();
+         PipelineMonitor.getInstance().getStage(PipelineMonitor.STORED)
+               .recordSince(PipelineMonitor.getPipelineStartNs(md));
       } catch (Exception ex) {
          ReportingUtils.showError(ex);
       }
@@ -183,6 +192,7 @@ public class TaggedImageStorageDiskDefault implements TaggedImageStorage {
             } else {
                return null;
             }
+            MDUtils.rehydrateSummary(md, summaryMetadata_);
             TaggedImage taggedImg = new TaggedImage(img, md);
             return taggedImg;
          } catch (Exception ex) {
@@ -199,7 +209,9 @@ public class TaggedImageStorageDiskDefault implements TaggedImageStorage {
       String label = MDUtils.generateLabel(channel, slice, frame, position);
       TiffDecoder td = new TiffDecoder(dir_, filenameTable_.get(label));
       try {
-         return new JSONObject(td.getTiffInfo()[0].info);
+         JSONObject md = new JSONObject(td.getTiffInfo()[0].info);
+         MDUtils.rehydrateSummary(md, summaryMetadata_);
+         return md;
       } catch (Exception ex) {
          ReportingUtils.logError(ex);
          return null;
@@ -262,6 +274,7 @@ public class TaggedImageStorageDiskDefault implements TaggedImageStorage {
          metadataStream.write("\"" + title + "\": ");
          metadataStream.write(md.toString(2));
          metadataStream.flush();
+         metadataSyncers_.get(pos).sync();
          firstElement_ = false;
       } catch (Exception e) {
          ReportingUtils.logError(e);
@@ -373,8 +386,15 @@ public class TaggedImageStorageDiskDefault implements TaggedImageStorage {
       positionNames_.put(pos, posName);
       JavaUtils.createDirectory(dir_ + "/" + posName);
       firstElement_ = true;
-      Writer metadataStream = new BufferedWriter(new FileWriter(dir_ + "/" + posName + "/metadata.txt"));
+      FileOutputStream metadataFile = new FileOutputStream(dir_ + "/" + posName + "/metadata.txt");
+      Writer metadataStream = new BufferedWriter(new OutputStreamWriter(metadataFile));
       metadataStreams_.put(pos, metadataStream);
+      metadataSyncers_.put(pos, new FileSyncer(metadataFile.getChannel()));
+      if (metadataStreams_.size() == 1 && displaySettings_ != null
+            && displaySettings_.has("Channels")) {
+         // Don't rely on the shutdown hook alone to save them
+         writeDisplaySettings();
+      }
       metadataStream.write("{" + "\n");
       JSONObject summaryMetadata = getSummaryMetadata();
       summaryMetadata.put("Time", time);
@@ -397,8 +417,11 @@ public class TaggedImageStorageDiskDefault implements TaggedImageStorage {
    private void closeMetadataStreams() {
       if (newDataSet_) {
          try {
-            for (Writer metadataStream:metadataStreams_.values()) {
+            for (Map.Entry<Integer,Writer> entry : metadataStreams_.entrySet()) {
+               Writer metadataStream = entry.getValue();
                metadataStream.write("\n}\n");
+               metadataStream.flush();
+               metadataSyncers_.get(entry.getKey()).syncAlways();
                metadataStream.close();
             }
          } catch (IOException ex) {
@@ -22,37 +22,48 @@
 package org.micromanager.acquisition;
 
 import java.io.File;
-import java.io.FileWriter;
 import java.io.IOException;
 import java.io.PrintWriter;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
 import java.util.Set;
-import java.util.TreeMap;
 import java.util.TreeSet;
 import java.util.UUID;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Future;
 import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 import javax.swing.JOptionPane;
 import mmcorej.TaggedImage;
 import org.json.JSONException;
 import org.json.JSONObject;
 import org.micromanager.MMStudio;
-import org.micromanager.api.TaggedImageStorage;
+import org.micromanager.api.BatchingTaggedImageStorage;
 import org.micromanager.imagedisplay.DisplaySettings;
+import org.micromanager.utils.DirectBuffers;
 import org.micromanager.utils.ImageLabelComparator;
+import org.micromanager.utils.ImageUtils;
 import org.micromanager.utils.JavaUtils;
 import org.micromanager.utils.MDUtils;
 import org.micromanager.utils.MMException;
 import org.micromanager.utils.MMScriptException;
+import org.micromanager.utils.PipelineMonitor;
 import org.micromanager.utils.ProgressBar;
 import org.micromanager.utils.ReportingUtils;
 
 
-public final class TaggedImageStorageMultipageTiff implements TaggedImageStorage {
+public final class TaggedImageStorageMultipageTiff implements BatchingTaggedImageStorage {
    
    private static final int SPACE_FOR_PARTIAL_OME_MD = 2000; //this should be more than enough
    
@@ -73,7 +84,11 @@ public final class TaggedImageStorageMultipageTiff implements TaggedImageStorage
    private boolean fixIndexMap_ = false;
    private final boolean fastStorageMode_;
    private int lastAcquiredPosition_ = 0;
-   private ThreadPoolExecutor writingExecutor_;
+   // Upper bound on the number of writing threads of new data sets
+   private static int maxWritingThreads_ = 1;
+   // Each FileSet writes on one lane; FileSets share lanes round-robin
+   private final List<WritingLane> writingLanes_ = new CopyOnWriteArrayList<WritingLane>();
+   private final int maxWritingLanes_ = getMaxWritingThreads();
 
    // Images currently being written (need to keep around so that they can be
    // returned upon request via getImage()). The data structure must be
@@ -81,12 +96,26 @@ public final class TaggedImageStorageMultipageTiff implements TaggedImageStorage
    // thread.
    private ConcurrentHashMap<String, TaggedImage> writePendingImages_ =
       new ConcurrentHashMap<String, TaggedImage>();
+   // Held while getImage() copies the pixels of a pending image, and while
+   // a written image is dropped and its pixels released, so that they are
+   // not recycled in the middle of the copy
+   private final Object pendingPixelsLock_ = new Object();
 
    //map of position indices to objects associated with each
    private HashMap<Integer, FileSet> fileSets_;
    
-   //Map of image labels to file 
-   private TreeMap<String, MultipageTiffReader> tiffReadersByLabel_;
+   //Map of image labels to file. Updated when a write is submitted and
+   //read by display threads, hence a concurrent map.
+   private volatile ConcurrentSkipListMap<String, MultipageTiffReader> tiffReadersByLabel_;
+
+   //Writes the separate metadata files, if any, off the image writing path
+   private MetadataWritingLane metadataLane_;
+
+   //Sidecar index of the images written, for opening the data set quickly
+   private volatile MultipageTiffIndex sidecarIndex_;
+
+   //Compresses the pixels of all files, or null if they aren't compressed
+   private PixelCompressor compressor_;
   
    public TaggedImageStorageMultipageTiff(String dir, Boolean newDataSet, JSONObject summaryMetadata) throws IOException {            
       this(dir, newDataSet, summaryMetadata, MMStudio.getInstance().getMetadataFileWithMultipageTiff(),
@@ -106,13 +135,15 @@ public final class TaggedImageStorageMultipageTiff implements TaggedImageStorage
 
       newDataSet_ = newDataSet;
       directory_ = dir;
-      tiffReadersByLabel_ = new TreeMap<String, MultipageTiffReader>(new ImageLabelComparator());
+      tiffReadersByLabel_ = new ConcurrentSkipListMap<String, MultipageTiffReader>(new ImageLabelComparator());
       setSummaryMetadata(summaryMetadata);
 
       // TODO: throw error if no existing dataset
       if (!newDataSet_) {       
          openExistingDataSet();
-      }    
+      } else if (MultipageTiffWriter.getCompression()) {
+         compressor_ = createPixelCompressor(summaryMetadata_);
+      }
       
    }
    
@@ -132,8 +163,183 @@ public final class TaggedImageStorageMultipageTiff implements TaggedImageStorage
       }
    }
    
-   public ThreadPoolExecutor getWritingExecutor() {
-      return writingExecutor_;
+   /*
+    * Returns a compressor for the images described by the summary metadata,
+    * or null if they can't be compressed.
+    */
+   private static PixelCompressor createPixelCompressor(JSONObject summary) {
+      try {
+         String pixelType = MDUtils.getPixelType(summary);
+         int bytesPerSample;
+         if (pixelType.equals("GRAY8") || pixelType.equals("RGB32")) {
+            bytesPerSample = 1;
+         } else if (pixelType.equals("GRAY16") || pixelType.equals("RGB64")) {
+            bytesPerSample = 2;
+         } else {
+            ReportingUtils.logMessage("Can't compress " + pixelType + " images; writing them uncompressed");
+            return null;
+         }
+         return new PixelCompressor(MDUtils.getWidth(summary), MDUtils.getHeight(summary),
+               bytesPerSample, MDUtils.isRGB(summary) ? 3 : 1, MultipageTiffWriter.BYTE_ORDER);
+      } catch (Exception ex) {
+         ReportingUtils.logError(ex, "Unable to set up compression; writing images uncompressed");
+         return null;
+      }
+   }
+
+   /*
+    * The compressor shared by the writers of this data set, or null.
+    */
+   PixelCompressor getPixelCompressor() {
+      return compressor_;
+   }
+
+   /**
+    * Sets the maximum number of threads writing the files of data sets
+    * created from now on. With files split by XY position, each position is
+    * written by one of up to this many threads, so that positions are
+    * written in parallel (e.g. to a RAID). Writes to the same file always
+    * happen in order.
+    * @param threads number of threads, at least 1
+    */
+   public static synchronized void setMaxWritingThreads(int threads) {
+      maxWritingThreads_ = Math.max(1, threads);
+   }
+
+   public static synchronized int getMaxWritingThreads() {
+      return maxWritingThreads_;
+   }
+
+   /**
+    * A writing thread with its statistics. Tasks run in the order they are
+    * submitted, so that the writes to each file stay ordered.
+    */
+   static final class WritingLane {
+      private final int index_;
+      private final ThreadPoolExecutor executor_;
+      private final AtomicLong bytesWritten_ = new AtomicLong();
+      private final AtomicLong writingNs_ = new AtomicLong();
+      private volatile long firstWriteNs_ = 0;
+      private volatile long lastWriteNs_ = 0;
+
+      WritingLane(int index) {
+         this(index, "Image stack writer");
+      }
+
+      /**
+       * @param threadName the name of the lane's thread, to which the
+       * index is appended
+       */
+      WritingLane(final int index, final String threadName) {
+         index_ = index;
+         executor_ = new ThreadPoolExecutor(1, 1, 0, TimeUnit.NANOSECONDS,
+                 new LinkedBlockingQueue<java.lang.Runnable>(),
+                 new ThreadFactory() {
+                    @Override
+                    public Thread newThread(Runnable r) {
+                       return new Thread(r, threadName + " " + index);
+                    }
+                 });
+      }
+
+      void execute(Runnable task) {
+         executor_.execute(task);
+      }
+
+      int getQueueSize() {
+         return executor_.getQueue().size();
+      }
+
+      /**
+       * Called on the lane's thread after a write that started at startNs.
+       */
+      void recordWrite(long bytes, long startNs) {
+         long now = System.nanoTime();
+         if (firstWriteNs_ == 0) {
+            firstWriteNs_ = startNs;
+         }
+         lastWriteNs_ = now;
+         bytesWritten_.addAndGet(bytes);
+         writingNs_.addAndGet(now - startNs);
+      }
+
+      long getBytesWritten() {
+         return bytesWritten_.get();
+      }
+
+      /**
+       * Returns the rate from the first to the last write of this lane.
+       */
+      double getMBPerSecond() {
+         long elapsed = lastWriteNs_ - firstWriteNs_;
+         return elapsed <= 0 ? 0 : bytesWritten_.get() / 1048576.0 / (elapsed / 1e9);
+      }
+
+      /**
+       * Returns the rate while the lane was actually writing, i.e. what the
+       * disk delivered to this thread.
+       */
+      double getWritingMBPerSecond() {
+         long writing = writingNs_.get();
+         return writing <= 0 ? 0 : bytesWritten_.get() / 1048576.0 / (writing / 1e9);
+      }
+
+      void shutdownAndWait() {
+         executor_.shutdown();
+         try {
+            //now that shutdown has been called, need to wait for tasks to finish
+            while (!executor_.awaitTermination(4, TimeUnit.SECONDS)) {
+               ReportingUtils.logMessage("Waiting for image stack file finishing to complete");
+            }
+         } catch (InterruptedException e) {
+            ReportingUtils.logError("File finishing thread interrupted");
+            Thread.interrupted();
+         }
+      }
+
+      @Override
+      public String toString() {
+         return String.format("Writer %d: %.1f MB, %.1f MB/s overall, %.1f MB/s while writing",
+               index_, bytesWritten_.get() / 1048576.0, getMBPerSecond(),
+               getWritingMBPerSecond());
+      }
+   }
+
+   /**
+    * Returns the amount of data written and the rate achieved by each
+    * writing thread, one line per thread.
+    */
+   public String getWritingReport() {
+      StringBuilder report = new StringBuilder();
+      for (WritingLane lane : writingLanes_) {
+         report.append(lane).append("\n");
+      }
+      return report.toString();
+   }
+
+   private int getWritingQueueSize() {
+      int size = 0;
+      for (WritingLane lane : writingLanes_) {
+         size += lane.getQueueSize();
+      }
+      return size;
+   }
+
+   /*
+    * Returns the writing lane for a new FileSet, or null if writing is not
+    * done in the background.
+    */
+   private WritingLane nextWritingLane() {
+      if (!fastStorageMode_) {
+         return null;
+      }
+      int numFileSets = fileSets_ == null ? 0 : fileSets_.size();
+      if (writingLanes_.size() < maxWritingLanes_) {
+         WritingLane lane = new WritingLane(writingLanes_.size());
+         writingLanes_.add(lane);
+         return lane;
+      }
+      return writingLanes_.get(numFileSets % maxWritingLanes_);
    }
    
    boolean slicesFirst() {
@@ -157,13 +363,17 @@ public final class TaggedImageStorageMultipageTiff implements TaggedImageStorage
       MultipageTiffReader reader = null;
       File dir = new File(directory_);
 
+      // Files listed in the sidecar index need not be scanned
+      MultipageTiffIndex.Contents index = MultipageTiffIndex.read(dir);
+      Map<String, HashMap<String, Long>> indexMaps = index.getIndexMaps();
+
       ProgressBar progressBar = new ProgressBar("Reading " + directory_, 0, dir.listFiles().length);
       int numRead = 0;
       progressBar.setProgress(numRead);
       progressBar.setVisible(true);
       for (File f : dir.listFiles()) {
          if (f.getName().endsWith(".tif") || f.getName().endsWith(".TIF")) {
-            reader = loadFile(f);
+            reader = loadFile(f, indexMaps.get(f.getName()));
          }
          numRead++;
          progressBar.setProgress(numRead);
@@ -172,18 +382,24 @@ public final class TaggedImageStorageMultipageTiff implements TaggedImageStorage
 
       if (reader != null) {
          setSummaryMetadata(reader.getSummaryMetadata(), true);
-         displayAndComments_ = reader.getDisplayAndComments();
+         // Files of an unfinished acquisition have no display settings,
+         // but they may have been journaled
+         if (reader.getDisplayAndComments().has("Channels")) {
+            displayAndComments_ = reader.getDisplayAndComments();
+         } else if (index.getDisplayAndComments() != null) {
+            displayAndComments_ = index.getDisplayAndComments();
+         }
       }
 
       progressBar.setProgress(1);
       progressBar.setVisible(false);
    }
 
-   private MultipageTiffReader loadFile(File f) {
+   private MultipageTiffReader loadFile(File f, HashMap<String, Long> indexMap) {
       MultipageTiffReader reader = null;
       try {
          try {
-            reader = new MultipageTiffReader(f);
+            reader = new MultipageTiffReader(f, indexMap);
          }
          catch (InvalidIndexMapException e) {
             // Prompt to repair it.
@@ -219,9 +435,28 @@ public final class TaggedImageStorageMultipageTiff implements TaggedImageStorage
    public TaggedImage getImage(int channelIndex, int sliceIndex, int frameIndex, int positionIndex) {
       String label = MDUtils.generateLabel(channelIndex, sliceIndex, frameIndex, positionIndex);
 
-      TaggedImage image = writePendingImages_.get(label);
-      if (image != null) {
-         return image;
+      synchronized (pendingPixelsLock_) {
+         TaggedImage image = writePendingImages_.get(label);
+         if (image != null) {
+            // The pending tags are shared with whoever put the image, so the
+            // summary the writer dropped is restored in a copy
+            try {
+               JSONObject tags = MDUtils.copyWithSummary(image.tags, summaryMetadata_);
+               if (image.hasBufferPixels()) {
+                  // Borrowed pixels are released once written, so hand out a copy
+                  return new TaggedImage(DirectBuffers.arrayFromPixelBuffer(
+                        (ByteBuffer) image.pix, MDUtils.getDepth(image.tags)),
+                        tags);
+               } else if (image.isLeased()) {
+                  // Pooled arrays are recycled once written
+                  return new TaggedImage(ImageUtils.copyPixels(image.pix), tags);
+               }
+               return new TaggedImage(image.pix, tags);
+            } catch (Exception ex) {
+               ReportingUtils.logError(ex);
+            }
+            return image;
+         }
       }
 
       MultipageTiffReader reader = tiffReadersByLabel_.get(label);
@@ -252,9 +487,9 @@ public final class TaggedImageStorageMultipageTiff implements TaggedImageStorage
    }
 
    @Override
-   public void putImage(TaggedImage taggedImage) throws MMException, IOException {
+   public void putImage(final TaggedImage taggedImage) throws MMException, IOException {
       final String label = MDUtils.getLabel(taggedImage.tags);
-      startWritingTask(label, taggedImage);
+      WritingLane lane = startWritingTask(label, taggedImage, null);
 
       // Now, we must hold on to taggedImage, so that we can return it if
       // somebody calls getImage() before the writing is finished.
@@ -262,38 +497,170 @@ public final class TaggedImageStorageMultipageTiff implements TaggedImageStorage
       // that would be a bad thing to do anyway (will break the writer) and is
       // considered forbidden.
 
-      // We are here depending on the fact that writingExecutor_ is a
+      // We are here depending on the fact that each writing lane is a
       // single-thread ThreadPoolExecutor, and that submitted tasks are
-      // executed in order. A better implementation might use Guava's
-      // ListenableFuture.
+      // executed in order: the task below runs after the image's writes,
+      // which went to the same lane. A better implementation might use
+      // Guava's ListenableFuture.
       // Also note that the image will be dropped if the writing fails due to
       // any error. This is acceptable for disk-backed storage.
+      // Borrowed pixels (see TaggedImage.isLeased()) are written straight
+      // from the core's buffer and released here, after the write.
       writePendingImages_.put(label, taggedImage);
-      writingExecutor_.submit(new Runnable() {
+      List<String> labels = new ArrayList<String>(1);
+      labels.add(label);
+      List<TaggedImage> images = new ArrayList<TaggedImage>(1);
+      images.add(taggedImage);
+      PipelineMonitor.getInstance().getStage(PipelineMonitor.DISK_WRITER)
+            .recordQueueDepth(getWritingQueueSize());
+      submitImagesWritten(lane, labels, images, System.nanoTime());
+      flushSidecarIndex();
+   }
+
+   /*
+    * Like putImage() for each image, but the pending images of the whole
+    * batch are released by a single task per writing lane once all of them
+    * are written. When compressing, the whole batch is compressed in
+    * parallel before the images are handed to the writers.
+    */
+   @Override
+   public void putImages(List<TaggedImage> taggedImages) throws MMException, IOException {
+      HashMap<WritingLane, List<String>> labelsByLane =
+            new HashMap<WritingLane, List<String>>();
+      HashMap<WritingLane, List<TaggedImage>> imagesByLane =
+            new HashMap<WritingLane, List<TaggedImage>>();
+      List<Future<ByteBuffer>> compressed = new ArrayList<Future<ByteBuffer>>(taggedImages.size());
+      for (TaggedImage taggedImage : taggedImages) {
+         //RGB pixels are rearranged by the writer before they are compressed
+         boolean precompress = compressor_ != null && taggedImage.pix != null
+               && !compressor_.isRGB();
+         compressed.add(precompress ? compressor_.submit(taggedImage.pix) : null);
+      }
+      for (int i = 0; i < taggedImages.size(); i++) {
+         TaggedImage taggedImage = taggedImages.get(i);
+         String label = MDUtils.getLabel(taggedImage.tags);
+         WritingLane lane = startWritingTask(label, taggedImage, compressed.get(i));
+         writePendingImages_.put(label, taggedImage);
+         if (!imagesByLane.containsKey(lane)) {
+            labelsByLane.put(lane, new ArrayList<String>());
+            imagesByLane.put(lane, new ArrayList<TaggedImage>());
+         }
+         labelsByLane.get(lane).add(label);
+         imagesByLane.get(lane).add(taggedImage);
+      }
+      long submitNs = System.nanoTime();
+      PipelineMonitor.getInstance().getStage(PipelineMonitor.DISK_WRITER)
+            .recordQueueDepth(getWritingQueueSize());
+      for (Map.Entry<WritingLane, List<TaggedImage>> entry : imagesByLane.entrySet()) {
+         submitImagesWritten(entry.getKey(), labelsByLane.get(entry.getKey()),
+               entry.getValue(), submitNs);
+      }
+      flushSidecarIndex();
+   }
+
+   /*
+    * Records the image just written by the writer in the sidecar index.
+    */
+   private void addToSidecarIndex(String fileName, JSONObject tags,
+         MultipageTiffWriter writer) {
+      MultipageTiffIndex index = sidecarIndex_;
+      if (index == null) {
+         return;
+      }
+      try {
+         index.addImage(fileName, MDUtils.getLabel(tags),
+               writer.getLastIFDOffset(), writer.getLastMetadataOffset(),
+               writer.getLastMetadataLength());
+      } catch (Exception ex) {
+         ReportingUtils.logError(ex, "Unable to update " + MultipageTiffIndex.FILENAME);
+         sidecarIndex_ = null;
+      }
+   }
+
+   /*
+    * While acquiring, display settings and comments only reach the files
+    * when the data set is finished; until then, keep them in the journal.
+    */
+   private void journalDisplayAndComments() {
+      MultipageTiffIndex index = sidecarIndex_;
+      if (index == null || !newDataSet_) {
+         return;
+      }
+      try {
+         index.addDisplayAndComments(displayAndComments_);
+      } catch (IOException ex) {
+         ReportingUtils.logError(ex, "Unable to update " + MultipageTiffIndex.FILENAME);
+         sidecarIndex_ = null;
+      }
+      flushSidecarIndex();
+   }
+
+   private void flushSidecarIndex() {
+      MultipageTiffIndex index = sidecarIndex_;
+      if (index == null) {
+         return;
+      }
+      try {
+         index.flush();
+      } catch (IOException ex) {
+         ReportingUtils.logError(ex, "Unable to update " + MultipageTiffIndex.FILENAME);
+         sidecarIndex_ = null;
+      }
+   }
+
+   /*
+    * Queues a task behind the writes of the given images that drops them from
+    * writePendingImages_ once they are on disk. Runs it right away if images
+    * are written synchronously.
+    */
+   private void submitImagesWritten(WritingLane lane, final List<String> labels,
+         final List<TaggedImage> images, final long submitNs) {
+      Runnable task = new Runnable() {
          @Override public void run() {
-            writePendingImages_.remove(label);
+            for (int i = 0; i < images.size(); ++i) {
+               synchronized (pendingPixelsLock_) {
+                  writePendingImages_.remove(labels.get(i));
+                  imageWritten(images.get(i), submitNs);
+               }
+            }
          }
-      });
+      };
+      if (lane == null) {
+         task.run();
+      } else {
+         lane.execute(task);
+      }
+   }
+
+   /*
+    * Runs on the image's writing thread once it is written: releases its
+    * pixels and records the pipeline statistics.
+    */
+   private void imageWritten(TaggedImage taggedImage, long submitNs) {
+      try {
+         taggedImage.release();
+      } catch (Exception ex) {
+         ReportingUtils.logError(ex, "Unable to release image pixels");
+      }
+      PipelineMonitor monitor = PipelineMonitor.getInstance();
+      monitor.getStage(PipelineMonitor.DISK_WRITER).recordSince(submitNs);
+      monitor.getStage(PipelineMonitor.STORED).recordSince(
+            PipelineMonitor.getPipelineStartNs(taggedImage.tags));
    }
 
    /*
     * Sets up and kicks off the writing of a new image. This, in an indirect
-    * way, ends up submitting the writing task to writingExecutor_.
+    * way, ends up submitting the writing task to the writing lane of the
+    * image's FileSet, which is returned (null if not writing in the
+    * background).
     */
-   private void startWritingTask(String label, TaggedImage taggedImage)
-      throws MMException, IOException
+   private WritingLane startWritingTask(String label, TaggedImage taggedImage,
+         Future<ByteBuffer> compressedPixels) throws MMException, IOException
    {
       if (!newDataSet_) {
          ReportingUtils.showError("Tried to write image to a finished data set");
          throw new MMException("This ImageFileManager is read-only.");
       }
-      //initialize writing executor
-      if (fastStorageMode_ && writingExecutor_ == null) {
-         // Note: Code elsewhere assumes that the writing task is performed on
-         // a _single_ background thread.
-         writingExecutor_ = new ThreadPoolExecutor(1, 1, 0, TimeUnit.NANOSECONDS,
-                 new LinkedBlockingQueue<java.lang.Runnable>());
-      }
       int fileSetIndex = 0;
       if (splitByXYPosition_) {
          try {
@@ -309,6 +676,13 @@ public final class TaggedImageStorageMultipageTiff implements TaggedImageStorage
          } catch (Exception ex) {
             ReportingUtils.logError(ex);
          }
+         try {
+            sidecarIndex_ = new MultipageTiffIndex(directory_);
+            sidecarIndex_.addDisplayAndComments(displayAndComments_);
+         } catch (IOException ex) {
+            // The data set can be opened without it, only more slowly
+            ReportingUtils.logError(ex, "Unable to create " + MultipageTiffIndex.FILENAME);
+         }
       }
           
       if (omeTiff_) {
@@ -318,11 +692,12 @@ public final class TaggedImageStorageMultipageTiff implements TaggedImageStorage
       }
       
       if (fileSets_.get(fileSetIndex) == null) {
-         fileSets_.put(fileSetIndex, new FileSet(taggedImage.tags, this));
+         fileSets_.put(fileSetIndex, new FileSet(taggedImage.tags, this,
+               nextWritingLane()));
       }
       FileSet set = fileSets_.get(fileSetIndex);
       try {
-         set.writeImage(taggedImage);
+         set.writeImage(taggedImage, compressedPixels);
          tiffReadersByLabel_.put(label, set.getCurrentReader());
       } catch (IOException ex) {
         ReportingUtils.showError("problem writing image to file");
@@ -336,6 +711,7 @@ public final class TaggedImageStorageMultipageTiff implements TaggedImageStorage
          frame = 0;
       }
       lastFrameOpenedDataSet_ = Math.max(frame, lastFrameOpenedDataSet_);
+      return set.getWritingLane();
    }
 
    @Override
@@ -420,21 +796,27 @@ public final class TaggedImageStorageMultipageTiff implements TaggedImageStorage
             count++;
             progressBar.setProgress(count);
          }            
-         //shut down writing executor--pause here until all tasks have finished writing
+         //shut down writing lanes--pause here until all tasks have finished writing
          //so that no attempt is made to close the dataset (and thus the FileChannel)
          //before everything has finished writing
          //mkae sure all images have finished writing if they are on seperate thread 
-         if (writingExecutor_ != null && !writingExecutor_.isShutdown()) {
-            writingExecutor_.shutdown();
-            try {
-               //now that shutdown has been called, need to wait for tasks to finish
-               while (!writingExecutor_.awaitTermination(4, TimeUnit.SECONDS)) {
-                  ReportingUtils.logMessage("Waiting for image stack file finishing to complete");
-               }
-            } catch (InterruptedException e) {
-               ReportingUtils.logError("File finishing thread interrupted");
-               Thread.interrupted();
-            }
+         for (WritingLane lane : writingLanes_) {
+            lane.shutdownAndWait();
+         }
+         if (!writingLanes_.isEmpty()) {
+            ReportingUtils.logMessage("Image stack writing:\n" + getWritingReport());
+         }
+         if (metadataLane_ != null) {
+            metadataLane_.shutdown();
+            ReportingUtils.logMessage(metadataLane_.toString());
+         }
+         if (compressor_ != null) {
+            ReportingUtils.logMessage(compressor_.toString());
+         }
+         MultipageTiffIndex index = sidecarIndex_;
+         if (index != null) {
+            //all files now have their final length
+            index.finish();
          }
       } catch (IOException ex) {
          ReportingUtils.logError(ex);
@@ -476,22 +858,24 @@ public final class TaggedImageStorageMultipageTiff implements TaggedImageStorage
          summaryMetadataString_ = md.toString();
          boolean slicesFirst = summaryMetadata_.optBoolean("SlicesFirst", true);
          boolean timeFirst = summaryMetadata_.optBoolean("TimeFirst", false);
-         TreeMap<String, MultipageTiffReader> oldImageMap = tiffReadersByLabel_;
-         tiffReadersByLabel_ = new TreeMap<String, MultipageTiffReader>(new ImageLabelComparator(slicesFirst, timeFirst));
+         ConcurrentSkipListMap<String, MultipageTiffReader> oldImageMap = tiffReadersByLabel_;
+         ConcurrentSkipListMap<String, MultipageTiffReader> newImageMap =
+               new ConcurrentSkipListMap<String, MultipageTiffReader>(new ImageLabelComparator(slicesFirst, timeFirst));
          if (showProgress) {
             ProgressBar progressBar = new ProgressBar("Building image location map", 0, oldImageMap.keySet().size());
             progressBar.setProgress(0);
             progressBar.setVisible(true);
             int i = 1;
             for (String label : oldImageMap.keySet()) {
-               tiffReadersByLabel_.put(label, oldImageMap.get(label));
+               newImageMap.put(label, oldImageMap.get(label));
                progressBar.setProgress(i);
                i++;
             }
             progressBar.setVisible(false);
          } else {
-            tiffReadersByLabel_.putAll(oldImageMap);
+            newImageMap.putAll(oldImageMap);
          }
+         tiffReadersByLabel_ = newImageMap;
          if (summaryMetadata_ != null && summaryMetadata_.length() > 0) {
             processSummaryMD();
          }
@@ -515,10 +899,12 @@ public final class TaggedImageStorageMultipageTiff implements TaggedImageStorage
    @Override
    public void setDisplayAndComments(JSONObject settings) {
       displayAndComments_ = settings;
+      journalDisplayAndComments();
    }
           
    @Override   
    public void writeDisplaySettings() {
+      journalDisplayAndComments();
       for (MultipageTiffReader r : new HashSet<MultipageTiffReader>(tiffReadersByLabel_.values())) {
          try {
             r.rewriteDisplaySettings(displayAndComments_.getJSONArray("Channels"));
@@ -574,7 +960,7 @@ public final class TaggedImageStorageMultipageTiff implements TaggedImageStorage
    //Default is one file series per xy posititon
    private class FileSet {
       private LinkedList<MultipageTiffWriter> tiffWriters_;
-      private FileWriter mdWriter_;
+      private MetadataWritingLane.MetadataFile mdFile_;
       private String baseFilename_;
       private String currentTiffFilename_;
       private String currentTiffUUID_;;
@@ -582,13 +968,16 @@ public final class TaggedImageStorageMultipageTiff implements TaggedImageStorage
       private boolean finished_ = false;
       private int ifdCount_ = 0;
       private TaggedImageStorageMultipageTiff mpTiff_;
+      private final WritingLane writingLane_;
       int nextExpectedChannel_ = 0, nextExpectedSlice_ = 0, nextExpectedFrame_ = 0;
       int currentFrame_ = 0;
 
       
-      public FileSet(JSONObject firstImageTags, TaggedImageStorageMultipageTiff mpt) throws IOException {
+      public FileSet(JSONObject firstImageTags, TaggedImageStorageMultipageTiff mpt,
+            WritingLane writingLane) throws IOException {
          tiffWriters_ = new LinkedList<MultipageTiffWriter>();  
          mpTiff_ = mpt;
+         writingLane_ = writingLane;
          
          //get file path and name
          baseFilename_ = createBaseFilename(firstImageTags);
@@ -596,7 +985,7 @@ public final class TaggedImageStorageMultipageTiff implements TaggedImageStorage
          currentTiffUUID_ = "urn:uuid:" + UUID.randomUUID().toString();
          //make first writer
          tiffWriters_.add(new MultipageTiffWriter(directory_, currentTiffFilename_, summaryMetadata_, mpt,
-                 fastStorageMode_, splitByXYPosition_));
+                 fastStorageMode_, splitByXYPosition_, writingLane_));
    
          try {
             if (separateMetadataFile_) {
@@ -607,6 +996,10 @@ public final class TaggedImageStorageMultipageTiff implements TaggedImageStorage
          }
       }
 
+      public WritingLane getWritingLane() {
+         return writingLane_;
+      }
+
       public String getCurrentUUID() {
          return currentTiffUUID_;
       }
@@ -657,7 +1050,9 @@ public final class TaggedImageStorageMultipageTiff implements TaggedImageStorage
          return currentFrame_;
       }
       
-      public void writeImage(TaggedImage img) throws IOException {
+      public void writeImage(TaggedImage img, Future<ByteBuffer> compressedPixels) throws IOException {
+         //summary is written once per file, so don't count it against the image
+         MDUtils.removeEmbeddedSummary(img.tags);
          //check if current writer is out of space, if so, make a new one
          if (!tiffWriters_.getLast().hasSpaceToWrite(img, omeTiff_ ?  SPACE_FOR_PARTIAL_OME_MD : 0  )) {
             //write index map here but still need to call close() at end of acq
@@ -667,7 +1062,7 @@ public final class TaggedImageStorageMultipageTiff implements TaggedImageStorage
             currentTiffUUID_ = "urn:uuid:" + UUID.randomUUID().toString();
             ifdCount_ = 0;
             tiffWriters_.add(new MultipageTiffWriter(directory_ ,currentTiffFilename_, summaryMetadata_, mpTiff_,
-                    fastStorageMode_, splitByXYPosition_));
+                    fastStorageMode_, splitByXYPosition_, writingLane_));
          }      
 
          //Add filename to image tags
@@ -678,7 +1073,8 @@ public final class TaggedImageStorageMultipageTiff implements TaggedImageStorage
          }
 
          //write image
-         tiffWriters_.getLast().writeImage(img);  
+         tiffWriters_.getLast().writeImage(img, compressedPixels);
+         mpTiff_.addToSidecarIndex(currentTiffFilename_, img.tags, tiffWriters_.getLast());
                          
          if (expectedImageOrder_) {
             if (splitByXYPosition_) {
@@ -737,34 +1133,21 @@ public final class TaggedImageStorageMultipageTiff implements TaggedImageStorage
       }
 
       private void writeToMetadataFile(JSONObject md) throws JSONException {
-         try {
-            mdWriter_.write(",\n\"FrameKey-" + MDUtils.getFrameIndex(md)
-                    + "-" + MDUtils.getChannelIndex(md) + "-" + MDUtils.getSliceIndex(md) + "\": ");
-            mdWriter_.write(md.toString(2));
-         } catch (IOException ex) {
-            ReportingUtils.logError("Problem writing to metadata.txt file");
-         }
+         metadataLane_.write(mdFile_, "FrameKey-" + MDUtils.getFrameIndex(md)
+                 + "-" + MDUtils.getChannelIndex(md) + "-" + MDUtils.getSliceIndex(md), md);
       }
 
       private void startMetadataFile() throws JSONException {
             metadataFileFullPath_ = directory_ + "/" + baseFilename_ + "_metadata.txt";
-            try {
-               mdWriter_ = new FileWriter(metadataFileFullPath_);
-               mdWriter_.write("{" + "\n");
-               mdWriter_.write("\"Summary\": ");
-               mdWriter_.write(summaryMetadata_.toString(2));
-            } catch (IOException ex) {
-               ReportingUtils.logError("Problem creating metadata.txt file");
+            if (metadataLane_ == null) {
+               metadataLane_ = new MetadataWritingLane();
             }
+            mdFile_ = metadataLane_.open(metadataFileFullPath_, summaryMetadata_);
       }
 
       private void finishMetadataFile() throws JSONException {
-         try {
-            mdWriter_.write("\n}\n");
-            mdWriter_.close();
-         } catch (IOException ex) {
-            ReportingUtils.logError("Problem creating metadata.txt file");
-         }
+         //waits for the metadata queued for this file
+         metadataLane_.close(mdFile_);
       }
 
       private String createBaseFilename(JSONObject firstImageTags) {
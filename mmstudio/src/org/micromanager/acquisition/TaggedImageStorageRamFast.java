@@ -73,7 +73,12 @@ public class TaggedImageStorageRamFast implements TaggedImageStorage {
    private DirectTaggedImage taggedImageToDirectTaggedImage(TaggedImage taggedImage) throws JSONException, MMScriptException{
       DirectTaggedImage direct = new DirectTaggedImage();
       direct.tagsBuffer = bufferFromJSON(taggedImage.tags);
-      direct.pixelBuffer = DirectBuffers.bufferFromArray(taggedImage.pix);
+      if (taggedImage.hasBufferPixels()) {
+         direct.pixelBuffer = DirectBuffers.bufferFromPixelBuffer(
+               (ByteBuffer) taggedImage.pix, MDUtils.getDepth(taggedImage.tags));
+      } else {
+         direct.pixelBuffer = DirectBuffers.bufferFromArray(taggedImage.pix);
+      }
       return direct;
    }
    
@@ -100,7 +105,14 @@ public class TaggedImageStorageRamFast implements TaggedImageStorage {
          DirectTaggedImage directImage =
                taggedImageToDirectTaggedImage(taggedImage);
 
-         lruCache_.put(label, taggedImage);
+         if (taggedImage.isLeased()) {
+            // The pixels have been copied; borrowed pixels go back to the
+            // core and the image is rebuilt from the copy on demand
+            taggedImage.release();
+            lruCache_.remove(label);
+         } else {
+            lruCache_.put(label, taggedImage);
+         }
          imageMap_.put(label, directImage);
          lastFrame_ = Math.max(lastFrame_, MDUtils.getFrameIndex(taggedImage.tags));
       } catch (Exception ex) {
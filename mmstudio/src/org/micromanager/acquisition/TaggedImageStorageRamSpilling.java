@@ -0,0 +1,350 @@
+///////////////////////////////////////////////////////////////////////////////
+//FILE:          TaggedImageStorageRamSpilling.java
+//PROJECT:       Micro-Manager
+//SUBSYSTEM:     mmstudio
+//-----------------------------------------------------------------------------
+//
+// COPYRIGHT:    University of California, San Francisco, 2014
+//
+// LICENSE:      This file is distributed under the BSD license.
+//               License text is included with the source distribution.
+//
+//               This file is distributed in the hope that it will be useful,
+//               but WITHOUT ANY WARRANTY; without even the implied warranty
+//               of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+//
+//               IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+//               CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+//               INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES.
+//
+package org.micromanager.acquisition;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentSkipListSet;
+import mmcorej.TaggedImage;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.micromanager.api.TaggedImageStorage;
+import org.micromanager.utils.DirectBuffers;
+import org.micromanager.utils.ImageLabelComparator;
+import org.micromanager.utils.MDUtils;
+import org.micromanager.utils.MMException;
+import org.micromanager.utils.ReportingUtils;
+
+/**
+ * Stores images in RAM like TaggedImageStorageRamFast, but within a memory
+ * budget: once the images exceed it, the oldest ones are moved to an Image
+ * Stack File data set in a temporary directory. Recent images are thus read
+ * at RAM speed, while a long acquisition no longer runs out of memory.
+ *
+ * The temporary files are deleted by close().
+ */
+public class TaggedImageStorageRamSpilling implements TaggedImageStorage {
+   // Spill at least this many bytes at a time, so that the files are
+   // written in batches
+   private static final long MIN_SPILL_BYTES = 16L * 1024 * 1024;
+
+   private static volatile long ramBudget_ = 2048L * 1024 * 1024;
+
+   private static class DirectTaggedImage {
+      Buffer pixelBuffer;
+      ByteBuffer tagsBuffer;
+      long bytes;
+   }
+
+   private boolean finished_ = false;
+   private JSONObject summaryMetadata_;
+   private JSONObject displaySettings_ = new JSONObject();
+   private volatile int lastFrame_ = -1;
+   private String diskLocation_;
+   private final long budget_;
+
+   // Images in RAM, oldest first
+   private final LinkedHashMap<String, DirectTaggedImage> ramImages_ =
+         new LinkedHashMap<String, DirectTaggedImage>();
+   private long ramBytes_ = 0;
+   private volatile ConcurrentSkipListSet<String> labels_ =
+         new ConcurrentSkipListSet<String>(new ImageLabelComparator());
+   private File spillDir_;
+   private TaggedImageStorageMultipageTiff spillStorage_;
+   private long spilledImages_ = 0;
+
+   public TaggedImageStorageRamSpilling(JSONObject summaryMetadata) {
+      budget_ = ramBudget_;
+      setSummaryMetadata(summaryMetadata);
+   }
+
+   /**
+    * Sets the amount of pixel data kept in RAM by data sets created from now
+    * on.
+    */
+   public static void setRamBudget(long bytes) {
+      ramBudget_ = Math.max(MIN_SPILL_BYTES, bytes);
+   }
+
+   public static long getRamBudget() {
+      return ramBudget_;
+   }
+
+   private DirectTaggedImage toDirect(TaggedImage taggedImage)
+         throws Exception {
+      DirectTaggedImage direct = new DirectTaggedImage();
+      direct.tagsBuffer = DirectBuffers.bufferFromString(taggedImage.tags.toString());
+      if (taggedImage.hasBufferPixels()) {
+         direct.pixelBuffer = DirectBuffers.bufferFromPixelBuffer(
+               (ByteBuffer) taggedImage.pix, MDUtils.getDepth(taggedImage.tags));
+      } else {
+         direct.pixelBuffer = DirectBuffers.bufferFromArray(taggedImage.pix);
+      }
+      direct.bytes = direct.tagsBuffer.capacity() + (long) direct.pixelBuffer.capacity()
+            * MDUtils.getDepth(taggedImage.tags);
+      return direct;
+   }
+
+   private static TaggedImage fromDirect(DirectTaggedImage direct) {
+      try {
+         return new TaggedImage(DirectBuffers.arrayFromBuffer(direct.pixelBuffer),
+               new JSONObject(DirectBuffers.stringFromBuffer(direct.tagsBuffer)));
+      } catch (JSONException ex) {
+         ReportingUtils.logError(ex);
+         return null;
+      }
+   }
+
+   @Override
+   public void putImage(TaggedImage taggedImage) throws MMException {
+      String label = MDUtils.getLabel(taggedImage.tags);
+      try {
+         DirectTaggedImage direct;
+         synchronized (this) {
+            try {
+               direct = toDirect(taggedImage);
+            } catch (OutOfMemoryError e) {
+               // Less memory than the budget assumed; make room and retry
+               ReportingUtils.logError("Out of memory with " + ramBytes_
+                     + " bytes of images in RAM; moving images to disk");
+               spill(Math.max(MIN_SPILL_BYTES, ramBytes_ / 2));
+               direct = toDirect(taggedImage);
+            }
+            DirectTaggedImage old = ramImages_.remove(label);
+            if (old != null) {
+               ramBytes_ -= old.bytes;
+            }
+            ramImages_.put(label, direct);
+            ramBytes_ += direct.bytes;
+            labels_.add(label);
+            lastFrame_ = Math.max(lastFrame_, MDUtils.getFrameIndex(taggedImage.tags));
+            if (ramBytes_ > budget_) {
+               spill(Math.max(MIN_SPILL_BYTES, ramBytes_ - budget_));
+            }
+         }
+         // The pixels have been copied, so borrowed pixels can be returned
+         taggedImage.release();
+      } catch (Exception ex) {
+         ReportingUtils.logError(ex);
+      }
+   }
+
+   /*
+    * Moves the oldest images, at least the given number of bytes of them,
+    * to the temporary data set.
+    */
+   private void spill(long bytes) throws MMException, IOException {
+      // A finished data set can't be extended; keep the images in RAM
+      if (finished_ || ramImages_.size() < 2) {
+         return;
+      }
+      if (spillStorage_ == null) {
+         createSpillStorage();
+      }
+      List<String> labels = new ArrayList<String>();
+      List<TaggedImage> images = new ArrayList<TaggedImage>();
+      long spilled = 0;
+      Iterator<Map.Entry<String, DirectTaggedImage>> oldest =
+            ramImages_.entrySet().iterator();
+      // Never spill the newest image
+      while (spilled < bytes && labels.size() < ramImages_.size() - 1) {
+         Map.Entry<String, DirectTaggedImage> entry = oldest.next();
+         TaggedImage image = fromDirect(entry.getValue());
+         if (image != null) {
+            images.add(image);
+         }
+         labels.add(entry.getKey());
+         spilled += entry.getValue().bytes;
+      }
+      // The images stay readable from the storage while they are written
+      spillStorage_.putImages(images);
+      for (String label : labels) {
+         ramBytes_ -= ramImages_.remove(label).bytes;
+      }
+      spilledImages_ += images.size();
+   }
+
+   private void createSpillStorage() throws IOException {
+      spillDir_ = new File(System.getProperty("java.io.tmpdir"),
+            "MMSpill_" + UUID.randomUUID().toString());
+      JSONObject summary = summaryMetadata_;
+      if (summary == null) {
+         // The tags of the first image describe the images as well
+         summary = fromDirect(ramImages_.values().iterator().next()).tags;
+      }
+      ReportingUtils.logMessage("RAM storage budget of " + budget_
+            + " bytes reached; moving older images to " + spillDir_);
+      spillStorage_ = new TaggedImageStorageMultipageTiff(spillDir_.getPath(),
+            true, summary, false, false, true);
+   }
+
+   @Override
+   public TaggedImage getImage(int channel, int slice, int frame, int position) {
+      String label = MDUtils.generateLabel(channel, slice, frame, position);
+      TaggedImageStorageMultipageTiff spillStorage;
+      synchronized (this) {
+         DirectTaggedImage direct = ramImages_.get(label);
+         if (direct != null) {
+            return fromDirect(direct);
+         }
+         spillStorage = spillStorage_;
+      }
+      if (spillStorage == null) {
+         return null;
+      }
+      return spillStorage.getImage(channel, slice, frame, position);
+   }
+
+   @Override
+   public JSONObject getImageTags(int channel, int slice, int frame, int position) {
+      String label = MDUtils.generateLabel(channel, slice, frame, position);
+      TaggedImageStorageMultipageTiff spillStorage;
+      synchronized (this) {
+         DirectTaggedImage direct = ramImages_.get(label);
+         if (direct != null) {
+            try {
+               return new JSONObject(DirectBuffers.stringFromBuffer(direct.tagsBuffer));
+            } catch (JSONException ex) {
+               ReportingUtils.logError(ex);
+               return null;
+            }
+         }
+         spillStorage = spillStorage_;
+      }
+      if (spillStorage == null) {
+         return null;
+      }
+      return spillStorage.getImageTags(channel, slice, frame, position);
+   }
+
+   @Override
+   public Set<String> imageKeys() {
+      return labels_;
+   }
+
+   @Override
+   public synchronized void finished() {
+      finished_ = true;
+      if (spillStorage_ != null) {
+         spillStorage_.finished();
+         ReportingUtils.logMessage(spilledImages_ + " images moved to "
+               + spillDir_ + "; " + ramImages_.size() + " kept in RAM");
+      }
+   }
+
+   @Override
+   public boolean isFinished() {
+      return finished_;
+   }
+
+   @Override
+   public final void setSummaryMetadata(JSONObject md) {
+      summaryMetadata_ = md;
+      if (summaryMetadata_ != null) {
+         boolean slicesFirst = summaryMetadata_.optBoolean("SlicesFirst", true);
+         boolean timeFirst = summaryMetadata_.optBoolean("TimeFirst", false);
+         ConcurrentSkipListSet<String> labels = new ConcurrentSkipListSet<String>(
+               new ImageLabelComparator(slicesFirst, timeFirst));
+         // Under the same lock as putImage, so that no label is added to
+         // the old set after it has been copied
+         synchronized (this) {
+            labels.addAll(labels_);
+            labels_ = labels;
+         }
+      }
+   }
+
+   @Override
+   public JSONObject getSummaryMetadata() {
+      return summaryMetadata_;
+   }
+
+   @Override
+   public void setDisplayAndComments(JSONObject settings) {
+      displaySettings_ = settings;
+   }
+
+   @Override
+   public JSONObject getDisplayAndComments() {
+      return displaySettings_;
+   }
+
+   /**
+    * Releases the images in RAM and deletes the temporary files.
+    */
+   @Override
+   public synchronized void close() {
+      ramImages_.clear();
+      ramBytes_ = 0;
+      if (spillStorage_ != null) {
+         spillStorage_.finished();
+         spillStorage_.close();
+         spillStorage_ = null;
+         File[] files = spillDir_.listFiles();
+         if (files != null) {
+            for (File file : files) {
+               if (!file.delete()) {
+                  file.deleteOnExit();
+               }
+            }
+         }
+         if (!spillDir_.delete()) {
+            spillDir_.deleteOnExit();
+         }
+      }
+   }
+
+   /**
+    * As with TaggedImageStorageRamFast, the data set may be said to
+    * represent data at a location on disk.
+    */
+   public void setDiskLocation(String diskLocation) {
+      diskLocation_ = diskLocation;
+   }
+
+   @Override
+   public String getDiskLocation() {
+      return diskLocation_;
+   }
+
+   @Override
+   public int lastAcquiredFrame() {
+      return lastFrame_;
+   }
+
+   @Override
+   public synchronized long getDataSetSize() {
+      return ramBytes_ + (spillStorage_ == null ? 0 : spillStorage_.getDataSetSize());
+   }
+
+   @Override
+   public void writeDisplaySettings() {
+      //Do nothing
+   }
+}
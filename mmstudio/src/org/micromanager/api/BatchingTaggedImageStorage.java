@@ -0,0 +1,40 @@
+///////////////////////////////////////////////////////////////////////////////
+//FILE:          BatchingTaggedImageStorage.java
+//PROJECT:       Micro-Manager
+//SUBSYSTEM:     mmstudio
+//-----------------------------------------------------------------------------
+//
+// COPYRIGHT:    University of California, San Francisco, 2014
+//
+// LICENSE:      This file is distributed under the BSD license.
+//               License text is included with the source distribution.
+//
+//               This file is distributed in the hope that it will be useful,
+//               but WITHOUT ANY WARRANTY; without even the implied warranty
+//               of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+//
+//               IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+//               CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+//               INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES.
+
+package org.micromanager.api;
+
+import java.io.IOException;
+import java.util.List;
+import mmcorej.TaggedImage;
+import org.micromanager.utils.MMException;
+
+/**
+ * Optionally implemented by TaggedImageStorage classes that can store
+ * several images at once more cheaply than one by one. Callers check for
+ * this interface and call putImage() for each image otherwise.
+ */
+public interface BatchingTaggedImageStorage extends TaggedImageStorage {
+
+   /*
+    * Adds several TaggedImages to the storage, in list order. Equivalent to
+    * calling putImage() for each image, but lets the storage share work
+    * (locking, listener notification, flushing) between the images.
+    */
+   public void putImages(List<TaggedImage> taggedImages) throws MMException, IOException;
+}
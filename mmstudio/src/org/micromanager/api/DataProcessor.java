@@ -21,11 +21,16 @@
 
 package org.micromanager.api;
 
+import java.util.ArrayList;
 import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.TimeUnit;
 import org.micromanager.events.EventManager;
 import org.micromanager.events.ProcessorEnabledEvent;
+import org.micromanager.utils.PipelineMonitor;
 import org.micromanager.utils.ReportingUtils;
 
 /**
@@ -50,6 +55,33 @@ public abstract class DataProcessor<E> extends Thread {
    // images.
    private boolean isEnabled_ = true;
 
+   // Parallel processing (see isStateless()). Each input is numbered as it
+   // is polled; the outputs of a worker are held back until all outputs of
+   // earlier inputs have been passed on, so the order of images is kept.
+   private int numberOfWorkers_ = 1;
+   private boolean parallel_ = false;
+   private final Object pollLock_ = new Object();
+   private final Object reorderLock_ = new Object();
+   private long nextInputSequence_ = 0;
+   private long nextOutputSequence_ = 0;
+   private final Map<Long, List<E>> finishedOutputs_ =
+         new HashMap<Long, List<E>>();
+   private final ThreadLocal<InFlight<E>> inFlight_ =
+         new ThreadLocal<InFlight<E>>();
+
+   // Time at which the image being processed by a thread was polled
+   private final ThreadLocal<Long> pollTimeNs_ = new ThreadLocal<Long>();
+   private PipelineMonitor.Stage monitorStage_;
+
+   private static class InFlight<E> {
+      final long sequence;
+      final List<E> outputs = new ArrayList<E>(2);
+
+      InFlight(long sequence) {
+         this.sequence = sequence;
+      }
+   }
+
    /**
     * The scripting interface (commonly known as the "gui" object).
     */
@@ -75,6 +107,38 @@ public abstract class DataProcessor<E> extends Thread {
     */
    protected abstract void process();
 
+   /**
+    * Override to return true if process() keeps no state from one image to
+    * the next, and can therefore be called from several threads at once.
+    * The ProcessorStack then runs several workers for this processor, and
+    * puts their output back in input order. Stateless processors must
+    * receive images through poll() (not drainTo()), and must only call
+    * produce() from within process().
+    */
+   public boolean isStateless() {
+      return false;
+   }
+
+   /**
+    * Sets the number of threads calling process() when this processor is
+    * stateless. Only has an effect before the processor is started.
+    *
+    * Do not override this method. This method is automatically called by
+    * the system to set up data processors.
+    */
+   public synchronized void setNumberOfWorkers(int numberOfWorkers) {
+      if (!started_) {
+         numberOfWorkers_ = Math.max(1, numberOfWorkers);
+      }
+   }
+
+   /**
+    * Returns the number of threads calling process().
+    */
+   public synchronized int getNumberOfWorkers() {
+      return parallel_ ? numberOfWorkers_ : 1;
+   }
+
    /** 
     * Generate and show the GUI needed to configure the DataProcessor. 
     */
@@ -107,8 +171,38 @@ public abstract class DataProcessor<E> extends Thread {
    @Override
    public void run() {
       setStarted(true);
-      while (!stopRequested_) {
-         process();
+      monitorStage_ = PipelineMonitor.getInstance().registerStage(
+            "Processor: " + getClass().getSimpleName());
+      int helpers;
+      synchronized (this) {
+         parallel_ = numberOfWorkers_ > 1 && isStateless();
+         helpers = parallel_ ? numberOfWorkers_ - 1 : 0;
+      }
+      for (int i = 0; i < helpers; ++i) {
+         Thread helper = new Thread(getName() + " worker " + (i + 1)) {
+            @Override
+            public void run() {
+               processUntilStopped();
+            }
+         };
+         helper.setDaemon(isDaemon());
+         helper.start();
+      }
+      processUntilStopped();
+   }
+
+   private void processUntilStopped() {
+      while (!stopRequested()) {
+         try {
+            process();
+         } finally {
+            finishInFlight();
+            Long pollTimeNs = pollTimeNs_.get();
+            if (pollTimeNs != null) {
+               pollTimeNs_.remove();
+               monitorStage_.recordSince(pollTimeNs);
+            }
+         }
       }
    }
 
@@ -181,9 +275,22 @@ public abstract class DataProcessor<E> extends Thread {
                tmpQueue = input_;
             }
             if (tmpQueue != null) {
-               E datum = tmpQueue.poll(100, TimeUnit.MILLISECONDS);
-               if (datum != null) {
-                  return datum;
+               if (parallel_) {
+                  finishInFlight();
+                  synchronized (pollLock_) {
+                     E datum = tmpQueue.poll(100, TimeUnit.MILLISECONDS);
+                     if (datum != null) {
+                        inFlight_.set(new InFlight<E>(nextInputSequence_++));
+                        polled(tmpQueue);
+                        return datum;
+                     }
+                  }
+               } else {
+                  E datum = tmpQueue.poll(100, TimeUnit.MILLISECONDS);
+                  if (datum != null) {
+                     polled(tmpQueue);
+                     return datum;
+                  }
                }
             }
             if (tmpQueue == null) {
@@ -197,6 +304,16 @@ public abstract class DataProcessor<E> extends Thread {
       return null;
    }
 
+   /*
+    * Notes the time and queue depth for the pipeline statistics.
+    */
+   private void polled(BlockingQueue<E> queue) {
+      if (monitorStage_ != null) {
+         pollTimeNs_.set(System.nanoTime());
+         monitorStage_.recordQueueDepth(queue.size() + 1);
+      }
+   }
+
    /**
     * A convenience method for draining all available data objects
     * on the input queue to a collection.
@@ -216,6 +333,11 @@ public abstract class DataProcessor<E> extends Thread {
     * Do not override this method (it should have been final).
     */
    protected void produce(E datum) {
+      InFlight<E> inFlight = parallel_ ? inFlight_.get() : null;
+      if (inFlight != null) {
+         inFlight.outputs.add(datum);
+         return;
+      }
       try {
          output_.put(datum);
       } catch (InterruptedException ex) {
@@ -223,6 +345,32 @@ public abstract class DataProcessor<E> extends Thread {
       }
    };
 
+   /*
+    * Marks the input this thread is working on as done, and passes on all
+    * outputs that are now in order.
+    */
+   private void finishInFlight() {
+      InFlight<E> inFlight = inFlight_.get();
+      if (inFlight == null) {
+         return;
+      }
+      inFlight_.remove();
+      synchronized (reorderLock_) {
+         finishedOutputs_.put(inFlight.sequence, inFlight.outputs);
+         List<E> outputs;
+         while ((outputs = finishedOutputs_.remove(nextOutputSequence_)) != null) {
+            ++nextOutputSequence_;
+            for (E datum : outputs) {
+               try {
+                  output_.put(datum);
+               } catch (InterruptedException ex) {
+                  ReportingUtils.logError(ex);
+               }
+            }
+         }
+      }
+   }
+
    /**
     * Returns true if stop has been requested.
     *
@@ -34,7 +34,8 @@ public interface ImageCacheListener {
    /*
     * Implement this method to be informed when a TaggedImage or metadata
     * has been added to the image cache. May be called as many times as images
-    * are received by the cache.
+    * are received by the cache. Borrowed pixels (TaggedImage.isLeased()) are
+    * only valid until this method returns; copy them to keep them.
     */
    public void imageReceived(TaggedImage taggedImage);
 
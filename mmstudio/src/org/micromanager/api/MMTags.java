@@ -10,6 +10,7 @@ public class MMTags {
     */
    public class Root {
       public static final String SUMMARY = "Summary"; // key for the Summary metadata      
+      public static final String SUMMARY_UUID = "SummaryUUID"; // reference to the Summary metadata
    }
    
    /**
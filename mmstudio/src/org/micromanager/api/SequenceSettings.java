@@ -57,6 +57,8 @@ public class SequenceSettings {
    public String channelGroup = "";                                          // which group is used to define fluorescence channels
    public boolean usePositionList = false;                                   // true if we want to have multiple positions
    public int cameraTimeout = 20000; // Minimum camera timeout, in ms, for sequence acquisitions (actual timeout depends on exposure time and other factors)
+   public boolean summaryByReference = false; // images carry only the UUID of the summary metadata instead of a full copy
+   public boolean ringBufferQueues = false; // hand images between pipeline stages through preallocated ring buffers
       
    public static String toJSONStream(SequenceSettings settings) {
       Gson gson = new GsonBuilder().setPrettyPrinting().create();
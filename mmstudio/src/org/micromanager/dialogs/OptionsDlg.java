@@ -41,14 +41,24 @@ import javax.swing.JTextField;
 import javax.swing.WindowConstants;
 
 import mmcorej.CMMCore;
+import mmcorej.PixelBufferPool;
 
+import org.micromanager.acquisition.MultipageTiffReader;
+import org.micromanager.acquisition.MultipageTiffWriter;
+import org.micromanager.acquisition.TaggedImageStorageChunked;
+import org.micromanager.acquisition.TaggedImageStorageMultipageTiff;
+import org.micromanager.acquisition.TaggedImageStorageRamSpilling;
 import org.micromanager.api.ScriptInterface;
+import org.micromanager.imagedisplay.AcquisitionVirtualStack;
+import org.micromanager.imagedisplay.VirtualAcquisitionDisplay;
 import org.micromanager.logging.LogFileManager;
 import org.micromanager.MMOptions;
 import org.micromanager.MMStudio;
+import org.micromanager.utils.FileSyncer;
 import org.micromanager.utils.GUIColors;
 import org.micromanager.utils.MMDialog;
 import org.micromanager.utils.NumberUtils;
+import org.micromanager.utils.PixelStatistics;
 import org.micromanager.utils.ReportingUtils;
 import org.micromanager.utils.UIMonitor;
 
@@ -61,6 +71,14 @@ public class OptionsDlg extends MMDialog {
 
    private final JTextField startupScriptFile_;
    private final JTextField bufSizeField_;
+   private final JTextField writingThreadsField_;
+   private final JTextField journalSyncField_;
+   private final JTextField writeBlockSizeField_;
+   private final JTextField maxFileSizeField_;
+   private final JTextField chunkShapeField_;
+   private final JTextField ramBudgetField_;
+   private final JTextField histogramStrideField_;
+   private final JTextField maxDisplayFPSField_;
    private JTextField logDeleteDaysField_;
    private final JComboBox comboDisplayBackground_;
 
@@ -204,6 +222,22 @@ public class OptionsDlg extends MMDialog {
       });
 
       bufSizeField_ = new JTextField(Integer.toString(opts_.circularBufferSizeMB_), 5);
+      writingThreadsField_ = new JTextField(Integer.toString(opts_.mpTiffWritingThreads_), 3);
+      writingThreadsField_.setToolTipText("Number of threads writing Image Stack Files, e.g. one per XY position on a RAID");
+      writeBlockSizeField_ = new JTextField(Integer.toString(opts_.mpTiffWriteBlockSizeMB_), 3);
+      writeBlockSizeField_.setToolTipText("Write Image Stack Files in large blocks, limiting the data waiting in the page cache; 0 writes each image separately");
+      maxFileSizeField_ = new JTextField(Integer.toString(opts_.mpTiffMaxFileSizeMB_), 6);
+      maxFileSizeField_.setToolTipText("Data sets continue in a new file at this size; classic (non-BigTIFF) files are limited to 4096 MB");
+      chunkShapeField_ = new JTextField(opts_.chunkShape_, 12);
+      ramBudgetField_ = new JTextField(Integer.toString(opts_.ramStorageBudgetMB_), 6);
+      ramBudgetField_.setToolTipText("Acquisitions not saved to disk keep this much in RAM and move older images to temporary files");
+      histogramStrideField_ = new JTextField(Integer.toString(opts_.liveHistogramStride_), 3);
+      histogramStrideField_.setToolTipText("During live mode and acquisitions, histograms count every Nth pixel of every Nth row; 1 counts all pixels");
+      maxDisplayFPSField_ = new JTextField(Integer.toString(opts_.maxDisplayFPS_), 3);
+      maxDisplayFPSField_.setToolTipText("Image windows show at most this many new images per second, always the newest; faster images are dropped for display only");
+      chunkShapeField_.setToolTipText("Chunk extents along channel, slice, frame, position, y and x, e.g. 1,1,16,1,512,512");
+      journalSyncField_ = new JTextField(Integer.toString(opts_.journalSyncIntervalMs_), 5);
+      journalSyncField_.setToolTipText("How often the crash recovery records of data sets being saved are forced to disk: 0 for every image, -1 to leave it to the operating system");
 
       comboDisplayBackground_ = new JComboBox(guiColors_.styleOptions);
       comboDisplayBackground_.setMaximumRowCount(2);
@@ -329,6 +363,66 @@ public class OptionsDlg extends MMDialog {
          }
       });
   
+      final JCheckBox memoryMappedReadingCheckBox = new JCheckBox();
+      memoryMappedReadingCheckBox.setText("Memory-map Image Stack Files when opening them");
+      memoryMappedReadingCheckBox.setToolTipText("Faster browsing through large saved data sets, at the cost of address space");
+      memoryMappedReadingCheckBox.setSelected(opts_.mpTiffMemoryMappedReading_);
+      memoryMappedReadingCheckBox.addActionListener(new ActionListener() {
+         @Override
+         public void actionPerformed(ActionEvent arg0) {
+            opts_.mpTiffMemoryMappedReading_ = memoryMappedReadingCheckBox.isSelected();
+            MultipageTiffReader.setMemoryMapped(opts_.mpTiffMemoryMappedReading_);
+         }
+      });
+
+      final JCheckBox bigTiffCheckBox = new JCheckBox();
+      bigTiffCheckBox.setText("Save Image Stack Files as BigTIFF");
+      bigTiffCheckBox.setToolTipText("Allows files larger than 4 GB; such files can't be opened by ImageJ's own TIFF reader");
+      bigTiffCheckBox.setSelected(opts_.mpTiffBigTiff_);
+      bigTiffCheckBox.addActionListener(new ActionListener() {
+         @Override
+         public void actionPerformed(ActionEvent arg0) {
+            opts_.mpTiffBigTiff_ = bigTiffCheckBox.isSelected();
+            MultipageTiffWriter.setBigTiff(opts_.mpTiffBigTiff_);
+         }
+      });
+
+      final JCheckBox compressionCheckBox = new JCheckBox();
+      compressionCheckBox.setText("Compress Image Stack Files (lossless)");
+      compressionCheckBox.setToolTipText("Saves disk space and bandwidth at the cost of processor time; GRAY32 images are not compressed");
+      compressionCheckBox.setSelected(opts_.mpTiffCompression_);
+      compressionCheckBox.addActionListener(new ActionListener() {
+         @Override
+         public void actionPerformed(ActionEvent arg0) {
+            opts_.mpTiffCompression_ = compressionCheckBox.isSelected();
+            MultipageTiffWriter.setCompression(opts_.mpTiffCompression_);
+         }
+      });
+
+      final JCheckBox summaryByReferenceCheckBox = new JCheckBox();
+      summaryByReferenceCheckBox.setText("Store the summary metadata once per file, not with every image");
+      summaryByReferenceCheckBox.setToolTipText("Images of acquisitions carry only the UUID of the summary metadata; readers restore it from the file's summary");
+      summaryByReferenceCheckBox.setSelected(opts_.summaryByReference_);
+      summaryByReferenceCheckBox.addActionListener(new ActionListener() {
+         @Override
+         public void actionPerformed(ActionEvent arg0) {
+            opts_.summaryByReference_ = summaryByReferenceCheckBox.isSelected();
+            MMStudio.getInstance().getAcquisitionEngine().setSummaryByReference(
+                  opts_.summaryByReference_);
+         }
+      });
+
+      final JCheckBox chunkCompressionCheckBox = new JCheckBox();
+      chunkCompressionCheckBox.setText("Compress chunks (lossless)");
+      chunkCompressionCheckBox.setSelected(opts_.chunkCompression_);
+      chunkCompressionCheckBox.addActionListener(new ActionListener() {
+         @Override
+         public void actionPerformed(ActionEvent arg0) {
+            opts_.chunkCompression_ = chunkCompressionCheckBox.isSelected();
+            TaggedImageStorageChunked.setCompression(opts_.chunkCompression_);
+         }
+      });
+
       final JCheckBox syncExposureMainAndMDA = new JCheckBox();
       syncExposureMainAndMDA.setText("Sync exposure between Main and MDA windows");
       syncExposureMainAndMDA.setSelected(opts_.syncExposureMainAndMDA_);
@@ -349,6 +443,30 @@ public class OptionsDlg extends MMDialog {
          }
       });
 
+      final JCheckBox pixelBufferPoolCheckBox = new JCheckBox();
+      pixelBufferPoolCheckBox.setText("Recycle image buffers during acquisitions");
+      pixelBufferPoolCheckBox.setToolTipText("Reuse pixel arrays once images are saved, to avoid garbage collection pauses in long acquisitions");
+      pixelBufferPoolCheckBox.setSelected(opts_.pixelBufferPool_);
+      pixelBufferPoolCheckBox.addActionListener(new ActionListener() {
+         @Override
+         public void actionPerformed(ActionEvent arg0) {
+            opts_.pixelBufferPool_ = pixelBufferPoolCheckBox.isSelected();
+            PixelBufferPool.getInstance().setEnabled(opts_.pixelBufferPool_);
+         }
+      });
+
+      final JCheckBox displayPyramidCheckBox = new JCheckBox();
+      displayPyramidCheckBox.setText("Draw zoomed out images from reduced copies");
+      displayPyramidCheckBox.setToolTipText("Image windows zoomed out to 50% or less draw images reduced 2x, 4x or 8x, computed in the background, instead of at full resolution");
+      displayPyramidCheckBox.setSelected(opts_.displayPyramid_);
+      displayPyramidCheckBox.addActionListener(new ActionListener() {
+         @Override
+         public void actionPerformed(ActionEvent arg0) {
+            opts_.displayPyramid_ = displayPyramidCheckBox.isSelected();
+            AcquisitionVirtualStack.setPyramidEnabled(opts_.displayPyramid_);
+         }
+      });
+
       final JButton closeButton = new JButton();
       closeButton.setText("Close");
       closeButton.addActionListener(new ActionListener() {
@@ -370,16 +488,45 @@ public class OptionsDlg extends MMDialog {
             "split 2, gapright push");
       add(prefZoomCombo, "wrap");
 
+      add(new JLabel("Live histogram pixel stride:"), "split 2, gapright push");
+      add(histogramStrideField_, "wrap");
+      add(new JLabel("Maximum display rate:"), "split 3, gapright push");
+      add(maxDisplayFPSField_, "gapright related");
+      add(new JLabel("fps"), "wrap");
+      add(displayPyramidCheckBox, "wrap");
+
       add(new JSeparator(), "wrap");
 
       add(new JLabel("Sequence Buffer Size:"), "split 3, gapright push");
       add(bufSizeField_, "gapright related");
       add(new JLabel("MB"), "wrap");
+      add(pixelBufferPoolCheckBox, "wrap");
+      add(new JLabel("RAM for acquisitions not saved to disk:"), "split 3, gapright push");
+      add(ramBudgetField_, "gapright related");
+      add(new JLabel("MB"), "wrap");
 
       add(new JSeparator(), "wrap");
 
       add(metadataFileWithMultipageTiffCheckBox, "wrap");
       add(separateFilesForPositionsMPTiffCheckBox, "wrap");
+      add(new JLabel("Image Stack File writing threads:"), "split 2, gapright push");
+      add(writingThreadsField_, "wrap");
+      add(new JLabel("Image Stack File write block size:"), "split 3, gapright push");
+      add(writeBlockSizeField_, "gapright related");
+      add(new JLabel("MB"), "wrap");
+      add(bigTiffCheckBox, "wrap");
+      add(compressionCheckBox, "wrap");
+      add(new JLabel("Image Stack File maximum size:"), "split 3, gapright push");
+      add(maxFileSizeField_, "gapright related");
+      add(new JLabel("MB"), "wrap");
+      add(memoryMappedReadingCheckBox, "wrap");
+      add(summaryByReferenceCheckBox, "wrap");
+      add(new JLabel("Force crash recovery records to disk every:"), "split 3, gapright push");
+      add(journalSyncField_, "gapright related");
+      add(new JLabel("ms"), "wrap");
+      add(new JLabel("Chunked storage chunk shape (C,Z,T,P,Y,X):"), "split 2, gapright push");
+      add(chunkShapeField_, "wrap");
+      add(chunkCompressionCheckBox, "wrap");
 
       add(new JSeparator(), "wrap");
 
@@ -430,9 +577,30 @@ public class OptionsDlg extends MMDialog {
    private void closeRequested() {
       int seqBufSize;
       int deleteLogDays;
+      int writingThreads;
+      int journalSyncMs;
+      int writeBlockSizeMB;
+      int maxFileSizeMB;
+      int ramBudgetMB;
+      int histogramStride;
+      int maxDisplayFPS;
       try {
          seqBufSize =
             NumberUtils.displayStringToInt(bufSizeField_.getText());
+         writingThreads =
+            NumberUtils.displayStringToInt(writingThreadsField_.getText());
+         journalSyncMs =
+            NumberUtils.displayStringToInt(journalSyncField_.getText());
+         writeBlockSizeMB =
+            NumberUtils.displayStringToInt(writeBlockSizeField_.getText());
+         maxFileSizeMB =
+            NumberUtils.displayStringToInt(maxFileSizeField_.getText());
+         ramBudgetMB =
+            NumberUtils.displayStringToInt(ramBudgetField_.getText());
+         histogramStride =
+            NumberUtils.displayStringToInt(histogramStrideField_.getText());
+         maxDisplayFPS =
+            NumberUtils.displayStringToInt(maxDisplayFPSField_.getText());
          deleteLogDays =
             NumberUtils.displayStringToInt(logDeleteDaysField_.getText());
       }
@@ -440,8 +608,34 @@ public class OptionsDlg extends MMDialog {
          ReportingUtils.showError(ex);
          return;
       }
+      try {
+         TaggedImageStorageChunked.setChunkShape(
+               TaggedImageStorageChunked.parseChunkShape(chunkShapeField_.getText()));
+      } catch (IllegalArgumentException ex) {
+         ReportingUtils.showError("Invalid chunk shape: " + ex.getMessage());
+         return;
+      }
+      opts_.chunkShape_ = TaggedImageStorageChunked.formatChunkShape(
+            TaggedImageStorageChunked.getChunkShape());
 
       opts_.circularBufferSizeMB_ = seqBufSize;
+      opts_.mpTiffWritingThreads_ = Math.max(1, writingThreads);
+      TaggedImageStorageMultipageTiff.setMaxWritingThreads(
+            opts_.mpTiffWritingThreads_);
+      opts_.journalSyncIntervalMs_ = Math.max(-1, journalSyncMs);
+      FileSyncer.setSyncIntervalMs(opts_.journalSyncIntervalMs_);
+      // Each file being written holds one block in direct memory
+      opts_.mpTiffWriteBlockSizeMB_ = Math.min(1024, Math.max(0, writeBlockSizeMB));
+      MultipageTiffWriter.setWriteBlockSize(
+            opts_.mpTiffWriteBlockSizeMB_ * 1048576);
+      opts_.mpTiffMaxFileSizeMB_ = Math.max(64, maxFileSizeMB);
+      MultipageTiffWriter.setMaxFileSize(opts_.mpTiffMaxFileSizeMB_ * 1048576L);
+      opts_.ramStorageBudgetMB_ = Math.max(16, ramBudgetMB);
+      TaggedImageStorageRamSpilling.setRamBudget(opts_.ramStorageBudgetMB_ * 1048576L);
+      opts_.liveHistogramStride_ = Math.max(1, histogramStride);
+      PixelStatistics.setLiveStride(opts_.liveHistogramStride_);
+      opts_.maxDisplayFPS_ = Math.max(1, maxDisplayFPS);
+      VirtualAcquisitionDisplay.setMaxDisplayFPS(opts_.maxDisplayFPS_);
       opts_.startupScript_ = startupScriptFile_.getText();
       opts_.deleteCoreLogAfterDays_ = deleteLogDays;
       opts_.saveSettings();
@@ -51,6 +51,7 @@ import org.micromanager.utils.ImageUtils;
 import org.micromanager.utils.JavaUtils;
 import org.micromanager.utils.MDUtils;
 import org.micromanager.utils.NumberUtils;
+import org.micromanager.utils.PixelStatistics;
 import org.micromanager.utils.ReportingUtils;
 
 /**
@@ -585,6 +586,11 @@ public class ChannelControlPanel extends JPanel implements CursorListener {
             lut.max = contrastMax_;
             //uses lut.min and lut.max to set min and max of precessor
             img_.setChannelLut(lut, channelIndex_ + 1);
+            if (img_ instanceof MMCompositeImage) {
+               // Composite mode is rendered from these rather than the LUT
+               ((MMCompositeImage) img_).setChannelDisplaySettings(channelIndex_,
+                       color, contrastMin_, contrastMax_, gamma_);
+            }
 
             // ImageJ workaround: do this so the appropriate color model and 
             // min/max get applied in color or grayscale mode
@@ -671,18 +677,29 @@ public class ChannelControlPanel extends JPanel implements CursorListener {
          return;
       }
 
-      int[] rawHistogram = ip.getHistogram();
       int imgWidth = img_.getWidth();
       int imgHeight = img_.getHeight();
+      // Unchanged images aren't counted again
+      PixelStatistics stats = DisplayStatistics.get(display_, ip,
+              img_.getMode() == CompositeImage.COMPOSITE ? img_.getRoi() : null,
+              channelIndex_, img_.getSlice() - 1, img_.getFrame() - 1);
+      int[] rawHistogram;
+      int totalPoints;
+      if (stats != null) {
+         rawHistogram = stats.getHistogram();
+         totalPoints = (int) stats.getCount();
+      } else {
+         rawHistogram = ip.getHistogram();
+         totalPoints = imgHeight * imgWidth;
+      }
 
-      if (rawHistogram[0] == imgWidth * imgHeight) {
+      if (rawHistogram[0] == totalPoints) {
          return;  //Blank pixels 
       }
       if (display_.getHistogramControlsState().ignoreOutliers) {
          // todo handle negative values
          maxAfterRejectingOutliers_ = rawHistogram.length;
          // specified percent of pixels are ignored in the automatic contrast setting
-         int totalPoints = imgHeight * imgWidth;
          HistogramUtils hu = new HistogramUtils(rawHistogram, totalPoints, 0.01*display_.getHistogramControlsState().percentToIgnore);
          minAfterRejectingOutliers_ = hu.getMinAfterRejectingOutliers();
          maxAfterRejectingOutliers_ = hu.getMaxAfterRejectingOutliers();
@@ -0,0 +1,72 @@
+///////////////////////////////////////////////////////////////////////////////
+//FILE:          DisplayStatistics.java
+//PROJECT:       Micro-Manager
+//SUBSYSTEM:     mmstudio
+//-----------------------------------------------------------------------------
+//
+// COPYRIGHT:    University of California, San Francisco, 2014
+//
+// LICENSE:      This file is distributed under the BSD license.
+//               License text is included with the source distribution.
+//
+//               This file is distributed in the hope that it will be useful,
+//               but WITHOUT ANY WARRANTY; without even the implied warranty
+//               of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+//
+//               IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+//               CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+//               INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES.
+//
+package org.micromanager.graph;
+
+import ij.gui.Roi;
+import ij.process.ImageProcessor;
+import org.micromanager.MMStudio;
+import org.micromanager.acquisition.MMImageCache;
+import org.micromanager.api.ImageCache;
+import org.micromanager.imagedisplay.VirtualAcquisitionDisplay;
+import org.micromanager.utils.PixelStatistics;
+
+/**
+ * Obtains the statistics of the image shown in a channel of a display for
+ * the histogram panels.
+ */
+final class DisplayStatistics {
+
+   private DisplayStatistics() {
+   }
+
+   /**
+    * Statistics of images without an ROI are kept by the display's image
+    * cache, so that they are only computed again once the image changes.
+    * During live mode and acquisitions, the pixels are sampled with the
+    * stride set by PixelStatistics.setLiveStride().
+    * @param roi the ROI to restrict the statistics to, or null
+    * @return the statistics, or null for images that aren't 8 or 16 bit
+    */
+   static PixelStatistics get(VirtualAcquisitionDisplay display,
+         ImageProcessor ip, Roi roi, int channel, int slice, int frame) {
+      Object pixels = ip.getPixels();
+      if (!PixelStatistics.canCompute(pixels)) {
+         return null;
+      }
+      int stride = 1;
+      if (display.acquisitionIsRunning() || MMStudio.getInstance().isLiveModeOn()) {
+         stride = PixelStatistics.getLiveStride();
+      }
+      if (roi != null && roi.isArea()) {
+         ImageProcessor mask = roi.getMask();
+         return PixelStatistics.compute(pixels, ip.getWidth(), ip.getHeight(),
+               roi.getBounds(), mask == null ? null : (byte[]) mask.getPixels(),
+               stride);
+      }
+      ImageCache cache = display.getImageCache();
+      if (cache instanceof MMImageCache) {
+         return ((MMImageCache) cache).getPixelStatistics(channel, slice, frame,
+               display.getCurrentPosition(), pixels, ip.getWidth(), ip.getHeight(),
+               stride);
+      }
+      return PixelStatistics.compute(pixels, ip.getWidth(), ip.getHeight(),
+            null, null, stride);
+   }
+}
@@ -51,6 +51,7 @@ import org.micromanager.graph.HistogramPanel.CursorListener;
 import org.micromanager.utils.ContrastSettings;
 import org.micromanager.utils.HistogramUtils;
 import org.micromanager.utils.NumberUtils;
+import org.micromanager.utils.PixelStatistics;
 
 /**
  * A single histogram and a few controls for manipulating image contrast 
@@ -689,11 +690,16 @@ public class SingleChannelHistogram extends JPanel implements Histograms, Cursor
       if (img_ == null || img_.getProcessor() == null) {
          return;
       }
-      int[] rawHistogram = img_.getProcessor().getHistogram();
+      // Unchanged images aren't counted again
+      PixelStatistics stats = DisplayStatistics.get(display_, img_.getProcessor(),
+              img_.getRoi(), img_.getChannel() - 1, img_.getSlice() - 1,
+              img_.getFrame() - 1);
+      int[] rawHistogram = stats != null
+              ? stats.getHistogram() : img_.getProcessor().getHistogram();
       if (rawHistogram == null) { // Histogram is not implemented in ImageJ for FloatProcessor (GRAY32)
-          ImageStatistics stats = img_.getStatistics(ImageStatistics.MIN_MAX);
-          pixelMax_ = (int) stats.max;
-          pixelMin_ = (int) stats.min;
+          ImageStatistics ijStats = img_.getStatistics(ImageStatistics.MIN_MAX);
+          pixelMax_ = (int) ijStats.max;
+          pixelMin_ = (int) ijStats.min;
           if (contrastMax_ > 255) {
              contrastMax_ = 255;
           }
@@ -706,7 +712,7 @@ public class SingleChannelHistogram extends JPanel implements Histograms, Cursor
          // todo handle negative values
          maxAfterRejectingOutliers_ = rawHistogram.length;
          // specified percent of pixels are ignored in the automatic contrast setting
-         int totalPoints = imgHeight * imgWidth;
+         int totalPoints = stats != null ? (int) stats.getCount() : imgHeight * imgWidth;
          HistogramUtils hu = new HistogramUtils(rawHistogram, totalPoints, 0.01*display_.getHistogramControlsState().percentToIgnore);
          minAfterRejectingOutliers_ = hu.getMinAfterRejectingOutliers();
          maxAfterRejectingOutliers_ = hu.getMaxAfterRejectingOutliers();
@@ -742,11 +748,18 @@ public class SingleChannelHistogram extends JPanel implements Histograms, Cursor
       }
       if (drawHist) {
 
-         ImageStatistics stats = img_.getStatistics(ImageStatistics.MEAN | ImageStatistics.MIN_MAX | ImageStatistics.STD_DEV);
-         pixelMax_ = (int) stats.max;
-         pixelMin_ = (int) stats.min;
-         mean_ = stats.mean;
-         stdDev_ = stats.stdDev;
+         if (stats != null) {
+            pixelMax_ = stats.getMax();
+            pixelMin_ = stats.getMin();
+            mean_ = stats.getMean();
+            stdDev_ = stats.getStdDev();
+         } else {
+            ImageStatistics ijStats = img_.getStatistics(ImageStatistics.MEAN | ImageStatistics.MIN_MAX | ImageStatistics.STD_DEV);
+            pixelMax_ = (int) ijStats.max;
+            pixelMin_ = (int) ijStats.min;
+            mean_ = ijStats.mean;
+            stdDev_ = ijStats.stdDev;
+         }
          
          //Draw histogram and stats
          histogramData.setData(histogram);
@@ -2,8 +2,14 @@
 package org.micromanager.imagedisplay;
 
 import ij.ImagePlus;
+import ij.gui.ImageCanvas;
 import ij.process.ImageProcessor;
 import java.awt.image.ColorModel;
+import java.util.LinkedHashSet;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 import mmcorej.TaggedImage;
 import org.json.JSONException;
 import org.json.JSONObject;
@@ -20,6 +26,15 @@ import org.micromanager.utils.ReportingUtils;
 public class AcquisitionVirtualStack extends ij.VirtualStack {
 
    final private TaggedImageStorage imageCache_;
+   // Recently shown and prefetched images
+   final private PlaneCache planeCache_;
+   // Reduced copies of the shown images, for drawing when zoomed out
+   final private PyramidCache pyramidCache_ = new PyramidCache();
+   private static volatile boolean pyramidEnabled_ = true;
+   // Longest a paint waits for reduced images before drawing the full ones
+   public static final long PYRAMID_WAIT_MS = 100;
+   // Number of images along the animated axes read ahead of the display
+   private static final int PREFETCH_DEPTH = 8;
    final private VirtualAcquisitionDisplay acq_;
    final protected int width_, height_, type_;
    private final int nSlices_;
@@ -30,6 +45,7 @@ public class AcquisitionVirtualStack extends ij.VirtualStack {
            VirtualAcquisitionDisplay acq) {
       super(width, height, cm, "");
       imageCache_ = imageCache;
+      planeCache_ = new PlaneCache(imageCache);
       width_ = width;
       height_ = height;
       nSlices_ = nSlices;
@@ -50,6 +66,45 @@ public class AcquisitionVirtualStack extends ij.VirtualStack {
       return acq_;
    }
 
+   /**
+    * Sets whether displays that are zoomed out draw the images from copies
+    * reduced 2x, 4x or 8x, computed in the background.
+    */
+   public static void setPyramidEnabled(boolean enabled) {
+      pyramidEnabled_ = enabled;
+   }
+
+   public static boolean isPyramidEnabled() {
+      return pyramidEnabled_;
+   }
+
+   /**
+    * @return the reduction (2, 4 or 8) to draw the images with at the given
+    * canvas magnification, or 1 to draw them at full resolution
+    */
+   public static int getPyramidFactor(double magnification) {
+      if (!pyramidEnabled_) {
+         return 1;
+      }
+      return PyramidCache.getFactor(magnification);
+   }
+
+   /**
+    * @return the reduction the canvas of the image draws it with: 1 unless
+    * it is zoomed out and nothing is drawn over the image, as ImageJ paints
+    * the image and the ROI or overlay together off-screen
+    */
+   static int getPaintFactor(ImagePlus imagePlus) {
+      ImageCanvas canvas = imagePlus.getCanvas();
+      if (canvas == null
+            || !(imagePlus.getImageStack() instanceof AcquisitionVirtualStack)
+            || imagePlus.getRoi() != null || imagePlus.getOverlay() != null
+            || canvas.getShowAllROIs()) {
+         return 1;
+      }
+      return getPyramidFactor(canvas.getMagnification());
+   }
+
    
    private TaggedImage getTaggedImage(int flatIndex) {
       int[] pos;
@@ -81,26 +136,26 @@ public class AcquisitionVirtualStack extends ij.VirtualStack {
       }
       try {
          TaggedImage img;
-         img = imageCache_.getImage(chanIndex, slice, frame, positionIndex_);
+         img = planeCache_.getImage(chanIndex, slice, frame, positionIndex_);
          int backIndex = slice - 1, forwardIndex = slice + 1;
          int frameSearchIndex = frame;
          //If some but not all channels have z stacks, find the closest slice for the given
          //channel that has an image.  Also if time point missing, go back until image is found
          while (img == null) {
-            img = imageCache_.getImage(chanIndex, slice, frameSearchIndex, positionIndex_);
+            img = planeCache_.getImage(chanIndex, slice, frameSearchIndex, positionIndex_);
             if (img != null) {
                break;
             }
 
             if (backIndex >= 0) {
-               img = imageCache_.getImage(chanIndex, backIndex, frameSearchIndex, positionIndex_);
+               img = planeCache_.getImage(chanIndex, backIndex, frameSearchIndex, positionIndex_);
                if (img != null) {
                   break;
                }
                backIndex--;
             }
             if (forwardIndex < nSlices) {
-               img = imageCache_.getImage(chanIndex, forwardIndex, frameSearchIndex, positionIndex_);
+               img = planeCache_.getImage(chanIndex, forwardIndex, frameSearchIndex, positionIndex_);
                if (img != null) {
                   break;
                }
@@ -124,6 +179,56 @@ public class AcquisitionVirtualStack extends ij.VirtualStack {
       }
    }
    
+   /**
+    * Reads in the background the images expected to be shown next: those of
+    * all channels at the next PREFETCH_DEPTH steps from the given (0-based)
+    * slice and frame, wrapping around as animation does.
+    * @param sliceStep, frameStep steps per image shown along each axis,
+    * e.g. 1 when animating forward and -1 when scrolling back
+    */
+   public void prefetch(int slice, int frame, int sliceStep, int frameStep) {
+      ImagePlus imagePlus = acq_.getImagePlus();
+      if (imagePlus == null || (sliceStep == 0 && frameStep == 0)) {
+         return;
+      }
+      int nSlices = Math.max(1, imagePlus.getNSlices());
+      int nFrames = Math.max(1, imagePlus.getNFrames());
+      int nChannels = Math.max(1, imagePlus.getNChannels());
+      LinkedHashSet<Integer> channels = new LinkedHashSet<Integer>();
+      for (int channel = 0; channel < nChannels; channel++) {
+         channels.add(acq_.grayToRGBChannel(channel));
+      }
+      int[][] indices = new int[PREFETCH_DEPTH * channels.size()][];
+      int i = 0;
+      for (int step = 1; step <= PREFETCH_DEPTH; step++) {
+         int nextSlice = ((slice + step * sliceStep) % nSlices + nSlices) % nSlices;
+         int nextFrame = ((frame + step * frameStep) % nFrames + nFrames) % nFrames;
+         for (int channel : channels) {
+            indices[i++] = new int[] {channel, nextSlice, nextFrame, positionIndex_};
+         }
+      }
+      planeCache_.prefetch(indices);
+   }
+
+   /**
+    * Drops any cached copy of the image with this label, so that a replaced
+    * image is read again.
+    */
+   public void invalidate(String label) {
+      planeCache_.invalidate(label);
+      pyramidCache_.invalidate(label);
+   }
+
+   /**
+    * Stops prefetching and releases the cached images.
+    */
+   public void releaseCache() {
+      ReportingUtils.logMessage(planeCache_.toString());
+      ReportingUtils.logMessage(pyramidCache_.toString());
+      planeCache_.shutdown();
+      pyramidCache_.clear();
+   }
+
    //this method is available so that image tags can be synchrnized with the pixels displayed in the viewer,
    //since alternate images are filled in when some are missing (for example, when a z stack is not collecte din one channel
    //or when frames are skipped)
@@ -159,6 +264,44 @@ public class AcquisitionVirtualStack extends ij.VirtualStack {
       return pixels;
    }
 
+   /**
+    * Returns the pixels of an image reduced by the given factor (2, 4 or 8)
+    * in each direction, (width + factor - 1) / factor pixels wide. If they
+    * aren't cached, they are computed in the background.
+    * @param deadline System.currentTimeMillis() up to which to wait for
+    * them, or 0 not to wait
+    * @return the reduced pixels, or null if they aren't ready or the image
+    * isn't grayscale
+    */
+   public Object getReducedPixels(int flatIndex, int factor, long deadline) {
+      TaggedImage image = getTaggedImage(flatIndex);
+      if (image == null || image.pix == null || image.tags == null) {
+         return null;
+      }
+      try {
+         String label = MDUtils.getLabel(image.tags);
+         Object reduced = pyramidCache_.get(label, image.pix, factor);
+         if (reduced != null) {
+            return reduced;
+         }
+         Future<?> computation = pyramidCache_.request(label, image.pix,
+               getPixels(flatIndex), width_, height_, factor);
+         long remaining = deadline - System.currentTimeMillis();
+         if (computation == null || remaining <= 0) {
+            return null;
+         }
+         computation.get(remaining, TimeUnit.MILLISECONDS);
+         return pyramidCache_.get(label, image.pix, factor);
+      } catch (TimeoutException ex) {
+         // Drawn at full resolution this time
+      } catch (InterruptedException ex) {
+         Thread.currentThread().interrupt();
+      } catch (ExecutionException ex) {
+         ReportingUtils.logError(ex.getCause());
+      }
+      return null;
+   }
+
    @Override
    public ImageProcessor getProcessor(int flatIndex) {
       return ImageUtils.makeProcessor(type_, width_, height_, getPixels(flatIndex));
@@ -0,0 +1,255 @@
+///////////////////////////////////////////////////////////////////////////////
+//FILE:          CompositeRenderer.java
+//PROJECT:       Micro-Manager
+//SUBSYSTEM:     mmstudio
+//-----------------------------------------------------------------------------
+//
+// COPYRIGHT:    University of California, San Francisco, 2014
+//
+// LICENSE:      This file is distributed under the BSD license.
+//               License text is included with the source distribution.
+//
+//               This file is distributed in the hope that it will be useful,
+//               but WITHOUT ANY WARRANTY; without even the implied warranty
+//               of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+//
+//               IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+//               CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+//               INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES.
+//
+package org.micromanager.imagedisplay;
+
+import ij.process.LUT;
+import java.awt.Color;
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.lang.reflect.Array;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.micromanager.utils.ImageUtils;
+import org.micromanager.utils.ReportingUtils;
+
+/**
+ * Renders the channels of a multi-channel image in composite mode into an
+ * RGB image, in place of ImageJ's per-channel scaling to 8 bits and
+ * compositing.
+ *
+ * Each channel's contrast, gamma and color are turned into a table giving
+ * the color of every possible pixel value (65536 entries for 16 bit
+ * images), which is only rebuilt when the settings change. The colors of
+ * the channels are added, saturating at 255, as by ImageJ. Rendering can be
+ * restricted to a part of the image, e.g. the part visible when zoomed in,
+ * and large areas are split into bands of rows rendered in parallel. Images
+ * are kept for the two latest sizes rendered, i.e. for the full resolution
+ * and for a reduced copy of the pixels when zoomed out.
+ */
+final class CompositeRenderer {
+   // Areas with fewer pixels are not worth splitting
+   private static final int MIN_PIXELS_PER_TASK = 128 * 1024;
+
+   private static ExecutorService pool_;
+
+   private static class ChannelLookup {
+      Color color;
+      int min;
+      int max;
+      double gamma;
+      // Color of each pixel value; null until needed
+      int[] table;
+   }
+
+   private final List<ChannelLookup> channels_ = new ArrayList<ChannelLookup>();
+   private final LinkedHashMap<String, BufferedImage> images_ =
+         new LinkedHashMap<String, BufferedImage>(4, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, BufferedImage> eldest) {
+               return size() > 2;
+            }
+         };
+
+   private static synchronized ExecutorService getPool() {
+      if (pool_ == null) {
+         final AtomicInteger count = new AtomicInteger();
+         pool_ = Executors.newFixedThreadPool(
+               Runtime.getRuntime().availableProcessors(),
+               new ThreadFactory() {
+                  @Override
+                  public Thread newThread(Runnable r) {
+                     Thread thread = new Thread(r, "Composite renderer "
+                           + count.getAndIncrement());
+                     thread.setDaemon(true);
+                     return thread;
+                  }
+               });
+      }
+      return pool_;
+   }
+
+   /**
+    * Sets the display settings of a channel (0-based).
+    */
+   synchronized void setChannel(int channel, Color color, int min, int max,
+         double gamma) {
+      while (channels_.size() <= channel) {
+         channels_.add(null);
+      }
+      ChannelLookup lookup = channels_.get(channel);
+      if (lookup != null && lookup.color.equals(color) && lookup.min == min
+            && lookup.max == max && lookup.gamma == gamma) {
+         return;
+      }
+      lookup = new ChannelLookup();
+      lookup.color = color;
+      lookup.min = min;
+      lookup.max = max;
+      lookup.gamma = gamma;
+      channels_.set(channel, lookup);
+   }
+
+   synchronized boolean hasChannel(int channel) {
+      return channel < channels_.size() && channels_.get(channel) != null;
+   }
+
+   /*
+    * Builds the table of a channel for the given number of pixel values, the
+    * same way as ImageJ maps a channel to 8 bits and then through its LUT.
+    */
+   private static int[] getTable(ChannelLookup lookup, int size) {
+      if (lookup.table != null && lookup.table.length == size) {
+         return lookup.table;
+      }
+      LUT lut = ImageUtils.makeLUT(lookup.color, lookup.gamma);
+      int[] lutColors = new int[256];
+      for (int i = 0; i < 256; ++i) {
+         lutColors[i] = lut.getRGB(i) & 0xffffff;
+      }
+      int[] table = new int[size];
+      double scale = 256.0 / Math.max(1, lookup.max - lookup.min + 1);
+      for (int value = 0; value < size; ++value) {
+         int index = (int) (Math.max(0, value - lookup.min) * scale + 0.5);
+         table[value] = lutColors[Math.min(255, index)];
+      }
+      lookup.table = table;
+      return table;
+   }
+
+   /**
+    * Renders the given part of the image.
+    * @param pixels byte[] or short[] pixels of each channel, or null for the
+    * channels not shown; all of the same type
+    * @return the image, which is reused by the next call of the same size;
+    * null if the pixels can't be rendered
+    */
+   synchronized BufferedImage render(Object[] pixels, int width, int height,
+         Rectangle rect) {
+      final List<Object> sources = new ArrayList<Object>();
+      final List<int[]> tables = new ArrayList<int[]>();
+      for (int channel = 0; channel < pixels.length; ++channel) {
+         Object channelPixels = pixels[channel];
+         if (channelPixels == null) {
+            continue;
+         }
+         int size;
+         if (channelPixels instanceof short[]) {
+            size = 65536;
+         } else if (channelPixels instanceof byte[]) {
+            size = 256;
+         } else {
+            return null;
+         }
+         if (!hasChannel(channel)
+               || Array.getLength(channelPixels) < width * height) {
+            return null;
+         }
+         sources.add(channelPixels);
+         tables.add(getTable(channels_.get(channel), size));
+      }
+
+      String size = width + "x" + height;
+      BufferedImage image = images_.get(size);
+      if (image == null) {
+         image = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+         images_.put(size, image);
+      }
+      final int[] rgb = ((DataBufferInt) image.getRaster().getDataBuffer()).getData();
+      final Rectangle bounds = rect.intersection(new Rectangle(0, 0, width, height));
+      if (bounds.isEmpty()) {
+         return image;
+      }
+      final int imageWidth = width;
+      int tasks = (int) Math.min(Runtime.getRuntime().availableProcessors(),
+            (long) bounds.width * bounds.height / MIN_PIXELS_PER_TASK);
+      if (tasks <= 1) {
+         composite(sources, tables, imageWidth, bounds, bounds.y,
+               bounds.y + bounds.height, rgb);
+         return image;
+      }
+      List<Future<?>> bands = new ArrayList<Future<?>>();
+      for (int i = 0; i < tasks; ++i) {
+         final int firstRow = bounds.y + (int) ((long) bounds.height * i / tasks);
+         final int lastRow = bounds.y + (int) ((long) bounds.height * (i + 1) / tasks);
+         bands.add(getPool().submit(new Runnable() {
+            @Override
+            public void run() {
+               composite(sources, tables, imageWidth, bounds, firstRow, lastRow, rgb);
+            }
+         }));
+      }
+      try {
+         for (Future<?> band : bands) {
+            band.get();
+         }
+      } catch (InterruptedException ex) {
+         Thread.currentThread().interrupt();
+      } catch (ExecutionException ex) {
+         ReportingUtils.logError(ex.getCause());
+      }
+      return image;
+   }
+
+   /*
+    * Adds the colors of the channels for the given rows of the rectangle.
+    */
+   private static void composite(List<Object> sources, List<int[]> tables,
+         int width, Rectangle bounds, int firstRow, int lastRow, int[] rgb) {
+      int x0 = bounds.x;
+      int x1 = bounds.x + bounds.width;
+      for (int y = firstRow; y < lastRow; ++y) {
+         int start = y * width;
+         for (int i = start + x0; i < start + x1; ++i) {
+            rgb[i] = 0;
+         }
+         for (int channel = 0; channel < sources.size(); ++channel) {
+            Object source = sources.get(channel);
+            int[] table = tables.get(channel);
+            if (source instanceof short[]) {
+               short[] shorts = (short[]) source;
+               for (int i = start + x0; i < start + x1; ++i) {
+                  rgb[i] = addSaturated(rgb[i], table[shorts[i] & 0xffff]);
+               }
+            } else {
+               byte[] bytes = (byte[]) source;
+               for (int i = start + x0; i < start + x1; ++i) {
+                  rgb[i] = addSaturated(rgb[i], table[bytes[i] & 0xff]);
+               }
+            }
+         }
+      }
+   }
+
+   private static int addSaturated(int rgb1, int rgb2) {
+      int r = Math.min(255, ((rgb1 >> 16) & 0xff) + ((rgb2 >> 16) & 0xff));
+      int g = Math.min(255, ((rgb1 >> 8) & 0xff) + ((rgb2 >> 8) & 0xff));
+      int b = Math.min(255, (rgb1 & 0xff) + (rgb2 & 0xff));
+      return (r << 16) | (g << 8) | b;
+   }
+}
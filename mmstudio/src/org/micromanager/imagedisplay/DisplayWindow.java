@@ -15,6 +15,7 @@ import java.awt.Color;
 import java.awt.Component;
 import java.awt.Dimension;
 import java.awt.Graphics;
+import java.awt.Image;
 import java.awt.Point;
 import java.awt.Rectangle;
 import java.awt.event.ComponentAdapter;
@@ -120,7 +121,39 @@ public final class DisplayWindow extends StackWindow  {
       ic = new ImageCanvas(plus_) {
          @Override
          public void paint(Graphics g) {
-            super.paint(g);
+            int factor = AcquisitionVirtualStack.getPaintFactor(plus_);
+            Image reduced = null;
+            if (factor > 1 && plus_ instanceof IMMImagePlus) {
+               reduced = ((IMMImagePlus) plus_).getReducedImage(factor);
+            }
+            if (reduced != null) {
+               // When zoomed out, draw the image from its reduced pixels and
+               // let ImageJ draw the rest
+               Rectangle src = getSrcRect();
+               double mag = getMagnification();
+               g.drawImage(reduced, 0, 0,
+                     (int) (src.width * mag + 0.5), (int) (src.height * mag + 0.5),
+                     src.x / factor, src.y / factor,
+                     PyramidCache.getReducedSize(src.x + src.width, factor),
+                     PyramidCache.getReducedSize(src.y + src.height, factor),
+                     null);
+               ((IMMImagePlus) plus_).setReducedImageDrawn(true);
+               try {
+                  super.paint(g);
+               } finally {
+                  ((IMMImagePlus) plus_).setReducedImageDrawn(false);
+               }
+            } else if (plus_ instanceof MMCompositeImage) {
+               // Only the part of the image we show needs to be rendered
+               ((MMCompositeImage) plus_).setPaintViewport(getSrcRect());
+               try {
+                  super.paint(g);
+               } finally {
+                  ((MMCompositeImage) plus_).setPaintViewport(null);
+               }
+            } else {
+               super.paint(g);
+            }
             // Determine the color to use (default is black).
             if (plus_.isComposite()) {
                Color color = ((CompositeImage) plus_).getChannelColor();
@@ -161,6 +194,7 @@ public final class DisplayWindow extends StackWindow  {
                   widthSlop, size.height);
             g.clearRect(0, heightSlop + drawnHeight + 1,
                   size.width, heightSlop);
+            CanvasPaintPending.paintFinished(this);
          }
 
          /**
@@ -2,15 +2,17 @@ package org.micromanager.imagedisplay;
 
 /**
  * This class handles notifications of the current incoming image rate (data 
- * rate) and displayed image rate.
+ * rate), displayed image rate and the rate of images dropped for display.
  */
 class FPSEvent {
    private double dataFPS_;
    private double displayFPS_;
+   private double droppedFPS_;
 
-   public FPSEvent(double dataFPS, double displayFPS) {
+   public FPSEvent(double dataFPS, double displayFPS, double droppedFPS) {
       dataFPS_ = dataFPS;
       displayFPS_ = displayFPS;
+      droppedFPS_ = droppedFPS;
    }
 
    public double getDataFPS() {
@@ -20,4 +22,8 @@ class FPSEvent {
    public double getDisplayFPS() {
       return displayFPS_;
    }
+
+   public double getDroppedFPS() {
+      return droppedFPS_;
+   }
 }
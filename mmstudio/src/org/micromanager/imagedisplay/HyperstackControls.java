@@ -435,6 +435,9 @@ public class HyperstackControls extends DisplayControls implements LiveModeListe
          }
          plus.setPosition(channel, slice, frame);
          display_.updateAndDraw(true);
+         // Read ahead in the direction we are moving
+         display_.prefetch(slice - 1, frame - 1,
+               event.getStepForAxis("z"), event.getStepForAxis("time"));
       }
       catch (Exception e) {
          // This can happen, rarely, with an ArrayIndexOutOfBoundsException
@@ -696,8 +699,8 @@ public class HyperstackControls extends DisplayControls implements LiveModeListe
       // Default to assuming we'll be blanking the label.
       String newLabel = "";
       if (event.getDataFPS() != 0) {
-         newLabel = String.format("FPS: %.1f (display %.1f)", 
-               event.getDataFPS(), event.getDisplayFPS());
+         newLabel = String.format("FPS: %.1f (display %.1f, dropped %.1f)", 
+               event.getDataFPS(), event.getDisplayFPS(), event.getDroppedFPS());
       }
       else if (fpsField_ != null) {
          // No new data, but we do have an FPS text field for animations, so
@@ -1,5 +1,7 @@
 package org.micromanager.imagedisplay;
 
+import java.awt.Image;
+
 /**
  * This interface allows us to manipulate the dimensions
  * in an ImagePlus without it throwing conniptions.
@@ -14,4 +16,17 @@ public interface IMMImagePlus {
    public void drawWithoutUpdate();
 
    public int[] getPixelIntensities(int x, int y);
+
+   /**
+    * Returns the image shown, made from its pixels reduced by the given
+    * factor (2, 4 or 8) in each direction, for a canvas that is zoomed out;
+    * null if the reduced pixels aren't ready.
+    */
+   public Image getReducedImage(int factor);
+
+   /**
+    * Set while the canvas paints a reduced image itself; getImage() then
+    * returns null, so that ImageJ only draws what goes over the image.
+    */
+   public void setReducedImageDrawn(boolean drawn);
 }
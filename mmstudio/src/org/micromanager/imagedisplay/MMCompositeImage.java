@@ -4,9 +4,16 @@ import com.google.common.eventbus.EventBus;
 
 import ij.CompositeImage;
 import ij.ImagePlus;
+import ij.ImageStack;
+import ij.gui.ImageCanvas;
 import ij.plugin.frame.ContrastAdjuster;
+import ij.process.ImageProcessor;
 import ij.process.LUT;
 
+import java.awt.Color;
+import java.awt.Image;
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
 import java.lang.reflect.InvocationTargetException;
 
 import javax.swing.SwingUtilities;
@@ -20,6 +27,16 @@ public class MMCompositeImage extends CompositeImage implements IMMImagePlus {
    private ImagePlus hyperImage_;
    private String title_;
    private EventBus bus_;
+   // Renders composite mode in place of ImageJ once the display settings
+   // of the channels are known
+   private final CompositeRenderer renderer_ = new CompositeRenderer();
+   // Whether img holds our rendering, and which part of it is up to date
+   private boolean rendering_ = false; // Guarded by this
+   private Rectangle renderedRect_; // Guarded by this
+   // The part of the image being painted by the canvas, if any
+   private Rectangle paintViewport_; // Guarded by this
+   // Whether the canvas is painting a reduced image
+   private volatile boolean reducedImageDrawn_ = false;
 
    MMCompositeImage(ImagePlus imgp, int type, String title, EventBus bus) {
       super(imgp, type);
@@ -122,7 +139,183 @@ public class MMCompositeImage extends CompositeImage implements IMMImagePlus {
         superUpdateImage();
    }
 
+   /**
+    * Sets the display settings that composite mode renders a channel
+    * (0-based) with, as set in the channel's LUT.
+    */
+   public void setChannelDisplaySettings(int channel, Color color, int min,
+         int max, double gamma) {
+      renderer_.setChannel(channel, color, min, max, gamma);
+   }
+
+   /**
+    * Called by the canvas around painting, so that only the part of the
+    * image that is shown at the current zoom is rendered.
+    */
+   synchronized void setPaintViewport(Rectangle viewport) {
+      paintViewport_ = viewport;
+   }
+
+   /*
+    * Returns the pixels of the channels shown in composite mode at the
+    * current slice and frame (null for the other channels), or null if
+    * ImageJ has to render the image.
+    */
+   private Object[] getCompositePixels() {
+      if (getMode() != COMPOSITE || getProcessor(1) == null) {
+         return null;
+      }
+      int nChannels = getNChannelsUnverified();
+      boolean[] active = getActiveChannels();
+      ImageStack stack = getImageStack();
+      Object[] pixels = new Object[nChannels];
+      for (int channel = 0; channel < nChannels; ++channel) {
+         Object channelPixels = stack.getPixels(
+               getStackIndex(channel + 1, getSlice(), getFrame()));
+         ImageProcessor ip = getProcessor(channel + 1);
+         if (ip == null) {
+            // A new channel; ImageJ sets up its processor
+            return null;
+         }
+         // Keep the channel processors, which the histograms read, in step
+         // with the position shown, as ImageJ's rendering does
+         if (channelPixels != null && ip.getPixels() != channelPixels) {
+            ip.setPixels(channelPixels);
+         }
+         if (active != null && channel < active.length && active[channel]) {
+            pixels[channel] = channelPixels;
+         }
+      }
+      return pixels;
+   }
+
+   private Rectangle getViewport() {
+      if (paintViewport_ != null) {
+         return paintViewport_;
+      }
+      ImageCanvas canvas = getCanvas();
+      if (canvas != null) {
+         return canvas.getSrcRect();
+      }
+      return new Rectangle(0, 0, getWidth(), getHeight());
+   }
+
+   /*
+    * Renders the given part of the image into img.
+    * @return false if ImageJ has to render the image
+    */
+   private boolean renderArea(Rectangle rect) {
+      Object[] pixels = getCompositePixels();
+      BufferedImage image = pixels == null
+            ? null : renderer_.render(pixels, getWidth(), getHeight(), rect);
+      if (image == null) {
+         rendering_ = false;
+         renderedRect_ = null;
+         return false;
+      }
+      img = image;
+      rendering_ = true;
+      renderedRect_ = new Rectangle(rect);
+      return true;
+   }
+
+   /*
+    * Renders the part of the image that is shown after the pixels or the
+    * display settings changed; the rest is rendered when needed by
+    * getImage().
+    */
+   private synchronized boolean renderComposite() {
+      renderedRect_ = null;
+      if (AcquisitionVirtualStack.getPaintFactor(this) > 1
+            && getCompositePixels() != null) {
+         // The canvas draws the image from reduced pixels; the full
+         // resolution image is rendered by getImage() if needed
+         rendering_ = true;
+         return true;
+      }
+      return renderArea(getViewport());
+   }
+
+   /**
+    * Renders the channels shown in composite mode from their reduced
+    * pixels, which are computed in parallel if needed.
+    */
+   @Override
+   public Image getReducedImage(int factor) {
+      ImageStack stack = getImageStack();
+      if (!(stack instanceof AcquisitionVirtualStack)) {
+         return null;
+      }
+      AcquisitionVirtualStack virtualStack = (AcquisitionVirtualStack) stack;
+      Object[] pixels;
+      int slice, frame;
+      synchronized (this) {
+         pixels = getCompositePixels();
+         slice = getSlice();
+         frame = getFrame();
+      }
+      if (pixels == null) {
+         return null;
+      }
+      Object[] reduced = new Object[pixels.length];
+      // Request all channels before waiting for any of them, then wait for
+      // all of them together no longer than for one
+      long deadline = 0;
+      for (int pass = 0; pass < 2; ++pass) {
+         for (int channel = 0; channel < pixels.length; ++channel) {
+            if (pixels[channel] != null && reduced[channel] == null) {
+               reduced[channel] = virtualStack.getReducedPixels(
+                     getStackIndex(channel + 1, slice, frame), factor, deadline);
+            }
+         }
+         deadline = System.currentTimeMillis()
+               + AcquisitionVirtualStack.PYRAMID_WAIT_MS;
+      }
+      for (int channel = 0; channel < pixels.length; ++channel) {
+         if (pixels[channel] != null && reduced[channel] == null) {
+            return null;
+         }
+      }
+      int width = PyramidCache.getReducedSize(getWidth(), factor);
+      int height = PyramidCache.getReducedSize(getHeight(), factor);
+      return renderer_.render(reduced, width, height,
+            new Rectangle(0, 0, width, height));
+   }
+
+   @Override
+   public void setReducedImageDrawn(boolean drawn) {
+      reducedImageDrawn_ = drawn;
+   }
+
+   /**
+    * The canvas gets the image rendered for the part it paints; others get
+    * the whole image.
+    */
+   @Override
+   public synchronized Image getImage() {
+      if (reducedImageDrawn_) {
+         return null;
+      }
+      if (rendering_) {
+         Rectangle wanted = paintViewport_ != null
+               ? paintViewport_ : new Rectangle(0, 0, getWidth(), getHeight());
+         if (renderedRect_ != null && renderedRect_.contains(wanted)) {
+            return img;
+         }
+         if (renderArea(wanted)) {
+            return img;
+         }
+         // E.g. the mode has changed: let ImageJ render the image
+         superUpdateImage();
+         return img;
+      }
+      return super.getImage();
+   }
+
    private void superUpdateImage() {
+      if (renderComposite()) {
+         return;
+      }
       // Need to set this field to null, or else an infinite loop can be 
       // entered when the imageJ contrast adjuster is open
       Object curVal = null;
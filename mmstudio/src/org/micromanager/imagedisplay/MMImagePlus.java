@@ -4,10 +4,19 @@ import com.google.common.eventbus.EventBus;
 
 import ij.ImagePlus;
 import ij.ImageStack;
+import ij.process.ByteProcessor;
+import ij.process.ImageProcessor;
+import ij.process.ShortProcessor;
+
+import java.awt.Image;
 
 public class MMImagePlus extends ImagePlus implements IMMImagePlus {
 
    private EventBus bus_;
+   // Whether the canvas is painting a reduced image, and whether img was
+   // left out of date meanwhile
+   private volatile boolean reducedImageDrawn_ = false;
+   private volatile boolean imageStale_ = false;
 
    MMImagePlus(String title, ImageStack stack, EventBus bus) {
       super(title, stack);
@@ -83,4 +92,60 @@ public class MMImagePlus extends ImagePlus implements IMMImagePlus {
    public int[] getPixelIntensities(int x, int y) {
       return super.getPixel(x, y);
    }
+
+   @Override
+   public Image getReducedImage(int factor) {
+      ImageStack stack = getImageStack();
+      ImageProcessor ip = getProcessor();
+      if (!(stack instanceof AcquisitionVirtualStack) || ip == null) {
+         return null;
+      }
+      Object pixels = ((AcquisitionVirtualStack) stack).getReducedPixels(
+            getCurrentSlice(), factor, System.currentTimeMillis()
+            + AcquisitionVirtualStack.PYRAMID_WAIT_MS);
+      int width = PyramidCache.getReducedSize(getWidth(), factor);
+      int height = PyramidCache.getReducedSize(getHeight(), factor);
+      ImageProcessor reduced;
+      if (pixels instanceof short[] && ip instanceof ShortProcessor) {
+         reduced = new ShortProcessor(width, height, (short[]) pixels,
+               ip.getColorModel());
+      } else if (pixels instanceof byte[] && ip instanceof ByteProcessor) {
+         reduced = new ByteProcessor(width, height, (byte[]) pixels,
+               ip.getColorModel());
+      } else {
+         return null;
+      }
+      reduced.setMinAndMax(ip.getMin(), ip.getMax());
+      return reduced.createImage();
+   }
+
+   @Override
+   public void setReducedImageDrawn(boolean drawn) {
+      reducedImageDrawn_ = drawn;
+   }
+
+   /**
+    * The full resolution image isn't made while the canvas paints a reduced
+    * one, but when it is next asked for.
+    */
+   @Override
+   public void updateImage() {
+      if (reducedImageDrawn_) {
+         imageStale_ = true;
+         return;
+      }
+      imageStale_ = false;
+      super.updateImage();
+   }
+
+   @Override
+   public Image getImage() {
+      if (reducedImageDrawn_) {
+         return null;
+      }
+      if (imageStale_) {
+         updateImage();
+      }
+      return super.getImage();
+   }
 }
@@ -0,0 +1,210 @@
+///////////////////////////////////////////////////////////////////////////////
+//FILE:          PlaneCache.java
+//PROJECT:       Micro-Manager
+//SUBSYSTEM:     mmstudio
+//-----------------------------------------------------------------------------
+//
+// COPYRIGHT:    University of California, San Francisco, 2014
+//
+// LICENSE:      This file is distributed under the BSD license.
+//               License text is included with the source distribution.
+//
+//               This file is distributed in the hope that it will be useful,
+//               but WITHOUT ANY WARRANTY; without even the implied warranty
+//               of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+//
+//               IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+//               CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+//               INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES.
+//
+package org.micromanager.imagedisplay;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import mmcorej.TaggedImage;
+import org.micromanager.api.TaggedImageStorage;
+import org.micromanager.utils.MDUtils;
+import org.micromanager.utils.ReportingUtils;
+
+/**
+ * A bounded LRU cache of the images shown by an AcquisitionVirtualStack,
+ * with a background thread reading the images that are expected to be shown
+ * next, so that animating a data set on disk isn't held up by reading.
+ *
+ * Each call to prefetch() replaces the images still waiting to be read, so
+ * that a change of direction takes effect at once.
+ */
+final class PlaneCache {
+   private static final long MAX_BYTES = Math.min(256L * 1024 * 1024,
+         Runtime.getRuntime().maxMemory() / 8);
+
+   private final TaggedImageStorage storage_;
+   private final LinkedHashMap<String, TaggedImage> images_ =
+         new LinkedHashMap<String, TaggedImage>(16, 0.75f, true);
+   private long bytes_ = 0;
+   // Images requested by the latest prefetch() and not yet read
+   private final Set<String> wanted_ = new HashSet<String>();
+   private final AtomicInteger generation_ = new AtomicInteger();
+   // Counts invalidate() and clear() calls. A read only caches its image if
+   // neither its label nor the whole cache was invalidated since it began.
+   private int version_ = 0;
+   private int clearedVersion_ = 0;
+   private final Map<String, Integer> invalidatedVersions_ =
+         new HashMap<String, Integer>();
+   private final ExecutorService reader_;
+   private long hits_ = 0, misses_ = 0;
+
+   PlaneCache(TaggedImageStorage storage) {
+      storage_ = storage;
+      reader_ = Executors.newSingleThreadExecutor(new ThreadFactory() {
+         @Override
+         public Thread newThread(Runnable r) {
+            Thread thread = new Thread(r, "Image prefetcher");
+            thread.setDaemon(true);
+            thread.setPriority(Thread.NORM_PRIORITY - 1);
+            return thread;
+         }
+      });
+   }
+
+   /**
+    * Returns the image, reading it if it isn't cached.
+    */
+   TaggedImage getImage(int channel, int slice, int frame, int position) {
+      String label = MDUtils.generateLabel(channel, slice, frame, position);
+      int version;
+      synchronized (this) {
+         TaggedImage image = images_.get(label);
+         if (image != null) {
+            ++hits_;
+            return image;
+         }
+         ++misses_;
+         version = version_;
+      }
+      TaggedImage image = storage_.getImage(channel, slice, frame, position);
+      if (image != null) {
+         put(label, image, version);
+      }
+      return image;
+   }
+
+   /*
+    * Caches an image read since the given version_, unless it was
+    * invalidated meanwhile.
+    */
+   private synchronized void put(String label, TaggedImage image, int version) {
+      Integer invalidated = invalidatedVersions_.get(label);
+      if (clearedVersion_ > version || (invalidated != null && invalidated > version)) {
+         return;
+      }
+      TaggedImage old = images_.put(label, image);
+      if (old != null) {
+         bytes_ -= getSize(old);
+      }
+      bytes_ += getSize(image);
+      Iterator<TaggedImage> eldest = images_.values().iterator();
+      while (bytes_ > MAX_BYTES && images_.size() > 1) {
+         bytes_ -= getSize(eldest.next());
+         eldest.remove();
+      }
+   }
+
+   private static long getSize(TaggedImage image) {
+      Object pix = image.pix;
+      if (pix instanceof byte[]) {
+         return ((byte[]) pix).length;
+      } else if (pix instanceof short[]) {
+         return 2L * ((short[]) pix).length;
+      } else if (pix instanceof int[]) {
+         return 4L * ((int[]) pix).length;
+      } else if (pix instanceof float[]) {
+         return 4L * ((float[]) pix).length;
+      }
+      return 0;
+   }
+
+   /**
+    * Reads the given images in the background, in order, unless they are
+    * cached already. Images requested by earlier calls and not yet read are
+    * dropped.
+    * @param indices channel, slice, frame and position of each image
+    */
+   void prefetch(int[][] indices) {
+      final int generation = generation_.incrementAndGet();
+      synchronized (this) {
+         wanted_.clear();
+         for (int[] image : indices) {
+            String label = MDUtils.generateLabel(image[0], image[1], image[2], image[3]);
+            if (!images_.containsKey(label)) {
+               wanted_.add(label);
+            }
+         }
+      }
+      for (final int[] image : indices) {
+         reader_.execute(new Runnable() {
+            @Override
+            public void run() {
+               if (generation != generation_.get()) {
+                  return;
+               }
+               String label = MDUtils.generateLabel(image[0], image[1], image[2], image[3]);
+               int version;
+               synchronized (PlaneCache.this) {
+                  if (!wanted_.remove(label)) {
+                     return;
+                  }
+                  version = version_;
+               }
+               try {
+                  TaggedImage taggedImage = storage_.getImage(image[0], image[1], image[2], image[3]);
+                  if (taggedImage != null) {
+                     put(label, taggedImage, version);
+                  }
+               } catch (Exception ex) {
+                  ReportingUtils.logError(ex, "Unable to prefetch image " + label);
+               }
+            }
+         });
+      }
+   }
+
+   /**
+    * Drops the cached copy of an image, e.g. because it was replaced.
+    */
+   synchronized void invalidate(String label) {
+      invalidatedVersions_.put(label, ++version_);
+      TaggedImage old = images_.remove(label);
+      if (old != null) {
+         bytes_ -= getSize(old);
+      }
+   }
+
+   synchronized void clear() {
+      generation_.incrementAndGet();
+      clearedVersion_ = ++version_;
+      invalidatedVersions_.clear();
+      wanted_.clear();
+      images_.clear();
+      bytes_ = 0;
+   }
+
+   void shutdown() {
+      reader_.shutdownNow();
+      clear();
+   }
+
+   @Override
+   public synchronized String toString() {
+      return String.format("Plane cache: %d images, %.1f MB, %d hits, %d misses",
+            images_.size(), bytes_ / 1048576.0, hits_, misses_);
+   }
+}
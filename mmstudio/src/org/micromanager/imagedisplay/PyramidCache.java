@@ -0,0 +1,247 @@
+///////////////////////////////////////////////////////////////////////////////
+//FILE:          PyramidCache.java
+//PROJECT:       Micro-Manager
+//SUBSYSTEM:     mmstudio
+//-----------------------------------------------------------------------------
+//
+// COPYRIGHT:    University of California, San Francisco, 2014
+//
+// LICENSE:      This file is distributed under the BSD license.
+//               License text is included with the source distribution.
+//
+//               This file is distributed in the hope that it will be useful,
+//               but WITHOUT ANY WARRANTY; without even the implied warranty
+//               of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+//
+//               IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+//               CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+//               INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES.
+//
+package org.micromanager.imagedisplay;
+
+import java.lang.ref.WeakReference;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.micromanager.utils.ReportingUtils;
+
+/**
+ * A bounded LRU cache of the planes shown by an AcquisitionVirtualStack,
+ * reduced 2x, 4x and 8x in each direction, so that a display that is zoomed
+ * out can draw a plane from far fewer pixels.
+ *
+ * The reduced planes are computed on a pool shared by all displays: each
+ * pixel of a level is the mean of 2x2 pixels of the level below, starting
+ * from the full resolution plane. All levels up to the one requested are
+ * computed and cached at once.
+ */
+final class PyramidCache {
+   static final int MAX_FACTOR = 8;
+
+   private static final long MAX_BYTES = Math.min(64L * 1024 * 1024,
+         Runtime.getRuntime().maxMemory() / 16);
+
+   private static ExecutorService pool_;
+
+   private static class Level {
+      // The full resolution pixels this level was computed from
+      WeakReference<Object> source;
+      Object pixels;
+      long bytes;
+   }
+
+   private final LinkedHashMap<String, Level> levels_ =
+         new LinkedHashMap<String, Level>(16, 0.75f, true);
+   private long bytes_ = 0;
+   // Planes being computed, so that each is only queued once
+   private final Map<String, Future<?>> pending_ = new HashMap<String, Future<?>>();
+   private final AtomicInteger generation_ = new AtomicInteger();
+   private long hits_ = 0, misses_ = 0;
+
+   private static synchronized ExecutorService getPool() {
+      if (pool_ == null) {
+         final AtomicInteger count = new AtomicInteger();
+         pool_ = Executors.newFixedThreadPool(
+               Math.max(1, Runtime.getRuntime().availableProcessors() / 2),
+               new ThreadFactory() {
+                  @Override
+                  public Thread newThread(Runnable r) {
+                     Thread thread = new Thread(r, "Pyramid "
+                           + count.getAndIncrement());
+                     thread.setDaemon(true);
+                     thread.setPriority(Thread.NORM_PRIORITY - 1);
+                     return thread;
+                  }
+               });
+      }
+      return pool_;
+   }
+
+   /**
+    * @return the reduction (1, 2, 4 or 8) to draw a plane with at the given
+    * canvas magnification: the largest whose pixels are still no smaller
+    * than those of the screen
+    */
+   static int getFactor(double magnification) {
+      int factor = 1;
+      while (factor < MAX_FACTOR && magnification * factor * 2 <= 1.0) {
+         factor *= 2;
+      }
+      return factor;
+   }
+
+   static int getReducedSize(int size, int factor) {
+      return (size + factor - 1) / factor;
+   }
+
+   private static String getKey(String label, int factor) {
+      return label + "/" + factor;
+   }
+
+   /**
+    * Returns the reduced plane if it is cached and was computed from the
+    * given full resolution pixels.
+    * @param source the full resolution pixels, or the object they are taken
+    * from, used to notice replaced images
+    */
+   synchronized Object get(String label, Object source, int factor) {
+      Level level = levels_.get(getKey(label, factor));
+      if (level != null && level.source.get() == source) {
+         ++hits_;
+         return level.pixels;
+      }
+      ++misses_;
+      return null;
+   }
+
+   /**
+    * Computes the reduced planes up to the given factor in the background,
+    * unless they are being computed already.
+    * @param pixels byte[] or short[] full resolution pixels
+    * @return the computation, or null for pixels of other types
+    */
+   Future<?> request(final String label, Object source, final Object pixels,
+         final int width, final int height, final int factor) {
+      if (!(pixels instanceof byte[] || pixels instanceof short[])) {
+         return null;
+      }
+      final String key = getKey(label, factor);
+      final WeakReference<Object> sourceRef = new WeakReference<Object>(source);
+      final int generation = generation_.get();
+      synchronized (this) {
+         Future<?> pending = pending_.get(key);
+         if (pending != null) {
+            return pending;
+         }
+         pending = getPool().submit(new Runnable() {
+            @Override
+            public void run() {
+               try {
+                  Object reduced = pixels;
+                  int w = width, h = height;
+                  for (int f = 2; f <= factor; f *= 2) {
+                     reduced = halve(reduced, w, h);
+                     w = getReducedSize(w, 2);
+                     h = getReducedSize(h, 2);
+                     put(getKey(label, f), sourceRef, reduced, generation);
+                  }
+               } catch (Exception ex) {
+                  ReportingUtils.logError(ex, "Unable to reduce image " + label);
+               } finally {
+                  synchronized (PyramidCache.this) {
+                     pending_.remove(key);
+                  }
+               }
+            }
+         });
+         pending_.put(key, pending);
+         return pending;
+      }
+   }
+
+   private synchronized void put(String key, WeakReference<Object> source,
+         Object pixels, int generation) {
+      if (generation != generation_.get()) {
+         // Cleared meanwhile
+         return;
+      }
+      Level level = new Level();
+      level.source = source;
+      level.pixels = pixels;
+      level.bytes = pixels instanceof short[]
+            ? 2L * ((short[]) pixels).length : ((byte[]) pixels).length;
+      Level old = levels_.put(key, level);
+      if (old != null) {
+         bytes_ -= old.bytes;
+      }
+      bytes_ += level.bytes;
+      Iterator<Level> eldest = levels_.values().iterator();
+      while (bytes_ > MAX_BYTES && levels_.size() > 1) {
+         bytes_ -= eldest.next().bytes;
+         eldest.remove();
+      }
+   }
+
+   /*
+    * Averages each 2x2 block of pixels; blocks at the right and bottom edges
+    * of odd sized planes average the pixels they have.
+    */
+   private static Object halve(Object pixels, int width, int height) {
+      int w = getReducedSize(width, 2);
+      int h = getReducedSize(height, 2);
+      boolean isShort = pixels instanceof short[];
+      short[] shorts = isShort ? (short[]) pixels : null;
+      byte[] bytes = isShort ? null : (byte[]) pixels;
+      short[] reducedShorts = isShort ? new short[w * h] : null;
+      byte[] reducedBytes = isShort ? null : new byte[w * h];
+      for (int y = 0; y < h; ++y) {
+         int row0 = 2 * y * width;
+         int row1 = 2 * y + 1 < height ? row0 + width : row0;
+         for (int x = 0; x < w; ++x) {
+            int x0 = 2 * x;
+            int x1 = x0 + 1 < width ? x0 + 1 : x0;
+            int sum;
+            if (isShort) {
+               sum = (shorts[row0 + x0] & 0xffff) + (shorts[row0 + x1] & 0xffff)
+                     + (shorts[row1 + x0] & 0xffff) + (shorts[row1 + x1] & 0xffff);
+               reducedShorts[y * w + x] = (short) ((sum + 2) >> 2);
+            } else {
+               sum = (bytes[row0 + x0] & 0xff) + (bytes[row0 + x1] & 0xff)
+                     + (bytes[row1 + x0] & 0xff) + (bytes[row1 + x1] & 0xff);
+               reducedBytes[y * w + x] = (byte) ((sum + 2) >> 2);
+            }
+         }
+      }
+      return isShort ? reducedShorts : reducedBytes;
+   }
+
+   /**
+    * Drops the reduced planes of an image, e.g. because it was replaced.
+    */
+   synchronized void invalidate(String label) {
+      for (int factor = 2; factor <= MAX_FACTOR; factor *= 2) {
+         Level old = levels_.remove(getKey(label, factor));
+         if (old != null) {
+            bytes_ -= old.bytes;
+         }
+      }
+   }
+
+   synchronized void clear() {
+      generation_.incrementAndGet();
+      levels_.clear();
+      bytes_ = 0;
+   }
+
+   @Override
+   public synchronized String toString() {
+      return String.format("Pyramid cache: %d planes, %.1f MB, %d hits, %d misses",
+            levels_.size(), bytes_ / 1048576.0, hits_, misses_);
+   }
+}
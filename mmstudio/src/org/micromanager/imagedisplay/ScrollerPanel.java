@@ -23,8 +23,15 @@ public class ScrollerPanel extends JPanel {
    public static class SetImageEvent {
       // Maps axis labels to their positions. 
       private HashMap<String, Integer> axisToPosition_;
+      // Maps axis labels to the direction of travel along them.
+      private HashMap<String, Integer> axisToStep_;
       public SetImageEvent(HashMap<String, Integer> axisToPosition) {
+         this(axisToPosition, new HashMap<String, Integer>());
+      }
+      public SetImageEvent(HashMap<String, Integer> axisToPosition,
+            HashMap<String, Integer> axisToStep) {
          axisToPosition_ = axisToPosition;
+         axisToStep_ = axisToStep;
       }
       /**
        * Retrieve the desired position along the specified axis, or 0 if we 
@@ -36,6 +43,18 @@ public class ScrollerPanel extends JPanel {
          }
          return 0;
       }
+      /**
+       * Retrieve how far the position along the specified axis is expected
+       * to move for the next image: the animation step for animated axes,
+       * or the direction of the last change when scrolling by hand; 0 if
+       * it isn't moving.
+       */
+      public int getStepForAxis(String axis) {
+         if (axisToStep_.containsKey(axis)) {
+            return axisToStep_.get(axis);
+         }
+         return 0;
+      }
    }
 
    /**
@@ -106,7 +125,7 @@ public class ScrollerPanel extends JPanel {
     */
    @Subscribe
    public void onScrollPositionChanged(AxisScroller.ScrollPositionEvent event) {
-      checkForImagePositionChanged();
+      checkForImagePositionChanged(null);
    }
 
    /**
@@ -114,24 +133,34 @@ public class ScrollerPanel extends JPanel {
     * scrollers is different from the image that we were last pointing to
     * when this function was called. If so, then we need to post a
     * SetImageEvent to the event bus so that the image display gets updated.
+    * @param offsets the animation step of each scroller, or null if the
+    * position was changed by hand
     */
-   private void checkForImagePositionChanged() {
+   private void checkForImagePositionChanged(int[] offsets) {
       boolean shouldPostEvent = false;
       if (lastImagePosition_ == null) {
          lastImagePosition_ = new HashMap<String, Integer>();
       }
-      for (AxisScroller scroller : scrollers_) {
+      HashMap<String, Integer> steps = new HashMap<String, Integer>();
+      for (int i = 0; i < scrollers_.size(); ++i) {
+         AxisScroller scroller = scrollers_.get(i);
          String axis = scroller.getAxis();
          Integer position = scroller.getPosition();
          if (!lastImagePosition_.containsKey(axis) ||
                lastImagePosition_.get(axis) != position) {
             // Position along this axis has changed; we need to refresh.
             shouldPostEvent = true;
+            if (offsets == null && lastImagePosition_.containsKey(axis)) {
+               steps.put(axis, Integer.signum(position - lastImagePosition_.get(axis)));
+            }
+         }
+         if (offsets != null) {
+            steps.put(axis, offsets[i]);
          }
          lastImagePosition_.put(axis, position);
       }
       if (shouldPostEvent) {
-         bus_.post(new SetImageEvent(lastImagePosition_));
+         bus_.post(new SetImageEvent(lastImagePosition_, steps));
       }
    }
 
@@ -208,7 +237,7 @@ public class ScrollerPanel extends JPanel {
                      scrollers_.get(i).advancePosition(offsets[i], false);
                   }
                }
-               checkForImagePositionChanged();
+               checkForImagePositionChanged(offsets);
             }
          };
          animationUpdateTimer_.schedule(task, 0, interval);
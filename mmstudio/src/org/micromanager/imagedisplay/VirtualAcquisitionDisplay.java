@@ -45,8 +45,6 @@ import java.util.HashMap;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicLong;
-import java.util.concurrent.LinkedBlockingQueue;
-import java.util.concurrent.TimeUnit;
 
 import javax.swing.event.MouseInputAdapter;
 import javax.swing.JMenuItem;
@@ -78,10 +76,12 @@ import org.micromanager.internalinterfaces.Histograms;
 import org.micromanager.utils.CanvasPaintPending;
 import org.micromanager.utils.ContrastSettings;
 import org.micromanager.utils.FileDialogs;
+import org.micromanager.utils.FrameMailbox;
 import org.micromanager.utils.GUIUtils;
 import org.micromanager.utils.JavaUtils;
 import org.micromanager.utils.MDUtils;
 import org.micromanager.utils.MMScriptException;
+import org.micromanager.utils.PipelineMonitor;
 import org.micromanager.utils.ReportingUtils;
 
 public class VirtualAcquisitionDisplay implements ImageCacheListener {
@@ -114,8 +114,12 @@ public class VirtualAcquisitionDisplay implements ImageCacheListener {
    private String title_;
    private int numComponents_;
    private int pixelType_ = 0;
-   // This queue holds images waiting to be displayed.
-   private LinkedBlockingQueue<JSONObject> imageTagsQueue_;
+   // Holds the newest image waiting to be displayed.
+   private FrameMailbox<JSONObject> imageTagsMailbox_;
+   private static volatile int maxDisplayFPS_ = 30;
+   // Longest wait for the previous image to be painted, in case the window
+   // isn't painted at all (e.g. because it is minimized)
+   private static final long PAINT_TIMEOUT_MS = 250;
    // This thread consumes images from the above queue.
    private Thread displayThread_;
    // This boolean is used to tell the display thread to stop what it's doing.
@@ -186,75 +190,69 @@ public class VirtualAcquisitionDisplay implements ImageCacheListener {
 
    /**
     * Start the thread that will be used to update our display. This thread
-    * extracts the newest image from imageTagsQueue_, displays it, and waits for
-    * display to stop, then repeats (all other images in the queue are 
-    * discarded). 
+    * takes the newest image from imageTagsMailbox_ (older images that were
+    * not shown in time are dropped), waits for the previous image to be
+    * painted and for the frame interval set by setMaxDisplayFPS() to pass,
+    * and shows the newest image available by then.
     */
    private void setupDisplayThread() {
-      imageTagsQueue_ = new LinkedBlockingQueue<JSONObject>();
+      imageTagsMailbox_ = new FrameMailbox<JSONObject>();
       displayThread_ = new Thread(new Runnable() {
          @Override
          public void run() {
-            JSONObject tags = null;
+            PipelineMonitor.Stage monitorStage =
+                  PipelineMonitor.getInstance().getStage(PipelineMonitor.DISPLAY);
+            long lastShownNs = System.nanoTime();
             while (!shouldStopDisplayThread_.get()) {
-               boolean haveValidImage = false;
-               // Extract images from the queue until we get to the end.
-               do {
-                  try {
-                     // This will block until an image is available or we need
-                     // to send a new FPS update.
-                     tags = imageTagsQueue_.poll(500, TimeUnit.MILLISECONDS);
-                     haveValidImage = (tags != null);
-                     if (tags == null) {
-                        try {
-                           // We still need to generate an FPS update at 
-                           // regular intervals; we just have to do it without
-                           // any image tags.
-                           sendFPSUpdate(null);
-                        }
-                        catch (Exception e) {
-                           // Can't get image tags, apparently; give up.
-                           break;
-                        }
-                        continue;
-                     }
+               JSONObject tags;
+               int skipped = 0;
+               try {
+                  // This will block until an image is available or we need
+                  // to send a new FPS update.
+                  tags = imageTagsMailbox_.take(500);
+                  if (tags == null) {
+                     // We still need to generate an FPS update at regular
+                     // intervals; we just have to do it without any image
+                     // tags.
+                     sendFPSUpdate(null);
+                     continue;
                   }
-                  catch (InterruptedException e) {
-                     // Interrupted while waiting for the queue to be 
-                     // populated. 
-                     if (shouldStopDisplayThread_.get()) {
-                        // Time to stop.
-                        return;
-                     }
+                  long waitNs = lastShownNs + 1000000000L / maxDisplayFPS_
+                        - System.nanoTime();
+                  if (waitNs > 0) {
+                     Thread.sleep(waitNs / 1000000, (int) (waitNs % 1000000));
+                  }
+                  if (hyperImage_ != null && hyperImage_.getCanvas() != null) {
+                     // Wait for the canvas to be available. If we don't do
+                     // this, then our framerate tanks, possibly because of
+                     // repaint events piling up in the EDT.
+                     CanvasPaintPending.waitForPaint(hyperImage_.getCanvas(),
+                           imageReceivedObject_, PAINT_TIMEOUT_MS);
+                     CanvasPaintPending.setPaintPending(
+                           hyperImage_.getCanvas(), imageReceivedObject_);
                   }
-               } while (imageTagsQueue_.peek() != null);
-
-               if (tags == null || !haveValidImage) {
-                  // Nothing to show. 
-                  continue;
                }
-      
-               if (hyperImage_ != null && hyperImage_.getCanvas() != null) {
-                  // Wait for the canvas to be available. If we don't do this,
-                  // then our framerate tanks, possibly because of repaint
-                  // events piling up in the EDT. It's hard to tell. 
-                  while (CanvasPaintPending.isMyPaintPending(
-                        hyperImage_.getCanvas(), imageReceivedObject_)) {
-                     try {
-                        Thread.sleep(10);
-                     }
-                     catch (InterruptedException e) {
-                        if (shouldStopDisplayThread_.get()) {
-                           // Time to stop.
-                           return;
-                        }
-                     }
+               catch (InterruptedException e) {
+                  if (shouldStopDisplayThread_.get()) {
+                     // Time to stop.
+                     return;
                   }
-                  CanvasPaintPending.setPaintPending(
-                        hyperImage_.getCanvas(), imageReceivedObject_);
+                  continue;
                }
+               // Show the newest image, which may have arrived while waiting
+               JSONObject newer = imageTagsMailbox_.poll();
+               if (newer != null) {
+                  tags = newer;
+                  ++skipped;
+               }
+               skipped += imageTagsMailbox_.getAndResetDropped();
+               lastShownNs = System.nanoTime();
                showImage(tags, true);
                imagesDisplayed_++;
+               monitorStage.recordSince(PipelineMonitor.getPipelineStartNs(tags));
+               if (skipped > 0) {
+                  monitorStage.recordDropped(skipped);
+               }
                sendFPSUpdate(tags);
             } // End while loop
          }
@@ -263,14 +261,27 @@ public class VirtualAcquisitionDisplay implements ImageCacheListener {
    }
 
    /**
-    * Send an update on our FPS, both data rate and image display rate. Only
-    * if it has been at least 500ms since our last update.
+    * Sets the highest rate at which displays show new images; images that
+    * arrive faster are dropped for display, the newest one being shown.
+    */
+   public static void setMaxDisplayFPS(int fps) {
+      maxDisplayFPS_ = Math.max(1, fps);
+   }
+
+   public static int getMaxDisplayFPS() {
+      return maxDisplayFPS_;
+   }
+
+   /**
+    * Send an update on our FPS: data rate, image display rate and the rate
+    * of images that were not displayed. Only if it has been at least 500ms
+    * since our last update.
     */
    private void sendFPSUpdate(JSONObject tags) {
       long curTimestamp = System.currentTimeMillis();
       // Hack: if we have null tags, then post a "blank" FPS event.
       if (tags == null) {
-         bus_.post(new FPSEvent(0, 0));
+         bus_.post(new FPSEvent(0, 0, 0));
          return;
       }
       if (lastFPSUpdateTimestamp_ == -1) {
@@ -285,15 +296,19 @@ public class VirtualAcquisitionDisplay implements ImageCacheListener {
             // HACK: Ignore the first FPS display event, to prevent us from
             // showing FPS for the Snap window.
             if (lastImageIndex_ != 0) {
+               // Images not displayed anywhere along the way, e.g. also
+               // those dropped by live mode before reaching us
+               long dropped = Math.max(0,
+                     imageIndex - lastImageIndex_ - imagesDisplayed_);
                bus_.post(new FPSEvent((imageIndex - lastImageIndex_) / elapsedTime, 
-                        imagesDisplayed_ / elapsedTime));
+                        imagesDisplayed_ / elapsedTime, dropped / elapsedTime));
             }
             lastImageIndex_ = imageIndex;
          }
          catch (Exception e) {
             // Post a "blank" event. This likely happens because the image
             // tags don't contain a sequence number (e.g. during an MDA).
-            bus_.post(new FPSEvent(0, 0));
+            bus_.post(new FPSEvent(0, 0, 0));
          }
          imagesDisplayed_ = 0;
          lastFPSUpdateTimestamp_ = curTimestamp;
@@ -462,9 +477,24 @@ public class VirtualAcquisitionDisplay implements ImageCacheListener {
     */
    @Override
    public void imageReceived(final TaggedImage taggedImage) {
+      if (virtualStack_ != null && taggedImage != null && taggedImage.tags != null) {
+         // In case the image replaces one already shown
+         virtualStack_.invalidate(MDUtils.getLabel(taggedImage.tags));
+      }
       updateDisplay(taggedImage);
    }
 
+   /**
+    * Reads the images expected to be shown next in the background.
+    * @param slice, frame the (0-based) position shown now
+    * @param sliceStep, frameStep the expected steps along each axis
+    */
+   public void prefetch(int slice, int frame, int sliceStep, int frameStep) {
+      if (virtualStack_ != null) {
+         virtualStack_.prefetch(slice, frame, sliceStep, frameStep);
+      }
+   }
+
    /**
     * Method required by ImageCacheListener
     * @param path
@@ -482,7 +512,7 @@ public class VirtualAcquisitionDisplay implements ImageCacheListener {
    }
 
    /**
-    * A new image has arrived; toss it onto our queue for display.
+    * A new image has arrived; leave it in our mailbox for display.
     */
    public void updateDisplay(TaggedImage taggedImage) {
       JSONObject tags;
@@ -496,14 +526,7 @@ public class VirtualAcquisitionDisplay implements ImageCacheListener {
          // No valid tags, ergo no valid image, ergo give up.
          return;
       }
-      try {
-         imageTagsQueue_.add(tags);
-      }
-      catch (IllegalStateException e) {
-         // The queue was full. This should never happen as the queue has
-         // MAXINT size. 
-         ReportingUtils.logError("Ran out of space in the imageQueue! Inconceivable!");
-      }
+      imageTagsMailbox_.put(tags);
    }
 
    public int rgbToGrayChannel(int channelIndex) {
@@ -1181,6 +1204,7 @@ public class VirtualAcquisitionDisplay implements ImageCacheListener {
 
       // Now that we have shut down everything that may access the images,
       // we can close the dataset.
+      virtualStack_.releaseCache();
       imageCache_.close();
 
       // Finally, tell the window to close now.
@@ -74,6 +74,31 @@ public class CanvasPaintPending {
       }
    }
 
+   /**
+    * Waits until the paint requested by the caller has happened, or until
+    * the timeout, e.g. in case the window is hidden and won't be painted.
+    * Relies on the canvas calling paintFinished().
+    */
+   public static synchronized void waitForPaint(ImageCanvas canvas,
+           Object caller, long timeoutMs) throws InterruptedException {
+      long deadline = System.currentTimeMillis() + timeoutMs;
+      while (isMyPaintPending(canvas, caller)) {
+         long remaining = deadline - System.currentTimeMillis();
+         if (remaining <= 0) {
+            return;
+         }
+         CanvasPaintPending.class.wait(remaining);
+      }
+   }
+
+   /**
+    * To be called by a canvas when it has painted, to wake up the callers
+    * of waitForPaint().
+    */
+   public static synchronized void paintFinished(ImageCanvas canvas) {
+      CanvasPaintPending.class.notifyAll();
+   }
+
    public static synchronized void removeAllPaintPending(ImageCanvas canvas) {
       if (requesters_.containsKey(canvas)) {
          requesters_.remove(canvas);
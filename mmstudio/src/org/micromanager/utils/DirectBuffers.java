@@ -79,6 +79,41 @@ public class DirectBuffers {
       return null;
    }
    
+   /**
+    * Copies pixels held in a ByteBuffer (e.g. a leased circular buffer
+    * frame) into a new direct buffer, typed as bufferFromArray() types the
+    * equivalent pixel array, so that arrayFromBuffer() gives back a byte[]
+    * for 1 and 4 bytes per pixel and a short[] for 2 and 8 bytes per pixel.
+    */
+   public static Buffer bufferFromPixelBuffer(ByteBuffer pixels, int bytesPerPixel) {
+      ByteBuffer source = pixels.duplicate();
+      source.rewind();
+      ByteBuffer copy = ByteBuffer.allocateDirect(source.remaining()).order(NATIVE_ORDER);
+      copy.put(source);
+      copy.rewind();
+      if (bytesPerPixel == 2 || bytesPerPixel == 8) {
+         return copy.asShortBuffer();
+      }
+      return copy;
+   }
+
+   /**
+    * Copies pixels held in a native-order ByteBuffer into the pixel array
+    * type used by TaggedImage (byte[] or short[], see bufferFromPixelBuffer).
+    */
+   public static Object arrayFromPixelBuffer(ByteBuffer pixels, int bytesPerPixel) {
+      ByteBuffer source = pixels.duplicate().order(NATIVE_ORDER);
+      source.rewind();
+      if (bytesPerPixel == 2 || bytesPerPixel == 8) {
+         short[] shorts = new short[source.remaining() / 2];
+         source.asShortBuffer().get(shorts);
+         return shorts;
+      }
+      byte[] bytes = new byte[source.remaining()];
+      source.get(bytes);
+      return bytes;
+   }
+
    public static ByteBuffer bufferFromString(String string) {
       try {
          return bufferFromBytes(string.getBytes("UTF-8"));
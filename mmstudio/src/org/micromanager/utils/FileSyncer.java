@@ -0,0 +1,101 @@
+///////////////////////////////////////////////////////////////////////////////
+//FILE:          FileSyncer.java
+//PROJECT:       Micro-Manager
+//SUBSYSTEM:     mmstudio
+//-----------------------------------------------------------------------------
+//
+// COPYRIGHT:    University of California, San Francisco, 2014
+//
+// LICENSE:      This file is distributed under the BSD license.
+//               License text is included with the source distribution.
+//
+//               This file is distributed in the hope that it will be useful,
+//               but WITHOUT ANY WARRANTY; without even the implied warranty
+//               of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+//
+//               IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+//               CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+//               INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES.
+
+package org.micromanager.utils;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+
+/**
+ * Forces the journal files of the image storage classes (the records that
+ * allow recovering a data set after a crash) to disk, at most once per
+ * sync interval.
+ *
+ * The sync interval trades durability against throughput, and applies to
+ * all journals:
+ * - 0 forces the file on every sync() call (at the end of each stored batch
+ *   of images);
+ * - a positive value forces it only if that many milliseconds have passed
+ *   since it was last forced, so a crash loses at most that much of the
+ *   journal in the worst case (e.g. a power failure);
+ * - a negative value never forces it, leaving it to the operating system.
+ *   This still survives a crash of the application, but not of the system.
+ */
+public class FileSyncer {
+   private static volatile int syncIntervalMs_ = 1000;
+
+   private final FileChannel channel_;
+   private long lastSyncNs_;
+   private long syncCount_ = 0;
+
+   public FileSyncer(FileChannel channel) {
+      channel_ = channel;
+      lastSyncNs_ = System.nanoTime();
+   }
+
+   public static void setSyncIntervalMs(int intervalMs) {
+      syncIntervalMs_ = intervalMs;
+   }
+
+   public static int getSyncIntervalMs() {
+      return syncIntervalMs_;
+   }
+
+   /**
+    * Forces the file to disk if the sync interval has passed. Data must have
+    * been handed to the file channel (i.e. streams flushed) beforehand.
+    * @return whether the file was forced
+    */
+   public synchronized boolean sync() throws IOException {
+      int interval = syncIntervalMs_;
+      if (interval < 0) {
+         return false;
+      }
+      long now = System.nanoTime();
+      if (interval > 0 && now - lastSyncNs_ < interval * 1000000L) {
+         return false;
+      }
+      forceNow(now);
+      return true;
+   }
+
+   /**
+    * Forces the file to disk regardless of the sync interval, unless syncing
+    * is disabled. Use when a journal is completed.
+    */
+   public synchronized void syncAlways() throws IOException {
+      if (syncIntervalMs_ >= 0) {
+         forceNow(System.nanoTime());
+      }
+   }
+
+   private void forceNow(long now) throws IOException {
+      // File metadata (e.g. modification time) is not needed for recovery
+      channel_.force(false);
+      lastSyncNs_ = now;
+      ++syncCount_;
+   }
+
+   /**
+    * Returns how often the file was forced to disk.
+    */
+   public synchronized long getSyncCount() {
+      return syncCount_;
+   }
+}
@@ -0,0 +1,83 @@
+///////////////////////////////////////////////////////////////////////////////
+//FILE:          FrameMailbox.java
+//PROJECT:       Micro-Manager
+//SUBSYSTEM:     mmstudio
+//-----------------------------------------------------------------------------
+//
+// COPYRIGHT:    University of California, San Francisco, 2014
+//
+// LICENSE:      This file is distributed under the BSD license.
+//               License text is included with the source distribution.
+//
+//               This file is distributed in the hope that it will be useful,
+//               but WITHOUT ANY WARRANTY; without even the implied warranty
+//               of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+//
+//               IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+//               CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+//               INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES.
+//
+package org.micromanager.utils;
+
+/**
+ * Hands the newest frame from a producer to a consumer that may be slower,
+ * such as a display: a frame that is put replaces the one waiting, if any,
+ * so the consumer never works through a backlog of stale frames and the
+ * producer never waits for the consumer.
+ */
+public class FrameMailbox<T> {
+   private T frame_; // Guarded by this
+   private long dropped_ = 0; // Guarded by this
+
+   /**
+    * Leaves a frame for the consumer, replacing (dropping) the one waiting.
+    */
+   public synchronized void put(T frame) {
+      if (frame_ != null) {
+         ++dropped_;
+      }
+      frame_ = frame;
+      notifyAll();
+   }
+
+   /**
+    * Removes the waiting frame, waiting for one if there is none.
+    * @return the frame, or null if none arrived within the timeout
+    */
+   public synchronized T take(long timeoutMs) throws InterruptedException {
+      long deadline = System.currentTimeMillis() + timeoutMs;
+      while (frame_ == null) {
+         long remaining = deadline - System.currentTimeMillis();
+         if (remaining <= 0) {
+            return null;
+         }
+         wait(remaining);
+      }
+      return poll();
+   }
+
+   /**
+    * Removes the waiting frame without waiting.
+    * @return the frame, or null if there is none
+    */
+   public synchronized T poll() {
+      T frame = frame_;
+      frame_ = null;
+      return frame;
+   }
+
+   /**
+    * @return the number of frames replaced before they were taken, since
+    * the last call
+    */
+   public synchronized long getAndResetDropped() {
+      long dropped = dropped_;
+      dropped_ = 0;
+      return dropped;
+   }
+
+   public synchronized void clear() {
+      frame_ = null;
+      dropped_ = 0;
+   }
+}
@@ -12,6 +12,7 @@ import java.awt.Color;
 import java.awt.Point;
 
 import mmcorej.CMMCore;
+import mmcorej.PixelBufferPool;
 import mmcorej.TaggedImage;
 
 import org.json.JSONArray;
@@ -138,6 +139,30 @@ public class ImageUtils {
       }
    }
    
+   /*
+    * Makes a TaggedImage whose pixels go back to the PixelBufferPool when
+    * released (see TaggedImage.release()).
+    */
+   public static TaggedImage makePooledTaggedImage(Object pixels, JSONObject tags) {
+      return PixelBufferPool.getInstance().makeTaggedImage(pixels, tags);
+   }
+
+   /*
+    * Returns a copy of a pixel array.
+    */
+   public static Object copyPixels(Object pixels) {
+      if (pixels instanceof byte[]) {
+         return ((byte[]) pixels).clone();
+      } else if (pixels instanceof short[]) {
+         return ((short[]) pixels).clone();
+      } else if (pixels instanceof float[]) {
+         return ((float[]) pixels).clone();
+      } else if (pixels instanceof int[]) {
+         return ((int[]) pixels).clone();
+      }
+      return pixels;
+   }
+
    public static ImageProcessor makeMonochromeProcessor(TaggedImage taggedImage) {
         try {
             ImageProcessor processor;
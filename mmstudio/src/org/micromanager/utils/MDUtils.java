@@ -5,6 +5,7 @@ import ij.ImagePlus;
 import java.awt.Rectangle;
 import java.text.ParseException;
 import java.text.SimpleDateFormat;
+import java.util.ArrayList;
 import java.util.Date;
 import java.util.Iterator;
 import java.util.UUID;
@@ -12,6 +13,7 @@ import java.util.UUID;
 import mmcorej.Configuration;
 import mmcorej.PropertySetting;
 import mmcorej.TaggedImage;
+import mmcorej.TaggedImageMetadata;
 
 import org.json.JSONArray;
 import org.json.JSONException;
@@ -50,6 +52,9 @@ public class MDUtils {
    }
    
    public static int getPositionIndex(JSONObject map) throws JSONException {
+      if (map instanceof TaggedImageMetadata) {
+         return ((TaggedImageMetadata) map).getPositionIndex();
+      }
       return map.getInt("PositionIndex");
    }
 
@@ -68,6 +73,9 @@ public class MDUtils {
    }
 
    public static int getWidth(JSONObject map) throws JSONException {
+      if (map instanceof TaggedImageMetadata) {
+         return ((TaggedImageMetadata) map).getWidth();
+      }
       return map.getInt("Width");
    }
 
@@ -76,6 +84,9 @@ public class MDUtils {
    }
 
    public static int getHeight(JSONObject map) throws JSONException {
+      if (map instanceof TaggedImageMetadata) {
+         return ((TaggedImageMetadata) map).getHeight();
+      }
       return map.getInt("Height");
    }
 
@@ -96,6 +107,9 @@ public class MDUtils {
    }
 
    public static int getSliceIndex(JSONObject map) throws JSONException {
+      if (map instanceof TaggedImageMetadata) {
+         return ((TaggedImageMetadata) map).getSliceIndex();
+      }
       if (map.has("SliceIndex")) {
          return map.getInt("SliceIndex");
       } else {
@@ -110,6 +124,9 @@ public class MDUtils {
    
 
    public static int getChannelIndex(JSONObject map) throws JSONException {
+      if (map instanceof TaggedImageMetadata) {
+         return ((TaggedImageMetadata) map).getChannelIndex();
+      }
       return map.getInt("ChannelIndex");
    }
 
@@ -118,6 +135,9 @@ public class MDUtils {
    }
 
    public static int getFrameIndex(JSONObject map) throws JSONException {
+      if (map instanceof TaggedImageMetadata) {
+         return ((TaggedImageMetadata) map).getFrameIndex();
+      }
       if (map.has("Frame")) {
          return map.getInt("Frame");
       } else {
@@ -681,4 +701,60 @@ public class MDUtils {
    public static void setSummary(JSONObject map, JSONObject summary) throws JSONException {
       map.put("Summary", summary);
    }
+
+   /**
+    * Returns the UUID of the summary metadata referred to by these image tags,
+    * or null if the image does not carry a summary reference.
+    */
+   public static String getSummaryUUID(JSONObject map) {
+      if (map.has(MMTags.Root.SUMMARY_UUID)) {
+         return map.optString(MMTags.Root.SUMMARY_UUID, null);
+      }
+      return null;
+   }
+
+   /**
+    * Removes the Summary block embedded in these image tags, so that the
+    * summary is not serialized again with every image. A SummaryUUID
+    * reference is only present if the acquisition put one there (summary
+    * by reference mode); none is added here.
+    */
+   public static void removeEmbeddedSummary(JSONObject map) {
+      map.remove(MMTags.Root.SUMMARY);
+   }
+
+   /**
+    * Restores the Summary block of image tags that only carry a reference to
+    * it. The given summary is shared, not copied. Nothing is done if the tags
+    * refer to a different summary than the one supplied.
+    */
+   public static void rehydrateSummary(JSONObject map, JSONObject summary) throws JSONException {
+      if (summary == null || map.has(MMTags.Root.SUMMARY)) {
+         return;
+      }
+      String uuid = getSummaryUUID(map);
+      if (uuid == null) {
+         return;
+      }
+      if (summary.has("UUID") && !uuid.equals(summary.get("UUID").toString())) {
+         return;
+      }
+      map.put(MMTags.Root.SUMMARY, summary);
+   }
+
+   /**
+    * Returns a shallow copy of these image tags with the summary they refer
+    * to restored (see rehydrateSummary()). The given tags are not changed,
+    * so they may be shared with other threads.
+    */
+   public static JSONObject copyWithSummary(JSONObject map, JSONObject summary) throws JSONException {
+      ArrayList<String> names = new ArrayList<String>();
+      Iterator<String> keys = map.keys();
+      while (keys.hasNext()) {
+         names.add(keys.next());
+      }
+      JSONObject copy = new JSONObject(map, names.toArray(new String[names.size()]));
+      rehydrateSummary(copy, summary);
+      return copy;
+   }
 }
@@ -0,0 +1,420 @@
+///////////////////////////////////////////////////////////////////////////////
+//FILE:          PipelineMonitor.java
+//PROJECT:       Micro-Manager
+//SUBSYSTEM:     mmstudio
+//-----------------------------------------------------------------------------
+//
+// COPYRIGHT:    University of California, San Francisco, 2014
+//
+// LICENSE:      This file is distributed under the BSD license.
+//               License text is included with the source distribution.
+//
+//               This file is distributed in the hope that it will be useful,
+//               but WITHOUT ANY WARRANTY; without even the implied warranty
+//               of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+//
+//               IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+//               CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+//               INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES.
+
+package org.micromanager.utils;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import mmcorej.TaggedImageMetadata;
+import org.json.JSONObject;
+
+/**
+ * Collects latency and throughput statistics for the stages an image passes
+ * on its way from the core to disk and screen: engine tagging, each
+ * DataProcessor, the image cache, the disk writer and the display.
+ *
+ * Recording a sample is a handful of atomic operations, so stages record
+ * every image. Latencies are kept in histograms with power-of-two buckets
+ * (in microseconds). The statistics are available through JMX (as
+ * org.micromanager:type=PipelineMonitor), getReport(), and the performance
+ * log written at the end of an acquisition.
+ */
+public class PipelineMonitor implements PipelineMonitorMBean {
+   public static final String ENGINE = "Engine";
+   public static final String IMAGE_CACHE = "Image cache";
+   public static final String DISK_WRITER = "Disk writer";
+   public static final String STORED = "Core to storage";
+   public static final String DISPLAY = "Core to display";
+
+   private static final int NUM_BUCKETS = 32;
+   private static PipelineMonitor instance_;
+
+   private final ConcurrentHashMap<String, Stage> stages_ =
+         new ConcurrentHashMap<String, Stage>();
+   private final List<String> stageOrder_ = new CopyOnWriteArrayList<String>();
+   private volatile long lateThresholdNs_ = 1000000000L;
+   private volatile long resetTimeNs_ = System.nanoTime();
+
+   private PipelineMonitor() {
+      for (String name : new String[] {ENGINE, IMAGE_CACHE, DISK_WRITER,
+            STORED, DISPLAY}) {
+         registerStage(name);
+      }
+   }
+
+   /**
+    * Statistics of one stage.
+    */
+   public class Stage {
+      private final String name_;
+      private final AtomicLongArray buckets_ = new AtomicLongArray(NUM_BUCKETS);
+      private final AtomicLong count_ = new AtomicLong();
+      private final AtomicLong totalNs_ = new AtomicLong();
+      private final AtomicLong maxNs_ = new AtomicLong();
+      private final AtomicLong late_ = new AtomicLong();
+      private final AtomicLong dropped_ = new AtomicLong();
+      private final AtomicLong queueSamples_ = new AtomicLong();
+      private final AtomicLong queueTotal_ = new AtomicLong();
+      private final AtomicLong queueMax_ = new AtomicLong();
+
+      private Stage(String name) {
+         name_ = name;
+      }
+
+      public String getName() {
+         return name_;
+      }
+
+      /**
+       * Records the time an image spent in this stage.
+       */
+      public void recordLatency(long latencyNs) {
+         if (latencyNs < 0) {
+            return;
+         }
+         count_.incrementAndGet();
+         totalNs_.addAndGet(latencyNs);
+         buckets_.incrementAndGet(bucketOf(latencyNs));
+         long max;
+         while (latencyNs > (max = maxNs_.get())) {
+            if (maxNs_.compareAndSet(max, latencyNs)) {
+               break;
+            }
+         }
+         if (latencyNs > lateThresholdNs_) {
+            late_.incrementAndGet();
+         }
+      }
+
+      /**
+       * Records the time since startNs (a System.nanoTime() value). Does
+       * nothing if startNs is not positive.
+       */
+      public void recordSince(long startNs) {
+         if (startNs > 0) {
+            recordLatency(System.nanoTime() - startNs);
+         }
+      }
+
+      /**
+       * Records the number of images waiting in front of this stage.
+       */
+      public void recordQueueDepth(int depth) {
+         queueSamples_.incrementAndGet();
+         queueTotal_.addAndGet(depth);
+         long max;
+         while (depth > (max = queueMax_.get())) {
+            if (queueMax_.compareAndSet(max, depth)) {
+               break;
+            }
+         }
+      }
+
+      /**
+       * Records images that this stage skipped.
+       */
+      public void recordDropped(int n) {
+         dropped_.addAndGet(n);
+      }
+
+      public long getCount() {
+         return count_.get();
+      }
+
+      public double getMeanLatencyMs() {
+         long count = count_.get();
+         return count == 0 ? 0 : totalNs_.get() / 1e6 / count;
+      }
+
+      public double getMaxLatencyMs() {
+         return maxNs_.get() / 1e6;
+      }
+
+      /**
+       * Returns the upper bound of the histogram bucket holding the given
+       * fraction (0 to 1) of the samples.
+       */
+      public double getPercentileLatencyMs(double fraction) {
+         long count = count_.get();
+         if (count == 0) {
+            return 0;
+         }
+         long target = (long) Math.ceil(fraction * count);
+         long seen = 0;
+         for (int i = 0; i < NUM_BUCKETS; ++i) {
+            seen += buckets_.get(i);
+            if (seen >= target) {
+               return Math.min(bucketLimitNs(i), maxNs_.get()) / 1e6;
+            }
+         }
+         return getMaxLatencyMs();
+      }
+
+      public long getLateCount() {
+         return late_.get();
+      }
+
+      public long getDroppedCount() {
+         return dropped_.get();
+      }
+
+      public double getMeanQueueDepth() {
+         long samples = queueSamples_.get();
+         return samples == 0 ? 0 : (double) queueTotal_.get() / samples;
+      }
+
+      public long getMaxQueueDepth() {
+         return queueMax_.get();
+      }
+
+      public long[] getHistogram() {
+         long[] histogram = new long[NUM_BUCKETS];
+         for (int i = 0; i < NUM_BUCKETS; ++i) {
+            histogram[i] = buckets_.get(i);
+         }
+         return histogram;
+      }
+
+      private void reset() {
+         for (int i = 0; i < NUM_BUCKETS; ++i) {
+            buckets_.set(i, 0);
+         }
+         count_.set(0);
+         totalNs_.set(0);
+         maxNs_.set(0);
+         late_.set(0);
+         dropped_.set(0);
+         queueSamples_.set(0);
+         queueTotal_.set(0);
+         queueMax_.set(0);
+      }
+   }
+
+   public static synchronized PipelineMonitor getInstance() {
+      if (instance_ == null) {
+         instance_ = new PipelineMonitor();
+         try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            server.registerMBean(instance_,
+                  new ObjectName("org.micromanager:type=PipelineMonitor"));
+         } catch (Exception ex) {
+            ReportingUtils.logError(ex, "Unable to register pipeline monitor with JMX");
+         }
+      }
+      return instance_;
+   }
+
+   /**
+    * Returns the stage of the given name, creating it if necessary. The
+    * stages named by the constants of this class always exist; others, such
+    * as those of DataProcessors, are added here.
+    */
+   public Stage registerStage(String name) {
+      Stage stage = stages_.get(name);
+      if (stage == null) {
+         Stage newStage = new Stage(name);
+         stage = stages_.putIfAbsent(name, newStage);
+         if (stage == null) {
+            stage = newStage;
+            stageOrder_.add(name);
+         }
+      }
+      return stage;
+   }
+
+   /**
+    * Returns the stage of the given name, or null if there is no such stage.
+    */
+   public Stage getStage(String name) {
+      return stages_.get(name);
+   }
+
+   /*
+    * Like getStage(), for the JMX accessors: a misspelt name is reported
+    * rather than showing up as an empty stage.
+    */
+   private Stage lookupStage(String name) {
+      Stage stage = stages_.get(name);
+      if (stage == null) {
+         throw new IllegalArgumentException("Unknown pipeline stage: " + name);
+      }
+      return stage;
+   }
+
+   /**
+    * Returns the System.nanoTime() at which the image with the given tags
+    * was taken from the core, or 0 if unknown.
+    */
+   public static long getPipelineStartNs(JSONObject tags) {
+      if (tags instanceof TaggedImageMetadata) {
+         return ((TaggedImageMetadata) tags).getPipelineStartNs();
+      }
+      return 0;
+   }
+
+   /**
+    * Clears all statistics; called when an acquisition starts.
+    */
+   @Override
+   public void reset() {
+      for (Stage stage : stages_.values()) {
+         stage.reset();
+      }
+      resetTimeNs_ = System.nanoTime();
+   }
+
+   @Override
+   public String[] getStageNames() {
+      return stageOrder_.toArray(new String[0]);
+   }
+
+   @Override
+   public long getLateThresholdMs() {
+      return lateThresholdNs_ / 1000000;
+   }
+
+   @Override
+   public void setLateThresholdMs(long thresholdMs) {
+      lateThresholdNs_ = thresholdMs * 1000000;
+   }
+
+   @Override
+   public long getCount(String stage) {
+      return lookupStage(stage).getCount();
+   }
+
+   @Override
+   public double getImagesPerSecond(String stage) {
+      double seconds = (System.nanoTime() - resetTimeNs_) / 1e9;
+      return seconds <= 0 ? 0 : lookupStage(stage).getCount() / seconds;
+   }
+
+   @Override
+   public double getMeanLatencyMs(String stage) {
+      return lookupStage(stage).getMeanLatencyMs();
+   }
+
+   @Override
+   public double getPercentileLatencyMs(String stage, double fraction) {
+      return lookupStage(stage).getPercentileLatencyMs(fraction);
+   }
+
+   @Override
+   public double getMaxLatencyMs(String stage) {
+      return lookupStage(stage).getMaxLatencyMs();
+   }
+
+   @Override
+   public long getMaxQueueDepth(String stage) {
+      return lookupStage(stage).getMaxQueueDepth();
+   }
+
+   @Override
+   public long getDroppedCount(String stage) {
+      return lookupStage(stage).getDroppedCount();
+   }
+
+   @Override
+   public long getLateCount(String stage) {
+      return lookupStage(stage).getLateCount();
+   }
+
+   /**
+    * Returns a table with one line per stage.
+    */
+   @Override
+   public String getReport() {
+      StringBuilder report = new StringBuilder();
+      report.append(String.format("%-28s %8s %8s %9s %9s %9s %9s %7s %7s %7s%n",
+            "Stage", "Images", "Img/s", "Mean ms", "Median ms", "99% ms",
+            "Max ms", "Queue", "Late", "Dropped"));
+      List<String> names = new ArrayList<String>(stageOrder_);
+      for (String name : names) {
+         Stage stage = getStage(name);
+         report.append(String.format("%-28s %8d %8.1f %9.2f %9.2f %9.2f %9.2f %7d %7d %7d%n",
+               name, stage.getCount(), getImagesPerSecond(name),
+               stage.getMeanLatencyMs(), stage.getPercentileLatencyMs(0.5),
+               stage.getPercentileLatencyMs(0.99), stage.getMaxLatencyMs(),
+               stage.getMaxQueueDepth(), stage.getLateCount(),
+               stage.getDroppedCount()));
+      }
+      return report.toString();
+   }
+
+   /**
+    * Writes the report, followed by the latency histograms, to the given
+    * file.
+    */
+   public void writeReport(File file) throws IOException {
+      FileWriter writer = new FileWriter(file);
+      try {
+         writer.write(getReport());
+         writer.write(String.format("%nLatency histograms (bucket upper bound in us: images)%n"));
+         for (String name : new ArrayList<String>(stageOrder_)) {
+            long[] histogram = getStage(name).getHistogram();
+            writer.write(name + ":");
+            for (int i = 0; i < NUM_BUCKETS; ++i) {
+               if (histogram[i] > 0) {
+                  writer.write(" " + (bucketLimitNs(i) / 1000) + ":" + histogram[i]);
+               }
+            }
+            writer.write(String.format("%n"));
+         }
+      } finally {
+         writer.close();
+      }
+   }
+
+   /**
+    * Writes the performance log of an acquisition: into its directory if it
+    * was saved to disk, and into the CoreLog.
+    */
+   public void writeAcquisitionLog(String diskLocation) {
+      ReportingUtils.logMessage("Image pipeline performance:\n" + getReport());
+      if (diskLocation == null) {
+         return;
+      }
+      try {
+         writeReport(new File(diskLocation, "performance.txt"));
+      } catch (IOException ex) {
+         ReportingUtils.logError(ex, "Unable to write performance log");
+      }
+   }
+
+   // Bucket i holds latencies up to 2^i microseconds
+   private static int bucketOf(long latencyNs) {
+      long us = latencyNs / 1000;
+      int bucket = 64 - Long.numberOfLeadingZeros(us);
+      return Math.min(bucket, NUM_BUCKETS - 1);
+   }
+
+   private static long bucketLimitNs(int bucket) {
+      return (1L << bucket) * 1000;
+   }
+}
@@ -0,0 +1,33 @@
+package org.micromanager.utils;
+
+/**
+ * JMX view of the PipelineMonitor. Stage names are the ones returned by
+ * getStageNames().
+ */
+public interface PipelineMonitorMBean {
+   public String[] getStageNames();
+
+   public String getReport();
+
+   public long getLateThresholdMs();
+
+   public void setLateThresholdMs(long thresholdMs);
+
+   public long getCount(String stage);
+
+   public double getImagesPerSecond(String stage);
+
+   public double getMeanLatencyMs(String stage);
+
+   public double getPercentileLatencyMs(String stage, double fraction);
+
+   public double getMaxLatencyMs(String stage);
+
+   public long getMaxQueueDepth(String stage);
+
+   public long getDroppedCount(String stage);
+
+   public long getLateCount(String stage);
+
+   public void reset();
+}
@@ -0,0 +1,257 @@
+///////////////////////////////////////////////////////////////////////////////
+//FILE:          PixelStatistics.java
+//PROJECT:       Micro-Manager
+//SUBSYSTEM:     mmstudio
+//-----------------------------------------------------------------------------
+//
+// COPYRIGHT:    University of California, San Francisco, 2014
+//
+// LICENSE:      This file is distributed under the BSD license.
+//               License text is included with the source distribution.
+//
+//               This file is distributed in the hope that it will be useful,
+//               but WITHOUT ANY WARRANTY; without even the implied warranty
+//               of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+//
+//               IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+//               CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+//               INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES.
+//
+package org.micromanager.utils;
+
+import java.awt.Rectangle;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Histogram, min, max, mean and standard deviation of an 8 or 16 bit image,
+ * as shown by the image display.
+ *
+ * The pixels are read once, into a histogram with one bin per pixel value
+ * (256 or 65536 bins, as ImageJ's getHistogram()); the other statistics are
+ * derived from the histogram. Large images are split into bands of rows that
+ * are counted in parallel on a pool shared by all displays. Optionally only
+ * every stride-th pixel of every stride-th row is counted, which is much
+ * faster but may miss the extreme pixel values.
+ */
+public final class PixelStatistics {
+   // Images with fewer counted pixels are not worth splitting
+   private static final int MIN_PIXELS_PER_TASK = 256 * 1024;
+
+   private static ExecutorService pool_;
+   private static volatile int liveStride_ = 1;
+
+   private final int[] histogram_;
+   private final long count_;
+   private final int min_;
+   private final int max_;
+   private final double mean_;
+   private final double stdDev_;
+   private final int stride_;
+
+   private PixelStatistics(int[] histogram, int stride) {
+      histogram_ = histogram;
+      stride_ = stride;
+      long count = 0;
+      double sum = 0;
+      double sumOfSquares = 0;
+      int min = -1;
+      int max = -1;
+      for (int i = 0; i < histogram.length; ++i) {
+         int n = histogram[i];
+         if (n != 0) {
+            if (min == -1) {
+               min = i;
+            }
+            max = i;
+            count += n;
+            sum += (double) n * i;
+            sumOfSquares += (double) n * i * i;
+         }
+      }
+      count_ = count;
+      min_ = Math.max(0, min);
+      max_ = Math.max(0, max);
+      mean_ = count > 0 ? sum / count : 0;
+      stdDev_ = count > 1
+            ? Math.sqrt(Math.max(0, (sumOfSquares - sum * sum / count) / (count - 1)))
+            : 0;
+   }
+
+   private static synchronized ExecutorService getPool() {
+      if (pool_ == null) {
+         final AtomicInteger count = new AtomicInteger();
+         pool_ = Executors.newFixedThreadPool(
+               Runtime.getRuntime().availableProcessors(),
+               new ThreadFactory() {
+                  @Override
+                  public Thread newThread(Runnable r) {
+                     Thread thread = new Thread(r, "Histogram "
+                           + count.getAndIncrement());
+                     thread.setDaemon(true);
+                     return thread;
+                  }
+               });
+      }
+      return pool_;
+   }
+
+   /**
+    * Sets the stride used by the display for images that arrive during live
+    * mode and acquisitions; 1 counts every pixel.
+    */
+   public static void setLiveStride(int stride) {
+      liveStride_ = Math.max(1, stride);
+   }
+
+   public static int getLiveStride() {
+      return liveStride_;
+   }
+
+   public static boolean canCompute(Object pixels) {
+      return pixels instanceof byte[] || pixels instanceof short[];
+   }
+
+   /**
+    * Computes the statistics of the whole image.
+    */
+   public static PixelStatistics compute(Object pixels, int width, int height) {
+      return compute(pixels, width, height, null, null, 1);
+   }
+
+   /**
+    * @param pixels byte[] or short[] pixels, row by row
+    * @param roi the part of the image to count, or null for all of it
+    * @param mask null, or one byte per pixel of roi, nonzero for the pixels
+    * to count, as ImageJ's ImageProcessor.getMask()
+    * @param stride count every stride-th pixel of every stride-th row
+    * @return the statistics, or null for pixels of other types
+    */
+   public static PixelStatistics compute(final Object pixels, final int width,
+         int height, Rectangle roi, byte[] mask, final int stride) {
+      if (!canCompute(pixels)) {
+         return null;
+      }
+      final Rectangle bounds = roi == null
+            ? new Rectangle(0, 0, width, height)
+            : roi.intersection(new Rectangle(0, 0, width, height));
+      // A mask only fits a roi that lies within the image
+      final byte[] roiMask = mask != null && bounds.equals(roi)
+            && mask.length == bounds.width * bounds.height ? mask : null;
+      final int bins = pixels instanceof byte[] ? 256 : 65536;
+      final int step = Math.max(1, stride);
+      int rows = (bounds.height + step - 1) / step;
+      long counted = (long) rows * ((bounds.width + step - 1) / step);
+      int tasks = (int) Math.min(Runtime.getRuntime().availableProcessors(),
+            counted / MIN_PIXELS_PER_TASK);
+      if (tasks <= 1) {
+         int[] histogram = new int[bins];
+         count(pixels, width, bounds, roiMask, step, 0, rows, histogram);
+         return new PixelStatistics(histogram, step);
+      }
+
+      List<Future<int[]>> bands = new ArrayList<Future<int[]>>();
+      for (int i = 0; i < tasks; ++i) {
+         final int firstRow = (int) ((long) rows * i / tasks);
+         final int lastRow = (int) ((long) rows * (i + 1) / tasks);
+         bands.add(getPool().submit(new Callable<int[]>() {
+            @Override
+            public int[] call() {
+               int[] histogram = new int[bins];
+               count(pixels, width, bounds, roiMask, step, firstRow, lastRow, histogram);
+               return histogram;
+            }
+         }));
+      }
+      int[] histogram = new int[bins];
+      try {
+         for (Future<int[]> band : bands) {
+            int[] partial = band.get();
+            for (int i = 0; i < bins; ++i) {
+               histogram[i] += partial[i];
+            }
+         }
+      } catch (InterruptedException ex) {
+         Thread.currentThread().interrupt();
+         return null;
+      } catch (ExecutionException ex) {
+         ReportingUtils.logError(ex.getCause());
+         return null;
+      }
+      return new PixelStatistics(histogram, step);
+   }
+
+   /*
+    * Counts the pixels of the given rows of the sampling grid.
+    */
+   private static void count(Object pixels, int width, Rectangle bounds,
+         byte[] mask, int step, int firstRow, int lastRow, int[] histogram) {
+      for (int row = firstRow; row < lastRow; ++row) {
+         int y = row * step;
+         int offset = (bounds.y + y) * width + bounds.x;
+         int maskOffset = y * bounds.width;
+         if (pixels instanceof short[]) {
+            short[] shorts = (short[]) pixels;
+            for (int x = 0; x < bounds.width; x += step) {
+               if (mask == null || mask[maskOffset + x] != 0) {
+                  ++histogram[shorts[offset + x] & 0xffff];
+               }
+            }
+         } else {
+            byte[] bytes = (byte[]) pixels;
+            for (int x = 0; x < bounds.width; x += step) {
+               if (mask == null || mask[maskOffset + x] != 0) {
+                  ++histogram[bytes[offset + x] & 0xff];
+               }
+            }
+         }
+      }
+   }
+
+   /**
+    * One bin per pixel value. Must not be modified.
+    */
+   public int[] getHistogram() {
+      return histogram_;
+   }
+
+   /**
+    * The number of pixels counted.
+    */
+   public long getCount() {
+      return count_;
+   }
+
+   public int getMin() {
+      return min_;
+   }
+
+   public int getMax() {
+      return max_;
+   }
+
+   public double getMean() {
+      return mean_;
+   }
+
+   public double getStdDev() {
+      return stdDev_;
+   }
+
+   public int getStride() {
+      return stride_;
+   }
+
+   @Override
+   public String toString() {
+      return String.format("%d pixels (stride %d): min %d, max %d, mean %.1f, std dev %.1f",
+            count_, stride_, min_, max_, mean_, stdDev_);
+   }
+}
@@ -0,0 +1,290 @@
+///////////////////////////////////////////////////////////////////////////////
+//FILE:          RingBufferQueue.java
+//PROJECT:       Micro-Manager
+//SUBSYSTEM:     mmstudio
+//-----------------------------------------------------------------------------
+//
+// COPYRIGHT:    University of California, San Francisco, 2014
+//
+// LICENSE:      This file is distributed under the BSD license.
+//               License text is included with the source distribution.
+//
+//               This file is distributed in the hope that it will be useful,
+//               but WITHOUT ANY WARRANTY; without even the implied warranty
+//               of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+//
+//               IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+//               CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+//               INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES.
+
+package org.micromanager.utils;
+
+import java.util.AbstractQueue;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * A bounded BlockingQueue backed by a preallocated ring buffer, for handing
+ * images from one pipeline stage to the next without allocating a node per
+ * element.
+ *
+ * It is designed for one producer and one consumer: the two sides only
+ * share the read and write counters, and waiting threads are woken directly
+ * instead of through a shared lock. Each side is still guarded by its own
+ * (uncontended, hence cheap) monitor, so that several threads may take
+ * turns producing or consuming (e.g. the workers of a parallel
+ * DataProcessor, or an aborting thread calling clear()); all threads
+ * waiting on a side are woken when the other side makes progress.
+ *
+ * Before blocking, a waiting thread spins and then yields for a short while,
+ * which keeps the hand-off latency low when the other side is busy with the
+ * next element.
+ */
+public class RingBufferQueue<E> extends AbstractQueue<E>
+      implements BlockingQueue<E> {
+   private static final int BUSY_SPIN_TRIES = 100;
+   private static final int SPIN_TRIES = 200;
+   // Upper bound on a single park, in case a wake-up is missed
+   private static final long MAX_PARK_NS = 1000000L;
+
+   private final Object[] buffer_;
+   private final int mask_;
+   private final int capacity_;
+   // Index of the next element to read and to write; only ever increase
+   private final AtomicLong head_ = new AtomicLong();
+   private final AtomicLong tail_ = new AtomicLong();
+   private final Object producerLock_ = new Object();
+   private final Object consumerLock_ = new Object();
+   private final ConcurrentLinkedQueue<Thread> waitingProducers_ =
+         new ConcurrentLinkedQueue<Thread>();
+   private final ConcurrentLinkedQueue<Thread> waitingConsumers_ =
+         new ConcurrentLinkedQueue<Thread>();
+
+   /**
+    * @param capacity maximum number of elements in the queue
+    */
+   public RingBufferQueue(int capacity) {
+      if (capacity < 1) {
+         throw new IllegalArgumentException("Capacity must be positive");
+      }
+      int size = 1;
+      while (size < capacity) {
+         size <<= 1;
+      }
+      buffer_ = new Object[size];
+      mask_ = size - 1;
+      capacity_ = capacity;
+   }
+
+   @Override
+   public boolean offer(E e) {
+      if (e == null) {
+         throw new NullPointerException();
+      }
+      synchronized (producerLock_) {
+         long tail = tail_.get();
+         if (tail - head_.get() >= capacity_) {
+            return false;
+         }
+         buffer_[(int) tail & mask_] = e;
+         tail_.set(tail + 1);
+      }
+      unparkAll(waitingConsumers_);
+      return true;
+   }
+
+   @SuppressWarnings("unchecked")
+   @Override
+   public E poll() {
+      E e;
+      synchronized (consumerLock_) {
+         long head = head_.get();
+         if (head == tail_.get()) {
+            return null;
+         }
+         int index = (int) head & mask_;
+         e = (E) buffer_[index];
+         buffer_[index] = null;
+         head_.set(head + 1);
+      }
+      unparkAll(waitingProducers_);
+      return e;
+   }
+
+   @SuppressWarnings("unchecked")
+   @Override
+   public E peek() {
+      synchronized (consumerLock_) {
+         long head = head_.get();
+         if (head == tail_.get()) {
+            return null;
+         }
+         return (E) buffer_[(int) head & mask_];
+      }
+   }
+
+   @Override
+   public void put(E e) throws InterruptedException {
+      while (!offer(e, Long.MAX_VALUE, TimeUnit.NANOSECONDS)) {
+      }
+   }
+
+   @Override
+   public boolean offer(E e, long timeout, TimeUnit unit)
+         throws InterruptedException {
+      if (offer(e)) {
+         return true;
+      }
+      long deadline = deadline(timeout, unit);
+      for (int i = 0; i < SPIN_TRIES; ++i) {
+         if (offer(e)) {
+            return true;
+         }
+         if (i >= BUSY_SPIN_TRIES) {
+            Thread.yield();
+         }
+      }
+      waitingProducers_.add(Thread.currentThread());
+      try {
+         while (true) {
+            if (offer(e)) {
+               return true;
+            }
+            if (!park(deadline)) {
+               return false;
+            }
+         }
+      } finally {
+         waitingProducers_.remove(Thread.currentThread());
+      }
+   }
+
+   @Override
+   public E take() throws InterruptedException {
+      E e;
+      while ((e = poll(Long.MAX_VALUE, TimeUnit.NANOSECONDS)) == null) {
+      }
+      return e;
+   }
+
+   @Override
+   public E poll(long timeout, TimeUnit unit) throws InterruptedException {
+      E e = poll();
+      if (e != null) {
+         return e;
+      }
+      long deadline = deadline(timeout, unit);
+      for (int i = 0; i < SPIN_TRIES; ++i) {
+         if ((e = poll()) != null) {
+            return e;
+         }
+         if (i >= BUSY_SPIN_TRIES) {
+            Thread.yield();
+         }
+      }
+      waitingConsumers_.add(Thread.currentThread());
+      try {
+         while (true) {
+            if ((e = poll()) != null) {
+               return e;
+            }
+            if (!park(deadline)) {
+               return null;
+            }
+         }
+      } finally {
+         waitingConsumers_.remove(Thread.currentThread());
+      }
+   }
+
+   private static void unparkAll(ConcurrentLinkedQueue<Thread> waiters) {
+      if (waiters.isEmpty()) {
+         return;
+      }
+      for (Thread waiter : waiters) {
+         LockSupport.unpark(waiter);
+      }
+   }
+
+   private static long deadline(long timeout, TimeUnit unit) {
+      long now = System.nanoTime();
+      long nanos = unit.toNanos(timeout);
+      return nanos > Long.MAX_VALUE - now ? Long.MAX_VALUE : now + nanos;
+   }
+
+   /*
+    * Parks until woken or the deadline has passed. Returns false if the
+    * deadline has passed.
+    */
+   private static boolean park(long deadline) throws InterruptedException {
+      long remaining = deadline - System.nanoTime();
+      if (remaining <= 0) {
+         return false;
+      }
+      LockSupport.parkNanos(Math.min(remaining, MAX_PARK_NS));
+      if (Thread.interrupted()) {
+         throw new InterruptedException();
+      }
+      return true;
+   }
+
+   @Override
+   public int size() {
+      // Read head first, so that the result is never negative
+      long head = head_.get();
+      return (int) (tail_.get() - head);
+   }
+
+   @Override
+   public int remainingCapacity() {
+      return capacity_ - size();
+   }
+
+   @Override
+   public int drainTo(Collection<? super E> c) {
+      return drainTo(c, Integer.MAX_VALUE);
+   }
+
+   @Override
+   public int drainTo(Collection<? super E> c, int maxElements) {
+      if (c == this) {
+         throw new IllegalArgumentException();
+      }
+      int n = 0;
+      E e;
+      while (n < maxElements && (e = poll()) != null) {
+         c.add(e);
+         ++n;
+      }
+      return n;
+   }
+
+   @Override
+   public void clear() {
+      while (poll() != null) {
+      }
+   }
+
+   /**
+    * Returns an iterator over a snapshot of the queued elements.
+    */
+   @SuppressWarnings("unchecked")
+   @Override
+   public Iterator<E> iterator() {
+      List<E> snapshot = new ArrayList<E>();
+      synchronized (consumerLock_) {
+         long tail = tail_.get();
+         for (long i = head_.get(); i < tail; ++i) {
+            snapshot.add((E) buffer_[(int) i & mask_]);
+         }
+      }
+      return snapshot.iterator();
+   }
+}
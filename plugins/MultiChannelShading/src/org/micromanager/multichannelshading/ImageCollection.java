@@ -52,7 +52,7 @@ public class ImageCollection {
       flatFields_ = new HashMap<String, HashMap<String, ImagePlusInfo>>();
    }
    
-   public void setBackground(String file) throws MMException {
+   public synchronized void setBackground(String file) throws MMException {
       background_.clear();
       if (!file.equals("")) {
          ij.io.Opener opener = new ij.io.Opener();
@@ -66,11 +66,11 @@ public class ImageCollection {
       }
    }
    
-   public ImagePlusInfo getBackground() {
+   public synchronized ImagePlusInfo getBackground() {
       return background_.get(BASEIMAGE);
    }
    
-   public ImagePlusInfo getBackground(int binning, Rectangle roi) 
+   public synchronized ImagePlusInfo getBackground(int binning, Rectangle roi) 
            throws MMException {
       String key = makeKey(binning, roi);
       if (background_.containsKey(key)) {
@@ -100,7 +100,7 @@ public class ImageCollection {
     * @param file
     * @throws MMException 
     */
-   public void addFlatField(String preset, String file) throws MMException {
+   public synchronized void addFlatField(String preset, String file) throws MMException {
       ij.io.Opener opener = new ij.io.Opener();
       ImagePlus ip = opener.openImage(file);
       if (ip == null) {
@@ -169,19 +169,19 @@ public class ImageCollection {
       }
    }
 
-   public ImagePlusInfo getFlatField(String preset) {
+   public synchronized ImagePlusInfo getFlatField(String preset) {
       return flatFields_.get(preset).get(BASEIMAGE);
    }
 
-   public void clearFlatFields() {
+   public synchronized void clearFlatFields() {
       flatFields_.clear();
    }
 
-   public void removeFlatField(String preset) {
+   public synchronized void removeFlatField(String preset) {
       flatFields_.remove(preset);
    }
 
-   public ImagePlusInfo getFlatField(String preset, int binning, Rectangle roi)
+   public synchronized ImagePlusInfo getFlatField(String preset, int binning, Rectangle roi)
            throws MMException {
       String key = makeKey(binning, roi);
       if (flatFields_.get(preset).containsKey(key)) {
@@ -27,6 +27,7 @@ import ij.process.ImageProcessor;
 import java.awt.Rectangle;
 import java.util.Iterator;
 import mmcorej.Configuration;
+import mmcorej.PixelBufferPool;
 import mmcorej.PropertySetting;
 import mmcorej.TaggedImage;
 import org.json.JSONException;
@@ -56,6 +57,13 @@ public class ShadingProcessor extends DataProcessor<TaggedImage> {
       }
    }
    
+   // Each image is corrected with the stored background and flat-field
+   // images only; nothing carries over from the previous image
+   @Override
+   public boolean isStateless() {
+      return true;
+   }
+
    /**
     * Polls for tagged images, and processes them if their size and type matches
     * 
@@ -130,7 +138,8 @@ public class ShadingProcessor extends DataProcessor<TaggedImage> {
          ImageProcessor imp = ImageUtils.makeProcessor(nextImage);
          ImageProcessor impBackground = background.getProcessor();
          imp = ImageUtils.subtractImageProcessors(imp, impBackground);
-         bgSubtracted = new TaggedImage(imp.getPixels(), newTags);
+         bgSubtracted = ImageUtils.makePooledTaggedImage(imp.getPixels(), newTags);
+         nextImage.release();
       }
       
       ImagePlusInfo flatFieldImage = getMatchingFlatFieldImage(newTags, binning, rect);       
@@ -143,7 +152,8 @@ public class ShadingProcessor extends DataProcessor<TaggedImage> {
       }  
       
       if (ijType == ImagePlus.GRAY8) {
-         byte[] newPixels = new byte[width * height];
+         byte[] newPixels = (byte[]) PixelBufferPool.getInstance().borrow(
+                 width, height, 1, 1);
          byte[] oldPixels = (byte[]) bgSubtracted.pix;
          int length = oldPixels.length;
          float[] flatFieldPixels = (float[]) flatFieldImage.getProcessor().getPixels();
@@ -155,12 +165,14 @@ public class ShadingProcessor extends DataProcessor<TaggedImage> {
             }
             newPixels[index] = (byte) (newValue);
          }
-         newImage = new TaggedImage(newPixels, newTags);
+         bgSubtracted.release();
+         newImage = ImageUtils.makePooledTaggedImage(newPixels, newTags);
          myFrame_.setStatus("Done");
          return newImage;
        
       } else if (ijType == ImagePlus.GRAY16) {
-         short[] newPixels = new short[width * height];
+         short[] newPixels = (short[]) PixelBufferPool.getInstance().borrow(
+                 width, height, 2, 1);
          short[] oldPixels = (short[]) bgSubtracted.pix;
          int length = oldPixels.length;
          for (int index = 0; index < length; index++){
@@ -174,7 +186,8 @@ public class ShadingProcessor extends DataProcessor<TaggedImage> {
             }
             newPixels[index] = (short) newValue;
          }
-         newImage = new TaggedImage(newPixels, newTags);
+         bgSubtracted.release();
+         newImage = ImageUtils.makePooledTaggedImage(newPixels, newTags);
          myFrame_.setStatus("Done");
          return newImage;         
          
@@ -20,8 +20,7 @@
 //               INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES.
 package org.micromanager.newimageflipper;
 
-import ij.ImagePlus;
-import ij.process.ImageProcessor;
+import mmcorej.PixelBufferPool;
 import mmcorej.TaggedImage;
 import org.json.JSONException;
 import org.json.JSONObject;
@@ -44,6 +43,12 @@ public class NewImageFlippingProcessor extends DataProcessor<TaggedImage> {
    Rotation rotation_;
    NewImageFlipperControls controls_;
 
+   // Each image is rotated and mirrored per the camera settings alone
+   @Override
+   public boolean isStateless() {
+      return true;
+   }
+
    /**
     * Polls for tagged images, and processes them if they are from the selected 
     * camera.
@@ -112,45 +117,86 @@ public class NewImageFlippingProcessor extends DataProcessor<TaggedImage> {
       }
       
       
-      String type = MDUtils.getPixelType(nextImage.tags);
-      int ijType = ImagePlus.GRAY8;
-      if (type.equals("GRAY16")) {
-         ijType = ImagePlus.GRAY16;
-      }
-
-      ImageProcessor proc = ImageUtils.makeProcessor(ijType, width, height, nextImage.pix);
-
-      if (mirror) {
-         proc.flipHorizontal();
-      }
       int rotationTag = 0;
       if (rotation == Rotation.R90) {
-         proc = proc.rotateRight();
          rotationTag = 90;
       }
       if (rotation == Rotation.R180) {
-         proc = proc.rotateRight();
-         proc = proc.rotateRight();
          rotationTag = 180;
       }
       if (rotation == Rotation.R270) {
-         proc = proc.rotateLeft();
          rotationTag = 270;
       }
       JSONObject newTags = nextImage.tags;
       newTags.put("ImageFlipper-Rotation", rotationTag);
       newTags.put("ImageFlipper-Mirror", mirror ? "On" : "Off");
-      
-      // make sure that the produced image has the same width and height as the 
-      // original.
-      if ( (width != proc.getWidth()) || (height != proc.getHeight()) ) { 
-         throw new MMScriptException("NewImageFlipper: Flipping would produce"
-                 + " image of different size which can not be handled by Micro-Manager");
+
+      if (!mirror && rotation == Rotation.R0) {
+         return nextImage;
       }
-      MDUtils.setWidth(newTags, proc.getWidth()); 
-      MDUtils.setHeight(newTags, proc.getHeight());
 
-      return new TaggedImage(proc.getPixels(), newTags);
+      // Transform into an array from the pixel buffer pool, and hand the
+      // input pixels back as they are no longer needed
+      Object newPixels = PixelBufferPool.getInstance().borrowLike(nextImage.pix);
+      if (nextImage.pix instanceof byte[]) {
+         transform((byte[]) nextImage.pix, (byte[]) newPixels, width, height,
+                 mirror, rotation);
+      } else if (nextImage.pix instanceof short[]) {
+         transform((short[]) nextImage.pix, (short[]) newPixels, width, height,
+                 mirror, rotation);
+      } else {
+         throw new MMScriptException("NewImageFlipper: Unsupported pixel type "
+                 + MDUtils.getPixelType(newTags));
+      }
+      try {
+         nextImage.release();
+      } catch (Exception ex) {
+         ReportingUtils.logError(ex, "NewImageFlipper: Unable to release pixels");
+      }
+      return ImageUtils.makePooledTaggedImage(newPixels, newTags);
+   }
+
+   /**
+    * Index in the transformed image of pixel (x, y) of the source image.
+    * The source is mirrored first, and then rotated.
+    */
+   private static int targetIndex(int x, int y, int width, int height,
+           boolean mirror, Rotation rotation) {
+      if (mirror) {
+         x = width - 1 - x;
+      }
+      switch (rotation) {
+         case R90:
+            return x * height + (height - 1 - y);
+         case R180:
+            return (height - 1 - y) * width + (width - 1 - x);
+         case R270:
+            return (width - 1 - x) * height + y;
+         default:
+            return y * width + x;
+      }
+   }
+
+   private static void transform(byte[] source, byte[] target, int width,
+           int height, boolean mirror, Rotation rotation) {
+      int index = 0;
+      for (int y = 0; y < height; y++) {
+         for (int x = 0; x < width; x++) {
+            target[targetIndex(x, y, width, height, mirror, rotation)] =
+                    source[index++];
+         }
+      }
+   }
+
+   private static void transform(short[] source, short[] target, int width,
+           int height, boolean mirror, Rotation rotation) {
+      int index = 0;
+      for (int y = 0; y < height; y++) {
+         for (int x = 0; x < width; x++) {
+            target[targetIndex(x, y, width, height, mirror, rotation)] =
+                    source[index++];
+         }
+      }
    }
 
    /**
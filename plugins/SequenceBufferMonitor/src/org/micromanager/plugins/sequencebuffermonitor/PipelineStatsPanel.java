@@ -0,0 +1,107 @@
+/*
+ * COPYRIGHT:    University of California, San Francisco, 2014
+ * LICENSE:      This file is distributed under the BSD license.
+ *               License text is included with the source distribution.
+ *
+ *               This file is distributed in the hope that it will be useful,
+ *               but WITHOUT ANY WARRANTY; without even the implied warranty
+ *               of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ *
+ *               IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ *               CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+ *               INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES.
+ */
+
+package org.micromanager.plugins.sequencebuffermonitor;
+
+import java.awt.Dimension;
+import javax.swing.JPanel;
+import javax.swing.JScrollPane;
+import javax.swing.JTable;
+import javax.swing.table.AbstractTableModel;
+import org.micromanager.utils.PipelineMonitor;
+
+
+/**
+ * Shows the per-stage statistics of the PipelineMonitor: how many images
+ * went through each stage, their latency, queue occupancy and late or
+ * dropped images.
+ */
+class PipelineStatsPanel extends JPanel {
+   private static final String[] COLUMNS = {
+      "Stage", "Images", "Img/s", "Mean ms", "99% ms", "Max ms", "Queue",
+      "Late", "Dropped"
+   };
+
+   private final StatsTableModel model_ = new StatsTableModel();
+
+   private static class StatsTableModel extends AbstractTableModel {
+      private Object[][] rows_ = new Object[0][];
+
+      void update() {
+         PipelineMonitor monitor = PipelineMonitor.getInstance();
+         String[] names = monitor.getStageNames();
+         Object[][] rows = new Object[names.length][];
+         for (int i = 0; i < names.length; ++i) {
+            PipelineMonitor.Stage stage = monitor.getStage(names[i]);
+            rows[i] = new Object[] {
+               names[i],
+               stage.getCount(),
+               String.format("%.1f", monitor.getImagesPerSecond(names[i])),
+               String.format("%.2f", stage.getMeanLatencyMs()),
+               String.format("%.2f", stage.getPercentileLatencyMs(0.99)),
+               String.format("%.2f", stage.getMaxLatencyMs()),
+               stage.getMaxQueueDepth(),
+               stage.getLateCount(),
+               stage.getDroppedCount()
+            };
+         }
+         boolean sameRows = rows.length == rows_.length;
+         rows_ = rows;
+         if (sameRows && rows.length > 0) {
+            fireTableRowsUpdated(0, rows.length - 1);
+         } else {
+            fireTableDataChanged();
+         }
+      }
+
+      @Override
+      public int getRowCount() {
+         return rows_.length;
+      }
+
+      @Override
+      public int getColumnCount() {
+         return COLUMNS.length;
+      }
+
+      @Override
+      public String getColumnName(int column) {
+         return COLUMNS[column];
+      }
+
+      @Override
+      public Object getValueAt(int row, int column) {
+         return rows_[row][column];
+      }
+   }
+
+   PipelineStatsPanel() {
+      setLayout(new net.miginfocom.swing.MigLayout(
+               "insets 0, fill", "[grow, fill]", "[grow, fill]"));
+      JTable table = new JTable(model_);
+      table.getColumnModel().getColumn(0).setPreferredWidth(180);
+      JScrollPane scrollPane = new JScrollPane(table);
+      scrollPane.setPreferredSize(new Dimension(640, 160));
+      add(scrollPane);
+   }
+
+   void update() {
+      model_.update();
+   }
+
+   void reset() {
+      PipelineMonitor.getInstance().reset();
+      model_.update();
+   }
+}
@@ -1,7 +1,8 @@
 /**
  * SequenceBufferMonitor plugin
  *
- * Display Core sequence buffer usage in real time.
+ * Display Core sequence buffer usage and image pipeline statistics in real
+ * time.
  *
  * AUTHOR:       Mark Tsuchida
  * COPYRIGHT:    University of California, San Francisco, 2014
@@ -26,7 +27,7 @@ import org.micromanager.api.ScriptInterface;
 public class SequenceBufferMonitor implements MMPlugin {
    public static final String menuName = "Sequence Buffer Monitor";
    public static final String tooltipDescription =
-      "Display sequence buffer usage";
+      "Display sequence buffer usage and image pipeline statistics";
 
    private ScriptInterface app_;
 
@@ -18,6 +18,7 @@ package org.micromanager.plugins.sequencebuffermonitor;
 import java.awt.Dimension;
 import java.awt.event.ActionEvent;
 import java.awt.event.ActionListener;
+import javax.swing.JButton;
 import javax.swing.JLabel;
 import javax.swing.JProgressBar;
 import javax.swing.JTextField;
@@ -27,6 +28,7 @@ import javax.swing.Timer;
 class SequenceBufferMonitorFrame extends javax.swing.JFrame {
    org.micromanager.api.ScriptInterface app_;
    JProgressBar usageBar_;
+   PipelineStatsPanel statsPanel_;
    Timer timer_;
 
    int previousTotalCapacity_ = -1;
@@ -63,21 +65,31 @@ class SequenceBufferMonitorFrame extends javax.swing.JFrame {
          }
       });
 
+      statsPanel_ = new PipelineStatsPanel();
+      JButton resetButton = new JButton("Reset Statistics");
+      resetButton.addActionListener(new ActionListener() {
+         @Override
+         public void actionPerformed(ActionEvent e) {
+            statsPanel_.reset();
+         }
+      });
+
       setLayout(new net.miginfocom.swing.MigLayout(
                "insets dialog",
                "[grow, fill]",
-               "[]related[]"));
+               "[]related[]unrelated[grow, fill]related[]"));
       add(usageBar_, "wrap");
       add(new JLabel("Update Interval:"), "split 3, gapleft push");
       add(intervalField);
-      add(new JLabel("ms"));
+      add(new JLabel("ms"), "wrap");
+      add(statsPanel_, "wrap");
+      add(resetButton, "split 1, gapleft push");
 
       Dimension size = usageBar_.getPreferredSize();
       usageBar_.setPreferredSize(new Dimension(2 * size.width, size.height));
 
       pack();
       setMinimumSize(getPreferredSize());
-      setResizable(false);
 
       addWindowListener(new java.awt.event.WindowAdapter() {
          @Override
@@ -90,6 +102,8 @@ class SequenceBufferMonitorFrame extends javax.swing.JFrame {
    }
 
    private void update() {
+      statsPanel_.update();
+
       mmcorej.CMMCore core = app_.getMMCore();
       if (core == null) {
          usageBar_.setValue(0);
@@ -97,6 +97,12 @@ public class SplitViewProcessor extends DataProcessor<TaggedImage> {
       return token;
    }
 
+   // Splitting depends only on the orientation setting, not on earlier images
+   @Override
+   public boolean isStateless() {
+      return true;
+   }
+
    @Override
    public void process() {
 